@@ -0,0 +1,116 @@
+package contact;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import readelement.Barcode;
+
+/**
+ * Dictionary assigning a small integer code to each distinct barcode (ID and sequence) seen in this run
+ * Codes are assigned in the order barcodes are first seen, so they are not comparable across runs
+ * Thread safe
+ * @author prussell
+ *
+ */
+final class BarcodeDictionary {
+
+	/**
+	 * Maximum number of distinct barcodes; codes are stored as unsigned shorts
+	 */
+	static final int MAX_NUM_CODES = 1 << 16;
+
+	private static final ConcurrentHashMap<String, Integer> codesByKey = new ConcurrentHashMap<String, Integer>();
+	private static volatile Entry[] entries = new Entry[64];
+	private static int numCodes = 0;
+
+	private BarcodeDictionary() {
+		// Prevent instantiation
+	}
+
+	/**
+	 * A barcode and its SAM attribute string
+	 */
+	private static final class Entry {
+
+		final Barcode barcode;
+		final String key;
+
+		Entry(Barcode barcode, String key) {
+			this.barcode = barcode;
+			this.key = key;
+		}
+
+	}
+
+	/**
+	 * @param barcodeId Barcode ID
+	 * @param sequence Barcode sequence
+	 * @return The key for the barcode, which is also its SAM attribute string [id]sequence
+	 */
+	static String key(String barcodeId, String sequence) {
+		return "[" + barcodeId + "]" + sequence;
+	}
+
+	/**
+	 * Get the code for a barcode that has already been seen
+	 * @param key Barcode key as returned by {@link #key(String, String)}
+	 * @return The code as an unsigned short, or -1 if the barcode has not been seen
+	 */
+	static int find(String key) {
+		Integer rtrn = codesByKey.get(key);
+		return rtrn == null ? -1 : rtrn.intValue();
+	}
+
+	/**
+	 * Get the code for a barcode, assigning a new code if the barcode has not been seen
+	 * @param key Barcode key as returned by {@link #key(String, String)}
+	 * @param barcodeId Barcode ID, used only if the barcode is new
+	 * @param sequence Barcode sequence, used only if the barcode is new
+	 * @return The code as an unsigned short
+	 */
+	static short code(String key, String barcodeId, String sequence) {
+		Integer rtrn = codesByKey.get(key);
+		if(rtrn == null) {
+			rtrn = addCode(key, barcodeId, sequence);
+		}
+		return (short) rtrn.intValue();
+	}
+
+	private static synchronized Integer addCode(String key, String barcodeId, String sequence) {
+		Integer rtrn = codesByKey.get(key);
+		if(rtrn != null) {
+			return rtrn;
+		}
+		if(numCodes == MAX_NUM_CODES) {
+			throw new IllegalStateException("Too many distinct barcodes: " + MAX_NUM_CODES);
+		}
+		Entry[] e = entries;
+		if(numCodes == e.length) {
+			e = Arrays.copyOf(e, Math.min(2 * e.length, MAX_NUM_CODES));
+		}
+		e[numCodes] = new Entry(new Barcode(sequence, barcodeId), key);
+		// Publish the entry before the code so readers holding a code always see its entry
+		entries = e;
+		rtrn = Integer.valueOf(numCodes);
+		codesByKey.put(key, rtrn);
+		numCodes++;
+		return rtrn;
+	}
+
+	/**
+	 * @param code Code as returned by {@link #code(String, String, String)}
+	 * @return The barcode
+	 */
+	static Barcode barcode(short code) {
+		return entries[code & 0xffff].barcode;
+	}
+
+	/**
+	 * @param code Code as returned by {@link #code(String, String, String)}
+	 * @return SAM attribute string of the single barcode
+	 */
+	static String key(short code) {
+		return entries[code & 0xffff].key;
+	}
+
+}
@@ -1,9 +1,8 @@
 package contact;
 
-import guttmanlab.core.util.StringParser;
-
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -14,44 +13,55 @@ import net.sf.samtools.SAMRecord;
 
 /**
  * A possible set of barcodes identified with a fragment
+ * Each barcode is stored as a code in a dictionary of all barcodes seen in this run,
+ * so equality and hashing work on the codes and the SAM attribute string is only built if needed
+ * Each thread remembers the last sequence it parsed from a SAM attribute string, so the consecutive records of a cluster share one instance
  * Instances are immutable
  * @author prussell
  *
  */
 public final class BarcodeSequence implements Comparable<BarcodeSequence> {
-	
+
+	private final short[] codes;
+	private final int hashCode;
+	private String samAttributeString;
 	private List<Barcode> barcodes;
 	public static Logger logger = Logger.getLogger(BarcodeSequence.class.getName());
-	private String samAttributeString;
+
+	/**
+	 * Last sequence parsed from a SAM attribute string on each thread
+	 */
+	private static final ThreadLocal<BarcodeSequence[]> lastParsed = ThreadLocal.withInitial(() -> new BarcodeSequence[1]);
 
 	/**
 	 * Instantiate with an initial set of barcodes
 	 * @param barcodeList Ordered list of barcodes
 	 */
 	public BarcodeSequence(List<Barcode> barcodeList) {
-		barcodes = new ArrayList<Barcode>();
-		appendBarcodes(barcodeList);
-		refreshSamAttributeString();
+		this(encode(barcodeList));
 	}
-	
+
 	/**
-	 * Add a list of barcodes to the end of this sequence
-	 * @param newBarcodes Ordered list of barcodes to add
+	 * @param codes Barcode codes from the dictionary, in order
 	 */
-	private void appendBarcodes(List<Barcode> newBarcodes) {
-		for(Barcode b : newBarcodes) {
-			barcodes.add(b);
-		}
-		refreshSamAttributeString();
+	private BarcodeSequence(short[] codes) {
+		this.codes = codes;
+		hashCode = Arrays.hashCode(codes);
 	}
-	
+
 	/**
-	 * Refresh the SAM attribute string representing this sequence of barcodes
+	 * @param barcodeList Ordered list of barcodes
+	 * @return Codes of the barcodes
 	 */
-	private void refreshSamAttributeString() {
-		samAttributeString = getSamAttributeString();
+	private static short[] encode(List<Barcode> barcodeList) {
+		short[] rtrn = new short[barcodeList.size()];
+		for(int i = 0; i < rtrn.length; i++) {
+			Barcode b = barcodeList.get(i);
+			rtrn[i] = BarcodeDictionary.code(BarcodeDictionary.key(b.getId(), b.getSequence()), b.getId(), b.getSequence());
+		}
+		return rtrn;
 	}
-	
+
 	/**
 	 * Create by reading barcodes from a sam attribute
 	 * @param samRecord SAM record
@@ -61,73 +71,122 @@ public final class BarcodeSequence implements Comparable<BarcodeSequence> {
 		String attribute = samRecord.getStringAttribute(BarcodedBamWriter.BARCODES_SAM_TAG);
 		return fromSamAttributeString(attribute);
 	}
-	
+
 	/**
 	 * Create Barcodes object from a string representation as produced by toSamAttributeString()
+	 * Returns the same instance as the previous call on this thread if the string is the same
 	 * @param s The string representation
 	 * @return The barcode collection represented by the string
 	 */
 	public static BarcodeSequence fromSamAttributeString(String s) {
-		List<Barcode> barcodes = new ArrayList<Barcode>();
-		StringParser s1 = new StringParser();
-		StringParser s2 = new StringParser();
-		s1.parse(s, "\\[");
-		for(int i = 0; i < s1.getFieldCount(); i++) {
-			String b = s1.asString(i);
-			if(b.length() == 0) {
-				continue;
-			}
-			s2.parse(b, "\\]");
-			if(s2.getFieldCount() != 2) {
+		if(s == null) {
+			throw new IllegalArgumentException("Barcode attribute string is null");
+		}
+		BarcodeSequence[] last = lastParsed.get();
+		BarcodeSequence rtrn = last[0];
+		if(rtrn != null && s.equals(rtrn.samAttributeString)) {
+			return rtrn;
+		}
+		rtrn = new BarcodeSequence(parse(s));
+		rtrn.samAttributeString = s.isEmpty() ? null : s;
+		last[0] = rtrn;
+		return rtrn;
+	}
+
+	/**
+	 * Parse a string of the form [id1]barcode1[id2]barcode2... into barcode codes
+	 * @param s The string
+	 * @return The codes
+	 */
+	private static short[] parse(String s) {
+		short[] rtrn = new short[8];
+		int numBarcodes = 0;
+		int length = s.length();
+		int pos = 0;
+		while(pos < length) {
+			int close = s.indexOf(']', pos + 1);
+			int next = close < 0 ? -1 : s.indexOf('[', close + 1);
+			if(next < 0) next = length;
+			int extraClose = close < 0 ? -1 : s.indexOf(']', close + 1);
+			boolean valid = s.charAt(pos) == '[' && close >= 0 && close + 1 < next && (extraClose < 0 || extraClose > next);
+			if(!valid) {
 				throw new IllegalArgumentException("String " + s + " is not of required form [id1]barcode1[id2]barcode2...");
 			}
-			barcodes.add(new Barcode(s2.asString(1), s2.asString(0)));
+			String key = s.substring(pos, next);
+			int code = BarcodeDictionary.find(key);
+			if(code < 0) {
+				code = BarcodeDictionary.code(key, s.substring(pos + 1, close), s.substring(close + 1, next));
+			}
+			if(numBarcodes == rtrn.length) {
+				rtrn = Arrays.copyOf(rtrn, 2 * rtrn.length);
+			}
+			rtrn[numBarcodes++] = (short) code;
+			pos = next;
 		}
-		return new BarcodeSequence(barcodes);
+		return Arrays.copyOf(rtrn, numBarcodes);
 	}
-	
+
 	/**
 	 * Create and get a SAM attribute string representing this sequence of barcodes
 	 * @return The SAM attribute string
 	 */
 	private String getSamAttributeString() {
-		if(barcodes.isEmpty()) {
+		if(codes.length == 0) {
 			return null;
 		}
-		Iterator<Barcode> iter = barcodes.iterator();
-		String rtrn = "";
-		while(iter.hasNext()) {
-			Barcode bc = iter.next();
-			rtrn += "[" + bc.getId() + "]" + bc.getSequence();
+		if(codes.length == 1) {
+			return BarcodeDictionary.key(codes[0]);
 		}
-		return rtrn;
+		StringBuilder rtrn = new StringBuilder();
+		for(short code : codes) {
+			rtrn.append(BarcodeDictionary.key(code));
+		}
+		return rtrn.toString();
 	}
-		
+
 	/**
 	 * Get the SAM attribute string representing this sequence of barcodes
 	 * @return The SAM attribute string
 	 */
 	public String toSamAttributeString() {
-		return samAttributeString;
+		String rtrn = samAttributeString;
+		if(rtrn == null && codes.length > 0) {
+			rtrn = getSamAttributeString();
+			samAttributeString = rtrn;
+		}
+		return rtrn;
 	}
-	
+
 	public String toString() {
 		return toSamAttributeString();
 	}
-	
+
 	public boolean equals(Object o) {
-		if(!o.getClass().equals(getClass())) {
+		if(o == this) {
+			return true;
+		}
+		if(o == null || !o.getClass().equals(getClass())) {
 			return false;
 		}
-		return toString().equals(o.toString());
+		BarcodeSequence other = (BarcodeSequence) o;
+		return hashCode == other.hashCode && Arrays.equals(codes, other.codes);
 	}
-	
+
 	public int hashCode() {
-		return toString().hashCode();
+		return hashCode;
 	}
-	
+
+	/**
+	 * Order is the order of the SAM attribute strings
+	 */
 	@Override
 	public int compareTo(BarcodeSequence o) {
+		if(equals(o)) {
+			return 0;
+		}
+		if(codes.length == 0 || o.codes.length == 0) {
+			return codes.length - o.codes.length;
+		}
 		return toString().compareTo(o.toString());
 	}
 
@@ -136,7 +195,7 @@ public final class BarcodeSequence implements Comparable<BarcodeSequence> {
 	 * @return The number of barcodes
 	 */
 	public int getNumBarcodes() {
-		return barcodes.size();
+		return codes.length;
 	}
 
 	/**
@@ -144,24 +203,28 @@ public final class BarcodeSequence implements Comparable<BarcodeSequence> {
 	 * @return Ordered list of barcodes
 	 */
 	public List<Barcode> getBarcodes() {
-		return barcodes;
+		List<Barcode> rtrn = barcodes;
+		if(rtrn == null) {
+			List<Barcode> list = new ArrayList<Barcode>(codes.length);
+			for(short code : codes) {
+				list.add(BarcodeDictionary.barcode(code));
+			}
+			rtrn = Collections.unmodifiableList(list);
+			barcodes = rtrn;
+		}
+		return rtrn;
 	}
-	
+
 	/**
 	 * Get the last N barcodes
 	 * @param numToGet Number of barcodes to get
 	 * @return The last N barcodes or all barcodes if N > number of barcodes
 	 */
 	public BarcodeSequence getLastBarcodes(int numToGet) {
-		if(numToGet >= barcodes.size()) {
-			return new BarcodeSequence(barcodes);
+		if(numToGet >= codes.length) {
+			return this;
 		}
-		int firstToGet = barcodes.size() - numToGet;
-		List<Barcode> rtrn = new ArrayList<Barcode>();
-		for(int i = firstToGet; i < barcodes.size(); i++) {
-			rtrn.add(barcodes.get(i));
-		}
-		return new BarcodeSequence(rtrn);
+		return new BarcodeSequence(Arrays.copyOfRange(codes, codes.length - numToGet, codes.length));
 	}
-	
+
 }
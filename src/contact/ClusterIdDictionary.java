@@ -0,0 +1,166 @@
+package contact;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Dictionary of dense integer cluster IDs for distinct barcode sequences
+ * IDs are assigned in order of the SAM attribute strings, so a file sorted by barcode string is also sorted by cluster ID
+ * The dictionary is stored in a sidecar file next to the bam file, with one barcode attribute string per line;
+ * the line number (starting at 0) is the cluster ID
+ * Instances are immutable
+ * @author prussell
+ *
+ */
+public final class ClusterIdDictionary {
+
+	private static Logger logger = Logger.getLogger(ClusterIdDictionary.class.getName());
+
+	private static final String SIDECAR_SUFFIX = ".clusters";
+
+	/**
+	 * Largest cluster ID that can be stored in a SAM integer tag
+	 */
+	public static final long MAX_CLUSTER_ID = 0xffffffffL;
+
+	private String[] attributeStrings; // Sorted; index is the cluster ID
+
+	private ClusterIdDictionary(String[] sortedAttributeStrings) {
+		if(sortedAttributeStrings.length - 1 > MAX_CLUSTER_ID) {
+			throw new IllegalArgumentException("Too many clusters for integer tag: " + sortedAttributeStrings.length);
+		}
+		attributeStrings = sortedAttributeStrings;
+	}
+
+	/**
+	 * Assign cluster IDs to a collection of barcode sequences
+	 * @param samAttributeStrings SAM attribute strings of barcode sequences; may contain duplicates
+	 * @return The dictionary
+	 */
+	public static ClusterIdDictionary fromAttributeStrings(Collection<String> samAttributeStrings) {
+		return new ClusterIdDictionary(new TreeSet<String>(samAttributeStrings).toArray(new String[0]));
+	}
+
+	/**
+	 * @param bamFile Bam file
+	 * @return The sidecar dictionary file for the bam file
+	 */
+	public static File sidecarFile(String bamFile) {
+		return new File(bamFile + SIDECAR_SUFFIX);
+	}
+
+	/**
+	 * Read a dictionary from a file written by {@link #write(File)}
+	 * @param file The file
+	 * @return The dictionary
+	 * @throws IOException
+	 */
+	public static ClusterIdDictionary read(File file) throws IOException {
+		logger.info("Reading cluster ID dictionary from " + file + "...");
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		String line;
+		while((line = reader.readLine()) != null) {
+			lines.add(line);
+		}
+		reader.close();
+		String[] strings = lines.toArray(new String[lines.size()]);
+		for(int i = 1; i < strings.length; i++) {
+			if(strings[i - 1].compareTo(strings[i]) >= 0) {
+				throw new IllegalArgumentException("Cluster ID dictionary is not sorted and distinct at line " + i + ": " + file);
+			}
+		}
+		logger.info("Read " + strings.length + " cluster IDs.");
+		return new ClusterIdDictionary(strings);
+	}
+
+	/**
+	 * Write the dictionary to a file
+	 * @param file The file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		logger.info("Writing " + attributeStrings.length + " cluster IDs to " + file + "...");
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		for(String s : attributeStrings) {
+			writer.write(s);
+			writer.write("\n");
+		}
+		writer.close();
+	}
+
+	/**
+	 * @param samAttributeString SAM attribute string of a barcode sequence
+	 * @return The cluster ID, or -1 if the barcode sequence is not in the dictionary
+	 */
+	public long getClusterId(String samAttributeString) {
+		int rtrn = Arrays.binarySearch(attributeStrings, samAttributeString);
+		return rtrn < 0 ? -1 : rtrn;
+	}
+
+	/**
+	 * @param clusterId Cluster ID
+	 * @return SAM attribute string of the barcode sequence
+	 */
+	public String getSamAttributeString(long clusterId) {
+		if(clusterId < 0 || clusterId >= attributeStrings.length) {
+			throw new IllegalArgumentException("Cluster ID not in dictionary: " + clusterId);
+		}
+		return attributeStrings[(int) clusterId];
+	}
+
+	/**
+	 * @param clusterId Cluster ID
+	 * @return The barcode sequence
+	 */
+	public BarcodeSequence getBarcodes(long clusterId) {
+		return BarcodeSequence.fromSamAttributeString(getSamAttributeString(clusterId));
+	}
+
+	/**
+	 * @return Number of cluster IDs
+	 */
+	public int size() {
+		return attributeStrings.length;
+	}
+
+	/**
+	 * Get the value to store in the integer cluster ID tag
+	 * SAM integer tags hold unsigned 32-bit values, so IDs up to {@link #MAX_CLUSTER_ID} are allowed
+	 * @param clusterId Cluster ID
+	 * @return Integer if the ID fits, otherwise Long
+	 */
+	public static Object tagValue(long clusterId) {
+		if(clusterId < 0 || clusterId > MAX_CLUSTER_ID) {
+			throw new IllegalArgumentException("Cluster ID out of range for integer tag: " + clusterId);
+		}
+		if(clusterId <= Integer.MAX_VALUE) {
+			return Integer.valueOf((int) clusterId);
+		}
+		return Long.valueOf(clusterId);
+	}
+
+	/**
+	 * Get the cluster ID from the value of the integer cluster ID tag
+	 * @param tagValue Tag value as returned by the SAM record, or null if the record does not have the tag
+	 * @return The cluster ID, or -1 if the tag value is null
+	 */
+	public static long clusterId(Object tagValue) {
+		if(tagValue == null) {
+			return -1;
+		}
+		return ((Number) tagValue).longValue();
+	}
+
+}
@@ -0,0 +1,388 @@
+package contact;
+
+import htsjdk.samtools.fork.BAMFileSpan;
+import htsjdk.samtools.fork.Chunk;
+import htsjdk.samtools.fork.SAMRecord;
+import htsjdk.samtools.fork.SAMRecordIterator;
+import htsjdk.samtools.fork.SamReader;
+import htsjdk.samtools.fork.SamReaderFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.LongUnaryOperator;
+
+import org.apache.log4j.Logger;
+
+import programs.barcode.BarcodedBamWriter;
+import util.CustomSamTag;
+
+/**
+ * Index of the clusters in a bam file grouped by barcode, for random access to clusters and for splitting the file at cluster boundaries
+ * For each cluster in file order, the index stores the BGZF virtual file offset of its first record and its number of records,
+ * plus a histogram of cluster sizes
+ * Clusters are identified by cluster ID if the bam file has a cluster ID dictionary (see {@link ClusterIdDictionary}),
+ * otherwise by their ordinal number in the file
+ * Record counts include all records in the file, before any filtering by the iterators
+ * The index is stored in a file next to the bam file; see {@link #indexFile(String)}
+ * Instances are immutable
+ * @author prussell
+ *
+ */
+public final class ClusterIndex {
+
+	private static Logger logger = Logger.getLogger(ClusterIndex.class.getName());
+
+	private static final String INDEX_SUFFIX = ".cidx";
+	private static final int MAGIC = 0x43494458; // "CIDX"
+	private static final int VERSION = 1;
+
+	/**
+	 * Number of bins in the size histogram; bin k counts clusters with between 2^k and 2^(k+1)-1 records
+	 */
+	public static final int NUM_SIZE_BINS = 32;
+
+	private long[] clusterIds; // Null if clusters are identified by ordinal
+	private long[] offsets; // Virtual offset of each cluster's first record, plus the end of the last cluster
+	private int[] numRecords;
+	private long[] sizeHistogram;
+
+	private ClusterIndex(long[] clusterIds, long[] offsets, int[] numRecords) {
+		this.clusterIds = clusterIds;
+		this.offsets = offsets;
+		this.numRecords = numRecords;
+		sizeHistogram = new long[NUM_SIZE_BINS];
+		for(int n : numRecords) sizeHistogram[sizeBin(n)]++;
+	}
+
+	/**
+	 * @param size Cluster size
+	 * @return Size histogram bin
+	 */
+	private static int sizeBin(int size) {
+		return 31 - Integer.numberOfLeadingZeros(Math.max(1, size));
+	}
+
+	/**
+	 * @param bamFile Bam file
+	 * @return The index file for the bam file
+	 */
+	public static File indexFile(String bamFile) {
+		return new File(bamFile + INDEX_SUFFIX);
+	}
+
+	/**
+	 * Build the index by reading through a bam file
+	 * Groups records by cluster ID tag if the bam file has a cluster ID dictionary, otherwise by barcode tag
+	 * Records without the tag must all be at the end of the file, as written by {@link programs.bam.SortBamByBarcode}
+	 * @param bamFile Bam file grouped by barcode, with clusters in increasing order of cluster ID or barcode string
+	 * @return The index
+	 * @throws IOException
+	 */
+	public static ClusterIndex scan(String bamFile) throws IOException {
+		logger.info("Indexing clusters in " + bamFile + "...");
+		boolean byClusterId = ClusterIdDictionary.sidecarFile(bamFile).exists();
+		SamReader reader = SamReaderFactory.makeDefault().enable(SamReaderFactory.Option.INCLUDE_SOURCE_IN_RECORDS).open(new File(bamFile));
+		SAMRecordIterator iter = reader.iterator();
+		Builder builder = new Builder(byClusterId);
+		long prevId = -1;
+		String prevBarcode = null;
+		long end = -1;
+		boolean untagged = false;
+		while(iter.hasNext()) {
+			SAMRecord record = iter.next();
+			Chunk chunk = ((BAMFileSpan) record.getFileSource().getFilePointer()).getChunks().get(0);
+			long id = -1;
+			String barcode = null;
+			if(byClusterId) {
+				id = ClusterIdDictionary.clusterId(record.getAttribute(CustomSamTag.CLUSTER_ID));
+			} else {
+				barcode = record.getStringAttribute(BarcodedBamWriter.BARCODES_SAM_TAG);
+			}
+			if(id < 0 && barcode == null) {
+				untagged = true;
+				continue;
+			}
+			if(untagged) {
+				throw new IllegalStateException("Records without barcodes are not all at the end of the file: " + record.getReadName());
+			}
+			if(byClusterId ? id != prevId : !barcode.equals(prevBarcode)) {
+				if(prevBarcode != null && barcode.compareTo(prevBarcode) < 0) {
+					throw new IllegalStateException("Bam file is not grouped by barcode: " + barcode + " after " + prevBarcode);
+				}
+				builder.startCluster(id, chunk.getChunkStart());
+				prevId = id;
+				prevBarcode = barcode;
+			}
+			builder.addRecord();
+			end = chunk.getChunkEnd();
+		}
+		iter.close();
+		reader.close();
+		ClusterIndex rtrn = builder.build(end, LongUnaryOperator.identity());
+		logger.info("Indexed " + rtrn.getNumClusters() + " clusters with " + rtrn.getNumRecords() + " records.");
+		return rtrn;
+	}
+
+	/**
+	 * Read an index from a file written by {@link #write(File)}
+	 * @param file The file
+	 * @return The index
+	 * @throws IOException
+	 */
+	public static ClusterIndex read(File file) throws IOException {
+		logger.info("Reading cluster index from " + file + "...");
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 20));
+		try {
+			if(in.readInt() != MAGIC) {
+				throw new IllegalArgumentException("Not a cluster index file: " + file);
+			}
+			int version = in.readInt();
+			if(version != VERSION) {
+				throw new IllegalArgumentException("Unsupported cluster index version " + version + ": " + file);
+			}
+			boolean byClusterId = in.readBoolean();
+			int numClusters = in.readInt();
+			long[] ids = byClusterId ? new long[numClusters] : null;
+			long[] offsets = new long[numClusters + 1];
+			int[] numRecords = new int[numClusters];
+			for(int i = 0; i < numClusters; i++) {
+				if(byClusterId) ids[i] = in.readLong();
+				offsets[i] = in.readLong();
+				numRecords[i] = in.readInt();
+			}
+			offsets[numClusters] = in.readLong();
+			logger.info("Read " + numClusters + " clusters.");
+			return new ClusterIndex(ids, offsets, numRecords);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Write the index to a file
+	 * @param file The file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		logger.info("Writing index of " + getNumClusters() + " clusters to " + file + "...");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeBoolean(isByClusterId());
+		out.writeInt(numRecords.length);
+		for(int i = 0; i < numRecords.length; i++) {
+			if(clusterIds != null) out.writeLong(clusterIds[i]);
+			out.writeLong(offsets[i]);
+			out.writeInt(numRecords[i]);
+		}
+		out.writeLong(offsets[numRecords.length]);
+		out.close();
+	}
+
+	/**
+	 * @return Whether clusters are identified by cluster ID rather than ordinal number
+	 */
+	public boolean isByClusterId() {
+		return clusterIds != null;
+	}
+
+	/**
+	 * @return Number of clusters
+	 */
+	public int getNumClusters() {
+		return numRecords.length;
+	}
+
+	/**
+	 * @return Total number of records in all clusters
+	 */
+	public long getNumRecords() {
+		long rtrn = 0;
+		for(int n : numRecords) rtrn += n;
+		return rtrn;
+	}
+
+	/**
+	 * @param i Ordinal number of the cluster in the file
+	 * @return Cluster ID, or the ordinal number if the file has no cluster IDs
+	 */
+	public long getClusterId(int i) {
+		checkCluster(i);
+		return clusterIds == null ? i : clusterIds[i];
+	}
+
+	/**
+	 * @param i Ordinal number of the cluster in the file
+	 * @return Number of records in the cluster
+	 */
+	public int getNumRecords(int i) {
+		checkCluster(i);
+		return numRecords[i];
+	}
+
+	/**
+	 * @param i Ordinal number of the cluster in the file
+	 * @return BGZF virtual file offset of the first record of the cluster
+	 */
+	public long getVirtualOffset(int i) {
+		checkCluster(i);
+		return offsets[i];
+	}
+
+	/**
+	 * @param i Ordinal number of the cluster in the file
+	 * @return BGZF virtual file offset just past the last record of the cluster
+	 */
+	public long getEndVirtualOffset(int i) {
+		checkCluster(i);
+		return offsets[i + 1];
+	}
+
+	/**
+	 * @param clusterId Cluster ID, or ordinal number if the file has no cluster IDs
+	 * @return Ordinal number of the cluster in the file, or -1 if the cluster is not in the file
+	 */
+	public int find(long clusterId) {
+		if(clusterIds == null) {
+			return clusterId >= 0 && clusterId < numRecords.length ? (int) clusterId : -1;
+		}
+		int rtrn = Arrays.binarySearch(clusterIds, clusterId);
+		return rtrn < 0 ? -1 : rtrn;
+	}
+
+	/**
+	 * @return Histogram of cluster sizes; bin k counts clusters with between 2^k and 2^(k+1)-1 records
+	 */
+	public long[] getSizeHistogram() {
+		return Arrays.copyOf(sizeHistogram, sizeHistogram.length);
+	}
+
+	/**
+	 * Get the file span of a range of clusters, leaving out clusters outside a size range
+	 * @param firstCluster Ordinal number of the first cluster
+	 * @param lastCluster Ordinal number after the last cluster
+	 * @param minSize Minimum number of records
+	 * @param maxSize Maximum number of records
+	 * @return Start and end virtual offsets of each run of consecutive clusters in the size range, alternating start and end
+	 */
+	public long[] getSpan(int firstCluster, int lastCluster, int minSize, int maxSize) {
+		if(firstCluster < 0 || lastCluster > numRecords.length || firstCluster > lastCluster) {
+			throw new IllegalArgumentException("Invalid cluster range " + firstCluster + "-" + lastCluster + " of " + numRecords.length);
+		}
+		long[] rtrn = new long[16];
+		int n = 0;
+		for(int i = firstCluster; i < lastCluster; i++) {
+			if(numRecords[i] < minSize || numRecords[i] > maxSize) continue;
+			if(n > 0 && rtrn[n - 1] == offsets[i]) {
+				rtrn[n - 1] = offsets[i + 1];
+				continue;
+			}
+			if(n == rtrn.length) rtrn = Arrays.copyOf(rtrn, 2 * n);
+			rtrn[n++] = offsets[i];
+			rtrn[n++] = offsets[i + 1];
+		}
+		return Arrays.copyOf(rtrn, n);
+	}
+
+	/**
+	 * Split the clusters into consecutive ranges with about the same number of records
+	 * @param numParts Number of ranges
+	 * @return Ordinal number of the first cluster of each range, followed by the number of clusters
+	 */
+	public int[] split(int numParts) {
+		if(numParts < 1) throw new IllegalArgumentException("Number of parts must be at least 1");
+		long total = getNumRecords();
+		int[] rtrn = new int[numParts + 1];
+		long cumulative = 0;
+		int part = 1;
+		for(int i = 0; i < numRecords.length && part < numParts; i++) {
+			cumulative += numRecords[i];
+			while(part < numParts && cumulative >= total * part / numParts) {
+				rtrn[part++] = i + 1;
+			}
+		}
+		while(part <= numParts) rtrn[part++] = numRecords.length;
+		return rtrn;
+	}
+
+	private void checkCluster(int i) {
+		if(i < 0 || i >= numRecords.length) {
+			throw new IndexOutOfBoundsException("Cluster " + i + " of " + numRecords.length);
+		}
+	}
+
+	/**
+	 * Builds an index from clusters in file order, e.g. while a bam file is being written
+	 * @author prussell
+	 *
+	 */
+	public static final class Builder {
+
+		private boolean byClusterId;
+		private long[] clusterIds;
+		private long[] positions;
+		private int[] numRecords;
+		private int numClusters;
+
+		/**
+		 * @param byClusterId Whether clusters are identified by cluster ID rather than ordinal number
+		 */
+		public Builder(boolean byClusterId) {
+			this.byClusterId = byClusterId;
+			clusterIds = new long[1024];
+			positions = new long[1024];
+			numRecords = new int[1024];
+		}
+
+		/**
+		 * Start a new cluster
+		 * @param clusterId Cluster ID; ignored if clusters are identified by ordinal number
+		 * @param position Position of the first record of the cluster, as a virtual offset or a position to be converted in {@link #build(long, LongUnaryOperator)}
+		 */
+		public void startCluster(long clusterId, long position) {
+			if(byClusterId && numClusters > 0 && clusterId <= clusterIds[numClusters - 1]) {
+				throw new IllegalStateException("Clusters are not in increasing order of cluster ID: " + clusterId + " after " + clusterIds[numClusters - 1]);
+			}
+			if(numClusters == positions.length) {
+				int capacity = 2 * numClusters;
+				clusterIds = Arrays.copyOf(clusterIds, capacity);
+				positions = Arrays.copyOf(positions, capacity);
+				numRecords = Arrays.copyOf(numRecords, capacity);
+			}
+			clusterIds[numClusters] = clusterId;
+			positions[numClusters] = position;
+			numRecords[numClusters] = 0;
+			numClusters++;
+		}
+
+		/**
+		 * Count a record in the current cluster
+		 */
+		public void addRecord() {
+			if(numClusters == 0) throw new IllegalStateException("No cluster started");
+			if(numRecords[numClusters - 1] == Integer.MAX_VALUE) throw new IllegalStateException("Too many records in cluster");
+			numRecords[numClusters - 1]++;
+		}
+
+		/**
+		 * @param endPosition Position just past the last record of the last cluster
+		 * @param toVirtualOffset Function converting positions to virtual offsets, or the identity function if positions are virtual offsets
+		 * @return The index
+		 */
+		public ClusterIndex build(long endPosition, LongUnaryOperator toVirtualOffset) {
+			long[] offsets = new long[numClusters + 1];
+			for(int i = 0; i < numClusters; i++) offsets[i] = toVirtualOffset.applyAsLong(positions[i]);
+			offsets[numClusters] = numClusters == 0 ? 0 : toVirtualOffset.applyAsLong(endPosition);
+			return new ClusterIndex(byClusterId ? Arrays.copyOf(clusterIds, numClusters) : null, offsets, Arrays.copyOf(numRecords, numClusters));
+		}
+
+	}
+
+}
@@ -0,0 +1,314 @@
+package contact;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.TreeSet;
+
+/**
+ * A set of mapped fragments with the same barcode sequence, stored as flat primitive arrays
+ * Holds only the fields needed for contact analysis: reference, start, end, strand and mapping quality of each fragment
+ * Instances are mutable and are reused by iterators; use {@link #copy()} to keep a cluster
+ * @author prussell
+ *
+ */
+public final class FlatFragmentCluster {
+
+	private String[] referenceNames; // Reference names by index, from the bam header
+	private ClusterIdDictionary clusterIds; // Null if barcodes come from the barcode string
+	private String barcodeString;
+	private long clusterId;
+	private BarcodeSequence barcodes;
+	private int size;
+	private int[] referenceIndex;
+	private int[] start;
+	private int[] end;
+	private boolean[] negativeStrand;
+	private int[] mappingQuality;
+
+	/**
+	 * @param referenceNames Reference names by reference index
+	 * @param clusterIds Dictionary to look up barcodes by cluster ID, or null if barcodes are set as strings
+	 */
+	public FlatFragmentCluster(String[] referenceNames, ClusterIdDictionary clusterIds) {
+		this(referenceNames, clusterIds, 16);
+	}
+
+	/**
+	 * @param referenceNames Reference names by reference index
+	 * @param clusterIds Dictionary to look up barcodes by cluster ID, or null if barcodes are set as strings
+	 * @param capacity Initial number of locations to allocate space for
+	 */
+	public FlatFragmentCluster(String[] referenceNames, ClusterIdDictionary clusterIds, int capacity) {
+		this.referenceNames = referenceNames;
+		this.clusterIds = clusterIds;
+		clusterId = -1;
+		referenceIndex = new int[capacity];
+		start = new int[capacity];
+		end = new int[capacity];
+		negativeStrand = new boolean[capacity];
+		mappingQuality = new int[capacity];
+	}
+
+	/**
+	 * Empty the cluster and set its barcodes
+	 * @param barcodeSamAttributeString SAM attribute string of the barcodes, or null if using a cluster ID
+	 * @param id Cluster ID, or -1 if using a barcode string
+	 */
+	public void reset(String barcodeSamAttributeString, long id) {
+		barcodeString = barcodeSamAttributeString;
+		clusterId = id;
+		barcodes = null;
+		size = 0;
+	}
+
+	/**
+	 * Add a fragment
+	 * @param refIndex Reference index in the bam header
+	 * @param fragmentStart Zero-based start position
+	 * @param fragmentEnd Exclusive end position
+	 * @param isNegativeStrand Whether the fragment is on the negative strand
+	 * @param mapq Mapping quality
+	 */
+	public void add(int refIndex, int fragmentStart, int fragmentEnd, boolean isNegativeStrand, int mapq) {
+		if(size == referenceIndex.length) {
+			int capacity = Math.max(4, 2 * size);
+			referenceIndex = Arrays.copyOf(referenceIndex, capacity);
+			start = Arrays.copyOf(start, capacity);
+			end = Arrays.copyOf(end, capacity);
+			negativeStrand = Arrays.copyOf(negativeStrand, capacity);
+			mappingQuality = Arrays.copyOf(mappingQuality, capacity);
+		}
+		referenceIndex[size] = refIndex;
+		start[size] = fragmentStart;
+		end[size] = fragmentEnd;
+		negativeStrand[size] = isNegativeStrand;
+		mappingQuality[size] = mapq;
+		size++;
+	}
+
+	/**
+	 * @return A copy of this cluster that is not affected by later changes to this one
+	 */
+	public FlatFragmentCluster copy() {
+		FlatFragmentCluster rtrn = new FlatFragmentCluster(referenceNames, clusterIds, Math.max(1, size));
+		rtrn.reset(barcodeString, clusterId);
+		rtrn.barcodes = barcodes;
+		System.arraycopy(referenceIndex, 0, rtrn.referenceIndex, 0, size);
+		System.arraycopy(start, 0, rtrn.start, 0, size);
+		System.arraycopy(end, 0, rtrn.end, 0, size);
+		System.arraycopy(negativeStrand, 0, rtrn.negativeStrand, 0, size);
+		System.arraycopy(mappingQuality, 0, rtrn.mappingQuality, 0, size);
+		rtrn.size = size;
+		return rtrn;
+	}
+
+	/**
+	 * @return The barcode sequence shared by all the fragments
+	 */
+	public BarcodeSequence getBarcodes() {
+		if(barcodes == null) {
+			barcodes = clusterId >= 0 && clusterIds != null ? clusterIds.getBarcodes(clusterId) : BarcodeSequence.fromSamAttributeString(barcodeString);
+		}
+		return barcodes;
+	}
+
+	/**
+	 * @return SAM attribute string of the barcode sequence
+	 */
+	public String getSamAttributeString() {
+		if(barcodeString != null) {
+			return barcodeString;
+		}
+		return clusterIds.getSamAttributeString(clusterId);
+	}
+
+	/**
+	 * @return Number of barcodes in the barcode sequence
+	 */
+	public int getNumBarcodes() {
+		return getBarcodes().getNumBarcodes();
+	}
+
+	/**
+	 * @return Cluster ID, or -1 if the cluster was read from a file without cluster IDs
+	 */
+	public long getClusterId() {
+		return clusterId;
+	}
+
+	/**
+	 * @return Number of mapped locations in the cluster
+	 */
+	public int getNumLocations() {
+		return size;
+	}
+
+	/**
+	 * @param i Location number
+	 * @return Reference index in the bam header
+	 */
+	public int getReferenceIndex(int i) {
+		checkIndex(i);
+		return referenceIndex[i];
+	}
+
+	/**
+	 * @param i Location number
+	 * @return Reference name
+	 */
+	public String getReferenceName(int i) {
+		return referenceNames[getReferenceIndex(i)];
+	}
+
+	/**
+	 * @param i Location number
+	 * @return Zero-based start position
+	 */
+	public int getStart(int i) {
+		checkIndex(i);
+		return start[i];
+	}
+
+	/**
+	 * @param i Location number
+	 * @return Exclusive end position
+	 */
+	public int getEnd(int i) {
+		checkIndex(i);
+		return end[i];
+	}
+
+	/**
+	 * @param i Location number
+	 * @return Whether the fragment is on the negative strand
+	 */
+	public boolean isNegativeStrand(int i) {
+		checkIndex(i);
+		return negativeStrand[i];
+	}
+
+	/**
+	 * @param i Location number
+	 * @return Mapping quality
+	 */
+	public int getMappingQuality(int i) {
+		checkIndex(i);
+		return mappingQuality[i];
+	}
+
+	/**
+	 * @return Reference names by reference index
+	 */
+	public String[] getReferenceNames() {
+		return referenceNames;
+	}
+
+	/**
+	 * Sort the locations in place by reference index then start position
+	 */
+	public void sortByPosition() {
+		sort(0, size - 1);
+	}
+
+	/**
+	 * Quicksort of a range of locations, with insertion sort for short ranges
+	 * @param lo First location
+	 * @param hi Last location, inclusive
+	 */
+	private void sort(int lo, int hi) {
+		while(hi - lo >= 16) {
+			int mid = (lo + hi) >>> 1;
+			if(compare(mid, lo) < 0) swap(mid, lo);
+			if(compare(hi, lo) < 0) swap(hi, lo);
+			if(compare(hi, mid) < 0) swap(hi, mid);
+			int pivotRef = referenceIndex[mid];
+			int pivotStart = start[mid];
+			int i = lo;
+			int j = hi;
+			while(i <= j) {
+				while(compare(i, pivotRef, pivotStart) < 0) i++;
+				while(compare(j, pivotRef, pivotStart) > 0) j--;
+				if(i <= j) swap(i++, j--);
+			}
+			// Recurse into the smaller part
+			if(j - lo < hi - i) {
+				sort(lo, j);
+				lo = i;
+			} else {
+				sort(i, hi);
+				hi = j;
+			}
+		}
+		for(int i = lo + 1; i <= hi; i++) {
+			for(int j = i; j > lo && compare(j, j - 1) < 0; j--) swap(j, j - 1);
+		}
+	}
+
+	private int compare(int i, int j) {
+		return compare(i, referenceIndex[j], start[j]);
+	}
+
+	private int compare(int i, int ref, int pos) {
+		int c = Integer.compare(referenceIndex[i], ref);
+		return c != 0 ? c : Integer.compare(start[i], pos);
+	}
+
+	private void swap(int i, int j) {
+		int r = referenceIndex[i]; referenceIndex[i] = referenceIndex[j]; referenceIndex[j] = r;
+		int s = start[i]; start[i] = start[j]; start[j] = s;
+		int e = end[i]; end[i] = end[j]; end[j] = e;
+		boolean n = negativeStrand[i]; negativeStrand[i] = negativeStrand[j]; negativeStrand[j] = n;
+		int q = mappingQuality[i]; mappingQuality[i] = mappingQuality[j]; mappingQuality[j] = q;
+	}
+
+	/**
+	 * Copy a location over another, for filtering in place
+	 * @param from Location to copy
+	 * @param to Location to overwrite
+	 */
+	public void moveLocation(int from, int to) {
+		checkIndex(from);
+		checkIndex(to);
+		referenceIndex[to] = referenceIndex[from];
+		start[to] = start[from];
+		end[to] = end[from];
+		negativeStrand[to] = negativeStrand[from];
+		mappingQuality[to] = mappingQuality[from];
+	}
+
+	/**
+	 * Keep only the first locations
+	 * @param newSize Number of locations to keep
+	 */
+	public void truncate(int newSize) {
+		if(newSize < 0 || newSize > size) {
+			throw new IllegalArgumentException("Cannot truncate " + size + " locations to " + newSize);
+		}
+		size = newSize;
+	}
+
+	private void checkIndex(int i) {
+		if(i < 0 || i >= size) {
+			throw new IndexOutOfBoundsException("Location " + i + " of " + size);
+		}
+	}
+
+	/**
+	 * Get the same tab delimited string as {@link contact.function.FragmentClusterFunction#tabDelimitedString()}
+	 * The string is \<barcodes\> \<location1\> ... \<locationN\>
+	 * Identical locations are only included once
+	 * @return Tab delimited string representation
+	 */
+	public String toTabDelimitedString() {
+		StringBuilder sb = new StringBuilder(getBarcodes().toString());
+		Collection<String> locs = new TreeSet<String>();
+		for(int i = 0; i < size; i++) {
+			locs.add(referenceNames[referenceIndex[i]] + ":" + start[i]);
+		}
+		for(String loc : locs) {
+			sb.append("\t" + loc);
+		}
+		return sb.toString();
+	}
+
+}
@@ -34,10 +34,11 @@ public class SAMFragmentCluster implements FragmentCluster<SAMFragment, FeatureC
 		barcodes = BarcodeSequence.fromSamRecord(first);
 		while(iter.hasNext()) {
 			SAMRecord next = iter.next();
-			if(!BarcodeSequence.fromSamRecord(next).equals(barcodes)) {
+			BarcodeSequence nextBarcodes = BarcodeSequence.fromSamRecord(next);
+			if(!nextBarcodes.equals(barcodes)) {
 				throw new IllegalArgumentException("Records have different barcodes: " + 
 						first.getReadName() + ":" + barcodes + ", " + 
-						next.getReadName() + ":" + BarcodeSequence.fromSamRecord(next).toString());
+						next.getReadName() + ":" + nextBarcodes.toString());
 			}
 			locations.add(new SAMFragment(next));
 		}
@@ -0,0 +1,111 @@
+package contact.function;
+
+import java.io.File;
+import java.io.IOException;
+
+import contact.FlatFragmentCluster;
+import guttmanlab.core.util.CommandLineParser;
+
+/**
+ * Filters on the locations of a {@link FlatFragmentCluster}, fused into one pass over the sorted primitive arrays of the cluster
+ * The pass sorts the locations by position, then keeps a location only if it passes the mapping quality, strand and
+ * exclusion mask filters and is not within the minimum distance of the last kept location on the same reference.
+ * Kept locations are moved down in place, so no intermediate collections are built.
+ * Finally, clusters with more locations left than the maximum size are rejected.
+ * Instances are immutable and can be shared between threads
+ * @author prussell
+ *
+ */
+public final class ClusterTransform {
+
+	/**
+	 * Strands of locations to keep
+	 */
+	public enum Strand {
+		BOTH,
+		POSITIVE,
+		NEGATIVE;
+	}
+
+	/**
+	 * Transform that only sorts the locations
+	 */
+	public static final ClusterTransform NONE = new ClusterTransform(0, Strand.BOTH, null, 0, Integer.MAX_VALUE);
+
+	private int minMappingQuality;
+	private Strand strand;
+	private ExclusionMask mask;
+	private int minDistance;
+	private int maxSize;
+
+	/**
+	 * @param minMappingQuality Minimum mapping quality of locations to keep
+	 * @param strand Strands of locations to keep
+	 * @param mask Regions to exclude, or null
+	 * @param minDistance Min allowable distance between start positions of kept locations on the same reference; 0 to keep all
+	 * @param maxSize Maximum number of locations left after filtering; larger clusters are rejected
+	 */
+	public ClusterTransform(int minMappingQuality, Strand strand, ExclusionMask mask, int minDistance, int maxSize) {
+		if(minDistance < 0) throw new IllegalArgumentException("Min distance must be non-negative");
+		if(maxSize < 0) throw new IllegalArgumentException("Max size must be non-negative");
+		this.minMappingQuality = minMappingQuality;
+		this.strand = strand;
+		this.mask = mask;
+		this.minDistance = minDistance;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Add the transform options to a command line parser
+	 * @param p Command line parser
+	 */
+	public static void addCommandLineOptions(CommandLineParser p) {
+		p.addIntArg("-minMapq", "Minimum mapping quality of cluster locations", false, 0);
+		p.addStringArg("-strand", "Strand of cluster locations to keep: BOTH, POSITIVE or NEGATIVE", false, Strand.BOTH.toString());
+		p.addStringArg("-exclude", "Bed file of regions to exclude from clusters", false, null);
+		p.addIntArg("-minDist", "Remove cluster locations within this distance of another location", false, 0);
+		p.addIntArg("-maxSize", "Discard clusters with more locations than this after filtering", false, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Get the transform from a command line parser that has already parsed the arguments
+	 * @param p Command line parser with options added by {@link #addCommandLineOptions(CommandLineParser)}
+	 * @param referenceNames Reference names by reference index, for the exclusion mask
+	 * @return The transform
+	 * @throws IOException
+	 */
+	public static ClusterTransform fromCommandLine(CommandLineParser p, String[] referenceNames) throws IOException {
+		String exclude = p.getStringArg("-exclude");
+		ExclusionMask mask = exclude == null ? null : ExclusionMask.fromBed(new File(exclude), referenceNames);
+		return new ClusterTransform(p.getIntArg("-minMapq"), Strand.valueOf(p.getStringArg("-strand")), mask,
+				p.getIntArg("-minDist"), p.getIntArg("-maxSize"));
+	}
+
+	/**
+	 * Filter the locations of a cluster in place
+	 * @param cluster The cluster; its locations are sorted and filtered
+	 * @return True if the cluster should be kept, false if it has too many locations after filtering
+	 */
+	public boolean apply(FlatFragmentCluster cluster) {
+		cluster.sortByPosition();
+		int n = cluster.getNumLocations();
+		int kept = 0;
+		int lastRef = -1;
+		int lastStart = 0;
+		for(int i = 0; i < n; i++) {
+			if(cluster.getMappingQuality(i) < minMappingQuality) continue;
+			if(strand != Strand.BOTH && cluster.isNegativeStrand(i) != (strand == Strand.NEGATIVE)) continue;
+			int ref = cluster.getReferenceIndex(i);
+			int start = cluster.getStart(i);
+			if(mask != null && mask.overlaps(ref, start, cluster.getEnd(i))) continue;
+			if(kept > 0 && ref == lastRef && start - lastStart < minDistance) continue;
+			if(kept != i) cluster.moveLocation(i, kept);
+			kept++;
+			lastRef = ref;
+			lastStart = start;
+		}
+		cluster.truncate(kept);
+		return kept <= maxSize;
+	}
+
+}
@@ -0,0 +1,108 @@
+package contact.function;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Set of genomic regions to exclude, e.g. repeats or blacklisted regions, stored as sorted merged intervals per reference
+ * Lookups are a binary search over primitive arrays
+ * Instances are immutable
+ * @author prussell
+ *
+ */
+public final class ExclusionMask {
+
+	private static Logger logger = Logger.getLogger(ExclusionMask.class.getName());
+
+	private int[][] starts; // By reference index; sorted zero-based starts of merged intervals
+	private int[][] ends; // By reference index; exclusive ends
+
+	private ExclusionMask(int[][] starts, int[][] ends) {
+		this.starts = starts;
+		this.ends = ends;
+	}
+
+	/**
+	 * Read regions from a bed file
+	 * Regions on references not in the list are ignored
+	 * @param bedFile Bed file; only the first three columns are used
+	 * @param referenceNames Reference names by reference index
+	 * @return The mask
+	 * @throws IOException
+	 */
+	public static ExclusionMask fromBed(File bedFile, String[] referenceNames) throws IOException {
+		logger.info("Reading regions to exclude from " + bedFile + "...");
+		Map<String, Integer> refIndex = new HashMap<String, Integer>();
+		for(int i = 0; i < referenceNames.length; i++) refIndex.put(referenceNames[i], Integer.valueOf(i));
+		long[][] intervals = new long[referenceNames.length][];
+		int[] counts = new int[referenceNames.length];
+		BufferedReader reader = new BufferedReader(new FileReader(bedFile));
+		String line;
+		int numRegions = 0;
+		while((line = reader.readLine()) != null) {
+			if(line.isEmpty() || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser")) continue;
+			String[] tokens = line.split("\t");
+			if(tokens.length < 3) {
+				reader.close();
+				throw new IllegalArgumentException("Bed line has fewer than 3 fields: " + line);
+			}
+			Integer ref = refIndex.get(tokens[0]);
+			if(ref == null) continue;
+			int r = ref.intValue();
+			if(intervals[r] == null) intervals[r] = new long[16];
+			if(counts[r] == intervals[r].length) intervals[r] = Arrays.copyOf(intervals[r], 2 * counts[r]);
+			intervals[r][counts[r]++] = ((long) Integer.parseInt(tokens[1]) << 32) | Integer.parseInt(tokens[2]);
+			numRegions++;
+		}
+		reader.close();
+		int[][] starts = new int[referenceNames.length][];
+		int[][] ends = new int[referenceNames.length][];
+		for(int r = 0; r < referenceNames.length; r++) {
+			int n = counts[r];
+			Arrays.sort(intervals[r] == null ? new long[0] : intervals[r], 0, n);
+			int[] s = new int[n];
+			int[] e = new int[n];
+			int m = 0;
+			for(int i = 0; i < n; i++) {
+				int start = (int) (intervals[r][i] >>> 32);
+				int end = (int) intervals[r][i];
+				if(m > 0 && start <= e[m - 1]) {
+					e[m - 1] = Math.max(e[m - 1], end);
+				} else {
+					s[m] = start;
+					e[m] = end;
+					m++;
+				}
+			}
+			starts[r] = Arrays.copyOf(s, m);
+			ends[r] = Arrays.copyOf(e, m);
+		}
+		logger.info("Read " + numRegions + " regions.");
+		return new ExclusionMask(starts, ends);
+	}
+
+	/**
+	 * @param refIndex Reference index
+	 * @param start Zero-based start
+	 * @param end Exclusive end
+	 * @return Whether the interval overlaps an excluded region
+	 */
+	public boolean overlaps(int refIndex, int start, int end) {
+		if(refIndex < 0 || refIndex >= starts.length) {
+			return false;
+		}
+		int[] s = starts[refIndex];
+		// Last region starting before the end of the interval
+		int i = Arrays.binarySearch(s, end - 1);
+		if(i < 0) i = -i - 2;
+		return i >= 0 && ends[refIndex][i] > start;
+	}
+
+}
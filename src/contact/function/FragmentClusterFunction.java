@@ -59,6 +59,7 @@ public final class FragmentClusterFunction {
 	/**
 	 * Get a function that will modify a fragment cluster to ensure no mappings are within the specified distance of each other
 	 * The implementation is not specified and makes no guarantees about which mappings will be removed by the function
+	 * For clusters read as {@link contact.FlatFragmentCluster}, {@link ClusterTransform} applies this filter together with others in one pass
 	 * @param minDist Min allowable distance between mappings; function ensures removal of mappings within this distance of each other
 	 * @return The function
 	 */
@@ -69,8 +70,11 @@ public final class FragmentClusterFunction {
 			@Override
 			public void accept(FragmentCluster<T, S> fragmentCluster) {
 				S locations = fragmentCluster.getLocations();
+				if(locations.isEmpty()) {
+					return;
+				}
 				// Sort the mapped locations by start position
-				List<T> locationsAsList = new ArrayList<T>();
+				List<T> locationsAsList = new ArrayList<T>(locations);
 				Collections.sort(locationsAsList, new StartPositionComparator());
 				Iterator<T> sortedIter = locationsAsList.iterator();
 				T prev = sortedIter.next();
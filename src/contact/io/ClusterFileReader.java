@@ -0,0 +1,206 @@
+package contact.io;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.NoSuchElementException;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.log4j.Logger;
+
+import net.sf.samtools.util.CloseableIterator;
+import contact.FlatFragmentCluster;
+import contact.iterator.ClusterBatchSpliterator;
+import contact.stats.ClusterStatistics;
+
+/**
+ * Iterator over the clusters in a binary cluster file written by {@link ClusterFileWriter}
+ * Locations are decoded straight into the primitive arrays of a {@link FlatFragmentCluster}
+ * The file stores only the reference and start position of each location, so locations read back have length 1,
+ * positive strand and mapping quality 255 (unavailable)
+ * The same cluster object is returned by every call to {@link #next()} and is overwritten by the following call;
+ * use {@link FlatFragmentCluster#copy()} to keep a cluster
+ * @author prussell
+ *
+ */
+public class ClusterFileReader implements CloseableIterator<FlatFragmentCluster> {
+
+	/**
+	 * Mapping quality of locations read from a cluster file, which does not store it
+	 */
+	public static final int UNAVAILABLE_MAPPING_QUALITY = 255;
+
+	private static Logger logger = Logger.getLogger(ClusterFileReader.class.getName());
+
+	private InputStream in;
+	private byte[] buffer;
+	private int bufferPos;
+	private int bufferEnd;
+	private String[] referenceNames;
+	private FlatFragmentCluster cluster;
+	private ClusterStatistics statistics; // Null if not collecting statistics
+	private File statisticsReport;
+	private boolean hasNext;
+	private long numClustersDone;
+
+	/**
+	 * @param file Binary cluster file
+	 * @throws IOException
+	 */
+	public ClusterFileReader(File file) throws IOException {
+		in = new GZIPInputStream(new FileInputStream(file), 1 << 16);
+		buffer = new byte[1 << 16];
+		if(readInt() != ClusterFileWriter.MAGIC) {
+			throw new IllegalArgumentException("Not a binary cluster file: " + file);
+		}
+		int version = readInt();
+		if(version != ClusterFileWriter.VERSION) {
+			throw new IllegalArgumentException("Unsupported cluster file version " + version + ": " + file);
+		}
+		referenceNames = new String[readVarint()];
+		for(int i = 0; i < referenceNames.length; i++) {
+			referenceNames[i] = readString();
+		}
+		cluster = new FlatFragmentCluster(referenceNames, null);
+		hasNext = fill();
+	}
+
+	/**
+	 * @return Reference names by reference index
+	 */
+	public String[] getReferenceNames() {
+		return referenceNames;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return hasNext;
+	}
+
+	@Override
+	public FlatFragmentCluster next() {
+		if(!hasNext) {
+			throw new NoSuchElementException();
+		}
+		try {
+			cluster.reset(readString(), -1);
+			int n = readVarint();
+			int ref = 0;
+			int pos = 0;
+			for(int i = 0; i < n; i++) {
+				int refDelta = readVarint();
+				int posValue = readVarint();
+				ref += refDelta;
+				pos = refDelta == 0 ? pos + posValue : posValue;
+				cluster.add(ref, pos, pos + 1, false, UNAVAILABLE_MAPPING_QUALITY);
+			}
+			hasNext = fill();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		numClustersDone++;
+		if(numClustersDone % 1000000 == 0) {
+			logger.info("Finished " + numClustersDone + " clusters");
+		}
+		if(statistics != null) statistics.add(cluster);
+		return cluster;
+	}
+
+	/**
+	 * Get a stream of copies of the remaining clusters, read on a dedicated thread and handed out in batches
+	 * Use clusters().parallel() to process clusters on the fork-join pool
+	 * Do not use this iterator directly after calling this method; close the stream to close the iterator
+	 * @return Stream of clusters
+	 */
+	public Stream<FlatFragmentCluster> clusters() {
+		return ClusterBatchSpliterator.stream(this, FlatFragmentCluster::copy, ClusterBatchSpliterator.DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Make sure the buffer has data unless the file is finished
+	 * @return False if there is no more data
+	 * @throws IOException
+	 */
+	private boolean fill() throws IOException {
+		if(bufferPos < bufferEnd) {
+			return true;
+		}
+		int n;
+		while((n = in.read(buffer, 0, buffer.length)) == 0) {}
+		if(n < 0) {
+			return false;
+		}
+		bufferPos = 0;
+		bufferEnd = n;
+		return true;
+	}
+
+	private int readByte() throws IOException {
+		if(!fill()) {
+			throw new EOFException("Unexpected end of cluster file");
+		}
+		return buffer[bufferPos++] & 0xff;
+	}
+
+	private int readInt() throws IOException {
+		return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+	}
+
+	/**
+	 * @return The next variable length integer
+	 * @throws IOException
+	 */
+	private int readVarint() throws IOException {
+		int rtrn = 0;
+		for(int shift = 0; shift < 35; shift += 7) {
+			int b = readByte();
+			rtrn |= (b & 0x7f) << shift;
+			if((b & 0x80) == 0) {
+				return rtrn;
+			}
+		}
+		throw new IOException("Malformed variable length integer in cluster file");
+	}
+
+	private String readString() throws IOException {
+		int length = readVarint();
+		if(bufferEnd - bufferPos >= length) {
+			String rtrn = new String(buffer, bufferPos, length, StandardCharsets.UTF_8);
+			bufferPos += length;
+			return rtrn;
+		}
+		byte[] bytes = new byte[length];
+		for(int i = 0; i < length; i++) bytes[i] = (byte) readByte();
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Collect statistics on the clusters returned by this iterator, and write them as a JSON report when the iterator is closed
+	 * @param reportFile JSON report file
+	 * @return The statistics collector
+	 */
+	public ClusterStatistics collectStatistics(File reportFile) {
+		statistics = new ClusterStatistics();
+		statisticsReport = reportFile;
+		return statistics;
+	}
+
+	@Override
+	public void close() {
+		try {
+			in.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if(statistics != null) {
+			statistics.writeReport(statisticsReport);
+			statistics = null;
+		}
+	}
+
+}
@@ -0,0 +1,192 @@
+package contact.io;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import util.BamCompression;
+import util.ParallelBgzfOutputStream;
+import contact.FlatFragmentCluster;
+
+/**
+ * Writes clusters to a binary cluster file, the compact alternative to the tab delimited text from
+ * {@link contact.function.FragmentClusterFunction#tabDelimitedString()}
+ * The file is BGZF compressed on a pool of worker threads. The uncompressed data is a header with the reference names,
+ * then for each cluster the barcode SAM attribute string, the number of distinct locations, and the locations sorted by
+ * reference index and position, delta encoded as variable length integers
+ * Like the text form, only the reference and start position of each location are stored, and identical locations are stored once
+ * Read the file with {@link ClusterFileReader}
+ * Instances are not thread safe; write from one thread
+ * @author prussell
+ *
+ */
+public final class ClusterFileWriter implements Closeable {
+
+	static final int MAGIC = 0x434c5354; // "CLST"
+	static final int VERSION = 1;
+
+	private ParallelBgzfOutputStream out;
+	private int numReferences;
+	private byte[] buffer; // Encoded cluster
+	private int bufferPos;
+	private long[] locations; // Reference index and position packed, for sorting
+	private long numClusters;
+
+	/**
+	 * @param file Output file
+	 * @param referenceNames Reference names by reference index, e.g. from {@link FlatFragmentCluster#getReferenceNames()}
+	 * @param compression Compression settings
+	 * @throws IOException
+	 */
+	public ClusterFileWriter(File file, String[] referenceNames, BamCompression compression) throws IOException {
+		out = new ParallelBgzfOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20), compression.getNumThreads(), compression.getLevel());
+		numReferences = referenceNames.length;
+		buffer = new byte[1 << 12];
+		locations = new long[64];
+		writeInt(MAGIC);
+		writeInt(VERSION);
+		writeVarint(numReferences);
+		for(String name : referenceNames) {
+			writeString(name);
+		}
+		flushBuffer();
+	}
+
+	/**
+	 * Write a cluster
+	 * @param cluster The cluster
+	 */
+	public void write(FlatFragmentCluster cluster) {
+		int n = cluster.getNumLocations();
+		if(locations.length < n) locations = new long[Math.max(n, 2 * locations.length)];
+		for(int i = 0; i < n; i++) {
+			locations[i] = pack(cluster.getReferenceIndex(i), cluster.getStart(i));
+		}
+		writeSorted(cluster.getSamAttributeString(), n);
+	}
+
+	/**
+	 * Write a cluster
+	 * @param barcodeSamAttributeString SAM attribute string of the barcode sequence
+	 * @param referenceIndex Reference index of each location
+	 * @param start Zero-based start position of each location
+	 * @param size Number of locations
+	 */
+	public void write(String barcodeSamAttributeString, int[] referenceIndex, int[] start, int size) {
+		if(locations.length < size) locations = new long[Math.max(size, 2 * locations.length)];
+		for(int i = 0; i < size; i++) {
+			locations[i] = pack(referenceIndex[i], start[i]);
+		}
+		writeSorted(barcodeSamAttributeString, size);
+	}
+
+	/**
+	 * @param refIndex Reference index
+	 * @param position Zero-based position
+	 * @return Reference index and position packed so that packed values sort by reference index then position
+	 */
+	private long pack(int refIndex, int position) {
+		if(refIndex < 0 || refIndex >= numReferences) {
+			throw new IllegalArgumentException("Reference index out of range: " + refIndex);
+		}
+		if(position < 0) {
+			throw new IllegalArgumentException("Negative position: " + position);
+		}
+		return ((long) refIndex << 32) | position;
+	}
+
+	/**
+	 * Sort, deduplicate and write the first n packed locations
+	 * @param barcodeSamAttributeString SAM attribute string of the barcode sequence
+	 * @param n Number of locations
+	 */
+	private void writeSorted(String barcodeSamAttributeString, int n) {
+		Arrays.sort(locations, 0, n);
+		int numDistinct = 0;
+		for(int i = 0; i < n; i++) {
+			if(numDistinct == 0 || locations[i] != locations[numDistinct - 1]) {
+				locations[numDistinct++] = locations[i];
+			}
+		}
+		writeString(barcodeSamAttributeString);
+		writeVarint(numDistinct);
+		int prevRef = 0;
+		int prevPos = 0;
+		for(int i = 0; i < numDistinct; i++) {
+			int ref = (int) (locations[i] >>> 32);
+			int pos = (int) locations[i];
+			writeVarint(ref - prevRef);
+			writeVarint(ref == prevRef ? pos - prevPos : pos);
+			prevRef = ref;
+			prevPos = pos;
+		}
+		flushBuffer();
+		numClusters++;
+	}
+
+	/**
+	 * @return Number of clusters written so far
+	 */
+	public long getNumClusters() {
+		return numClusters;
+	}
+
+	private void ensureCapacity(int numBytes) {
+		if(bufferPos + numBytes > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(bufferPos + numBytes, 2 * buffer.length));
+		}
+	}
+
+	private void writeInt(int value) {
+		ensureCapacity(4);
+		buffer[bufferPos++] = (byte) (value >>> 24);
+		buffer[bufferPos++] = (byte) (value >>> 16);
+		buffer[bufferPos++] = (byte) (value >>> 8);
+		buffer[bufferPos++] = (byte) value;
+	}
+
+	/**
+	 * Write a non-negative int as a variable length integer, seven bits per byte with the high bit set on all but the last byte
+	 * @param value The value
+	 */
+	private void writeVarint(int value) {
+		ensureCapacity(5);
+		while((value & ~0x7f) != 0) {
+			buffer[bufferPos++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buffer[bufferPos++] = (byte) value;
+	}
+
+	private void writeString(String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		writeVarint(bytes.length);
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, buffer, bufferPos, bytes.length);
+		bufferPos += bytes.length;
+	}
+
+	private void flushBuffer() {
+		try {
+			out.write(buffer, 0, bufferPos);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		bufferPos = 0;
+	}
+
+	@Override
+	public void close() {
+		try {
+			out.close();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+}
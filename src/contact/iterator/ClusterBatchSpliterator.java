@@ -0,0 +1,190 @@
+package contact.iterator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.apache.log4j.Logger;
+
+import net.sf.samtools.util.CloseableIterator;
+
+/**
+ * Spliterator over clusters that reads the clusters on a dedicated thread and hands them out in batches of complete clusters
+ * The source iterator is consumed only by the reading thread, so decoding the bam file overlaps with processing,
+ * and each split is a batch that the fork-join pool can process on any thread
+ * Use {@link #stream(CloseableIterator, UnaryOperator, int)} to get a stream that can be made parallel; close the stream to stop reading early
+ * @author prussell
+ *
+ * @param <T> Cluster type
+ */
+public final class ClusterBatchSpliterator<T> implements Spliterator<T> {
+
+	private static Logger logger = Logger.getLogger(ClusterBatchSpliterator.class.getName());
+
+	/**
+	 * Default number of clusters per batch
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 1024;
+
+	/**
+	 * Number of batches read ahead of processing
+	 */
+	private static final int QUEUE_CAPACITY = 16;
+
+	private final List<T> endOfInput = Collections.emptyList(); // Sentinel batch
+	private BlockingQueue<List<T>> batches;
+	private Thread reader;
+	private volatile Throwable readerFailure;
+	private volatile boolean closed;
+	private Iterator<T> current; // Batch being consumed by tryAdvance
+	private boolean done;
+
+	/**
+	 * @param source Cluster iterator; it must not be used by the caller after this call
+	 * @param detach Function making a cluster safe to keep after the source moves on, e.g. a copy for iterators that reuse objects,
+	 * or the identity function
+	 * @param batchSize Number of clusters per batch
+	 */
+	private ClusterBatchSpliterator(CloseableIterator<T> source, UnaryOperator<T> detach, int batchSize) {
+		if(batchSize < 1) throw new IllegalArgumentException("Batch size must be at least 1");
+		batches = new ArrayBlockingQueue<List<T>>(QUEUE_CAPACITY);
+		current = Collections.emptyIterator();
+		reader = new Thread(() -> read(source, detach, batchSize), "cluster-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Get a stream of clusters read from an iterator on a dedicated thread
+	 * @param source Cluster iterator; it must not be used by the caller after this call, and is closed when the stream is closed or reading ends
+	 * @param detach Function making a cluster safe to keep after the source moves on, e.g. a copy for iterators that reuse objects,
+	 * or the identity function
+	 * @param batchSize Number of clusters per batch
+	 * @return Sequential stream; call parallel() to process batches on the fork-join pool
+	 */
+	public static <T> Stream<T> stream(CloseableIterator<T> source, UnaryOperator<T> detach, int batchSize) {
+		ClusterBatchSpliterator<T> spliterator = new ClusterBatchSpliterator<T>(source, detach, batchSize);
+		return StreamSupport.stream(spliterator, false).onClose(spliterator::close);
+	}
+
+	/**
+	 * Read all clusters from the source into batches; runs on the reading thread
+	 */
+	private void read(CloseableIterator<T> source, UnaryOperator<T> detach, int batchSize) {
+		try {
+			List<T> batch = new ArrayList<T>(batchSize);
+			while(!closed && source.hasNext()) {
+				batch.add(detach.apply(source.next()));
+				if(batch.size() == batchSize) {
+					batches.put(batch);
+					batch = new ArrayList<T>(batchSize);
+				}
+			}
+			if(!batch.isEmpty() && !closed) batches.put(batch);
+		} catch(InterruptedException e) {
+			// Stream was closed
+		} catch(Throwable t) {
+			readerFailure = t;
+		} finally {
+			source.close();
+			try {
+				if(!closed) batches.put(endOfInput);
+			} catch (InterruptedException e) {
+				// Stream was closed
+			}
+		}
+	}
+
+	/**
+	 * @return The next batch, or null if there are no more
+	 */
+	private List<T> nextBatch() {
+		if(done) {
+			return null;
+		}
+		List<T> rtrn;
+		try {
+			rtrn = batches.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for clusters", e);
+		}
+		if(rtrn == endOfInput) {
+			done = true;
+			if(readerFailure != null) {
+				throw new IllegalStateException("Failed to read clusters", readerFailure);
+			}
+			return null;
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Stop the reading thread and close the source
+	 */
+	private void close() {
+		if(closed) return;
+		closed = true;
+		reader.interrupt();
+		logger.debug("Closed cluster stream");
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super T> action) {
+		while(!current.hasNext()) {
+			List<T> batch = nextBatch();
+			if(batch == null) {
+				return false;
+			}
+			current = batch.iterator();
+		}
+		action.accept(current.next());
+		return true;
+	}
+
+	@Override
+	public void forEachRemaining(Consumer<? super T> action) {
+		while(current.hasNext()) action.accept(current.next());
+		List<T> batch;
+		while((batch = nextBatch()) != null) {
+			for(T cluster : batch) action.accept(cluster);
+		}
+	}
+
+	/**
+	 * Split off the next complete batch, after any clusters left in the batch being consumed
+	 */
+	@Override
+	public Spliterator<T> trySplit() {
+		if(current.hasNext()) {
+			List<T> rest = new ArrayList<T>();
+			current.forEachRemaining(rest::add);
+			return Spliterators.spliterator(rest, characteristics());
+		}
+		List<T> batch = nextBatch();
+		if(batch == null) {
+			return null;
+		}
+		return Spliterators.spliterator(batch, characteristics());
+	}
+
+	@Override
+	public long estimateSize() {
+		return done && !current.hasNext() ? 0 : Long.MAX_VALUE;
+	}
+
+	@Override
+	public int characteristics() {
+		return ORDERED | NONNULL;
+	}
+
+}
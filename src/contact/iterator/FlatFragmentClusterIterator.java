@@ -0,0 +1,237 @@
+package contact.iterator;
+
+import htsjdk.samtools.fork.FilteredSAMRecordIterator;
+import htsjdk.samtools.fork.SAMFileHeader.SortOrder;
+import htsjdk.samtools.fork.SAMRecord;
+import htsjdk.samtools.fork.SAMRecordIterator;
+import htsjdk.samtools.fork.SAMSequenceRecord;
+import htsjdk.samtools.fork.SamReader;
+import htsjdk.samtools.fork.SamReaderFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import org.apache.log4j.Logger;
+
+import net.sf.samtools.util.CloseableIterator;
+import programs.barcode.BarcodedBamWriter;
+import util.CustomSamTag;
+import contact.ClusterIdDictionary;
+import contact.ClusterIndex;
+import contact.FlatFragmentCluster;
+import contact.function.SAMRecordPredicate;
+import contact.stats.ClusterStatistics;
+
+/**
+ * Iterator over clusters of records with the same barcode, returning each cluster as a {@link FlatFragmentCluster}
+ * Only the reference, position, strand, mapping quality and barcode of each record are read, straight from the
+ * bam records with no conversion to another SAMRecord class
+ * The same cluster object is returned by every call to {@link #next()} and is overwritten by the following call;
+ * use {@link FlatFragmentCluster#copy()} to keep a cluster
+ * Bam file must be sorted by barcode attribute, with the forked sort order or a header comment from {@link programs.bam.SortBamByBarcode},
+ * or by cluster ID if it has a cluster ID dictionary
+ * With a {@link ClusterIndex}, the iterator can read only a range of clusters or clusters in a size range
+ * @author prussell
+ *
+ */
+public class FlatFragmentClusterIterator implements CloseableIterator<FlatFragmentCluster> {
+
+	private SamReader reader;
+	private FilteredSAMRecordIterator iter;
+	private ClusterIdDictionary clusterIds; // Null if grouping by barcode string
+	private FlatFragmentCluster cluster;
+	private ClusterStatistics statistics; // Null if not collecting statistics
+	private File statisticsReport;
+	private SAMRecord nextRecord; // First record of the next cluster, or null if done
+	private long numClustersDone;
+	private static Logger logger = Logger.getLogger(FlatFragmentClusterIterator.class.getName());
+
+	/**
+	 * Instantiate with default SAMRecord filters
+	 * @param bamFile Bam file
+	 */
+	public FlatFragmentClusterIterator(String bamFile) {
+		this(bamFile, SAMRecordPredicate.DEFAULT);
+	}
+
+	/**
+	 * @param bamFile Bam file
+	 * @param requiredConditions Collection of predicates for filtered SAMRecord iterator. SAMRecords for which
+	 * any predicate evaluates to false will not be included
+	 */
+	public FlatFragmentClusterIterator(String bamFile, List<Predicate<SAMRecord>> requiredConditions) {
+		reader = SamReaderFactory.makeDefault().open(new File(bamFile));
+		init(bamFile, reader.iterator(), requiredConditions);
+		if(clusterIds == null && iter.hasNext() && !CustomSamTag.isGroupedByTag(reader.getFileHeader().getComments(), BarcodedBamWriter.BARCODES_SAM_TAG)) {
+			iter.assertSorted(SortOrder.tagXB);
+		}
+		nextRecord = nextMappedRecord();
+	}
+
+	/**
+	 * Iterate over part of the clusters in a bam file, using its cluster index
+	 * Use {@link ClusterIndex#split(int)} to divide the clusters evenly among workers
+	 * @param bamFile Bam file
+	 * @param requiredConditions Collection of predicates for filtered SAMRecord iterator. SAMRecords for which
+	 * any predicate evaluates to false will not be included
+	 * @param index Cluster index of the bam file
+	 * @param firstCluster Ordinal number of the first cluster in the file to include
+	 * @param lastCluster Ordinal number after the last cluster to include
+	 * @param minSize Minimum number of records in the file for a cluster to be included, before filtering
+	 * @param maxSize Maximum number of records in the file for a cluster to be included, before filtering
+	 */
+	public FlatFragmentClusterIterator(String bamFile, List<Predicate<SAMRecord>> requiredConditions, ClusterIndex index,
+			int firstCluster, int lastCluster, int minSize, int maxSize) {
+		reader = SamReaderFactory.makeDefault().open(new File(bamFile));
+		init(bamFile, IteratorCommonBarcodeSAMRecordCollection.openSpan(reader, index.getSpan(firstCluster, lastCluster, minSize, maxSize)), requiredConditions);
+		nextRecord = nextMappedRecord();
+	}
+
+	/**
+	 * Set up the filtered record iterator, cluster ID dictionary and reusable cluster
+	 * @param bamFile Bam file
+	 * @param records Records to read
+	 * @param requiredConditions Predicates for filtered SAMRecord iterator
+	 */
+	private void init(String bamFile, SAMRecordIterator records, List<Predicate<SAMRecord>> requiredConditions) {
+		iter = new FilteredSAMRecordIterator(records);
+		for(Predicate<SAMRecord> predicate : requiredConditions) iter.addRequiredCondition(predicate);
+		File dictionaryFile = ClusterIdDictionary.sidecarFile(bamFile);
+		if(dictionaryFile.exists()) {
+			try {
+				clusterIds = ClusterIdDictionary.read(dictionaryFile);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		List<SAMSequenceRecord> sequences = reader.getFileHeader().getSequenceDictionary().getSequences();
+		String[] referenceNames = new String[sequences.size()];
+		for(int i = 0; i < referenceNames.length; i++) {
+			referenceNames[i] = sequences.get(i).getSequenceName();
+		}
+		cluster = new FlatFragmentCluster(referenceNames, clusterIds);
+	}
+
+	/**
+	 * @return The next mapped record, or null if there are no more
+	 */
+	private SAMRecord nextMappedRecord() {
+		while(iter.hasNext()) {
+			SAMRecord rtrn = iter.next();
+			if(!rtrn.getReadUnmappedFlag() && rtrn.getReferenceIndex().intValue() >= 0) {
+				return rtrn;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param record Record
+	 * @return Cluster ID of the record
+	 */
+	private static long clusterId(SAMRecord record) {
+		long rtrn = ClusterIdDictionary.clusterId(record.getAttribute(CustomSamTag.CLUSTER_ID));
+		if(rtrn < 0) {
+			throw new IllegalArgumentException("Record does not have cluster ID tag " + CustomSamTag.CLUSTER_ID + ": " + record.getReadName());
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @return Reference names by reference index
+	 */
+	public String[] getReferenceNames() {
+		return cluster.getReferenceNames();
+	}
+
+	@Override
+	public boolean hasNext() {
+		return nextRecord != null;
+	}
+
+	@Override
+	public FlatFragmentCluster next() {
+		if(nextRecord == null) {
+			throw new NoSuchElementException();
+		}
+		numClustersDone++;
+		if(numClustersDone % 1000000 == 0) {
+			logger.info("Finished " + numClustersDone + " clusters");
+		}
+		if(clusterIds != null) {
+			long id = clusterId(nextRecord);
+			cluster.reset(null, id);
+			while(nextRecord != null) {
+				long nextId = clusterId(nextRecord);
+				if(nextId != id) {
+					if(nextId < id) throw new IllegalStateException("Bam file is not sorted by cluster ID: " + nextId + " after " + id);
+					break;
+				}
+				add(nextRecord);
+				nextRecord = nextMappedRecord();
+			}
+		} else {
+			String barcode = nextRecord.getStringAttribute(BarcodedBamWriter.BARCODES_SAM_TAG);
+			if(barcode == null) {
+				throw new IllegalArgumentException("Record does not have barcode tag " + BarcodedBamWriter.BARCODES_SAM_TAG + ": " + nextRecord.getReadName());
+			}
+			cluster.reset(barcode, -1);
+			while(nextRecord != null && barcode.equals(nextRecord.getStringAttribute(BarcodedBamWriter.BARCODES_SAM_TAG))) {
+				add(nextRecord);
+				nextRecord = nextMappedRecord();
+			}
+		}
+		if(statistics != null) statistics.add(cluster);
+		return cluster;
+	}
+
+	/**
+	 * Add a record to the current cluster
+	 * @param record The record
+	 */
+	private void add(SAMRecord record) {
+		cluster.add(record.getReferenceIndex().intValue(), record.getAlignmentStart() - 1, record.getAlignmentEnd(),
+				record.getReadNegativeStrandFlag(), record.getMappingQuality());
+	}
+
+	/**
+	 * Get a stream of copies of the remaining clusters, read on a dedicated thread and handed out in batches
+	 * Use clusters().parallel() to process clusters on the fork-join pool
+	 * Do not use this iterator directly after calling this method; close the stream to close the iterator
+	 * @return Stream of clusters
+	 */
+	public Stream<FlatFragmentCluster> clusters() {
+		return ClusterBatchSpliterator.stream(this, FlatFragmentCluster::copy, ClusterBatchSpliterator.DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Collect statistics on the clusters returned by this iterator, and write them as a JSON report when the iterator is closed
+	 * @param reportFile JSON report file
+	 * @return The statistics collector
+	 */
+	public ClusterStatistics collectStatistics(File reportFile) {
+		statistics = new ClusterStatistics();
+		statisticsReport = reportFile;
+		return statistics;
+	}
+
+	@Override
+	public void close() {
+		try {
+			reader.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		iter.close();
+		if(statistics != null) {
+			statistics.writeReport(statisticsReport);
+			statistics = null;
+		}
+	}
+
+}
@@ -0,0 +1,407 @@
+package contact.iterator;
+
+import htsjdk.samtools.fork.FilteredSAMRecordIterator;
+import htsjdk.samtools.fork.SAMRecord;
+import htsjdk.samtools.fork.SAMSequenceRecord;
+import htsjdk.samtools.fork.SamReader;
+import htsjdk.samtools.fork.SamReaderFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.apache.log4j.Logger;
+
+import programs.barcode.BarcodedBamWriter;
+import util.CustomSamTag;
+import util.HyperLogLog;
+import contact.ClusterIdDictionary;
+import contact.FlatFragmentCluster;
+import contact.function.SAMRecordPredicate;
+import contact.stats.ClusterStatistics;
+import guttmanlab.core.util.CommandLineParser;
+
+/**
+ * Groups records of a bam file in any order into clusters with the same barcode, without sorting the bam file
+ * The bam file is read once, and for each record a compact record of the barcode (or cluster ID), reference, position,
+ * strand and mapping quality is spilled to one of N partition files by hash of the barcode.
+ * All records with the same barcode are in the same partition, so each partition can be grouped in memory on its own.
+ * The number of partitions is chosen so that one partition per thread fits in the memory budget;
+ * a partition that turns out larger than its share is split again with a different hash before grouping.
+ * Barcode strings are partitioned on a 64-bit hash, so distinct barcodes practically never share a partition at every seed.
+ * Programs reading a bam file offer this in place of a barcode sort through {@link #addCommandLineOptions(CommandLineParser)}.
+ * @author prussell
+ *
+ */
+public final class HashPartitionedClusterGrouper implements Closeable {
+
+	private static Logger logger = Logger.getLogger(HashPartitionedClusterGrouper.class.getName());
+
+	/**
+	 * Approximate ratio of heap used to group a partition to the size of its spill file
+	 */
+	private static final int IN_MEMORY_EXPANSION = 4;
+
+	/**
+	 * Approximate ratio of spill bytes to compressed bam bytes, used to choose the number of partitions before reading
+	 */
+	private static final double SPILL_BYTES_PER_BAM_BYTE = 1.5;
+
+	/**
+	 * Maximum number of times a partition is split again before it is grouped regardless of size
+	 */
+	private static final int MAX_SPLIT_DEPTH = 3;
+
+	private static final int MAX_PARTITIONS = 4096;
+
+	/**
+	 * Total bytes of write buffers for all open partition files
+	 */
+	private static final int TOTAL_WRITE_BUFFER_BYTES = 64 << 20;
+
+	private File[] partitions;
+	private File tmpDir;
+	private String[] referenceNames;
+	private ClusterIdDictionary clusterIds; // Null if grouping by barcode string
+	private long bytesPerPartition;
+	private Semaphore partitionsInMemory;
+	private ConcurrentLinkedQueue<File> subPartitions; // Files of split partitions, to delete on close
+	private ClusterStatistics statistics;
+	private File statisticsReport;
+
+	/**
+	 * Read the bam file and write the partition files
+	 * @param bamFile Bam file in any order
+	 * @param requiredConditions Collection of predicates for filtered SAMRecord iterator. SAMRecords for which
+	 * any predicate evaluates to false will not be included
+	 * @param tmpDir Directory for partition files
+	 * @param memoryBudget Approximate number of bytes of heap to use for grouping partitions
+	 * @param numThreads Number of partitions to group at the same time
+	 * @throws IOException
+	 */
+	public HashPartitionedClusterGrouper(String bamFile, List<Predicate<SAMRecord>> requiredConditions, File tmpDir, long memoryBudget, int numThreads) throws IOException {
+		if(numThreads < 1) throw new IllegalArgumentException("Number of threads must be at least 1");
+		if(memoryBudget < numThreads) throw new IllegalArgumentException("Memory budget is too small: " + memoryBudget);
+		this.tmpDir = tmpDir;
+		partitionsInMemory = new Semaphore(numThreads);
+		subPartitions = new ConcurrentLinkedQueue<File>();
+		bytesPerPartition = memoryBudget / numThreads / IN_MEMORY_EXPANSION;
+		File dictionaryFile = ClusterIdDictionary.sidecarFile(bamFile);
+		if(dictionaryFile.exists()) {
+			clusterIds = ClusterIdDictionary.read(dictionaryFile);
+		}
+		long estimatedSpillBytes = (long) (new File(bamFile).length() * SPILL_BYTES_PER_BAM_BYTE);
+		int numPartitions = (int) Math.min(MAX_PARTITIONS, Math.max(numThreads, estimatedSpillBytes / bytesPerPartition + 1));
+		spill(bamFile, requiredConditions, numPartitions);
+	}
+
+	/**
+	 * Instantiate with default SAMRecord filters
+	 * @param bamFile Bam file in any order
+	 * @param tmpDir Directory for partition files
+	 * @param memoryBudget Approximate number of bytes of heap to use for grouping partitions
+	 * @param numThreads Number of partitions to group at the same time
+	 * @throws IOException
+	 */
+	public HashPartitionedClusterGrouper(String bamFile, File tmpDir, long memoryBudget, int numThreads) throws IOException {
+		this(bamFile, SAMRecordPredicate.DEFAULT, tmpDir, memoryBudget, numThreads);
+	}
+
+	/**
+	 * Add the options for grouping a bam file in any order to a command line parser; the caller provides the directory for partition files
+	 * @param p Command line parser
+	 */
+	public static void addCommandLineOptions(CommandLineParser p) {
+		p.addBooleanArg("-unsorted", "Input bam file is in any order: group its records by barcode through hash partitions on disk instead of requiring a barcode sort", false, false);
+		p.addIntArg("-groupMem", "Memory budget in MB for grouping partitions with -unsorted", false, 2048);
+	}
+
+	/**
+	 * Partition a bam file with the options of a command line parser that has already parsed the arguments
+	 * @param p Command line parser with options added by {@link #addCommandLineOptions(CommandLineParser)}
+	 * @param bamFile Bam file in any order
+	 * @param tmpDir Directory for partition files
+	 * @param numThreads Number of partitions to group at the same time
+	 * @return The grouper
+	 * @throws IOException
+	 */
+	public static HashPartitionedClusterGrouper fromCommandLine(CommandLineParser p, String bamFile, File tmpDir, int numThreads) throws IOException {
+		return new HashPartitionedClusterGrouper(bamFile, tmpDir, (long) p.getIntArg("-groupMem") << 20, numThreads);
+	}
+
+	/**
+	 * Write a compact record for each mapped record with a barcode to its partition file
+	 * Record format: cluster ID (long) or barcode (modified UTF-8), reference index, start, end (ints), strand, mapping quality (bytes)
+	 */
+	private void spill(String bamFile, List<Predicate<SAMRecord>> requiredConditions, int numPartitions) throws IOException {
+		logger.info("");
+		logger.info("Writing records of " + bamFile + " to " + numPartitions + " partition files in " + tmpDir + "...");
+		SamReader reader = SamReaderFactory.makeDefault().open(new File(bamFile));
+		List<SAMSequenceRecord> sequences = reader.getFileHeader().getSequenceDictionary().getSequences();
+		referenceNames = new String[sequences.size()];
+		for(int i = 0; i < referenceNames.length; i++) {
+			referenceNames[i] = sequences.get(i).getSequenceName();
+		}
+		FilteredSAMRecordIterator iter = new FilteredSAMRecordIterator(reader.iterator());
+		for(Predicate<SAMRecord> predicate : requiredConditions) iter.addRequiredCondition(predicate);
+		partitions = new File[numPartitions];
+		DataOutputStream[] writers = openPartitions(partitions, "partition");
+		long numDone = 0;
+		long noBarcode = 0;
+		while(iter.hasNext()) {
+			SAMRecord record = iter.next();
+			numDone++;
+			if(numDone % 10000000 == 0) {
+				logger.info("Finished " + numDone + " records. Skipped " + noBarcode + " records without barcodes.");
+			}
+			if(record.getReadUnmappedFlag() || record.getReferenceIndex().intValue() < 0) {
+				continue;
+			}
+			DataOutputStream out;
+			if(clusterIds != null) {
+				long id = ClusterIdDictionary.clusterId(record.getAttribute(CustomSamTag.CLUSTER_ID));
+				if(id < 0) {
+					noBarcode++;
+					continue;
+				}
+				out = writers[partition(id, 0, numPartitions)];
+				out.writeLong(id);
+			} else {
+				String barcode = record.getStringAttribute(BarcodedBamWriter.BARCODES_SAM_TAG);
+				if(barcode == null) {
+					noBarcode++;
+					continue;
+				}
+				out = writers[partition(HyperLogLog.hash(barcode), 0, numPartitions)];
+				out.writeUTF(barcode);
+			}
+			out.writeInt(record.getReferenceIndex().intValue());
+			out.writeInt(record.getAlignmentStart() - 1);
+			out.writeInt(record.getAlignmentEnd());
+			out.writeByte(record.getReadNegativeStrandFlag() ? 1 : 0);
+			out.writeByte(Math.min(255, record.getMappingQuality()));
+		}
+		for(DataOutputStream writer : writers) writer.close();
+		iter.close();
+		reader.close();
+		logger.info("Done writing partition files. Skipped " + noBarcode + " records without barcodes.");
+	}
+
+	/**
+	 * Create and open partition files
+	 * @param files Array to fill with the files
+	 * @param prefix File name prefix
+	 * @return Output streams for the files
+	 * @throws IOException
+	 */
+	private DataOutputStream[] openPartitions(File[] files, String prefix) throws IOException {
+		DataOutputStream[] rtrn = new DataOutputStream[files.length];
+		int bufferSize = Math.max(1 << 12, Math.min(1 << 16, TOTAL_WRITE_BUFFER_BYTES / files.length));
+		for(int i = 0; i < files.length; i++) {
+			files[i] = File.createTempFile(prefix + i + "_", ".bin", tmpDir);
+			files[i].deleteOnExit();
+			rtrn[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(files[i]), bufferSize));
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @param hash Hash of the barcode or cluster ID
+	 * @param seed Seed to get an independent partition when splitting a partition again
+	 * @param numPartitions Number of partitions
+	 * @return Partition number
+	 */
+	private static int partition(long hash, int seed, int numPartitions) {
+		long h = hash + 0x9e3779b97f4a7c15L * (seed + 1);
+		h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+		h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (int) Math.floorMod(h, (long) numPartitions);
+	}
+
+	/**
+	 * @return Number of partition files
+	 */
+	public int getNumPartitions() {
+		return partitions.length;
+	}
+
+	/**
+	 * @return Reference names of the bam file by reference index
+	 */
+	public String[] getReferenceNames() {
+		return referenceNames;
+	}
+
+	/**
+	 * Collect statistics on the clusters of the stream, and write them as a JSON report when the grouper is closed
+	 * @param reportFile JSON report file
+	 * @return The statistics collector; only read it after the stream is consumed
+	 */
+	public ClusterStatistics collectStatistics(File reportFile) {
+		statistics = new ClusterStatistics();
+		statisticsReport = reportFile;
+		return statistics;
+	}
+
+	/**
+	 * Get a stream of all clusters; the stream can be made parallel, in which case partitions are grouped in parallel
+	 * At most the configured number of threads' partitions are held in memory at once, however many threads consume the stream
+	 * Each partition file is deleted after it is grouped, so the stream can be consumed once
+	 * Clusters within a partition are in order of barcode string or cluster ID; partitions are in no particular order
+	 * Close the stream to close the grouper
+	 * @return Stream of clusters
+	 */
+	public Stream<FlatFragmentCluster> clusters() {
+		ClusterStatistics stats = statistics;
+		Stream<FlatFragmentCluster> rtrn = IntStream.range(0, partitions.length).boxed().flatMap(i -> {
+			partitionsInMemory.acquireUninterruptibly();
+			try {
+				return group(partitions[i], 0).onClose(partitionsInMemory::release);
+			} catch(RuntimeException e) {
+				partitionsInMemory.release();
+				throw e;
+			}
+		});
+		if(stats != null) {
+			rtrn = rtrn.peek(cluster -> {
+				synchronized(stats) {
+					stats.add(cluster);
+				}
+			});
+		}
+		return rtrn.onClose(this::close);
+	}
+
+	/**
+	 * Group the records in a partition file into clusters, splitting it first if it is too large for its memory budget
+	 * The sub-partitions of a split partition are grouped lazily one after another as the stream is consumed,
+	 * so only one of them is in memory at a time, under the permit of the partition
+	 * @param file Partition file; deleted after reading
+	 * @param depth Number of times the records in the file have already been split
+	 * @return The clusters
+	 */
+	private Stream<FlatFragmentCluster> group(File file, int depth) {
+		try {
+			if(file.length() > bytesPerPartition) {
+				if(depth < MAX_SPLIT_DEPTH) {
+					return Arrays.stream(split(file, depth + 1)).flatMap(subPartition -> group(subPartition, depth + 1));
+				}
+				logger.warn("Grouping partition of " + file.length() + " bytes over its memory budget; a single cluster may be very large");
+			}
+			return readAndGroup(file).stream();
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Split a partition file into smaller ones with a different hash seed
+	 * @param file Partition file; deleted after reading
+	 * @param seed Hash seed
+	 * @return The new partition files
+	 * @throws IOException
+	 */
+	private File[] split(File file, int seed) throws IOException {
+		int numParts = (int) Math.min(MAX_PARTITIONS, file.length() / bytesPerPartition + 2);
+		logger.info("Splitting partition of " + file.length() + " bytes into " + numParts + " parts...");
+		File[] rtrn = new File[numParts];
+		DataOutputStream[] writers = openPartitions(rtrn, "split");
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			while(true) {
+				DataOutputStream out;
+				if(clusterIds != null) {
+					long id = in.readLong();
+					out = writers[partition(id, seed, numParts)];
+					out.writeLong(id);
+				} else {
+					String barcode = in.readUTF();
+					out = writers[partition(HyperLogLog.hash(barcode), seed, numParts)];
+					out.writeUTF(barcode);
+				}
+				out.writeInt(in.readInt());
+				out.writeInt(in.readInt());
+				out.writeInt(in.readInt());
+				out.writeByte(in.readByte());
+				out.writeByte(in.readByte());
+			}
+		} catch(EOFException e) {
+			// Done
+		}
+		in.close();
+		for(DataOutputStream writer : writers) writer.close();
+		file.delete();
+		for(File part : rtrn) subPartitions.add(part);
+		return rtrn;
+	}
+
+	/**
+	 * Read a partition file into memory and group its records
+	 * @param file Partition file; deleted after reading
+	 * @return The clusters in order of barcode string or cluster ID
+	 * @throws IOException
+	 */
+	private List<FlatFragmentCluster> readAndGroup(File file) throws IOException {
+		Map<Object, FlatFragmentCluster> clusters = new HashMap<Object, FlatFragmentCluster>();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			while(true) {
+				Object key = clusterIds != null ? (Object) Long.valueOf(in.readLong()) : in.readUTF();
+				FlatFragmentCluster cluster = clusters.get(key);
+				if(cluster == null) {
+					cluster = new FlatFragmentCluster(referenceNames, clusterIds, 2);
+					if(clusterIds != null) cluster.reset(null, ((Long) key).longValue());
+					else cluster.reset((String) key, -1);
+					clusters.put(key, cluster);
+				}
+				cluster.add(in.readInt(), in.readInt(), in.readInt(), in.readByte() != 0, in.readByte() & 0xff);
+			}
+		} catch(EOFException e) {
+			// Done
+		}
+		in.close();
+		file.delete();
+		List<Object> keys = new ArrayList<Object>(clusters.keySet());
+		keys.sort(null);
+		List<FlatFragmentCluster> rtrn = new ArrayList<FlatFragmentCluster>(keys.size());
+		for(Object key : keys) rtrn.add(clusters.get(key));
+		return rtrn;
+	}
+
+	/**
+	 * Delete any partition files that have not been grouped, and write the statistics report if collecting statistics
+	 */
+	@Override
+	public void close() {
+		for(File file : partitions) {
+			if(file.exists()) file.delete();
+		}
+		for(File file : subPartitions) {
+			if(file.exists()) file.delete();
+		}
+		if(statistics != null) {
+			statistics.writeReport(statisticsReport);
+			statistics = null;
+		}
+	}
+
+}
@@ -1,13 +1,17 @@
 package contact.iterator;
 
+import htsjdk.samtools.fork.BAMFileSpan;
+import htsjdk.samtools.fork.Chunk;
 import htsjdk.samtools.fork.FilteredSAMRecordIterator;
 import htsjdk.samtools.fork.SAMFileHeader.SortOrder;
 import htsjdk.samtools.fork.SAMRecord;
+import htsjdk.samtools.fork.SAMRecordIterator;
 import htsjdk.samtools.fork.SamReader;
 import htsjdk.samtools.fork.SamReaderFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -17,11 +21,17 @@ import org.apache.log4j.Logger;
 
 import net.sf.samtools.util.CloseableIterator;
 import programs.barcode.BarcodedBamWriter;
+import util.CustomSamTag;
 import util.SAMConversionUtil;
+import contact.ClusterIdDictionary;
+import contact.ClusterIndex;
 
 /**
  * Iterator that returns successive collections of records with the same barcode
- * Asserts that bam file is sorted by barcode attribute
+ * Asserts that bam file is sorted by barcode attribute, unless the header says it is grouped by barcode (see {@link programs.bam.SortBamByBarcode})
+ * If the bam file has a cluster ID dictionary next to it, records are grouped by the integer cluster ID tag instead,
+ * and the barcode attribute is set on the returned records from the dictionary
+ * With a {@link ClusterIndex}, the iterator can read only a range of clusters or clusters in a size range
  * @author prussell
  *
  */
@@ -30,6 +40,9 @@ class IteratorCommonBarcodeSAMRecordCollection implements CloseableIterator<Coll
 	private SamReader reader;
 	private FilteredSAMRecordIterator iter;
 	private net.sf.samtools.SAMRecord prevRecord;
+	private long prevClusterId;
+	private ClusterIdDictionary clusterIds; // Null if grouping by barcode string
+	private boolean hasNext; // Whether prevRecord starts a cluster that has not been returned
 	private static Logger logger = Logger.getLogger(IteratorCommonBarcodeSAMRecordCollection.class.getName());
 	private static int numFragmentsDone = 0;
 	private static int numClustersDone = 0;
@@ -46,14 +59,79 @@ class IteratorCommonBarcodeSAMRecordCollection implements CloseableIterator<Coll
 		if(!iter.hasNext()) {
 			throw new IllegalArgumentException("Iterator is empty for bam file " + bamFile);
 		}
-		iter.assertSorted(SortOrder.tagXB);
-		prevRecord = SAMConversionUtil.fromForkSAMFragment(iter.next());
+		readDictionary(bamFile);
+		if(clusterIds == null && !CustomSamTag.isGroupedByTag(reader.getFileHeader().getComments(), BarcodedBamWriter.BARCODES_SAM_TAG)) {
+			iter.assertSorted(SortOrder.tagXB);
+		}
+		readFirst();
+	}
+	
+	/**
+	 * Iterate over part of the clusters in a bam file, using its cluster index
+	 * The file is not checked for sort order, as the index can only be built for a file grouped by barcode
+	 * @param bamFile Bam file
+	 * @param requiredConditions Collection of predicates for filtered SAMRecord iterator. SAMRecords for which
+	 * any predicate evaluates to false will not be included
+	 * @param index Cluster index of the bam file
+	 * @param firstCluster Ordinal number of the first cluster in the file to include
+	 * @param lastCluster Ordinal number after the last cluster to include
+	 * @param minSize Minimum number of records in the file for a cluster to be included, before filtering
+	 * @param maxSize Maximum number of records in the file for a cluster to be included, before filtering
+	 */
+	IteratorCommonBarcodeSAMRecordCollection(String bamFile, List<Predicate<SAMRecord>> requiredConditions, ClusterIndex index,
+			int firstCluster, int lastCluster, int minSize, int maxSize) {
+		reader = SamReaderFactory.makeDefault().open(new File(bamFile));
+		iter = new FilteredSAMRecordIterator(openSpan(reader, index.getSpan(firstCluster, lastCluster, minSize, maxSize)));
+		for(Predicate<SAMRecord> predicate : requiredConditions) iter.addRequiredCondition(predicate);
+		readDictionary(bamFile);
+		if(iter.hasNext()) {
+			readFirst();
+		}
+	}
+	
+	/**
+	 * Get an iterator over the records in part of a bam file
+	 * @param reader Bam file reader
+	 * @param span Start and end virtual offsets of each part to read, alternating start and end, from {@link ClusterIndex#getSpan(int, int, int, int)}
+	 * @return Iterator over the records in the span
+	 */
+	static SAMRecordIterator openSpan(SamReader reader, long[] span) {
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		for(int i = 0; i < span.length; i += 2) {
+			chunks.add(new Chunk(span[i], span[i + 1]));
+		}
+		return reader.indexing().iterator(new BAMFileSpan(chunks));
+	}
+	
+	/**
+	 * Read the cluster ID dictionary if the bam file has one
+	 * @param bamFile Bam file
+	 */
+	private void readDictionary(String bamFile) {
+		File dictionaryFile = ClusterIdDictionary.sidecarFile(bamFile);
+		if(dictionaryFile.exists()) {
+			try {
+				clusterIds = ClusterIdDictionary.read(dictionaryFile);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+	
+	/**
+	 * Read the first record
+	 */
+	private void readFirst() {
+		SAMRecord first = iter.next();
+		prevClusterId = clusterId(first);
+		prevRecord = convert(first, prevClusterId);
 		numFragmentsDone++;
+		hasNext = true;
 	}
 
 	@Override
 	public boolean hasNext() {
-		return iter.hasNext();
+		return hasNext;
 	}
 
 	@Override
@@ -65,15 +143,53 @@ class IteratorCommonBarcodeSAMRecordCollection implements CloseableIterator<Coll
 		Collection<net.sf.samtools.SAMRecord> rtrn = new ArrayList<net.sf.samtools.SAMRecord>();
 		rtrn.add(prevRecord);
 		String barcode = (String) prevRecord.getAttribute(BarcodedBamWriter.BARCODES_SAM_TAG);
+		long clusterId = prevClusterId;
 		while(iter.hasNext()) {
 			htsjdk.samtools.fork.SAMRecord next = iter.next();
 			numFragmentsDone++;
 			if(numFragmentsDone % 10000000 == 0) {
 				logger.info("Finished " + numFragmentsDone + " SAM records");
 			}
-			prevRecord = SAMConversionUtil.fromForkSAMFragment(next);
-			if(next.getAttribute(BarcodedBamWriter.BARCODES_SAM_TAG).equals(barcode)) {rtrn.add(SAMConversionUtil.fromForkSAMFragment(next));}
-			else break;
+			long nextClusterId = clusterId(next);
+			boolean sameCluster = clusterIds != null ? nextClusterId == clusterId : next.getAttribute(BarcodedBamWriter.BARCODES_SAM_TAG).equals(barcode);
+			prevRecord = convert(next, nextClusterId);
+			prevClusterId = nextClusterId;
+			if(sameCluster) {rtrn.add(prevRecord);}
+			else return rtrn;
+		}
+		hasNext = false;
+		return rtrn;
+	}
+	
+	/**
+	 * Get the cluster ID of a record and check that records are sorted by cluster ID
+	 * @param record The record
+	 * @return The cluster ID, or -1 if grouping by barcode string
+	 */
+	private long clusterId(SAMRecord record) {
+		if(clusterIds == null) {
+			return -1;
+		}
+		long rtrn = ClusterIdDictionary.clusterId(record.getAttribute(CustomSamTag.CLUSTER_ID));
+		if(rtrn < 0) {
+			throw new IllegalArgumentException("Record does not have cluster ID tag " + CustomSamTag.CLUSTER_ID + ": " + record.getReadName());
+		}
+		if(prevRecord != null && rtrn < prevClusterId) {
+			throw new IllegalStateException("Bam file is not sorted by cluster ID: " + rtrn + " after " + prevClusterId);
+		}
+		return rtrn;
+	}
+	
+	/**
+	 * Convert a record and set the barcode attribute from the cluster ID if needed
+	 * @param record The record
+	 * @param clusterId Cluster ID, or -1 if grouping by barcode string
+	 * @return Converted record
+	 */
+	private net.sf.samtools.SAMRecord convert(SAMRecord record, long clusterId) {
+		net.sf.samtools.SAMRecord rtrn = SAMConversionUtil.fromForkSAMFragment(record);
+		if(clusterId >= 0 && rtrn.getAttribute(BarcodedBamWriter.BARCODES_SAM_TAG) == null) {
+			rtrn.setAttribute(BarcodedBamWriter.BARCODES_SAM_TAG, clusterIds.getSamAttributeString(clusterId));
 		}
 		return rtrn;
 	}
@@ -1,13 +1,18 @@
 package contact.iterator;
 
+import java.io.File;
 import java.util.List;
 import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
 
 import guttmanlab.core.coordinatespace.CoordinateSpace;
 import htsjdk.samtools.fork.SAMRecord;
 import net.sf.samtools.util.CloseableIterator;
+import contact.ClusterIndex;
 import contact.SAMFragmentCluster;
 import contact.function.SAMRecordPredicate;
+import contact.stats.ClusterStatistics;
 
 /**
  * Iterator that returns successive SAMFragmentClusters being read from a bam file
@@ -18,6 +23,8 @@ public class SAMFragmentClusterIterator implements CloseableIterator<SAMFragment
 	
 	private IteratorCommonBarcodeSAMRecordCollection iter;
 	private CoordinateSpace coordSpace;
+	private ClusterStatistics statistics; // Null if not collecting statistics
+	private File statisticsReport;
 	
 	/**
 	 * Instantiate with default SAMRecord filters
@@ -41,6 +48,49 @@ public class SAMFragmentClusterIterator implements CloseableIterator<SAMFragment
 		iter = new IteratorCommonBarcodeSAMRecordCollection(bamFile, requiredConditions);
 	}
 	
+	/**
+	 * Iterate over part of the clusters in a bam file, using its cluster index
+	 * Use {@link ClusterIndex#split(int)} to divide the clusters evenly among workers
+	 * @param bamFile Bam file
+	 * @param coordSpace Coordinate space
+	 * @param requiredConditions Collection of predicates for filtered SAMRecord iterator. SAMRecords for which
+	 * any predicate evaluates to false will not be included
+	 * @param index Cluster index of the bam file
+	 * @param firstCluster Ordinal number of the first cluster in the file to include
+	 * @param lastCluster Ordinal number after the last cluster to include
+	 * @param minSize Minimum number of records in the file for a cluster to be included, before filtering
+	 * @param maxSize Maximum number of records in the file for a cluster to be included, before filtering
+	 */
+	public SAMFragmentClusterIterator(String bamFile, CoordinateSpace coordSpace, List<Predicate<SAMRecord>> requiredConditions, ClusterIndex index,
+			int firstCluster, int lastCluster, int minSize, int maxSize) {
+		this.coordSpace = coordSpace;
+		iter = new IteratorCommonBarcodeSAMRecordCollection(bamFile, requiredConditions, index, firstCluster, lastCluster, minSize, maxSize);
+	}
+	
+	/**
+	 * Iterate over the clusters in a bam file starting at a given cluster, using its cluster index
+	 * @param bamFile Bam file
+	 * @param coordSpace Coordinate space
+	 * @param index Cluster index of the bam file
+	 * @param firstClusterId Cluster ID of the first cluster to include, or its ordinal number if the file has no cluster IDs
+	 */
+	public SAMFragmentClusterIterator(String bamFile, CoordinateSpace coordSpace, ClusterIndex index, long firstClusterId) {
+		this(bamFile, coordSpace, SAMRecordPredicate.DEFAULT, index, firstCluster(index, firstClusterId), index.getNumClusters(), 0, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * @param index Cluster index
+	 * @param clusterId Cluster ID, or ordinal number if the file has no cluster IDs
+	 * @return Ordinal number of the cluster in the file
+	 */
+	private static int firstCluster(ClusterIndex index, long clusterId) {
+		int rtrn = index.find(clusterId);
+		if(rtrn < 0) {
+			throw new IllegalArgumentException("Cluster not in index: " + clusterId);
+		}
+		return rtrn;
+	}
+	
 	@Override
 	public boolean hasNext() {
 		return iter.hasNext();
@@ -48,12 +98,39 @@ public class SAMFragmentClusterIterator implements CloseableIterator<SAMFragment
 
 	@Override
 	public SAMFragmentCluster next() {
-		return new SAMFragmentCluster(iter.next(), coordSpace);
+		SAMFragmentCluster rtrn = new SAMFragmentCluster(iter.next(), coordSpace);
+		if(statistics != null) statistics.add(rtrn);
+		return rtrn;
 	}
 
 	@Override
 	public void close() {
 		iter.close();
+		if(statistics != null) {
+			statistics.writeReport(statisticsReport);
+			statistics = null;
+		}
+	}
+	
+	/**
+	 * Collect statistics on the clusters returned by this iterator, and write them as a JSON report when the iterator is closed
+	 * @param reportFile JSON report file
+	 * @return The statistics collector
+	 */
+	public ClusterStatistics collectStatistics(File reportFile) {
+		statistics = new ClusterStatistics();
+		statisticsReport = reportFile;
+		return statistics;
+	}
+	
+	/**
+	 * Get a stream of the remaining clusters, read on a dedicated thread and handed out in batches
+	 * Use clusters().parallel() to process clusters on the fork-join pool
+	 * Do not use this iterator directly after calling this method; close the stream to close the iterator
+	 * @return Stream of clusters
+	 */
+	public Stream<SAMFragmentCluster> clusters() {
+		return ClusterBatchSpliterator.stream(this, UnaryOperator.identity(), ClusterBatchSpliterator.DEFAULT_BATCH_SIZE);
 	}
 	
 	
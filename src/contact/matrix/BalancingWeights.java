@@ -0,0 +1,183 @@
+package contact.matrix;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Per-bin weights that balance a contact matrix: the balanced value of a pixel is its raw value times the weights of its two bins
+ * Masked bins have weight NaN
+ * The weights of a matrix are stored in a small binary file next to it, and applied lazily with {@link NormalizedContactPixels}
+ * or {@link #apply(CooMatrix)}
+ * Instances are immutable
+ * @author prussell
+ *
+ */
+public final class BalancingWeights {
+
+	private static final int MAGIC = 0x42414c57; // "BALW"
+	private static final int VERSION = 1;
+
+	private String method;
+	private double[] weights;
+	private int numIterations;
+	private boolean converged;
+	private double residual;
+
+	/**
+	 * @param method Name of the balancing method
+	 * @param weights Weight of each bin, or NaN for masked bins
+	 * @param numIterations Number of iterations run
+	 * @param converged Whether the iterations converged
+	 * @param residual Final residual
+	 */
+	public BalancingWeights(String method, double[] weights, int numIterations, boolean converged, double residual) {
+		this.method = method;
+		this.weights = weights.clone();
+		this.numIterations = numIterations;
+		this.converged = converged;
+		this.residual = residual;
+	}
+
+	/**
+	 * @param matrixFile Matrix file or contact store
+	 * @param binSize Bin size of the balanced level
+	 * @return The file the weights of the matrix are stored in
+	 */
+	public static File fileFor(File matrixFile, int binSize) {
+		return new File(matrixFile.getPath() + "." + binSize + ".weights");
+	}
+
+	/**
+	 * @return Name of the balancing method
+	 */
+	public String getMethod() {
+		return method;
+	}
+
+	/**
+	 * @return Number of bins
+	 */
+	public int getNumBins() {
+		return weights.length;
+	}
+
+	/**
+	 * @param bin Bin
+	 * @return Weight of the bin, or NaN if the bin is masked
+	 */
+	public double get(int bin) {
+		return weights[bin];
+	}
+
+	/**
+	 * @param bin Bin
+	 * @return Whether the bin is masked
+	 */
+	public boolean isMasked(int bin) {
+		return Double.isNaN(weights[bin]);
+	}
+
+	/**
+	 * @return Number of iterations run
+	 */
+	public int getNumIterations() {
+		return numIterations;
+	}
+
+	/**
+	 * @return Whether the iterations converged
+	 */
+	public boolean isConverged() {
+		return converged;
+	}
+
+	/**
+	 * @return Final residual
+	 */
+	public double getResidual() {
+		return residual;
+	}
+
+	/**
+	 * @param bin1 Row bin
+	 * @param bin2 Column bin
+	 * @param value Raw value of the pixel
+	 * @return Balanced value of the pixel, or NaN if either bin is masked
+	 */
+	public double apply(int bin1, int bin2, double value) {
+		return value * weights[bin1] * weights[bin2];
+	}
+
+	/**
+	 * Balance the pixels of a matrix, e.g. a rectangle read from a matrix file, leaving out pixels of masked bins
+	 * @param matrix Raw pixels
+	 * @return Balanced pixels
+	 */
+	public CooMatrix apply(CooMatrix matrix) {
+		int n = 0;
+		for(int i = 0; i < matrix.getNumPixels(); i++) {
+			if(!isMasked(matrix.getRow(i)) && !isMasked(matrix.getColumn(i))) n++;
+		}
+		int[] rows = new int[n];
+		int[] columns = new int[n];
+		double[] values = new double[n];
+		int j = 0;
+		for(int i = 0; i < matrix.getNumPixels(); i++) {
+			int r = matrix.getRow(i);
+			int c = matrix.getColumn(i);
+			if(isMasked(r) || isMasked(c)) continue;
+			rows[j] = r;
+			columns[j] = c;
+			values[j] = apply(r, c, matrix.getValue(i));
+			j++;
+		}
+		return new CooMatrix(matrix.getNumRows(), rows, columns, values);
+	}
+
+	/**
+	 * @param file Output file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeUTF(method);
+		out.writeInt(numIterations);
+		out.writeBoolean(converged);
+		out.writeDouble(residual);
+		out.writeInt(weights.length);
+		for(double w : weights) out.writeDouble(w);
+		out.close();
+	}
+
+	/**
+	 * @param file File written by {@link #write(File)}
+	 * @return The weights
+	 * @throws IOException
+	 */
+	public static BalancingWeights read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if(in.readInt() != MAGIC) throw new IllegalArgumentException("Not a balancing weights file: " + file);
+			int version = in.readInt();
+			if(version != VERSION) throw new IllegalArgumentException("Unsupported balancing weights version " + version + ": " + file);
+			String method = in.readUTF();
+			int numIterations = in.readInt();
+			boolean converged = in.readBoolean();
+			double residual = in.readDouble();
+			double[] weights = new double[in.readInt()];
+			for(int i = 0; i < weights.length; i++) weights[i] = in.readDouble();
+			return new BalancingWeights(method, weights, numIterations, converged, residual);
+		} finally {
+			in.close();
+		}
+	}
+
+}
@@ -0,0 +1,360 @@
+package contact.matrix;
+
+import guttmanlab.core.annotation.Annotation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import org.apache.log4j.Logger;
+
+import Jama.Matrix;
+import contact.FragmentCluster;
+
+/**
+ * Contact matrix that stores each reference as a dense band of pixels near the diagonal, for analyses of short-range intra-chromosomal contacts
+ * Pixel (i, j) with i <= j on the same reference and j - i less than the band width is held in a primitive array per reference,
+ * row by row, so increments are constant time and reading a row or a stretch of the diagonal is sequential
+ * All other contacts go to a sparse overflow map, or are only counted if the overflow is turned off
+ * Values are fixed-point (see {@link FixedPoint}), like {@link SparseContactMatrix}
+ * To fill this and another matrix from the same pass over the clusters, add contacts through {@link ContactSink#tee(ContactSink, ContactSink)};
+ * same-pass filling only applies to single-threaded {@link #addContacts(FragmentCluster)}, since adding contacts is not thread safe.
+ * With a {@link ParallelContactAccumulator}, fill it afterwards from the merged pixels as a {@link PixelConsumer}, as the -band option of
+ * {@link programs.contact.BuildContactMatrix} does
+ * Adding contacts is not thread safe; once the matrix is filled, any number of threads can read it at once
+ * @author prussell
+ *
+ * @param <T> Annotation type for fragment clusters
+ * @param <S> Collection type for fragment clusters
+ */
+public class BandedContactMatrix<T extends Annotation, S extends Collection<T>> extends ContactMatrix<T, S, Integer> implements ContactSink, PixelConsumer, ContactPixels {
+
+	private static Logger logger = Logger.getLogger(BandedContactMatrix.class.getName());
+
+	private GenomeBins bins;
+	private int bandWidth;
+	private long[][] bands;
+	private PixelHashMap overflow;
+	private boolean keepOverflow;
+	private long numBandPixels;
+	private long numDiscarded;
+	// Overflow pixels sorted by row and by column, built on demand and dropped when the overflow changes
+	private volatile SortedOverflow sortedOverflow; // Null until read, and again after the overflow changes
+
+	/**
+	 * @param bins Genome bins
+	 * @param bandWidth Number of diagonals held densely, including the main diagonal
+	 * @param keepOverflow Keep contacts outside the band in a sparse map; if false they are only counted
+	 */
+	public BandedContactMatrix(GenomeBins bins, int bandWidth, boolean keepOverflow) {
+		if(bandWidth < 1) throw new IllegalArgumentException("Band width must be at least 1");
+		this.bins = bins;
+		this.bandWidth = bandWidth;
+		this.keepOverflow = keepOverflow;
+		bands = new long[bins.getNumReferences()][];
+		long numBytes = 0;
+		for(int r = 0; r < bands.length; r++) {
+			long n = (long) (bins.getEndBin(r) - bins.getFirstBin(r)) * bandWidth;
+			if(n > Integer.MAX_VALUE - 8) {
+				throw new IllegalArgumentException("Band of " + bins.getReferenceName(r) + " has " + n + " pixels; use a smaller band width or larger bins");
+			}
+			bands[r] = new long[(int) n];
+			numBytes += 8 * n;
+		}
+		overflow = new PixelHashMap(1 << 16);
+		logger.info("Allocated bands of " + bandWidth + " bins for " + bands.length + " references (" + (numBytes >> 20) + " MB)");
+	}
+
+	/**
+	 * @param bins Genome bins
+	 * @param maxDistance Maximum distance in base pairs between the starts of two bins held densely
+	 * @param keepOverflow Keep contacts outside the band in a sparse map; if false they are only counted
+	 * @return Matrix whose band covers the distance
+	 */
+	public static <T extends Annotation, S extends Collection<T>> BandedContactMatrix<T, S> forMaxDistance(GenomeBins bins, int maxDistance, boolean keepOverflow) {
+		return new BandedContactMatrix<T, S>(bins, maxDistance / bins.getBinSize() + 1, keepOverflow);
+	}
+
+	@Override
+	public GenomeBins getBins() {
+		return bins;
+	}
+
+	/**
+	 * @return Number of diagonals held densely, including the main diagonal
+	 */
+	public int getBandWidth() {
+		return bandWidth;
+	}
+
+	/**
+	 * @return Number of contacts outside the band that were dropped because the overflow is turned off
+	 */
+	public long getNumDiscarded() {
+		return numDiscarded;
+	}
+
+	/**
+	 * @return Function summarizing a location by the bin of its start position, or -1 if it is outside the genome
+	 */
+	public Function<T, Integer> binFunction() {
+		return location -> Integer.valueOf(bins.getBin(location.getReferenceName(), location.getReferenceStartPosition()));
+	}
+
+	/**
+	 * Add all contacts represented by a fragment cluster, summarizing each location by its bin
+	 * @param fragmentCluster A collection of mapped fragments whose locations are assumed to contact each other
+	 */
+	public void addContacts(FragmentCluster<T, S> fragmentCluster) {
+		addContacts(fragmentCluster, binFunction());
+	}
+
+	@Override
+	public void addContact(Integer location1summary, Integer location2summary) {
+		addContact(location1summary.intValue(), location2summary.intValue(), FixedPoint.ONE);
+	}
+
+	/**
+	 * Add a weighted contact between two bins; contacts with a bin outside the genome (-1) are ignored
+	 * @param bin1 One bin
+	 * @param bin2 Other bin
+	 * @param value Fixed-point weight
+	 */
+	@Override
+	public void addContact(int bin1, int bin2, long value) {
+		if(bin1 < 0 || bin2 < 0) return;
+		if(bin1 > bin2) {
+			int tmp = bin1;
+			bin1 = bin2;
+			bin2 = tmp;
+		}
+		int ref = bins.getReferenceIndexOfBin(bin1);
+		if(bin2 - bin1 < bandWidth && bin2 < bins.getEndBin(ref)) {
+			long[] band = bands[ref];
+			int i = (bin1 - bins.getFirstBin(ref)) * bandWidth + bin2 - bin1;
+			if(band[i] == 0) numBandPixels++;
+			band[i] += value;
+			if(band[i] == 0) numBandPixels--;
+		} else if(keepOverflow) {
+			overflow.add(PixelHashMap.key(bin1, bin2), value);
+			sortedOverflow = null;
+		} else {
+			numDiscarded++;
+		}
+	}
+
+	/**
+	 * Add a pixel, e.g. from the merged output of a {@link ParallelContactAccumulator}
+	 */
+	@Override
+	public void accept(int bin1, int bin2, double value) {
+		addContact(bin1, bin2, FixedPoint.fromDouble(value));
+	}
+
+	/**
+	 * @param bin1 One bin
+	 * @param bin2 Other bin
+	 * @return Whether the pixel is in the dense band
+	 */
+	public boolean inBand(int bin1, int bin2) {
+		int lo = Math.min(bin1, bin2);
+		int hi = Math.max(bin1, bin2);
+		return hi - lo < bandWidth && hi < bins.getEndBin(bins.getReferenceIndexOfBin(lo));
+	}
+
+	/**
+	 * @return Value of the pixel, or 0 if it is outside the band and the overflow is turned off
+	 */
+	@Override
+	public double get(int bin1, int bin2) {
+		int lo = Math.min(bin1, bin2);
+		int hi = Math.max(bin1, bin2);
+		int ref = bins.getReferenceIndexOfBin(lo);
+		if(hi - lo < bandWidth && hi < bins.getEndBin(ref)) {
+			return FixedPoint.toDouble(bands[ref][(lo - bins.getFirstBin(ref)) * bandWidth + hi - lo]);
+		}
+		return FixedPoint.toDouble(overflow.get(PixelHashMap.key(lo, hi)));
+	}
+
+	/**
+	 * @return Number of non-zero pixels in the band and the overflow
+	 */
+	@Override
+	public long getNumPixels() {
+		return numBandPixels + overflow.size();
+	}
+
+	/**
+	 * Within a row, band pixels come before overflow pixels, which are further from the diagonal or on later references
+	 */
+	@Override
+	public void forEachInRows(int firstRow, int endRow, PixelConsumer consumer) {
+		checkRange(firstRow, endRow);
+		SortedOverflow sorted = sortedOverflow();
+		long[] overflowByRow = sorted.byRow;
+		long[] overflowByRowValues = sorted.byRowValues;
+		int o = lowerBound(overflowByRow, PixelHashMap.key(firstRow, 0));
+		for(int row = firstRow; row < endRow; row++) {
+			int ref = bins.getReferenceIndexOfBin(row);
+			long[] band = bands[ref];
+			int offset = (row - bins.getFirstBin(ref)) * bandWidth;
+			int width = Math.min(bandWidth, bins.getEndBin(ref) - row);
+			for(int d = 0; d < width; d++) {
+				if(band[offset + d] != 0) consumer.accept(row, row + d, FixedPoint.toDouble(band[offset + d]));
+			}
+			for(; o < overflowByRow.length && PixelHashMap.bin1(overflowByRow[o]) == row; o++) {
+				consumer.accept(row, PixelHashMap.bin2(overflowByRow[o]), FixedPoint.toDouble(overflowByRowValues[o]));
+			}
+		}
+	}
+
+	/**
+	 * Within a column, overflow pixels come before band pixels, since they are further from the diagonal or on earlier references
+	 */
+	@Override
+	public void forEachInColumns(int firstColumn, int endColumn, PixelConsumer consumer) {
+		checkRange(firstColumn, endColumn);
+		SortedOverflow sorted = sortedOverflow();
+		long[] overflowByColumn = sorted.byColumn;
+		long[] overflowByColumnValues = sorted.byColumnValues;
+		int o = lowerBound(overflowByColumn, PixelHashMap.key(firstColumn, 0));
+		for(int column = firstColumn; column < endColumn; column++) {
+			for(; o < overflowByColumn.length && PixelHashMap.bin1(overflowByColumn[o]) == column; o++) {
+				consumer.accept(PixelHashMap.bin2(overflowByColumn[o]), column, FixedPoint.toDouble(overflowByColumnValues[o]));
+			}
+			int ref = bins.getReferenceIndexOfBin(column);
+			long[] band = bands[ref];
+			int firstBin = bins.getFirstBin(ref);
+			for(int row = Math.max(firstBin, column - bandWidth + 1); row <= column; row++) {
+				long value = band[(row - firstBin) * bandWidth + column - row];
+				if(value != 0) consumer.accept(row, column, FixedPoint.toDouble(value));
+			}
+		}
+	}
+
+	private void checkRange(int first, int end) {
+		if(first < 0 || end > bins.getNumBins() || first > end) throw new IllegalArgumentException("Invalid bin range " + first + "-" + end);
+	}
+
+	/**
+	 * The overflow pixels sorted by row and, with the keys transposed, by column
+	 * Built in one piece and published through a volatile field, so concurrent readers see either none or all of it
+	 */
+	private static final class SortedOverflow {
+
+		private final long[] byRow;
+		private final long[] byRowValues;
+		private final long[] byColumn;
+		private final long[] byColumnValues;
+
+		SortedOverflow(PixelHashMap overflow) {
+			int n = overflow.size();
+			byRow = new long[n];
+			byRowValues = new long[n];
+			overflow.toSortedArrays(byRow, byRowValues);
+			// Sort transposed keys with an index permutation, keeping the values with them
+			long[] transposed = new long[n];
+			Integer[] order = new Integer[n];
+			for(int i = 0; i < n; i++) {
+				transposed[i] = PixelHashMap.key(PixelHashMap.bin2(byRow[i]), PixelHashMap.bin1(byRow[i]));
+				order[i] = Integer.valueOf(i);
+			}
+			Arrays.sort(order, (a, b) -> Long.compare(transposed[a.intValue()], transposed[b.intValue()]));
+			byColumn = new long[n];
+			byColumnValues = new long[n];
+			for(int i = 0; i < n; i++) {
+				byColumn[i] = transposed[order[i].intValue()];
+				byColumnValues[i] = byRowValues[order[i].intValue()];
+			}
+		}
+
+	}
+
+	/**
+	 * @return The sorted overflow, sorting it first if it changed since the last sort; safe to call from concurrent readers
+	 */
+	private SortedOverflow sortedOverflow() {
+		SortedOverflow rtrn = sortedOverflow;
+		if(rtrn != null) return rtrn;
+		synchronized(this) {
+			rtrn = sortedOverflow;
+			if(rtrn == null) {
+				rtrn = new SortedOverflow(overflow);
+				sortedOverflow = rtrn;
+			}
+			return rtrn;
+		}
+	}
+
+	/**
+	 * @return Index of the first key not less than the given key
+	 */
+	private static int lowerBound(long[] sortedKeys, long key) {
+		int lo = 0;
+		int hi = sortedKeys.length;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(sortedKeys[mid] < key) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Get a dense symmetric matrix after mapping each bin to a matrix index, e.g. to combine bins
+	 * @param binSizeAndLocationToBin Function accepting the bin size and a bin, and returning the matrix index, or a negative number to leave it out
+	 * @return Matrix where each cell contains the sum of contacts between the bins mapped to it
+	 * @throws IllegalStateException If the matrix would have more than {@link SparseContactMatrix#MAX_DENSE_DIMENSION} rows
+	 */
+	@Override
+	public Matrix getMatrix(BiFunction<Integer, Integer, Integer> binSizeAndLocationToBin) {
+		Integer binSize = Integer.valueOf(bins.getBinSize());
+		int[] index = new int[bins.getNumBins()];
+		int dimension = 0;
+		for(int b = 0; b < index.length; b++) {
+			index[b] = binSizeAndLocationToBin.apply(binSize, Integer.valueOf(b)).intValue();
+			dimension = Math.max(dimension, index[b] + 1);
+		}
+		if(dimension > SparseContactMatrix.MAX_DENSE_DIMENSION) {
+			throw new IllegalStateException("Dense matrix of " + dimension + " x " + dimension + " bins is too large; request a smaller window");
+		}
+		Matrix rtrn = new Matrix(dimension, dimension);
+		double[][] a = rtrn.getArray();
+		forEach((bin1, bin2, value) -> {
+			int r = index[bin1];
+			int c = index[bin2];
+			if(r < 0 || c < 0) return;
+			a[r][c] += value;
+			if(r != c) a[c][r] += value;
+		});
+		return rtrn;
+	}
+
+	/**
+	 * Write the band and overflow pixels as a binary contact matrix file with the default zoom levels
+	 * Read it back with {@link MatrixFileReader}
+	 */
+	@Override
+	public void writeMatrix(File outFile) {
+		logger.info("Writing " + getNumPixels() + " pixels to " + outFile + "...");
+		try {
+			MatrixFileWriter.write(outFile, this);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void writeImage(File outFile) {
+		try {
+			HeatmapRenderer.writeOverview(this, outFile);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+}
@@ -0,0 +1,245 @@
+package contact.matrix;
+
+import guttmanlab.core.annotation.Annotation;
+import guttmanlab.core.util.CommandLineParser;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+import contact.FlatFragmentCluster;
+import contact.FragmentCluster;
+
+/**
+ * Emits the binned contacts of clusters to a {@link ContactSink} in bulk
+ * Each location is binned once; the bins are sorted and deduplicated, and every pair of distinct bins gets one weighted contact
+ * Clusters with more locations than a threshold are skipped, or their distinct bins are downsampled to the threshold
+ * with a random sample seeded by the bins, so the result does not depend on thread or order
+ * Counters of clusters and contacts are kept across all calls and threads
+ * Instances can be shared between threads, as long as each sink is only used by one thread or is thread safe
+ * @author prussell
+ *
+ */
+public final class ClusterContactEmitter {
+
+	private static Logger logger = Logger.getLogger(ClusterContactEmitter.class.getName());
+
+	/**
+	 * Weight of each contact
+	 */
+	public enum Weighting {
+		/**
+		 * Each pair of bins gets weight 1
+		 */
+		UNIT,
+		/**
+		 * Each pair of bins gets weight 2/n for a cluster of n locations, so each location contributes about the same total
+		 */
+		TWO_OVER_N;
+	}
+
+	/**
+	 * What to do with clusters larger than the size threshold
+	 */
+	public enum LargeClusterPolicy {
+		SKIP,
+		SAMPLE;
+	}
+
+	private GenomeBins bins;
+	private Weighting weighting;
+	private int maxClusterSize;
+	private LargeClusterPolicy largeClusterPolicy;
+	private LongAdder numClusters;
+	private LongAdder numSkipped;
+	private LongAdder numSampled;
+	private LongAdder numContacts;
+	private ThreadLocal<int[]> scratch;
+
+	/**
+	 * @param bins Genome bins
+	 * @param weighting Weight of each contact
+	 * @param maxClusterSize Clusters with more locations than this are skipped or sampled
+	 * @param largeClusterPolicy Whether to skip or sample clusters larger than the threshold
+	 */
+	public ClusterContactEmitter(GenomeBins bins, Weighting weighting, int maxClusterSize, LargeClusterPolicy largeClusterPolicy) {
+		if(maxClusterSize < 2) throw new IllegalArgumentException("Max cluster size must be at least 2");
+		this.bins = bins;
+		this.weighting = weighting;
+		this.maxClusterSize = maxClusterSize;
+		this.largeClusterPolicy = largeClusterPolicy;
+		numClusters = new LongAdder();
+		numSkipped = new LongAdder();
+		numSampled = new LongAdder();
+		numContacts = new LongAdder();
+		scratch = ThreadLocal.withInitial(() -> new int[64]);
+	}
+
+	/**
+	 * Add the emitter options to a command line parser
+	 * @param p Command line parser
+	 */
+	public static void addCommandLineOptions(CommandLineParser p) {
+		p.addStringArg("-weighting", "Weight of each contact: UNIT or TWO_OVER_N", false, Weighting.UNIT.toString());
+		p.addIntArg("-maxContactClusterSize", "Clusters with more locations than this are skipped or sampled for contacts", false, 1000);
+		p.addStringArg("-largeClusters", "What to do with clusters above the size threshold: SKIP or SAMPLE", false, LargeClusterPolicy.SKIP.toString());
+	}
+
+	/**
+	 * Get the emitter from a command line parser that has already parsed the arguments
+	 * @param p Command line parser with options added by {@link #addCommandLineOptions(CommandLineParser)}
+	 * @param bins Genome bins
+	 * @return The emitter
+	 */
+	public static ClusterContactEmitter fromCommandLine(CommandLineParser p, GenomeBins bins) {
+		return new ClusterContactEmitter(bins, Weighting.valueOf(p.getStringArg("-weighting")), p.getIntArg("-maxContactClusterSize"),
+				LargeClusterPolicy.valueOf(p.getStringArg("-largeClusters")));
+	}
+
+	/**
+	 * @return Genome bins
+	 */
+	public GenomeBins getBins() {
+		return bins;
+	}
+
+	/**
+	 * Emit the contacts of a cluster
+	 * @param cluster The cluster
+	 * @param sink Receives the contacts
+	 */
+	public void emit(FlatFragmentCluster cluster, ContactSink sink) {
+		int n = cluster.getNumLocations();
+		int[] b = scratch(n);
+		for(int i = 0; i < n; i++) {
+			b[i] = bins.getBin(cluster.getReferenceIndex(i), cluster.getStart(i));
+		}
+		emit(b, n, sink);
+	}
+
+	/**
+	 * Emit the contacts of a cluster
+	 * @param cluster The cluster
+	 * @param sink Receives the contacts
+	 */
+	public <T extends Annotation, S extends Collection<T>> void emit(FragmentCluster<T, S> cluster, ContactSink sink) {
+		int[] b = scratch(cluster.getNumLocations());
+		int n = 0;
+		for(T location : cluster.getLocations()) {
+			b[n++] = bins.getBin(location.getReferenceName(), location.getReferenceStartPosition());
+		}
+		emit(b, n, sink);
+	}
+
+	/**
+	 * @param n Number of locations
+	 * @return The calling thread's scratch array, at least n long
+	 */
+	private int[] scratch(int n) {
+		int[] rtrn = scratch.get();
+		if(rtrn.length < n) {
+			rtrn = new int[Math.max(n, 2 * rtrn.length)];
+			scratch.set(rtrn);
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Emit the contacts of a cluster given the bin of each location
+	 * @param locationBins Bin of each location, or -1 for locations outside the genome; overwritten
+	 * @param numLocations Number of locations
+	 * @param sink Receives the contacts
+	 */
+	public void emit(int[] locationBins, int numLocations, ContactSink sink) {
+		numClusters.increment();
+		int m = 0;
+		for(int i = 0; i < numLocations; i++) {
+			if(locationBins[i] >= 0) locationBins[m++] = locationBins[i];
+		}
+		Arrays.sort(locationBins, 0, m);
+		int u = 0;
+		for(int i = 0; i < m; i++) {
+			if(u == 0 || locationBins[i] != locationBins[u - 1]) locationBins[u++] = locationBins[i];
+		}
+		if(numLocations > maxClusterSize) {
+			if(largeClusterPolicy == LargeClusterPolicy.SKIP) {
+				numSkipped.increment();
+				return;
+			}
+			numSampled.increment();
+			if(u > maxClusterSize) {
+				sample(locationBins, u, maxClusterSize);
+				u = maxClusterSize;
+			}
+		}
+		if(u < 2) return;
+		long weight = weighting == Weighting.UNIT ? FixedPoint.ONE : FixedPoint.fromDouble(2.0 / numLocations);
+		for(int i = 0; i < u; i++) {
+			int bin1 = locationBins[i];
+			for(int j = i + 1; j < u; j++) {
+				sink.addContact(bin1, locationBins[j], weight);
+			}
+		}
+		numContacts.add((long) u * (u - 1) / 2);
+	}
+
+	/**
+	 * Move a random sample of sorted distinct bins to the front of the array and sort it
+	 * The random seed is a hash of the bins, so the sample is the same every time
+	 * @param distinctBins Sorted distinct bins
+	 * @param n Number of bins
+	 * @param k Sample size
+	 */
+	private static void sample(int[] distinctBins, int n, int k) {
+		long seed = n;
+		for(int i = 0; i < n; i++) seed = seed * 0x9e3779b97f4a7c15L + distinctBins[i];
+		SplittableRandom random = new SplittableRandom(seed);
+		for(int i = 0; i < k; i++) {
+			int j = i + random.nextInt(n - i);
+			int tmp = distinctBins[i];
+			distinctBins[i] = distinctBins[j];
+			distinctBins[j] = tmp;
+		}
+		Arrays.sort(distinctBins, 0, k);
+	}
+
+	/**
+	 * @return Number of clusters processed
+	 */
+	public long getNumClusters() {
+		return numClusters.sum();
+	}
+
+	/**
+	 * @return Number of clusters skipped for being larger than the threshold
+	 */
+	public long getNumSkipped() {
+		return numSkipped.sum();
+	}
+
+	/**
+	 * @return Number of clusters larger than the threshold that were sampled
+	 */
+	public long getNumSampled() {
+		return numSampled.sum();
+	}
+
+	/**
+	 * @return Number of contacts emitted
+	 */
+	public long getNumContacts() {
+		return numContacts.sum();
+	}
+
+	/**
+	 * Log the counters
+	 */
+	public void logCounts() {
+		logger.info("Emitted " + getNumContacts() + " contacts from " + getNumClusters() + " clusters; " + getNumSkipped()
+				+ " clusters with more than " + maxClusterSize + " locations were skipped and " + getNumSampled() + " were sampled.");
+	}
+
+}
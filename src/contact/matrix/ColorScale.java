@@ -0,0 +1,119 @@
+package contact.matrix;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import guttmanlab.core.util.CommandLineParser;
+
+/**
+ * Maps contact values to colors by interpolating between color stops, on a linear or log scale
+ * Values at or below the minimum get the first color and values at or above the maximum get the last
+ * Instances are immutable and can be shared between threads
+ * @author prussell
+ *
+ */
+public final class ColorScale {
+
+	/**
+	 * White to red, the usual heatmap colors
+	 */
+	public static final int[] WHITE_RED = new int[] {0xffffff, 0xff0000};
+
+	/**
+	 * Number of values sampled to choose the maximum from a quantile
+	 */
+	private static final int QUANTILE_SAMPLE_SIZE = 100000;
+
+	private int[] colors;
+	private double min;
+	private double max;
+	private boolean log;
+
+	/**
+	 * @param colors RGB color stops, evenly spaced from the minimum to the maximum
+	 * @param min Value of the first color
+	 * @param max Value of the last color
+	 * @param log Interpolate on log(1 + value) instead of value
+	 */
+	public ColorScale(int[] colors, double min, double max, boolean log) {
+		if(colors.length < 2) throw new IllegalArgumentException("Need at least two colors");
+		if(!(max > min)) throw new IllegalArgumentException("Max must be greater than min: " + min + ", " + max);
+		this.colors = colors.clone();
+		this.log = log;
+		this.min = log ? Math.log1p(min) : min;
+		this.max = log ? Math.log1p(max) : max;
+	}
+
+	/**
+	 * Add the color scale options to a command line parser
+	 * @param p Command line parser
+	 */
+	public static void addCommandLineOptions(CommandLineParser p) {
+		p.addStringArg("-colors", "Comma separated RGB hex color stops from low to high", false, "ffffff,ff0000");
+		p.addDoubleArg("-scaleMax", "Value of the last color; 0 to use a quantile of the off-diagonal pixel values", false, 0);
+		p.addDoubleArg("-scaleQuantile", "Quantile of the off-diagonal pixel values for the last color, when -scaleMax is 0", false, 0.98);
+		p.addBooleanArg("-linear", "Use a linear instead of a log color scale", false, false);
+	}
+
+	/**
+	 * Get the color scale from a command line parser that has already parsed the arguments
+	 * @param p Command line parser with options added by {@link #addCommandLineOptions(CommandLineParser)}
+	 * @param pixels Pixels to take the quantile of, if the maximum is not given
+	 * @return The color scale
+	 */
+	public static ColorScale fromCommandLine(CommandLineParser p, ContactPixels pixels) {
+		String[] tokens = p.getStringArg("-colors").split(",");
+		int[] colors = new int[tokens.length];
+		for(int i = 0; i < tokens.length; i++) colors[i] = Integer.parseInt(tokens[i].trim(), 16);
+		double max = p.getDoubleArg("-scaleMax");
+		if(max <= 0) max = quantile(pixels, p.getDoubleArg("-scaleQuantile"));
+		return new ColorScale(colors, 0, max, !p.getBooleanArg("-linear"));
+	}
+
+	/**
+	 * Estimate a quantile of the off-diagonal pixel values from a fixed-seed sample, in one pass over the pixels
+	 * @param pixels Pixels
+	 * @param q Quantile between 0 and 1
+	 * @return Estimated quantile, or 1 if there are no off-diagonal pixels
+	 */
+	public static double quantile(ContactPixels pixels, double q) {
+		double[] sample = new double[QUANTILE_SAMPLE_SIZE];
+		long[] seen = new long[1];
+		SplittableRandom random = new SplittableRandom(0);
+		pixels.forEach((bin1, bin2, value) -> {
+			if(bin1 == bin2) return;
+			long n = seen[0]++;
+			if(n < sample.length) {
+				sample[(int) n] = value;
+			} else {
+				long j = random.nextLong(n + 1);
+				if(j < sample.length) sample[(int) j] = value;
+			}
+		});
+		int n = (int) Math.min(seen[0], sample.length);
+		if(n == 0) return 1;
+		Arrays.sort(sample, 0, n);
+		double rtrn = sample[(int) Math.min(n - 1, Math.max(0, Math.round(q * (n - 1))))];
+		return rtrn > 0 ? rtrn : 1;
+	}
+
+	/**
+	 * @param value A value
+	 * @return RGB color of the value
+	 */
+	public int getColor(double value) {
+		double v = log ? Math.log1p(Math.max(value, 0)) : value;
+		double position = (v - min) / (max - min) * (colors.length - 1);
+		if(!(position > 0)) return colors[0];
+		if(position >= colors.length - 1) return colors[colors.length - 1];
+		int i = (int) position;
+		double f = position - i;
+		int c1 = colors[i];
+		int c2 = colors[i + 1];
+		int r = (int) Math.round(((c1 >> 16) & 0xff) * (1 - f) + ((c2 >> 16) & 0xff) * f);
+		int g = (int) Math.round(((c1 >> 8) & 0xff) * (1 - f) + ((c2 >> 8) & 0xff) * f);
+		int b = (int) Math.round((c1 & 0xff) * (1 - f) + (c2 & 0xff) * f);
+		return (r << 16) | (g << 8) | b;
+	}
+
+}
@@ -0,0 +1,504 @@
+package contact.matrix;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+import org.apache.log4j.Logger;
+
+import Jama.EigenvalueDecomposition;
+import Jama.Matrix;
+import guttmanlab.core.util.CommandLineParser;
+
+/**
+ * A/B compartments of each reference from the leading eigenvectors of its observed/expected contact matrix, without dense matrices
+ * The expected value of each diagonal is the mean over pairs of valid bins at that distance, i.e. the distance decay curve P(s) at bin
+ * resolution, computed in one pass over the pixels of the reference. Bins with no contacts outside the ignored diagonals are left out.
+ * The observed/expected matrix minus 1, with the ignored diagonals set to 0, is never built: Lanczos iterations with full
+ * reorthogonalization only need its product with a vector, computed from the sparse pixels in parallel over blocks of rows like
+ * {@link MatrixBalancer}, with the constant term applied as a rank-one correction. The small tridiagonal eigenproblem is solved
+ * with Jama, and iterations stop when the wanted Ritz pairs converge.
+ * Eigenvectors are ordered by decreasing absolute eigenvalue and scaled by the square root of it; left-out bins are NaN.
+ * The sign of each eigenvector is arbitrary until it is oriented with a phasing track such as GC content.
+ * Use balanced pixels (see {@link NormalizedContactPixels}) for meaningful compartments
+ * Instances are immutable and can be shared between threads
+ * @author prussell
+ *
+ */
+public final class CompartmentAnalysis {
+
+	private static Logger logger = Logger.getLogger(CompartmentAnalysis.class.getName());
+
+	/**
+	 * Number of Lanczos steps between convergence checks
+	 */
+	private static final int CHECK_INTERVAL = 5;
+
+	private int numEigenvectors;
+	private int ignoreDiagonals;
+	private double tolerance;
+	private int maxIterations;
+	private int numThreads;
+
+	/**
+	 * @param numEigenvectors Number of leading eigenvectors per reference
+	 * @param ignoreDiagonals Ignore pixels fewer than this many diagonals from the main diagonal; 0 to keep all
+	 * @param tolerance Ritz pairs have converged when their residual norm is below this fraction of the largest eigenvalue
+	 * @param maxIterations Maximum number of Lanczos steps per reference
+	 * @param numThreads Number of threads for the matrix-vector products
+	 */
+	public CompartmentAnalysis(int numEigenvectors, int ignoreDiagonals, double tolerance, int maxIterations, int numThreads) {
+		if(numEigenvectors < 1) throw new IllegalArgumentException("Number of eigenvectors must be at least 1");
+		if(ignoreDiagonals < 0) throw new IllegalArgumentException("Number of diagonals to ignore must be non-negative");
+		if(tolerance <= 0) throw new IllegalArgumentException("Tolerance must be positive");
+		if(maxIterations < numEigenvectors) throw new IllegalArgumentException("Need at least as many iterations as eigenvectors");
+		if(numThreads < 1) throw new IllegalArgumentException("Number of threads must be at least 1");
+		this.numEigenvectors = numEigenvectors;
+		this.ignoreDiagonals = ignoreDiagonals;
+		this.tolerance = tolerance;
+		this.maxIterations = maxIterations;
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * Add the compartment options to a command line parser
+	 * @param p Command line parser
+	 */
+	public static void addCommandLineOptions(CommandLineParser p) {
+		p.addIntArg("-numEigs", "Number of leading eigenvectors per reference", false, 3);
+		p.addIntArg("-eigIgnoreDiags", "Ignore pixels fewer than this many diagonals from the main diagonal", false, 2);
+		p.addDoubleArg("-eigTol", "Convergence tolerance of the eigenvectors, relative to the largest eigenvalue", false, 1e-6);
+		p.addIntArg("-eigMaxIter", "Maximum number of Lanczos iterations per reference", false, 300);
+	}
+
+	/**
+	 * Get the analysis from a command line parser that has already parsed the arguments
+	 * @param p Command line parser with options added by {@link #addCommandLineOptions(CommandLineParser)}
+	 * @param numThreads Number of threads for the matrix-vector products
+	 * @return The analysis
+	 */
+	public static CompartmentAnalysis fromCommandLine(CommandLineParser p, int numThreads) {
+		return new CompartmentAnalysis(p.getIntArg("-numEigs"), p.getIntArg("-eigIgnoreDiags"), p.getDoubleArg("-eigTol"),
+				p.getIntArg("-eigMaxIter"), numThreads);
+	}
+
+	/**
+	 * Compute the eigenvectors of every reference
+	 * @param pixels The matrix
+	 * @return Eigenvectors by reference index
+	 */
+	public List<Eigenvectors> compute(ContactPixels pixels) {
+		List<Eigenvectors> rtrn = new ArrayList<Eigenvectors>();
+		for(int ref = 0; ref < pixels.getBins().getNumReferences(); ref++) rtrn.add(compute(pixels, ref));
+		return rtrn;
+	}
+
+	/**
+	 * Compute the eigenvectors of one reference against itself
+	 * @param pixels The matrix
+	 * @param refIndex Reference index
+	 * @return The eigenvectors; fewer than requested if the reference has too few valid bins
+	 */
+	public Eigenvectors compute(ContactPixels pixels, int refIndex) {
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		try {
+			return new Cis(pixels, refIndex, pool).run();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Leading eigenvectors of the observed/expected matrix of one reference
+	 */
+	public static final class Eigenvectors {
+
+		private int refIndex;
+		private int firstBin;
+		private int numBins;
+		private double[] eigenvalues;
+		private double[][] vectors;
+
+		private Eigenvectors(int refIndex, int firstBin, int numBins, double[] eigenvalues, double[][] vectors) {
+			this.refIndex = refIndex;
+			this.firstBin = firstBin;
+			this.numBins = numBins;
+			this.eigenvalues = eigenvalues;
+			this.vectors = vectors;
+		}
+
+		/**
+		 * @return Reference index
+		 */
+		public int getReferenceIndex() {
+			return refIndex;
+		}
+
+		/**
+		 * @return First genome bin of the reference
+		 */
+		public int getFirstBin() {
+			return firstBin;
+		}
+
+		/**
+		 * @return Number of bins of the reference
+		 */
+		public int getNumBins() {
+			return numBins;
+		}
+
+		/**
+		 * @return Number of eigenvectors
+		 */
+		public int getNumEigenvectors() {
+			return eigenvalues.length;
+		}
+
+		/**
+		 * @param k Eigenvector number, from 0 for the largest absolute eigenvalue
+		 * @return Eigenvalue
+		 */
+		public double getEigenvalue(int k) {
+			return eigenvalues[k];
+		}
+
+		/**
+		 * @param k Eigenvector number, from 0 for the largest absolute eigenvalue
+		 * @return Eigenvector by bin of the reference, NaN for left-out bins
+		 */
+		public double[] getEigenvector(int k) {
+			return vectors[k].clone();
+		}
+
+		/**
+		 * Flip the sign of each eigenvector that is negatively correlated with a phasing track, e.g. GC content,
+		 * so that positive values are the compartment with high track values
+		 * @param track Track value by genome bin, NaN where unknown
+		 */
+		public void orient(double[] track) {
+			for(double[] v : vectors) {
+				double sum = 0;
+				int n = 0;
+				for(int i = 0; i < numBins; i++) {
+					if(Double.isNaN(v[i]) || Double.isNaN(track[firstBin + i])) continue;
+					sum += track[firstBin + i];
+					n++;
+				}
+				if(n == 0) continue;
+				double mean = sum / n;
+				double covariance = 0;
+				for(int i = 0; i < numBins; i++) {
+					if(Double.isNaN(v[i]) || Double.isNaN(track[firstBin + i])) continue;
+					covariance += v[i] * (track[firstBin + i] - mean);
+				}
+				if(covariance < 0) {
+					for(int i = 0; i < numBins; i++) v[i] = -v[i];
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Read a bedGraph track as the mean value in each bin, weighted by overlap
+	 * @param bedGraph BedGraph file: reference, start, end, value
+	 * @param bins Genome bins
+	 * @return Value by genome bin, NaN for bins not covered by the track
+	 * @throws IOException
+	 */
+	public static double[] readTrack(File bedGraph, GenomeBins bins) throws IOException {
+		double[] sums = new double[bins.getNumBins()];
+		double[] covered = new double[bins.getNumBins()];
+		BufferedReader reader = new BufferedReader(new FileReader(bedGraph));
+		String line;
+		while((line = reader.readLine()) != null) {
+			if(line.isEmpty() || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser")) continue;
+			String[] tokens = line.split("\\s+");
+			int ref = bins.getReferenceIndex(tokens[0]);
+			if(ref < 0) continue;
+			int start = Math.max(0, Integer.parseInt(tokens[1]));
+			int end = Math.min(bins.getReferenceLength(ref), Integer.parseInt(tokens[2]));
+			double value = Double.parseDouble(tokens[3]);
+			if(end <= start || Double.isNaN(value)) continue;
+			for(int bin = bins.getBin(ref, start); bin < bins.getEndBin(ref) && bins.getBinStart(bin) < end; bin++) {
+				int binStart = bins.getBinStart(bin);
+				int overlap = Math.min(end, binStart + bins.getBinSize()) - Math.max(start, binStart);
+				sums[bin] += overlap * value;
+				covered[bin] += overlap;
+			}
+		}
+		reader.close();
+		double[] rtrn = new double[sums.length];
+		for(int bin = 0; bin < rtrn.length; bin++) rtrn[bin] = covered[bin] > 0 ? sums[bin] / covered[bin] : Double.NaN;
+		return rtrn;
+	}
+
+	/**
+	 * Write one eigenvector of each reference as a bedGraph, leaving out bins without a value
+	 * @param file Output file
+	 * @param bins Genome bins
+	 * @param eigenvectors Eigenvectors of the references
+	 * @param k Eigenvector number, from 0 for the largest absolute eigenvalue
+	 * @throws IOException
+	 */
+	public static void writeBedGraph(File file, GenomeBins bins, List<Eigenvectors> eigenvectors, int k) throws IOException {
+		logger.info("Writing eigenvector " + (k + 1) + " to " + file + "...");
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		for(Eigenvectors e : eigenvectors) {
+			if(k >= e.getNumEigenvectors()) continue;
+			String name = bins.getReferenceName(e.getReferenceIndex());
+			int length = bins.getReferenceLength(e.getReferenceIndex());
+			double[] v = e.vectors[k];
+			for(int i = 0; i < v.length; i++) {
+				if(Double.isNaN(v[i])) continue;
+				int start = bins.getBinStart(e.getFirstBin() + i);
+				writer.write(name + "\t" + start + "\t" + Math.min(length, start + bins.getBinSize()) + "\t" + v[i] + "\n");
+			}
+		}
+		writer.close();
+	}
+
+	/**
+	 * State of the analysis of one reference
+	 */
+	private final class Cis {
+
+		private ContactPixels pixels;
+		private int refIndex;
+		private ForkJoinPool pool;
+		private int first;
+		private int numBins;
+		private int[] blockStart; // Local bins
+		private double[] expected; // By diagonal
+		private boolean[] valid;
+		private int numValid;
+
+		private Cis(ContactPixels pixels, int refIndex, ForkJoinPool pool) {
+			this.pixels = pixels;
+			this.refIndex = refIndex;
+			this.pool = pool;
+			GenomeBins bins = pixels.getBins();
+			first = bins.getFirstBin(refIndex);
+			numBins = bins.getEndBin(refIndex) - first;
+			int numBlocks = Math.max(1, Math.min(numBins, 16 * numThreads));
+			blockStart = new int[numBlocks + 1];
+			for(int b = 0; b <= numBlocks; b++) blockStart[b] = (int) ((long) b * numBins / numBlocks);
+		}
+
+		private Eigenvectors run() {
+			String name = pixels.getBins().getReferenceName(refIndex);
+			computeExpected();
+			int k = Math.min(numEigenvectors, numValid - 1);
+			if(k < 1) {
+				logger.info(name + ": too few valid bins (" + numValid + ")");
+				return new Eigenvectors(refIndex, first, numBins, new double[0], new double[0][]);
+			}
+
+			// Deterministic start vector on the valid bins
+			SplittableRandom random = new SplittableRandom(refIndex);
+			double[] q = new double[numBins];
+			for(int i = 0; i < numBins; i++) q[i] = valid[i] ? random.nextDouble() - 0.5 : 0;
+			scale(q, 1 / norm(q));
+
+			int maxSteps = Math.min(maxIterations, numValid);
+			List<double[]> basis = new ArrayList<double[]>();
+			double[] alpha = new double[maxSteps];
+			double[] beta = new double[maxSteps];
+			double[] ritzValues = null;
+			double[][] ritzVectors = null; // In the basis
+			boolean converged = false;
+			int steps = 0;
+			while(!converged && steps < maxSteps) {
+				basis.add(q);
+				double[] w = multiply(q);
+				alpha[steps] = dot(q, w);
+				addScaled(w, q, -alpha[steps]);
+				if(steps > 0) addScaled(w, basis.get(steps - 1), -beta[steps - 1]);
+				// Full reorthogonalization, twice for stability
+				for(int pass = 0; pass < 2; pass++) {
+					for(double[] b : basis) addScaled(w, b, -dot(b, w));
+				}
+				beta[steps] = norm(w);
+				steps++;
+				boolean invariant = beta[steps - 1] <= 1e-12 * Math.max(1, Math.abs(alpha[steps - 1]));
+				if(invariant) k = Math.min(k, steps);
+				if(steps >= k && (steps % CHECK_INTERVAL == 0 || invariant || steps == maxSteps)) {
+					Matrix t = new Matrix(steps, steps);
+					for(int i = 0; i < steps; i++) {
+						t.set(i, i, alpha[i]);
+						if(i + 1 < steps) {
+							t.set(i, i + 1, beta[i]);
+							t.set(i + 1, i, beta[i]);
+						}
+					}
+					EigenvalueDecomposition eig = t.eig();
+					double[] theta = eig.getRealEigenvalues();
+					double[][] s = eig.getV().getArray();
+					Integer[] order = new Integer[steps];
+					for(int i = 0; i < steps; i++) order[i] = Integer.valueOf(i);
+					Arrays.sort(order, (a, b) -> Double.compare(Math.abs(theta[b.intValue()]), Math.abs(theta[a.intValue()])));
+					ritzValues = new double[k];
+					ritzVectors = new double[k][steps];
+					converged = true;
+					double largest = Math.abs(theta[order[0].intValue()]);
+					for(int j = 0; j < k; j++) {
+						int c = order[j].intValue();
+						ritzValues[j] = theta[c];
+						for(int i = 0; i < steps; i++) ritzVectors[j][i] = s[i][c];
+						double residual = beta[steps - 1] * Math.abs(s[steps - 1][c]);
+						if(!invariant && residual > tolerance * largest) converged = false;
+					}
+					if(invariant) converged = true;
+				}
+				if(invariant) break;
+				q = w;
+				scale(q, 1 / beta[steps - 1]);
+			}
+			if(!converged) logger.warn(name + ": eigenvectors did not converge in " + steps + " iterations");
+
+			double[][] vectors = new double[k][];
+			for(int j = 0; j < k; j++) {
+				double[] v = new double[numBins];
+				for(int i = 0; i < steps; i++) addScaled(v, basis.get(i), ritzVectors[j][i]);
+				scale(v, Math.sqrt(Math.abs(ritzValues[j])) / norm(v));
+				// Deterministic default sign: largest entry positive
+				int largest = 0;
+				for(int i = 1; i < numBins; i++) if(Math.abs(v[i]) > Math.abs(v[largest])) largest = i;
+				if(v[largest] < 0) scale(v, -1);
+				for(int i = 0; i < numBins; i++) if(!valid[i]) v[i] = Double.NaN;
+				vectors[j] = v;
+			}
+			logger.info(name + ": " + numValid + " of " + numBins + " bins, " + steps + " iterations, eigenvalues " + Arrays.toString(ritzValues));
+			return new Eigenvectors(refIndex, first, numBins, ritzValues, vectors);
+		}
+
+		/**
+		 * Find the valid bins and the mean observed value of each diagonal over pairs of valid bins
+		 */
+		private void computeExpected() {
+			double[][] blockSums = new double[blockStart.length - 1][];
+			double[] coverage = new double[numBins];
+			forEachBlock(block -> {
+				int blockFirst = blockStart[block];
+				int blockEnd = blockStart[block + 1];
+				double[] sums = new double[numBins];
+				pixels.forEachInRows(first + blockFirst, first + blockEnd, (bin1, bin2, value) -> {
+					int d = bin2 - bin1;
+					if(d < ignoreDiagonals || bin2 >= first + numBins) return;
+					sums[d] += value;
+					coverage[bin1 - first] += value;
+				});
+				pixels.forEachInColumns(first + blockFirst, first + blockEnd, (bin1, bin2, value) -> {
+					if(bin2 - bin1 < Math.max(1, ignoreDiagonals) || bin1 < first) return;
+					coverage[bin2 - first] += value;
+				});
+				blockSums[block] = sums;
+			});
+			valid = new boolean[numBins];
+			numValid = 0;
+			for(int i = 0; i < numBins; i++) {
+				valid[i] = coverage[i] > 0;
+				if(valid[i]) numValid++;
+			}
+			// Number of pairs of valid bins on each diagonal, in parallel over blocks of diagonals
+			long[] numPairs = new long[numBins];
+			forEachBlock(block -> {
+				for(int d = blockStart[block]; d < blockStart[block + 1]; d++) {
+					long n = 0;
+					for(int i = 0; i + d < numBins; i++) if(valid[i] && valid[i + d]) n++;
+					numPairs[d] = n;
+				}
+			});
+			expected = new double[numBins];
+			for(int d = ignoreDiagonals; d < numBins; d++) {
+				double sum = 0;
+				for(double[] sums : blockSums) sum += sums[d];
+				expected[d] = numPairs[d] > 0 ? sum / numPairs[d] : 0;
+			}
+		}
+
+		/**
+		 * Product of the observed/expected matrix minus 1, with the ignored diagonals and invalid bins set to 0, with a vector
+		 * The observed part is a sparse product in parallel over blocks of rows; the constant part is a sum of x
+		 * minus the valid entries within the ignored diagonals
+		 * @param x Vector, 0 at invalid bins
+		 * @return The product
+		 */
+		private double[] multiply(double[] x) {
+			double[] rtrn = new double[numBins];
+			forEachBlock(block -> {
+				int blockFirst = blockStart[block];
+				int blockEnd = blockStart[block + 1];
+				pixels.forEachInRows(first + blockFirst, first + blockEnd, (bin1, bin2, value) -> {
+					int d = bin2 - bin1;
+					if(d < ignoreDiagonals || bin2 >= first + numBins || expected[d] == 0) return;
+					rtrn[bin1 - first] += value / expected[d] * x[bin2 - first];
+				});
+				pixels.forEachInColumns(first + blockFirst, first + blockEnd, (bin1, bin2, value) -> {
+					int d = bin2 - bin1;
+					if(d < Math.max(1, ignoreDiagonals) || bin1 < first || expected[d] == 0) return;
+					rtrn[bin2 - first] += value / expected[d] * x[bin1 - first];
+				});
+			});
+			double sum = 0;
+			for(int i = 0; i < numBins; i++) sum += x[i];
+			for(int i = 0; i < numBins; i++) {
+				if(!valid[i]) {
+					rtrn[i] = 0;
+					continue;
+				}
+				double near = 0;
+				for(int j = Math.max(0, i - ignoreDiagonals + 1); j < Math.min(numBins, i + ignoreDiagonals); j++) near += x[j];
+				rtrn[i] -= sum - near;
+			}
+			return rtrn;
+		}
+
+		private void forEachBlock(IntConsumer task) {
+			try {
+				pool.submit(() -> IntStream.range(0, blockStart.length - 1).parallel().forEach(task)).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			} catch (ExecutionException e) {
+				if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+
+	}
+
+	private static double dot(double[] a, double[] b) {
+		double rtrn = 0;
+		for(int i = 0; i < a.length; i++) rtrn += a[i] * b[i];
+		return rtrn;
+	}
+
+	private static double norm(double[] a) {
+		return Math.sqrt(dot(a, a));
+	}
+
+	private static void scale(double[] a, double factor) {
+		for(int i = 0; i < a.length; i++) a[i] *= factor;
+	}
+
+	/**
+	 * a += factor * b
+	 */
+	private static void addScaled(double[] a, double[] b, double factor) {
+		for(int i = 0; i < a.length; i++) a[i] += factor * b[i];
+	}
+
+}
@@ -1,7 +1,9 @@
 package contact.matrix;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 
@@ -34,14 +36,18 @@ public abstract class ContactMatrix<T extends Annotation, S extends Collection<T
 	/**
 	 * Add all contacts represented by a {@link FragmentCluster} to the data structure
 	 * Only adds contacts on one side of the diagonal
+	 * Each fragment is summarized once; for bulk binned contacts with weights see {@link ClusterContactEmitter}
 	 * @param fragmentCluster A collection of mapped fragments whose locations are assumed to contact each other
 	 * @param summarize A function to summarize each fragment of type {@link T} for inclusion in the data structure
 	 */
 	public void addContacts(FragmentCluster<T, S> fragmentCluster, Function<T, U> summarize) {
-		for(T fragment1 : fragmentCluster.getLocations()) {
-			U fragment1summary = summarize.apply(fragment1);
-			for(T fragment2 : fragmentCluster.getLocations()) {
-				U fragment2summary = summarize.apply(fragment2);
+		// Summarize each fragment once
+		List<U> summaries = new ArrayList<U>(fragmentCluster.getNumLocations());
+		for(T fragment : fragmentCluster.getLocations()) {
+			summaries.add(summarize.apply(fragment));
+		}
+		for(U fragment1summary : summaries) {
+			for(U fragment2summary : summaries) {
 				if(fragment1summary.compareTo(fragment2summary) < 0) 
 					addContact(fragment1summary, fragment2summary);
 			}
@@ -0,0 +1,52 @@
+package contact.matrix;
+
+/**
+ * Read access to the pixels of a symmetric binned contact matrix, stored on or above the diagonal
+ * @author prussell
+ *
+ */
+public interface ContactPixels {
+
+	/**
+	 * @return Genome bins of the rows and columns
+	 */
+	public GenomeBins getBins();
+
+	/**
+	 * @return Number of stored pixels, on or above the diagonal
+	 */
+	public long getNumPixels();
+
+	/**
+	 * @param bin1 Row bin
+	 * @param bin2 Column bin
+	 * @return Value of the pixel, which is the same as its transpose, or 0 if not present
+	 */
+	public double get(int bin1, int bin2);
+
+	/**
+	 * Stream the stored pixels whose rows are in a range, in order of row then column
+	 * @param firstRow First row bin
+	 * @param endRow Last row bin, exclusive
+	 * @param consumer Receives the pixels
+	 */
+	public void forEachInRows(int firstRow, int endRow, PixelConsumer consumer);
+
+	/**
+	 * Stream the stored pixels whose columns are in a range, in order of column then row
+	 * Together with {@link #forEachInRows(int, int, PixelConsumer)} this gives all pixels of a band of rows of the full symmetric matrix
+	 * @param firstColumn First column bin
+	 * @param endColumn Last column bin, exclusive
+	 * @param consumer Receives the pixels
+	 */
+	public void forEachInColumns(int firstColumn, int endColumn, PixelConsumer consumer);
+
+	/**
+	 * Stream all stored pixels in order of row then column
+	 * @param consumer Receives the pixels
+	 */
+	public default void forEach(PixelConsumer consumer) {
+		forEachInRows(0, getBins().getNumBins(), consumer);
+	}
+
+}
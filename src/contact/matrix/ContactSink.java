@@ -0,0 +1,32 @@
+package contact.matrix;
+
+/**
+ * Receives weighted contacts between genomic bins, e.g. a contact matrix being filled
+ * @author prussell
+ *
+ */
+@FunctionalInterface
+public interface ContactSink {
+
+	/**
+	 * Add a weighted contact between two bins
+	 * @param bin1 One bin
+	 * @param bin2 Other bin
+	 * @param value Fixed-point weight; see {@link FixedPoint}
+	 */
+	public void addContact(int bin1, int bin2, long value);
+
+	/**
+	 * @param first One sink
+	 * @param second Other sink
+	 * Both sinks are called on the adding thread, so this is for single-threaded filling unless both sinks are thread safe
+	 * @return Sink that adds each contact to both sinks, e.g. to fill two kinds of matrix in one pass
+	 */
+	public static ContactSink tee(ContactSink first, ContactSink second) {
+		return (bin1, bin2, value) -> {
+			first.addContact(bin1, bin2, value);
+			second.addContact(bin1, bin2, value);
+		};
+	}
+
+}
@@ -0,0 +1,111 @@
+package contact.matrix;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Sparse matrix in coordinate format: parallel arrays of row, column and value, sorted by row then column
+ * Instances are immutable
+ * @author prussell
+ *
+ */
+public final class CooMatrix {
+
+	private int numRows;
+	private int[] rows;
+	private int[] columns;
+	private double[] values;
+
+	/**
+	 * @param numRows Number of rows (and columns)
+	 * @param rows Row of each pixel, sorted with columns
+	 * @param columns Column of each pixel
+	 * @param values Value of each pixel
+	 */
+	CooMatrix(int numRows, int[] rows, int[] columns, double[] values) {
+		this.numRows = numRows;
+		this.rows = rows;
+		this.columns = columns;
+		this.values = values;
+	}
+
+	/**
+	 * @return Number of rows (and columns)
+	 */
+	public int getNumRows() {
+		return numRows;
+	}
+
+	/**
+	 * @return Number of stored pixels
+	 */
+	public int getNumPixels() {
+		return rows.length;
+	}
+
+	/**
+	 * @param i Pixel number
+	 * @return Row of the pixel
+	 */
+	public int getRow(int i) {
+		return rows[i];
+	}
+
+	/**
+	 * @param i Pixel number
+	 * @return Column of the pixel
+	 */
+	public int getColumn(int i) {
+		return columns[i];
+	}
+
+	/**
+	 * @param i Pixel number
+	 * @return Value of the pixel
+	 */
+	public double getValue(int i) {
+		return values[i];
+	}
+
+	/**
+	 * Pass each pixel to a consumer in order
+	 * @param consumer The consumer
+	 */
+	public void forEach(PixelConsumer consumer) {
+		for(int i = 0; i < rows.length; i++) consumer.accept(rows[i], columns[i], values[i]);
+	}
+
+	/**
+	 * Write the pixels as tab delimited text in order: reference1 start1 reference2 start2 value
+	 * @param outFile Output file
+	 * @param bins Genome bins of the rows and columns
+	 */
+	public void writeText(File outFile, GenomeBins bins) {
+		try {
+			BufferedWriter writer = new BufferedWriter(new FileWriter(outFile), 1 << 20);
+			for(int i = 0; i < rows.length; i++) {
+				int r = rows[i];
+				int c = columns[i];
+				writer.write(bins.getReferenceName(bins.getReferenceIndexOfBin(r)) + "\t" + bins.getBinStart(r) + "\t"
+						+ bins.getReferenceName(bins.getReferenceIndexOfBin(c)) + "\t" + bins.getBinStart(c) + "\t" + values[i] + "\n");
+			}
+			writer.close();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @return The same pixels in compressed sparse row format, sharing the column and value arrays
+	 */
+	public CsrMatrix toCSR() {
+		int[] rowStart = new int[numRows + 1];
+		for(int r : rows) rowStart[r + 1]++;
+		for(int r = 0; r < numRows; r++) rowStart[r + 1] += rowStart[r];
+		return new CsrMatrix(numRows, rowStart, columns, values);
+	}
+
+}
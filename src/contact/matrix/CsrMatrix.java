@@ -0,0 +1,93 @@
+package contact.matrix;
+
+/**
+ * Sparse matrix in compressed sparse row format: the pixels of row r are at positions rowStart[r] to rowStart[r+1] - 1,
+ * sorted by column
+ * Instances are immutable
+ * @author prussell
+ *
+ */
+public final class CsrMatrix {
+
+	private int numRows;
+	private int[] rowStart;
+	private int[] columns;
+	private double[] values;
+
+	/**
+	 * @param numRows Number of rows (and columns)
+	 * @param rowStart Position of the first pixel of each row, plus the number of pixels
+	 * @param columns Column of each pixel
+	 * @param values Value of each pixel
+	 */
+	CsrMatrix(int numRows, int[] rowStart, int[] columns, double[] values) {
+		this.numRows = numRows;
+		this.rowStart = rowStart;
+		this.columns = columns;
+		this.values = values;
+	}
+
+	/**
+	 * @return Number of rows (and columns)
+	 */
+	public int getNumRows() {
+		return numRows;
+	}
+
+	/**
+	 * @return Number of stored pixels
+	 */
+	public int getNumPixels() {
+		return columns.length;
+	}
+
+	/**
+	 * @param row Row
+	 * @return Position of the first pixel of the row
+	 */
+	public int getRowStart(int row) {
+		return rowStart[row];
+	}
+
+	/**
+	 * @param row Row
+	 * @return Position after the last pixel of the row
+	 */
+	public int getRowEnd(int row) {
+		return rowStart[row + 1];
+	}
+
+	/**
+	 * @param i Pixel position
+	 * @return Column of the pixel
+	 */
+	public int getColumn(int i) {
+		return columns[i];
+	}
+
+	/**
+	 * @param i Pixel position
+	 * @return Value of the pixel
+	 */
+	public double getValue(int i) {
+		return values[i];
+	}
+
+	/**
+	 * @param row Row
+	 * @param column Column
+	 * @return Value of the pixel, or 0 if not stored
+	 */
+	public double get(int row, int column) {
+		int lo = rowStart[row];
+		int hi = rowStart[row + 1] - 1;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if(columns[mid] < column) lo = mid + 1;
+			else if(columns[mid] > column) hi = mid - 1;
+			else return values[mid];
+		}
+		return 0;
+	}
+
+}
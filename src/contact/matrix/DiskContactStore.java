@@ -0,0 +1,393 @@
+package contact.matrix;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import util.LargeMappedFile;
+
+/**
+ * Contact matrix stored in a memory-mapped file, so its size is limited by disk rather than by the heap
+ * The file holds the pixels on or above the diagonal twice: sorted by row then column, and sorted by column then row,
+ * with an offset into each copy for every row and every column. A band of rows of the full symmetric matrix is a slice
+ * of each copy, and all lookups go through the mapped offsets.
+ * Build the file by merging sorted runs of pixels, e.g. spilled by a {@link ParallelContactAccumulator} with a spill directory.
+ * The column-sorted copy is built the same way, from sorted runs of the merged pixels keyed by column then row,
+ * so both copies are written sequentially.
+ * Reads are thread safe
+ * @author prussell
+ *
+ */
+public final class DiskContactStore implements ContactPixels, Closeable {
+
+	private static Logger logger = Logger.getLogger(DiskContactStore.class.getName());
+
+	private static final long MAGIC = 0x434f4e54414354L; // "CONTACT"
+	private static final long VERSION = 1;
+	private static final int HEADER_BYTES = 72;
+	private static final int PIXEL_BYTES = 16;
+
+	/**
+	 * Approximate heap bytes per pixel of a column-sorted run being filled: the hash map and the sorted copy
+	 */
+	private static final int BYTES_PER_COLUMN_RUN_PIXEL = 64;
+
+	/**
+	 * Maximum number of runs merged at once, which bounds the open files; more runs are merged in several passes
+	 */
+	private static final int MAX_MERGE_FAN_IN = 128;
+
+	private LargeMappedFile file;
+	private GenomeBins bins;
+	private long numPixels;
+	private long rowIndexStart;
+	private long columnIndexStart;
+	private long rowPixelsStart;
+	private long columnPixelsStart;
+
+	private DiskContactStore() {}
+
+	/**
+	 * Open an existing store
+	 * @param storeFile Store file
+	 * @return The store
+	 * @throws IOException
+	 */
+	public static DiskContactStore open(File storeFile) throws IOException {
+		DiskContactStore rtrn = new DiskContactStore();
+		rtrn.file = new LargeMappedFile(storeFile, -1, true);
+		if(rtrn.file.size() < HEADER_BYTES || rtrn.file.getLong(0) != MAGIC) {
+			rtrn.file.close();
+			throw new IllegalArgumentException("Not a contact store: " + storeFile);
+		}
+		long version = rtrn.file.getLong(8);
+		if(version != VERSION) {
+			rtrn.file.close();
+			throw new IllegalArgumentException("Unsupported contact store version " + version + ": " + storeFile);
+		}
+		int binSize = (int) rtrn.file.getLong(16);
+		int numReferences = (int) rtrn.file.getLong(24);
+		rtrn.numPixels = rtrn.file.getLong(32);
+		rtrn.rowIndexStart = rtrn.file.getLong(40);
+		rtrn.columnIndexStart = rtrn.file.getLong(48);
+		rtrn.rowPixelsStart = rtrn.file.getLong(56);
+		rtrn.columnPixelsStart = rtrn.file.getLong(64);
+		String[] names = new String[numReferences];
+		int[] lengths = new int[numReferences];
+		long pos = HEADER_BYTES;
+		for(int i = 0; i < numReferences; i++) {
+			lengths[i] = rtrn.file.getInt(pos);
+			byte[] name = new byte[rtrn.file.getInt(pos + 4)];
+			rtrn.file.get(pos + 8, name, 0, name.length);
+			names[i] = new String(name, StandardCharsets.UTF_8);
+			pos += 8 + name.length;
+		}
+		rtrn.bins = new GenomeBins(names, lengths, binSize);
+		logger.info("Opened contact store " + storeFile + " with " + rtrn.numPixels + " pixels in " + rtrn.bins.getNumBins() + " bins.");
+		return rtrn;
+	}
+
+	/**
+	 * Build a store by merging sorted runs of pixels, summing the values of equal keys
+	 * The runs are merged into a row-sorted temporary file, while the merged pixels are keyed by column then row
+	 * and spilled in sorted runs next to the store; a second merge of those runs gives the column-sorted copy.
+	 * The store file is only created once the merged number of pixels is known.
+	 * At most {@link #MAX_MERGE_FAN_IN} runs are merged at once; beyond that, groups of runs are first merged into intermediate runs.
+	 * @param storeFile Store file to write
+	 * @param bins Genome bins of the pixels
+	 * @param runs Runs of pixels on or above the diagonal, each sorted by key; closed when done
+	 * @param memoryBudget Approximate number of bytes of heap for each column-sorted run
+	 * @return The store, open for reading
+	 * @throws IOException
+	 */
+	static DiskContactStore build(File storeFile, GenomeBins bins, List<SortedPixelRun> runs, long memoryBudget) throws IOException {
+		long maxPixels = 0;
+		for(SortedPixelRun run : runs) maxPixels += run.getNumPixels();
+		logger.info("Building contact store " + storeFile + " from " + runs.size() + " runs of " + maxPixels + " pixels...");
+		int numBins = bins.getNumBins();
+		File directory = storeFile.getAbsoluteFile().getParentFile();
+		int pixelsPerColumnRun = (int) Math.max(1 << 16, Math.min(memoryBudget / BYTES_PER_COLUMN_RUN_PIXEL, 1 << 28));
+
+		// Merge the runs into the row-sorted file, counting pixels per row and per column, and spill runs sorted by column
+		long[] rowIndex = new long[numBins + 1];
+		long[] columnIndex = new long[numBins + 1];
+		File rowSorted = File.createTempFile("contacts", ".run", directory);
+		rowSorted.deleteOnExit();
+		DataOutputStream rowOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(rowSorted), 1 << 20));
+		PixelHashMap byColumn = new PixelHashMap((int) Math.min(maxPixels, pixelsPerColumnRun));
+		List<File> columnRunFiles = new ArrayList<File>();
+		long[] numMerged = new long[1];
+		merge(runs, directory, (key, value) -> {
+			int bin1 = PixelHashMap.bin1(key);
+			int bin2 = PixelHashMap.bin2(key);
+			if(bin1 > bin2 || bin2 >= numBins) throw new IllegalArgumentException("Pixel not on or above the diagonal of the matrix: " + bin1 + ", " + bin2);
+			rowOut.writeLong(key);
+			rowOut.writeLong(value);
+			rowIndex[bin1 + 1]++;
+			columnIndex[bin2 + 1]++;
+			byColumn.add(PixelHashMap.key(bin2, bin1), value);
+			if(byColumn.size() == pixelsPerColumnRun) columnRunFiles.add(spill(byColumn, directory));
+			if(++numMerged[0] % 100000000 == 0) logger.info("Merged " + numMerged[0] + " pixels");
+		});
+		rowOut.close();
+		long n = numMerged[0];
+		// The last column-sorted run stays in memory
+		List<SortedPixelRun> columnRuns = new ArrayList<SortedPixelRun>();
+		for(File f : columnRunFiles) columnRuns.add(SortedPixelRun.open(f));
+		long[] keys = new long[byColumn.size()];
+		long[] values = new long[keys.length];
+		byColumn.toSortedArrays(keys, values);
+		columnRuns.add(SortedPixelRun.of(keys, values));
+		logger.info("Merged into " + n + " pixels.");
+
+		// Cumulative counts give the first pixel of each row and column
+		for(int b = 1; b <= numBins; b++) {
+			rowIndex[b] += rowIndex[b - 1];
+			columnIndex[b] += columnIndex[b - 1];
+		}
+
+		byte[][] names = new byte[bins.getNumReferences()][];
+		long headerEnd = HEADER_BYTES;
+		for(int i = 0; i < names.length; i++) {
+			names[i] = bins.getReferenceName(i).getBytes(StandardCharsets.UTF_8);
+			headerEnd += 8 + names[i].length;
+		}
+		long rowIndexStart = (headerEnd + 7) & ~7L;
+		long columnIndexStart = rowIndexStart + 8L * (numBins + 1);
+		long rowPixelsStart = columnIndexStart + 8L * (numBins + 1);
+		long columnPixelsStart = rowPixelsStart + PIXEL_BYTES * n;
+		storeFile.delete();
+		LargeMappedFile out = new LargeMappedFile(storeFile, columnPixelsStart + PIXEL_BYTES * n);
+		for(int b = 0; b <= numBins; b++) {
+			out.putLong(rowIndexStart + 8L * b, rowIndex[b]);
+			out.putLong(columnIndexStart + 8L * b, columnIndex[b]);
+		}
+
+		// Copy the row-sorted file, then merge the column-sorted runs with the keys transposed back
+		SortedPixelRun rows = SortedPixelRun.open(rowSorted);
+		long pos = rowPixelsStart;
+		while(rows.next()) {
+			out.putLong(pos, rows.getKey());
+			out.putLong(pos + 8, rows.getValue());
+			pos += PIXEL_BYTES;
+		}
+		rows.close();
+		logger.info("Sorting " + n + " pixels by column from " + columnRuns.size() + " runs...");
+		long[] columnPos = new long[] {columnPixelsStart};
+		merge(columnRuns, directory, (key, value) -> {
+			out.putLong(columnPos[0], PixelHashMap.key(PixelHashMap.bin2(key), PixelHashMap.bin1(key)));
+			out.putLong(columnPos[0] + 8, value);
+			columnPos[0] += PIXEL_BYTES;
+		});
+
+		pos = HEADER_BYTES;
+		for(int i = 0; i < names.length; i++) {
+			out.putInt(pos, bins.getReferenceLength(i));
+			out.putInt(pos + 4, names[i].length);
+			out.put(pos + 8, names[i], 0, names[i].length);
+			pos += 8 + names[i].length;
+		}
+		out.putLong(8, VERSION);
+		out.putLong(16, bins.getBinSize());
+		out.putLong(24, bins.getNumReferences());
+		out.putLong(32, n);
+		out.putLong(40, rowIndexStart);
+		out.putLong(48, columnIndexStart);
+		out.putLong(56, rowPixelsStart);
+		out.putLong(64, columnPixelsStart);
+		out.putLong(0, MAGIC);
+		out.force();
+		out.close();
+		return open(storeFile);
+	}
+
+	/**
+	 * Spill the pixels of a map to a sorted run file and clear the map
+	 * @param map The map
+	 * @param directory Directory for the run file
+	 * @return The run file
+	 * @throws IOException
+	 */
+	private static File spill(PixelHashMap map, File directory) throws IOException {
+		long[] keys = new long[map.size()];
+		long[] values = new long[map.size()];
+		map.toSortedArrays(keys, values);
+		map.clear();
+		return SortedPixelRun.spill(keys, values, keys.length, directory);
+	}
+
+	/**
+	 * Receives merged pixels in key order
+	 */
+	@FunctionalInterface
+	private interface MergedPixelConsumer {
+		/**
+		 * @param key Packed key
+		 * @param value Fixed-point value summed over the runs
+		 * @throws IOException
+		 */
+		void accept(long key, long value) throws IOException;
+	}
+
+	/**
+	 * Merge sorted runs, summing the values of equal keys, in passes of at most {@link #MAX_MERGE_FAN_IN} runs
+	 * @param runs Runs, each sorted by key; closed when done
+	 * @param directory Directory for intermediate runs
+	 * @param consumer Receives each distinct key once, in order
+	 * @throws IOException
+	 */
+	private static void merge(List<SortedPixelRun> runs, File directory, MergedPixelConsumer consumer) throws IOException {
+		while(runs.size() > MAX_MERGE_FAN_IN) {
+			logger.info("Merging " + runs.size() + " runs in groups of " + MAX_MERGE_FAN_IN + "...");
+			List<SortedPixelRun> next = new ArrayList<SortedPixelRun>();
+			for(int i = 0; i < runs.size(); i += MAX_MERGE_FAN_IN) {
+				List<SortedPixelRun> group = runs.subList(i, Math.min(runs.size(), i + MAX_MERGE_FAN_IN));
+				if(group.size() == 1) {
+					next.add(group.get(0));
+					continue;
+				}
+				File merged = File.createTempFile("contacts", ".run", directory);
+				merged.deleteOnExit();
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(merged), 1 << 20));
+				mergeAtOnce(group, (key, value) -> {
+					out.writeLong(key);
+					out.writeLong(value);
+				});
+				out.close();
+				next.add(SortedPixelRun.open(merged));
+			}
+			runs = next;
+		}
+		mergeAtOnce(runs, consumer);
+	}
+
+	/**
+	 * K-way merge of sorted runs, summing the values of equal keys
+	 * @param runs Runs, each sorted by key; opened together and closed when done
+	 * @param consumer Receives each distinct key once, in order
+	 * @throws IOException
+	 */
+	private static void mergeAtOnce(List<SortedPixelRun> runs, MergedPixelConsumer consumer) throws IOException {
+		SortedPixelRun[] heap = new SortedPixelRun[runs.size()];
+		int heapSize = 0;
+		for(SortedPixelRun run : runs) {
+			if(run.next()) heap[heapSize++] = run;
+			else run.close();
+		}
+		for(int i = heapSize / 2 - 1; i >= 0; i--) siftDown(heap, heapSize, i);
+		long lastKey = -1; // Not a valid key, since bins are non-negative
+		long lastValue = 0;
+		while(heapSize > 0) {
+			SortedPixelRun top = heap[0];
+			long key = top.getKey();
+			if(key == lastKey) {
+				lastValue += top.getValue();
+			} else {
+				if(lastKey != -1) consumer.accept(lastKey, lastValue);
+				lastKey = key;
+				lastValue = top.getValue();
+			}
+			if(!top.next()) {
+				top.close();
+				heap[0] = heap[--heapSize];
+			}
+			siftDown(heap, heapSize, 0);
+		}
+		if(lastKey != -1) consumer.accept(lastKey, lastValue);
+	}
+
+	private static void siftDown(SortedPixelRun[] heap, int heapSize, int i) {
+		while(true) {
+			int smallest = i;
+			int left = 2 * i + 1;
+			int right = left + 1;
+			if(left < heapSize && heap[left].getKey() < heap[smallest].getKey()) smallest = left;
+			if(right < heapSize && heap[right].getKey() < heap[smallest].getKey()) smallest = right;
+			if(smallest == i) return;
+			SortedPixelRun tmp = heap[i];
+			heap[i] = heap[smallest];
+			heap[smallest] = tmp;
+			i = smallest;
+		}
+	}
+
+	@Override
+	public GenomeBins getBins() {
+		return bins;
+	}
+
+	@Override
+	public long getNumPixels() {
+		return numPixels;
+	}
+
+	/**
+	 * @param row Row bin
+	 * @return Index of the first pixel of the row in the row-sorted copy
+	 */
+	private long rowOffset(int row) {
+		return file.getLong(rowIndexStart + 8L * row);
+	}
+
+	/**
+	 * @param column Column bin
+	 * @return Index of the first pixel of the column in the column-sorted copy
+	 */
+	private long columnOffset(int column) {
+		return file.getLong(columnIndexStart + 8L * column);
+	}
+
+	@Override
+	public double get(int bin1, int bin2) {
+		int row = Math.min(bin1, bin2);
+		int column = Math.max(bin1, bin2);
+		if(row < 0 || column >= bins.getNumBins()) return 0;
+		long key = PixelHashMap.key(row, column);
+		long lo = rowOffset(row);
+		long hi = rowOffset(row + 1);
+		while(lo < hi) {
+			long mid = (lo + hi) >>> 1;
+			long k = file.getLong(rowPixelsStart + PIXEL_BYTES * mid);
+			if(k == key) return FixedPoint.toDouble(file.getLong(rowPixelsStart + PIXEL_BYTES * mid + 8));
+			if(k < key) lo = mid + 1;
+			else hi = mid;
+		}
+		return 0;
+	}
+
+	@Override
+	public void forEachInRows(int firstRow, int endRow, PixelConsumer consumer) {
+		forEach(rowPixelsStart, rowOffset(clamp(firstRow)), rowOffset(clamp(endRow)), consumer);
+	}
+
+	@Override
+	public void forEachInColumns(int firstColumn, int endColumn, PixelConsumer consumer) {
+		forEach(columnPixelsStart, columnOffset(clamp(firstColumn)), columnOffset(clamp(endColumn)), consumer);
+	}
+
+	private int clamp(int bin) {
+		return Math.max(0, Math.min(bin, bins.getNumBins()));
+	}
+
+	private void forEach(long sectionStart, long first, long end, PixelConsumer consumer) {
+		for(long i = first; i < end; i++) {
+			long pos = sectionStart + PIXEL_BYTES * i;
+			long key = file.getLong(pos);
+			consumer.accept(PixelHashMap.bin1(key), PixelHashMap.bin2(key), FixedPoint.toDouble(file.getLong(pos + 8)));
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+}
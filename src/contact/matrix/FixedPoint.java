@@ -0,0 +1,35 @@
+package contact.matrix;
+
+/**
+ * Fixed-point representation of contact weights, so that fractional weights such as 2/n sum to the same value in any order
+ * and partial matrices from different threads merge to exactly the single-threaded result
+ * @author prussell
+ *
+ */
+public final class FixedPoint {
+
+	// Prevent instantiation
+	private FixedPoint() {}
+
+	/**
+	 * Fixed-point value of a weight of 1
+	 */
+	public static final long ONE = 1L << 20;
+
+	/**
+	 * @param value A weight
+	 * @return Fixed-point value, rounded to the nearest step
+	 */
+	public static long fromDouble(double value) {
+		return Math.round(value * ONE);
+	}
+
+	/**
+	 * @param value Fixed-point value
+	 * @return The weight
+	 */
+	public static double toDouble(long value) {
+		return (double) value / ONE;
+	}
+
+}
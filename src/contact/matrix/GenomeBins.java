@@ -0,0 +1,189 @@
+package contact.matrix;
+
+import guttmanlab.core.coordinatespace.CoordinateSpace;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Fixed-size bins across all references of a genome, numbered consecutively from the first bin of the first reference
+ * Reference indices are the order of the reference names given, e.g. the bam header order used by {@link contact.FlatFragmentCluster}
+ * Instances are immutable
+ * @author prussell
+ *
+ */
+public final class GenomeBins {
+
+	private String[] referenceNames;
+	private int[] referenceLengths;
+	private int binSize;
+	private int[] firstBin; // By reference index, plus the total number of bins
+	private Map<String, Integer> referenceIndex;
+
+	/**
+	 * @param referenceNames Reference names by reference index
+	 * @param referenceLengths Reference lengths by reference index
+	 * @param binSize Bin size
+	 */
+	public GenomeBins(String[] referenceNames, int[] referenceLengths, int binSize) {
+		if(referenceNames.length != referenceLengths.length) throw new IllegalArgumentException("Different numbers of reference names and lengths");
+		if(binSize < 1) throw new IllegalArgumentException("Bin size must be at least 1");
+		this.referenceNames = referenceNames.clone();
+		this.referenceLengths = referenceLengths.clone();
+		this.binSize = binSize;
+		firstBin = new int[referenceNames.length + 1];
+		referenceIndex = new HashMap<String, Integer>();
+		long total = 0;
+		for(int i = 0; i < referenceNames.length; i++) {
+			firstBin[i] = (int) total;
+			total += (referenceLengths[i] + binSize - 1) / binSize;
+			if(total > Integer.MAX_VALUE) throw new IllegalArgumentException("Too many bins at bin size " + binSize);
+			referenceIndex.put(referenceNames[i], Integer.valueOf(i));
+		}
+		firstBin[referenceNames.length] = (int) total;
+	}
+
+	/**
+	 * @param coordSpace Coordinate space; references are indexed in name order
+	 * @param binSize Bin size
+	 * @return Bins over the coordinate space
+	 */
+	public static GenomeBins fromCoordinateSpace(CoordinateSpace coordSpace, int binSize) {
+		Map<String, Integer> lengths = coordSpace.getRefSeqLengths();
+		String[] names = lengths.keySet().toArray(new String[lengths.size()]);
+		Arrays.sort(names);
+		int[] lengthArray = new int[names.length];
+		for(int i = 0; i < names.length; i++) lengthArray[i] = lengths.get(names[i]).intValue();
+		return new GenomeBins(names, lengthArray, binSize);
+	}
+
+	/**
+	 * @param referenceNames Reference names by reference index, e.g. from a bam header
+	 * @param coordSpace Coordinate space giving the reference lengths; references not in it get no bins
+	 * @param binSize Bin size
+	 * @return Bins over the references, in the given order
+	 */
+	public static GenomeBins forReferences(String[] referenceNames, CoordinateSpace coordSpace, int binSize) {
+		Map<String, Integer> lengths = coordSpace.getRefSeqLengths();
+		int[] lengthArray = new int[referenceNames.length];
+		for(int i = 0; i < referenceNames.length; i++) {
+			Integer length = lengths.get(referenceNames[i]);
+			lengthArray[i] = length == null ? 0 : length.intValue();
+		}
+		return new GenomeBins(referenceNames, lengthArray, binSize);
+	}
+
+	/**
+	 * @param newBinSize Bin size
+	 * @return Bins over the same references with another bin size
+	 */
+	public GenomeBins withBinSize(int newBinSize) {
+		return new GenomeBins(referenceNames, referenceLengths, newBinSize);
+	}
+
+	/**
+	 * @return Bin size
+	 */
+	public int getBinSize() {
+		return binSize;
+	}
+
+	/**
+	 * @return Total number of bins
+	 */
+	public int getNumBins() {
+		return firstBin[referenceNames.length];
+	}
+
+	/**
+	 * @return Number of references
+	 */
+	public int getNumReferences() {
+		return referenceNames.length;
+	}
+
+	/**
+	 * @param refIndex Reference index
+	 * @return Reference name
+	 */
+	public String getReferenceName(int refIndex) {
+		return referenceNames[refIndex];
+	}
+
+	/**
+	 * @param refIndex Reference index
+	 * @return Reference length
+	 */
+	public int getReferenceLength(int refIndex) {
+		return referenceLengths[refIndex];
+	}
+
+	/**
+	 * @param referenceName Reference name
+	 * @return Reference index, or -1 if the reference is not in the genome
+	 */
+	public int getReferenceIndex(String referenceName) {
+		Integer rtrn = referenceIndex.get(referenceName);
+		return rtrn == null ? -1 : rtrn.intValue();
+	}
+
+	/**
+	 * @param refIndex Reference index
+	 * @return First bin of the reference
+	 */
+	public int getFirstBin(int refIndex) {
+		return firstBin[refIndex];
+	}
+
+	/**
+	 * @param refIndex Reference index
+	 * @return Bin after the last bin of the reference
+	 */
+	public int getEndBin(int refIndex) {
+		return firstBin[refIndex + 1];
+	}
+
+	/**
+	 * @param refIndex Reference index
+	 * @param position Zero-based position
+	 * @return Bin containing the position, or -1 if the position is outside the reference
+	 */
+	public int getBin(int refIndex, int position) {
+		if(refIndex < 0 || refIndex >= referenceNames.length || position < 0 || position >= referenceLengths[refIndex]) {
+			return -1;
+		}
+		return firstBin[refIndex] + position / binSize;
+	}
+
+	/**
+	 * @param referenceName Reference name
+	 * @param position Zero-based position
+	 * @return Bin containing the position, or -1 if the position is outside the genome
+	 */
+	public int getBin(String referenceName, int position) {
+		return getBin(getReferenceIndex(referenceName), position);
+	}
+
+	/**
+	 * @param bin Bin
+	 * @return Reference index of the bin
+	 */
+	public int getReferenceIndexOfBin(int bin) {
+		if(bin < 0 || bin >= getNumBins()) throw new IndexOutOfBoundsException("Bin " + bin + " of " + getNumBins());
+		int rtrn = Arrays.binarySearch(firstBin, bin);
+		if(rtrn < 0) return -rtrn - 2;
+		// Skip empty references starting at the same bin
+		while(firstBin[rtrn + 1] == bin) rtrn++;
+		return rtrn;
+	}
+
+	/**
+	 * @param bin Bin
+	 * @return Zero-based start position of the bin on its reference
+	 */
+	public int getBinStart(int bin) {
+		return (bin - firstBin[getReferenceIndexOfBin(bin)]) * binSize;
+	}
+
+}
@@ -0,0 +1,243 @@
+package contact.matrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.zip.Deflater;
+
+import org.apache.log4j.Logger;
+
+import util.StreamingPngWriter;
+
+/**
+ * Renders a contact matrix as a heatmap, one strip of tiles at a time, so the image never has to fit in memory
+ * Each strip is a band of image rows one tile high. Its pixels are read from the row index of the pixel store in parallel over groups of rows,
+ * and from the column index in one query, then colored in parallel over tiles. Only one strip is held in memory.
+ * Strips are either appended to one streaming PNG, or cut into tiles and written as a tile pyramid: directory/zoom/row/column.png,
+ * where zoom 0 fits the region in one tile and each further zoom level doubles the resolution up to one bin per pixel.
+ * Each image pixel shows the mean value of the bins it covers, so the same color scale works at every zoom level.
+ * Instances are immutable and can be shared between threads
+ * @author prussell
+ *
+ */
+public final class HeatmapRenderer {
+
+	private static Logger logger = Logger.getLogger(HeatmapRenderer.class.getName());
+
+	/**
+	 * Default tile size in pixels
+	 */
+	public static final int DEFAULT_TILE_SIZE = 256;
+
+	/**
+	 * Default maximum width of a whole-matrix image; coarser bins per pixel are used above it
+	 */
+	public static final int DEFAULT_MAX_IMAGE_SIZE = 8192;
+
+	private ColorScale colorScale;
+	private int tileSize;
+	private int numThreads;
+
+	/**
+	 * @param colorScale Colors of the values
+	 * @param tileSize Tile size in pixels, which is also the height of each strip
+	 * @param numThreads Number of threads
+	 */
+	public HeatmapRenderer(ColorScale colorScale, int tileSize, int numThreads) {
+		if(tileSize < 1) throw new IllegalArgumentException("Tile size must be at least 1");
+		if(numThreads < 1) throw new IllegalArgumentException("Number of threads must be at least 1");
+		this.colorScale = colorScale;
+		this.tileSize = tileSize;
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * @param numBins Number of bins of a region
+	 * @return Bins per pixel that keep an image of the region within the default maximum size
+	 */
+	public static int defaultBinsPerPixel(int numBins) {
+		return Math.max(1, (numBins + DEFAULT_MAX_IMAGE_SIZE - 1) / DEFAULT_MAX_IMAGE_SIZE);
+	}
+
+	/**
+	 * Write a PNG overview of the whole matrix with default settings: at most {@link #DEFAULT_MAX_IMAGE_SIZE} pixels wide,
+	 * white to red on a log scale up to the 98th percentile of the off-diagonal values, on all processors
+	 * @param pixels The matrix
+	 * @param file Output file
+	 * @throws IOException
+	 */
+	public static void writeOverview(ContactPixels pixels, File file) throws IOException {
+		ColorScale colorScale = new ColorScale(ColorScale.WHITE_RED, 0, ColorScale.quantile(pixels, 0.98), true);
+		HeatmapRenderer renderer = new HeatmapRenderer(colorScale, DEFAULT_TILE_SIZE, Runtime.getRuntime().availableProcessors());
+		renderer.writePng(pixels, defaultBinsPerPixel(pixels.getBins().getNumBins()), file);
+	}
+
+	/**
+	 * Write one PNG image of a region of the matrix against itself
+	 * @param pixels The matrix
+	 * @param firstBin First bin of the region
+	 * @param endBin Last bin of the region, exclusive
+	 * @param binsPerPixel Number of bins per image pixel along each axis
+	 * @param file Output file
+	 * @throws IOException
+	 */
+	public void writePng(ContactPixels pixels, int firstBin, int endBin, int binsPerPixel, File file) throws IOException {
+		int size = imageSize(firstBin, endBin, binsPerPixel);
+		logger.info("Writing " + size + " x " + size + " heatmap at " + binsPerPixel + " bins per pixel to " + file + "...");
+		StreamingPngWriter png = new StreamingPngWriter(file, size, size, Deflater.DEFAULT_COMPRESSION);
+		render(pixels, firstBin, endBin, binsPerPixel, (stripRow, rgb, numRows) -> {
+			for(int r = 0; r < numRows; r++) png.writeRow(rgb, 3 * r * size);
+		});
+		png.close();
+	}
+
+	/**
+	 * Write one PNG image of the whole matrix
+	 * @param pixels The matrix
+	 * @param binsPerPixel Number of bins per image pixel along each axis
+	 * @param file Output file
+	 * @throws IOException
+	 */
+	public void writePng(ContactPixels pixels, int binsPerPixel, File file) throws IOException {
+		writePng(pixels, 0, pixels.getBins().getNumBins(), binsPerPixel, file);
+	}
+
+	/**
+	 * Write a tile pyramid of a region of the matrix against itself
+	 * @param pixels The matrix
+	 * @param firstBin First bin of the region
+	 * @param endBin Last bin of the region, exclusive
+	 * @param directory Output directory
+	 * @return Number of the most detailed zoom level, at one bin per pixel
+	 * @throws IOException
+	 */
+	public int writeTiles(ContactPixels pixels, int firstBin, int endBin, File directory) throws IOException {
+		int maxZoom = 0;
+		while((long) tileSize << maxZoom < endBin - firstBin) maxZoom++;
+		for(int zoom = 0; zoom <= maxZoom; zoom++) {
+			int binsPerPixel = 1 << (maxZoom - zoom);
+			int size = imageSize(firstBin, endBin, binsPerPixel);
+			File zoomDirectory = new File(directory, Integer.toString(zoom));
+			logger.info("Writing zoom level " + zoom + " at " + binsPerPixel + " bins per pixel to " + zoomDirectory + "...");
+			render(pixels, firstBin, endBin, binsPerPixel, (stripRow, rgb, numRows) -> {
+				File rowDirectory = new File(zoomDirectory, Integer.toString(stripRow));
+				if(!rowDirectory.isDirectory() && !rowDirectory.mkdirs()) throw new IOException("Could not create directory " + rowDirectory);
+				int numTiles = (size + tileSize - 1) / tileSize;
+				parallel(numTiles, tile -> {
+					int firstColumn = tile * tileSize;
+					int width = Math.min(tileSize, size - firstColumn);
+					try {
+						StreamingPngWriter png = new StreamingPngWriter(new File(rowDirectory, tile + ".png"), width, numRows, Deflater.DEFAULT_COMPRESSION);
+						for(int r = 0; r < numRows; r++) png.writeRow(rgb, 3 * (r * size + firstColumn));
+						png.close();
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+			});
+		}
+		return maxZoom;
+	}
+
+	/**
+	 * @param firstBin First bin of the region
+	 * @param endBin Last bin of the region, exclusive
+	 * @param binsPerPixel Number of bins per image pixel
+	 * @return Image width and height in pixels
+	 */
+	private static int imageSize(int firstBin, int endBin, int binsPerPixel) {
+		if(endBin <= firstBin) throw new IllegalArgumentException("Empty region: " + firstBin + ", " + endBin);
+		if(binsPerPixel < 1) throw new IllegalArgumentException("Bins per pixel must be at least 1");
+		return (endBin - firstBin + binsPerPixel - 1) / binsPerPixel;
+	}
+
+	/**
+	 * Receives each rendered strip in order
+	 */
+	@FunctionalInterface
+	private interface StripConsumer {
+		/**
+		 * @param stripRow Strip number from the top
+		 * @param rgb Red, green and blue bytes of the strip, row by row; reused for the next strip
+		 * @param numRows Number of image rows in the strip
+		 * @throws IOException
+		 */
+		void accept(int stripRow, byte[] rgb, int numRows) throws IOException;
+	}
+
+	private void render(ContactPixels pixels, int firstBin, int endBin, int binsPerPixel, StripConsumer consumer) throws IOException {
+		int size = imageSize(firstBin, endBin, binsPerPixel);
+		int numStrips = (size + tileSize - 1) / tileSize;
+		int stripHeight = Math.min(tileSize, size);
+		float[] values = new float[stripHeight * size];
+		byte[] rgb = new byte[3 * stripHeight * size];
+		float scale = 1f / ((float) binsPerPixel * binsPerPixel);
+		for(int strip = 0; strip < numStrips; strip++) {
+			int firstRow = strip * tileSize;
+			int numRows = Math.min(tileSize, size - firstRow);
+			int numGroups = Math.min(numRows, 4 * numThreads);
+			Arrays.fill(values, 0, numRows * size, 0f);
+			// Fill in parallel over groups of image rows; each group only writes its own rows
+			parallel(numGroups, group -> {
+				int groupFirstRow = firstRow + (int) ((long) group * numRows / numGroups);
+				int groupEndRow = firstRow + (int) ((long) (group + 1) * numRows / numGroups);
+				int firstRowBin = firstBin + groupFirstRow * binsPerPixel;
+				int endRowBin = Math.min(endBin, firstBin + groupEndRow * binsPerPixel);
+				pixels.forEachInRows(firstRowBin, endRowBin, (bin1, bin2, value) -> {
+					if(bin2 < firstBin || bin2 >= endBin) return;
+					values[((bin1 - firstBin) / binsPerPixel - firstRow) * size + (bin2 - firstBin) / binsPerPixel] += (float) value * scale;
+				});
+			});
+			// The transposed pixels of the strip, stored above the diagonal in the columns of its rows
+			// One query for the whole strip, since a store without a column index pays for each query by scanning rows
+			int firstStripBin = firstBin + firstRow * binsPerPixel;
+			int endStripBin = Math.min(endBin, firstBin + (firstRow + numRows) * binsPerPixel);
+			pixels.forEachInColumns(firstStripBin, endStripBin, (bin1, bin2, value) -> {
+				if(bin1 == bin2 || bin1 < firstBin || bin1 >= endBin) return;
+				values[((bin2 - firstBin) / binsPerPixel - firstRow) * size + (bin1 - firstBin) / binsPerPixel] += (float) value * scale;
+			});
+			// Color in parallel over tiles
+			parallel((size + tileSize - 1) / tileSize, tile -> {
+				int firstColumn = tile * tileSize;
+				int endColumn = Math.min(size, firstColumn + tileSize);
+				for(int r = 0; r < numRows; r++) {
+					for(int c = firstColumn; c < endColumn; c++) {
+						int i = r * size + c;
+						int color = colorScale.getColor(values[i]);
+						rgb[3 * i] = (byte) (color >> 16);
+						rgb[3 * i + 1] = (byte) (color >> 8);
+						rgb[3 * i + 2] = (byte) color;
+					}
+				}
+			});
+			consumer.accept(strip, rgb, numRows);
+			if((strip + 1) % 100 == 0) logger.info("Finished " + (strip + 1) + " of " + numStrips + " strips");
+		}
+	}
+
+	/**
+	 * Run a task for each number on a pool of the renderer's threads
+	 * @param n Number of tasks
+	 * @param task Task taking the task number
+	 */
+	private void parallel(int n, IntConsumer task) {
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		try {
+			pool.submit(() -> IntStream.range(0, n).parallel().forEach(task)).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+}
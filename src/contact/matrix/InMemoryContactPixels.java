@@ -0,0 +1,111 @@
+package contact.matrix;
+
+/**
+ * Pixels of a contact matrix held on the heap, indexed by row and by column like a {@link DiskContactStore}
+ * Use for matrices that fit in memory, e.g. one zoom level read from a matrix file
+ * Instances are immutable
+ * @author prussell
+ *
+ */
+public final class InMemoryContactPixels implements ContactPixels {
+
+	private GenomeBins bins;
+	private CsrMatrix byRow;
+	private int[] columnStart;
+	private int[] columnRows;
+	private double[] columnValues;
+
+	/**
+	 * @param bins Genome bins of the rows and columns
+	 * @param matrix Pixels on or above the diagonal, sorted by row then column
+	 */
+	public InMemoryContactPixels(GenomeBins bins, CooMatrix matrix) {
+		if(matrix.getNumRows() != bins.getNumBins()) throw new IllegalArgumentException("Matrix has " + matrix.getNumRows() + " rows but there are " + bins.getNumBins() + " bins");
+		this.bins = bins;
+		byRow = matrix.toCSR();
+		int numBins = bins.getNumBins();
+		int n = matrix.getNumPixels();
+		columnStart = new int[numBins + 1];
+		for(int i = 0; i < n; i++) {
+			if(matrix.getRow(i) > matrix.getColumn(i)) throw new IllegalArgumentException("Pixel below the diagonal: " + matrix.getRow(i) + ", " + matrix.getColumn(i));
+			columnStart[matrix.getColumn(i) + 1]++;
+		}
+		for(int b = 0; b < numBins; b++) columnStart[b + 1] += columnStart[b];
+		columnRows = new int[n];
+		columnValues = new double[n];
+		int[] cursor = columnStart.clone();
+		for(int i = 0; i < n; i++) {
+			int j = cursor[matrix.getColumn(i)]++;
+			columnRows[j] = matrix.getRow(i);
+			columnValues[j] = matrix.getValue(i);
+		}
+	}
+
+	/**
+	 * Read one zoom level of a matrix file into memory
+	 * @param reader Matrix file reader
+	 * @param binSize Bin size of the zoom level
+	 * @return The pixels of the zoom level
+	 */
+	public static InMemoryContactPixels fromMatrixFile(MatrixFileReader reader, int binSize) {
+		GenomeBins levelBins = reader.getBins(binSize);
+		long numPixels = reader.getNumPixels(binSize);
+		if(numPixels > Integer.MAX_VALUE) throw new IllegalArgumentException("Too many pixels to hold in memory at bin size " + binSize + "; use a disk contact store");
+		int n = (int) numPixels;
+		int[] rows = new int[n];
+		int[] columns = new int[n];
+		double[] values = new double[n];
+		int[] i = new int[1];
+		reader.forEach(binSize, (bin1, bin2, value) -> {
+			rows[i[0]] = bin1;
+			columns[i[0]] = bin2;
+			values[i[0]] = value;
+			i[0]++;
+		});
+		return new InMemoryContactPixels(levelBins, new CooMatrix(levelBins.getNumBins(), rows, columns, values));
+	}
+
+	@Override
+	public GenomeBins getBins() {
+		return bins;
+	}
+
+	@Override
+	public long getNumPixels() {
+		return byRow.getNumPixels();
+	}
+
+	@Override
+	public double get(int bin1, int bin2) {
+		int row = Math.min(bin1, bin2);
+		int column = Math.max(bin1, bin2);
+		if(row < 0 || column >= bins.getNumBins()) return 0;
+		return byRow.get(row, column);
+	}
+
+	@Override
+	public void forEachInRows(int firstRow, int endRow, PixelConsumer consumer) {
+		int first = byRow.getRowStart(clamp(firstRow));
+		int end = byRow.getRowStart(clamp(endRow));
+		int row = clamp(firstRow);
+		for(int i = first; i < end; i++) {
+			while(i >= byRow.getRowEnd(row)) row++;
+			consumer.accept(row, byRow.getColumn(i), byRow.getValue(i));
+		}
+	}
+
+	@Override
+	public void forEachInColumns(int firstColumn, int endColumn, PixelConsumer consumer) {
+		int column = clamp(firstColumn);
+		int end = columnStart[clamp(endColumn)];
+		for(int i = columnStart[column]; i < end; i++) {
+			while(i >= columnStart[column + 1]) column++;
+			consumer.accept(columnRows[i], column, columnValues[i]);
+		}
+	}
+
+	private int clamp(int bin) {
+		return Math.max(0, Math.min(bin, bins.getNumBins()));
+	}
+
+}
@@ -0,0 +1,394 @@
+package contact.matrix;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import org.apache.log4j.Logger;
+
+import guttmanlab.core.util.CommandLineParser;
+
+/**
+ * Balances a symmetric contact matrix by iterative correction (ICE) or by the Knight-Ruiz algorithm (KR),
+ * working directly on the sparse pixels
+ * The only operation on the matrix is a sparse matrix-vector product, computed in parallel over blocks of rows:
+ * each block sums the stored pixels of its rows and, through the column index, the transposed pixels of its columns,
+ * so every thread writes its own slice of the result and nothing is dense.
+ * Before balancing, bins are masked if they have too few non-zero pixels or if their coverage is an outlier on the low side
+ * (more than a number of median absolute deviations below the median log coverage). Pixels near the diagonal can be ignored.
+ * The weights are scaled so the balanced rows sum to the mean raw coverage of the unmasked bins.
+ * Instances are immutable and can be shared between threads
+ * @author prussell
+ *
+ */
+public final class MatrixBalancer {
+
+	private static Logger logger = Logger.getLogger(MatrixBalancer.class.getName());
+
+	/**
+	 * Balancing algorithm
+	 */
+	public enum Method {
+		/**
+		 * Iterative correction: divide each bin by its normalized coverage until the coverage variance is below the tolerance
+		 */
+		ICE,
+		/**
+		 * Knight-Ruiz: Newton iterations with inner conjugate gradient steps, until the row sum residual norm is below the tolerance
+		 */
+		KR;
+	}
+
+	// Parameters of the Knight-Ruiz inner iterations, from the original algorithm
+	private static final double KR_MAX_ETA = 0.1;
+	private static final double KR_ETA_FACTOR = 0.9;
+	private static final double KR_MIN_STEP = 0.1;
+	private static final double KR_MAX_STEP = 3;
+
+	private Method method;
+	private int numThreads;
+	private double tolerance;
+	private int maxIterations;
+	private int minNonZero;
+	private double madMax;
+	private int ignoreDiagonals;
+
+	/**
+	 * @param method Balancing algorithm
+	 * @param numThreads Number of threads for the matrix-vector products
+	 * @param tolerance Convergence tolerance: coverage variance for ICE, residual norm for KR
+	 * @param maxIterations Maximum number of iterations (outer iterations for KR)
+	 * @param minNonZero Mask bins with fewer non-zero pixels than this
+	 * @param madMax Mask bins whose log coverage is more than this many median absolute deviations below the median; 0 to disable
+	 * @param ignoreDiagonals Ignore pixels fewer than this many diagonals from the main diagonal; 0 to keep all
+	 */
+	public MatrixBalancer(Method method, int numThreads, double tolerance, int maxIterations, int minNonZero, double madMax, int ignoreDiagonals) {
+		if(numThreads < 1) throw new IllegalArgumentException("Number of threads must be at least 1");
+		if(tolerance <= 0) throw new IllegalArgumentException("Tolerance must be positive");
+		if(ignoreDiagonals < 0) throw new IllegalArgumentException("Number of diagonals to ignore must be non-negative");
+		this.method = method;
+		this.numThreads = numThreads;
+		this.tolerance = tolerance;
+		this.maxIterations = maxIterations;
+		this.minNonZero = minNonZero;
+		this.madMax = madMax;
+		this.ignoreDiagonals = ignoreDiagonals;
+	}
+
+	/**
+	 * Add the balancing options to a command line parser
+	 * @param p Command line parser
+	 */
+	public static void addCommandLineOptions(CommandLineParser p) {
+		p.addStringArg("-balance", "Balancing method: ICE or KR", false, Method.ICE.toString());
+		p.addDoubleArg("-tol", "Convergence tolerance", false, 1e-5);
+		p.addIntArg("-maxIter", "Maximum number of iterations", false, 200);
+		p.addIntArg("-minNonZero", "Mask bins with fewer non-zero pixels than this", false, 10);
+		p.addDoubleArg("-madMax", "Mask bins with log coverage more than this many median absolute deviations below the median; 0 to disable", false, 5);
+		p.addIntArg("-ignoreDiags", "Ignore pixels fewer than this many diagonals from the main diagonal", false, 2);
+	}
+
+	/**
+	 * Get the balancer from a command line parser that has already parsed the arguments
+	 * @param p Command line parser with options added by {@link #addCommandLineOptions(CommandLineParser)}
+	 * @param numThreads Number of threads for the matrix-vector products
+	 * @return The balancer
+	 */
+	public static MatrixBalancer fromCommandLine(CommandLineParser p, int numThreads) {
+		return new MatrixBalancer(Method.valueOf(p.getStringArg("-balance")), numThreads, p.getDoubleArg("-tol"), p.getIntArg("-maxIter"),
+				p.getIntArg("-minNonZero"), p.getDoubleArg("-madMax"), p.getIntArg("-ignoreDiags"));
+	}
+
+	/**
+	 * Balance a matrix
+	 * @param pixels The matrix
+	 * @return Weights of the bins
+	 */
+	public BalancingWeights balance(ContactPixels pixels) {
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		try {
+			return new Balancing(pixels, pool).run();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * State of one balancing run
+	 */
+	private final class Balancing {
+
+		private ContactPixels pixels;
+		private ForkJoinPool pool;
+		private int numBins;
+		private int[] blockStart;
+		private int[] active; // Unmasked bins
+		private int numMatVec;
+
+		private Balancing(ContactPixels pixels, ForkJoinPool pool) {
+			this.pixels = pixels;
+			this.pool = pool;
+			numBins = pixels.getBins().getNumBins();
+			int numBlocks = Math.max(1, Math.min(numBins, 16 * numThreads));
+			blockStart = new int[numBlocks + 1];
+			for(int b = 0; b <= numBlocks; b++) blockStart[b] = (int) ((long) b * numBins / numBlocks);
+		}
+
+		private BalancingWeights run() {
+			double[] ones = new double[numBins];
+			Arrays.fill(ones, 1);
+			double[] nonZero = multiply(ones, true);
+			double[] coverage = multiply(ones, false);
+			mask(nonZero, coverage);
+			logger.info("Balancing " + active.length + " of " + numBins + " bins by " + method + "; " + (numBins - active.length) + " bins masked.");
+			double[] weights = new double[numBins];
+			for(int a : active) weights[a] = 1;
+			int iterations;
+			double residual;
+			if(method == Method.ICE) {
+				double[] result = ice(weights);
+				iterations = (int) result[0];
+				residual = result[1];
+			} else {
+				double[] result = kr(weights);
+				iterations = (int) result[0];
+				residual = result[1];
+			}
+			boolean converged = residual <= tolerance;
+			// Scale so balanced rows sum to the mean raw coverage among the unmasked bins
+			double[] unmasked = new double[numBins];
+			for(int a : active) unmasked[a] = 1;
+			double[] rawRowSums = multiply(unmasked, false);
+			double[] balancedRowSums = multiply(weights, false);
+			double meanBalanced = 0;
+			double meanRaw = 0;
+			for(int a : active) {
+				meanBalanced += weights[a] * balancedRowSums[a];
+				meanRaw += rawRowSums[a];
+			}
+			double scale = active.length == 0 || meanBalanced == 0 ? 1 : Math.sqrt(meanRaw / meanBalanced);
+			double[] rtrn = new double[numBins];
+			Arrays.fill(rtrn, Double.NaN);
+			for(int a : active) rtrn[a] = weights[a] * scale;
+			if(converged) {
+				logger.info("Converged after " + iterations + " iterations and " + numMatVec + " matrix-vector products; residual " + residual);
+			} else {
+				logger.warn("Did not converge after " + iterations + " iterations; residual " + residual);
+			}
+			return new BalancingWeights(method.toString(), rtrn, iterations, converged, residual);
+		}
+
+		/**
+		 * Find the unmasked bins
+		 * @param nonZero Number of non-zero pixels of each bin
+		 * @param coverage Coverage of each bin
+		 */
+		private void mask(double[] nonZero, double[] coverage) {
+			int[] kept = new int[numBins];
+			int n = 0;
+			for(int b = 0; b < numBins; b++) {
+				if(nonZero[b] >= Math.max(1, minNonZero) && coverage[b] > 0) kept[n++] = b;
+			}
+			if(madMax > 0 && n > 0) {
+				double[] logCoverage = new double[n];
+				for(int i = 0; i < n; i++) logCoverage[i] = Math.log(coverage[kept[i]]);
+				double median = median(logCoverage.clone());
+				double[] deviation = new double[n];
+				for(int i = 0; i < n; i++) deviation[i] = Math.abs(logCoverage[i] - median);
+				double mad = median(deviation);
+				int m = 0;
+				for(int i = 0; i < n; i++) {
+					if(logCoverage[i] >= median - madMax * mad) kept[m++] = kept[i];
+				}
+				n = m;
+			}
+			active = Arrays.copyOf(kept, n);
+		}
+
+		/**
+		 * Iterative correction
+		 * @param weights Initial weights, 0 for masked bins; updated
+		 * @return Number of iterations and the final coverage variance
+		 */
+		private double[] ice(double[] weights) {
+			double variance = Double.POSITIVE_INFINITY;
+			int iteration = 0;
+			while(iteration < maxIterations && variance > tolerance) {
+				iteration++;
+				double[] y = multiply(weights, false);
+				double mean = 0;
+				int numNonZero = 0;
+				for(int a : active) {
+					y[a] *= weights[a];
+					if(y[a] > 0) {
+						mean += y[a];
+						numNonZero++;
+					}
+				}
+				if(numNonZero == 0) break;
+				mean /= numNonZero;
+				variance = 0;
+				for(int a : active) {
+					double marginal = y[a] == 0 ? 1 : y[a] / mean;
+					weights[a] /= marginal;
+					variance += (marginal - 1) * (marginal - 1);
+				}
+				variance /= active.length;
+				logger.info("ICE iteration " + iteration + ": variance " + variance);
+			}
+			return new double[] {iteration, variance};
+		}
+
+		/**
+		 * Knight-Ruiz balancing: scales x so that diag(x) A diag(x) has unit row sums
+		 * @param x Initial scaling, 0 for masked bins; updated
+		 * @return Number of outer iterations and the final residual norm
+		 */
+		private double[] kr(double[] x) {
+			double rt = tolerance * tolerance;
+			double stopTolerance = tolerance * 0.5;
+			double eta = KR_MAX_ETA;
+			double[] v = new double[numBins];
+			double[] rk = new double[numBins];
+			double[] y = new double[numBins];
+			double[] z = new double[numBins];
+			double[] p = new double[numBins];
+			double[] xp = new double[numBins];
+			double[] w = new double[numBins];
+			double[] ax = multiply(x, false);
+			for(int a : active) {
+				v[a] = x[a] * ax[a];
+				rk[a] = 1 - v[a];
+			}
+			double rhoKm1 = dot(rk, rk);
+			double rhoKm2 = 0;
+			double rout = rhoKm1;
+			double rold = rout;
+			int iteration = 0;
+			while(rout > rt && iteration < maxIterations) {
+				iteration++;
+				int k = 0;
+				for(int a : active) y[a] = 1;
+				double innerTolerance = Math.max(eta * eta * rout, rt);
+				// Inner iterations by conjugate gradient, kept inside the cone between the min and max step
+				while(rhoKm1 > innerTolerance) {
+					k++;
+					if(k == 1) {
+						for(int a : active) {
+							z[a] = rk[a] / v[a];
+							p[a] = z[a];
+						}
+						rhoKm1 = dot(rk, z);
+					} else {
+						double beta = rhoKm1 / rhoKm2;
+						for(int a : active) p[a] = z[a] + beta * p[a];
+					}
+					for(int a : active) xp[a] = x[a] * p[a];
+					double[] axp = multiply(xp, false);
+					for(int a : active) w[a] = x[a] * axp[a] + v[a] * p[a];
+					double alpha = rhoKm1 / dot(p, w);
+					double minY = Double.POSITIVE_INFINITY;
+					double maxY = Double.NEGATIVE_INFINITY;
+					for(int a : active) {
+						double yNew = y[a] + alpha * p[a];
+						minY = Math.min(minY, yNew);
+						maxY = Math.max(maxY, yNew);
+					}
+					if(minY <= KR_MIN_STEP) {
+						double gamma = Double.POSITIVE_INFINITY;
+						for(int a : active) {
+							double ap = alpha * p[a];
+							if(ap < 0) gamma = Math.min(gamma, (KR_MIN_STEP - y[a]) / ap);
+						}
+						for(int a : active) y[a] += gamma * alpha * p[a];
+						break;
+					}
+					if(maxY >= KR_MAX_STEP) {
+						double gamma = Double.POSITIVE_INFINITY;
+						for(int a : active) {
+							double ap = alpha * p[a];
+							if(y[a] + ap > KR_MAX_STEP) gamma = Math.min(gamma, (KR_MAX_STEP - y[a]) / ap);
+						}
+						for(int a : active) y[a] += gamma * alpha * p[a];
+						break;
+					}
+					for(int a : active) {
+						y[a] += alpha * p[a];
+						rk[a] -= alpha * w[a];
+					}
+					rhoKm2 = rhoKm1;
+					for(int a : active) z[a] = rk[a] / v[a];
+					rhoKm1 = dot(rk, z);
+				}
+				for(int a : active) x[a] *= y[a];
+				ax = multiply(x, false);
+				for(int a : active) {
+					v[a] = x[a] * ax[a];
+					rk[a] = 1 - v[a];
+				}
+				rhoKm1 = dot(rk, rk);
+				rout = rhoKm1;
+				double ratio = rout / rold;
+				rold = rout;
+				double residualNorm = Math.sqrt(rout);
+				double etaOld = eta;
+				eta = KR_ETA_FACTOR * ratio;
+				if(KR_ETA_FACTOR * etaOld * etaOld > 0.1) eta = Math.max(eta, KR_ETA_FACTOR * etaOld * etaOld);
+				eta = Math.max(Math.min(eta, KR_MAX_ETA), stopTolerance / residualNorm);
+				logger.info("KR iteration " + iteration + " (" + k + " inner): residual " + residualNorm);
+			}
+			return new double[] {iteration, Math.sqrt(rout)};
+		}
+
+		private double dot(double[] a, double[] b) {
+			double rtrn = 0;
+			for(int i : active) rtrn += a[i] * b[i];
+			return rtrn;
+		}
+
+		/**
+		 * Sparse symmetric matrix-vector product in parallel over blocks of rows
+		 * @param x The vector
+		 * @param binary Count each non-zero pixel as 1 instead of its value
+		 * @return The product
+		 */
+		private double[] multiply(double[] x, boolean binary) {
+			numMatVec++;
+			double[] rtrn = new double[numBins];
+			try {
+				pool.submit(() -> IntStream.range(0, blockStart.length - 1).parallel().forEach(block -> {
+					int first = blockStart[block];
+					int end = blockStart[block + 1];
+					// Pixels stored in the rows of the block
+					pixels.forEachInRows(first, end, (bin1, bin2, value) -> {
+						if(bin2 - bin1 >= ignoreDiagonals) rtrn[bin1] += (binary ? 1 : value) * x[bin2];
+					});
+					// Transposed pixels stored in the columns of the block; the diagonal is already counted
+					pixels.forEachInColumns(first, end, (bin1, bin2, value) -> {
+						if(bin1 != bin2 && bin2 - bin1 >= ignoreDiagonals) rtrn[bin2] += (binary ? 1 : value) * x[bin1];
+					});
+				})).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			} catch (ExecutionException e) {
+				if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+				throw new IllegalStateException(e.getCause());
+			}
+			return rtrn;
+		}
+
+	}
+
+	/**
+	 * @param values Values; reordered
+	 * @return Median
+	 */
+	private static double median(double[] values) {
+		Arrays.sort(values);
+		int n = values.length;
+		return n % 2 == 1 ? values[n / 2] : (values[n / 2 - 1] + values[n / 2]) / 2;
+	}
+
+}
@@ -0,0 +1,99 @@
+package contact.matrix;
+
+/**
+ * One zoom level of a binary contact matrix file, read through a {@link MatrixFileReader} on each query instead of held in memory
+ * Row queries inflate only the chunks of the rows. The file is only sorted by row, so a column query is a transposed query of the reader,
+ * which also inflates the rows from the start of the view up to the end of the columns; restrict the view to a region to bound that cost.
+ * Pixels with a bin outside the region are left out.
+ * Instances are immutable and thread safe, like the reader, and are only valid until the reader is closed
+ * @author prussell
+ *
+ */
+public final class MatrixFileContactPixels implements ContactPixels {
+
+	private MatrixFileReader reader;
+	private int binSize;
+	private GenomeBins bins;
+	private int firstBin;
+	private int endBin;
+	private long numPixels;
+
+	/**
+	 * View of a whole zoom level
+	 * @param reader Matrix file reader
+	 * @param binSize Bin size of the zoom level
+	 */
+	public MatrixFileContactPixels(MatrixFileReader reader, int binSize) {
+		this(reader, binSize, 0, reader.getBins(binSize).getNumBins());
+	}
+
+	/**
+	 * View of a region of a zoom level against itself
+	 * The pixels of the region are counted when the view is created
+	 * @param reader Matrix file reader
+	 * @param binSize Bin size of the zoom level
+	 * @param firstBin First bin of the region
+	 * @param endBin Last bin of the region, exclusive
+	 */
+	public MatrixFileContactPixels(MatrixFileReader reader, int binSize, int firstBin, int endBin) {
+		this.reader = reader;
+		this.binSize = binSize;
+		bins = reader.getBins(binSize);
+		if(firstBin < 0 || endBin > bins.getNumBins() || firstBin > endBin) throw new IllegalArgumentException("Invalid bin range " + firstBin + "-" + endBin);
+		this.firstBin = firstBin;
+		this.endBin = endBin;
+		if(firstBin == 0 && endBin == bins.getNumBins()) {
+			numPixels = reader.getNumPixels(binSize);
+		} else {
+			long[] count = new long[1];
+			forEach((bin1, bin2, value) -> count[0]++);
+			numPixels = count[0];
+		}
+	}
+
+	@Override
+	public GenomeBins getBins() {
+		return bins;
+	}
+
+	@Override
+	public long getNumPixels() {
+		return numPixels;
+	}
+
+	@Override
+	public double get(int bin1, int bin2) {
+		int row = Math.min(bin1, bin2);
+		int column = Math.max(bin1, bin2);
+		if(row < firstBin || column >= endBin) return 0;
+		double[] rtrn = new double[1];
+		reader.forEachInRows(binSize, row, row + 1, (r, c, value) -> {
+			if(c == column) rtrn[0] = value;
+		});
+		return rtrn[0];
+	}
+
+	@Override
+	public void forEachInRows(int firstRow, int endRow, PixelConsumer consumer) {
+		reader.forEachInRows(binSize, Math.max(firstRow, firstBin), Math.min(endRow, endBin), (bin1, bin2, value) -> {
+			if(bin2 < endBin) consumer.accept(bin1, bin2, value);
+		});
+	}
+
+	/**
+	 * The rows of the full symmetric matrix at the columns, up to the diagonal, are the stored pixels of the columns in order of column then row
+	 */
+	@Override
+	public void forEachInColumns(int firstColumn, int endColumn, PixelConsumer consumer) {
+		int first = Math.max(firstColumn, firstBin);
+		int end = Math.min(endColumn, endBin);
+		if(first >= end) return;
+		CooMatrix transposed = reader.query(binSize, first, end, firstBin, end);
+		for(int i = 0; i < transposed.getNumPixels(); i++) {
+			int column = transposed.getRow(i);
+			int row = transposed.getColumn(i);
+			if(row <= column) consumer.accept(row, column, transposed.getValue(i));
+		}
+	}
+
+}
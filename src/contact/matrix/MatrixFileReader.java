@@ -0,0 +1,283 @@
+package contact.matrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a binary contact matrix file written by {@link MatrixFileWriter}
+ * Only the header and the chunk index are read when the file is opened; a query inflates only the chunks that overlap it
+ * Reads use positional file access, so instances can be shared between threads
+ * @author prussell
+ *
+ */
+public final class MatrixFileReader implements AutoCloseable {
+
+	private FileChannel channel;
+	private String[] referenceNames;
+	private int[] referenceLengths;
+	private int[] binSizes;
+	private GenomeBins[] bins;
+	private long[] numPixels;
+	private long[][][] chunks; // By level and chunk: first key, last key, file offset, compressed length, number of pixels
+
+	/**
+	 * @param file Binary contact matrix file
+	 * @throws IOException
+	 */
+	public MatrixFileReader(File file) throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		long size = channel.size();
+		if(size < 20) throw new IllegalArgumentException("Not a binary contact matrix file: " + file);
+		ByteBuffer tail = read(size - 12, 12);
+		long footer = tail.getLong();
+		if(tail.getInt() != MatrixFileWriter.MAGIC) throw new IllegalArgumentException("Not a binary contact matrix file or truncated: " + file);
+		ByteBuffer header = read(0, 12);
+		if(header.getInt() != MatrixFileWriter.MAGIC) throw new IllegalArgumentException("Not a binary contact matrix file: " + file);
+		int version = header.getInt();
+		if(version != MatrixFileWriter.VERSION) throw new IllegalArgumentException("Unsupported contact matrix file version " + version + ": " + file);
+		int numReferences = header.getInt();
+		referenceNames = new String[numReferences];
+		referenceLengths = new int[numReferences];
+		long position = 12;
+		for(int i = 0; i < numReferences; i++) {
+			int nameLength = read(position, 4).getInt();
+			ByteBuffer reference = read(position + 4, nameLength + 4);
+			byte[] name = new byte[nameLength];
+			reference.get(name);
+			referenceNames[i] = new String(name, StandardCharsets.UTF_8);
+			referenceLengths[i] = reference.getInt();
+			position += nameLength + 8;
+		}
+		ByteBuffer index = read(footer, (int) (size - 12 - footer));
+		int numLevels = index.getInt();
+		binSizes = new int[numLevels];
+		bins = new GenomeBins[numLevels];
+		numPixels = new long[numLevels];
+		chunks = new long[numLevels][][];
+		for(int level = 0; level < numLevels; level++) {
+			binSizes[level] = index.getInt();
+			bins[level] = new GenomeBins(referenceNames, referenceLengths, binSizes[level]);
+			numPixels[level] = index.getLong();
+			chunks[level] = new long[index.getInt()][5];
+			for(long[] chunk : chunks[level]) {
+				for(int f = 0; f < chunk.length; f++) chunk[f] = index.getLong();
+			}
+		}
+	}
+
+	/**
+	 * @param position File offset
+	 * @param length Number of bytes
+	 * @return Buffer holding the bytes
+	 * @throws IOException
+	 */
+	private ByteBuffer read(long position, int length) throws IOException {
+		ByteBuffer rtrn = ByteBuffer.allocate(length);
+		while(rtrn.hasRemaining()) {
+			if(channel.read(rtrn, position + rtrn.position()) < 0) throw new IOException("Unexpected end of contact matrix file");
+		}
+		rtrn.flip();
+		return rtrn;
+	}
+
+	/**
+	 * @return Bin sizes of the zoom levels, from finest to coarsest
+	 */
+	public int[] getBinSizes() {
+		return binSizes.clone();
+	}
+
+	/**
+	 * @param binSize Bin size of a zoom level
+	 * @return Genome bins of the zoom level
+	 */
+	public GenomeBins getBins(int binSize) {
+		return bins[level(binSize)];
+	}
+
+	/**
+	 * @param binSize Bin size of a zoom level
+	 * @return Number of pixels stored for the zoom level, on or above the diagonal
+	 */
+	public long getNumPixels(int binSize) {
+		return numPixels[level(binSize)];
+	}
+
+	private int level(int binSize) {
+		for(int i = 0; i < binSizes.length; i++) {
+			if(binSizes[i] == binSize) return i;
+		}
+		throw new IllegalArgumentException("No zoom level with bin size " + binSize);
+	}
+
+	/**
+	 * Get the pixels of a rectangle of the full symmetric matrix
+	 * @param binSize Bin size of a zoom level
+	 * @param firstRow First row bin
+	 * @param endRow Last row bin, exclusive
+	 * @param firstColumn First column bin
+	 * @param endColumn Last column bin, exclusive
+	 * @return Pixels in the rectangle, with bins of the whole genome, sorted by row then column
+	 */
+	public CooMatrix query(int binSize, int firstRow, int endRow, int firstColumn, int endColumn) {
+		int level = level(binSize);
+		PixelHashMap pixels = new PixelHashMap(1024);
+		// Stored pixels are on or above the diagonal, so a pixel in the rectangle is stored either as itself or transposed
+		decodeRows(level, firstRow, endRow, (bin1, bin2, value) -> {
+			if(bin2 >= firstColumn && bin2 < endColumn) pixels.add(PixelHashMap.key(bin1, bin2), value);
+		});
+		decodeRows(level, firstColumn, endColumn, (bin1, bin2, value) -> {
+			if(bin1 != bin2 && bin2 >= firstRow && bin2 < endRow) pixels.add(PixelHashMap.key(bin2, bin1), value);
+		});
+		int n = pixels.size();
+		long[] keys = new long[n];
+		long[] values = new long[n];
+		pixels.toSortedArrays(keys, values);
+		int[] rows = new int[n];
+		int[] columns = new int[n];
+		double[] doubleValues = new double[n];
+		for(int i = 0; i < n; i++) {
+			rows[i] = PixelHashMap.bin1(keys[i]);
+			columns[i] = PixelHashMap.bin2(keys[i]);
+			doubleValues[i] = FixedPoint.toDouble(values[i]);
+		}
+		return new CooMatrix(bins[level].getNumBins(), rows, columns, doubleValues);
+	}
+
+	/**
+	 * Get the pixels between two regions
+	 * @param binSize Bin size of a zoom level
+	 * @param reference1 Reference of the rows
+	 * @param start1 Start of the rows
+	 * @param end1 End of the rows
+	 * @param reference2 Reference of the columns
+	 * @param start2 Start of the columns
+	 * @param end2 End of the columns
+	 * @return Pixels in the rectangle, with bins of the whole genome, sorted by row then column
+	 */
+	public CooMatrix query(int binSize, String reference1, int start1, int end1, String reference2, int start2, int end2) {
+		GenomeBins b = getBins(binSize);
+		return query(binSize, binRangeStart(b, reference1, start1), binRangeEnd(b, reference1, end1),
+				binRangeStart(b, reference2, start2), binRangeEnd(b, reference2, end2));
+	}
+
+	private static int binRangeStart(GenomeBins b, String reference, int start) {
+		int ref = b.getReferenceIndex(reference);
+		return Math.min(b.getFirstBin(ref) + Math.max(start, 0) / b.getBinSize(), b.getEndBin(ref));
+	}
+
+	private static int binRangeEnd(GenomeBins b, String reference, int end) {
+		int ref = b.getReferenceIndex(reference);
+		return Math.min(b.getFirstBin(ref) + (Math.max(end, 0) + b.getBinSize() - 1) / b.getBinSize(), b.getEndBin(ref));
+	}
+
+	/**
+	 * Stream all stored pixels of a zoom level in order of row then column
+	 * @param binSize Bin size of a zoom level
+	 * @param consumer Receives the pixels on or above the diagonal
+	 */
+	public void forEach(int binSize, PixelConsumer consumer) {
+		int level = level(binSize);
+		decodeRows(level, 0, Integer.MAX_VALUE, (bin1, bin2, value) -> consumer.accept(bin1, bin2, FixedPoint.toDouble(value)));
+	}
+
+	/**
+	 * Stream the stored pixels of a zoom level whose rows are in a range, in order of row then column
+	 * @param binSize Bin size of a zoom level
+	 * @param firstRow First row bin
+	 * @param endRow Last row bin, exclusive
+	 * @param consumer Receives the pixels on or above the diagonal
+	 */
+	public void forEachInRows(int binSize, int firstRow, int endRow, PixelConsumer consumer) {
+		decodeRows(level(binSize), firstRow, endRow, (bin1, bin2, value) -> consumer.accept(bin1, bin2, FixedPoint.toDouble(value)));
+	}
+
+	/**
+	 * Receives fixed-point pixels decoded from chunks
+	 */
+	@FunctionalInterface
+	private interface FixedPointConsumer {
+		void accept(int bin1, int bin2, long value);
+	}
+
+	private void decodeRows(int level, int firstRow, int endRow, FixedPointConsumer consumer) {
+		if(firstRow >= endRow) return;
+		long[][] levelChunks = chunks[level];
+		long firstKey = PixelHashMap.key(firstRow, 0);
+		long endKey = PixelHashMap.key(endRow, 0);
+		// First chunk whose last key is at least the first key
+		int lo = 0;
+		int hi = levelChunks.length;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(levelChunks[mid][1] < firstKey) lo = mid + 1;
+			else hi = mid;
+		}
+		Inflater inflater = new Inflater(true);
+		try {
+			for(int c = lo; c < levelChunks.length && levelChunks[c][0] < endKey; c++) {
+				decodeChunk(levelChunks[c], inflater, firstRow, endRow, consumer);
+			}
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private void decodeChunk(long[] chunk, Inflater inflater, int firstRow, int endRow, FixedPointConsumer consumer) {
+		byte[] data;
+		try {
+			ByteBuffer compressed = read(chunk[2], (int) chunk[3]);
+			inflater.reset();
+			inflater.setInput(compressed.array(), 0, compressed.limit());
+			data = new byte[Math.max(64, 4 * compressed.limit())];
+			int n = 0;
+			while(!inflater.finished()) {
+				if(n == data.length) data = Arrays.copyOf(data, 2 * data.length);
+				int inflated = inflater.inflate(data, n, data.length - n);
+				if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) throw new IOException("Truncated chunk in contact matrix file");
+				n += inflated;
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} catch (DataFormatException e) {
+			throw new IllegalStateException("Corrupt chunk in contact matrix file", e);
+		}
+		int numChunkPixels = (int) chunk[4];
+		int row = PixelHashMap.bin1(chunk[0]);
+		int column = row;
+		int[] pos = new int[1];
+		for(int i = 0; i < numChunkPixels; i++) {
+			int rowDelta = (int) readVarLong(data, pos);
+			long columnValue = readVarLong(data, pos);
+			long value = readVarLong(data, pos);
+			column = rowDelta == 0 ? column + (int) columnValue : row + rowDelta + (int) columnValue;
+			row += rowDelta;
+			if(row >= endRow) return;
+			if(row >= firstRow) consumer.accept(row, column, value);
+		}
+	}
+
+	private static long readVarLong(byte[] data, int[] pos) {
+		long rtrn = 0;
+		for(int shift = 0; shift < 64; shift += 7) {
+			int b = data[pos[0]++] & 0xff;
+			rtrn |= (long) (b & 0x7f) << shift;
+			if((b & 0x80) == 0) return rtrn;
+		}
+		throw new IllegalStateException("Malformed variable length integer in contact matrix file");
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+}
@@ -0,0 +1,316 @@
+package contact.matrix;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Writes a binary contact matrix file with several zoom levels, built in one pass from the pixels of the finest level
+ * Pixels are added in order of row then column, on or above the diagonal. Each coarser level keeps only the current row of
+ * coarse bins, which is complete once the fine rows move past it, so memory does not grow with the matrix.
+ * Each level is stored as deflated chunks of pixels sorted by row then column, and a footer holds the chunk index
+ * of every level, so {@link MatrixFileReader} can read a rectangle by inflating only the chunks it overlaps.
+ * Values are stored as fixed-point numbers, so the coarse levels are exact sums of the finest level.
+ * File layout: magic, version, reference names and lengths, chunks, footer, footer offset, magic.
+ * @author prussell
+ *
+ */
+public final class MatrixFileWriter implements PixelConsumer {
+
+	private static Logger logger = Logger.getLogger(MatrixFileWriter.class.getName());
+
+	static final int MAGIC = 0x434d5458; // "CMTX"
+	static final int VERSION = 1;
+
+	/**
+	 * Default number of pixels per chunk
+	 */
+	public static final int DEFAULT_PIXELS_PER_CHUNK = 1 << 14;
+
+	/**
+	 * Bin sizes of the default zoom levels, used when they are multiples of the finest bin size
+	 */
+	private static final int[] DEFAULT_ZOOM_BIN_SIZES = new int[] {1000000, 250000, 50000, 10000};
+
+	private DataOutputStream out;
+	private long position;
+	private GenomeBins bins;
+	private Level[] levels;
+	private int pixelsPerChunk;
+	private Deflater deflater;
+	private byte[] compressed;
+	private long lastKey;
+
+	/**
+	 * @param file Output file
+	 * @param bins Genome bins of the pixels that will be added
+	 * @param binSizes Bin sizes of the zoom levels; each must be a multiple of the bin size of the genome bins
+	 * @param pixelsPerChunk Number of pixels per chunk
+	 * @param compressionLevel Deflate compression level
+	 * @throws IOException
+	 */
+	public MatrixFileWriter(File file, GenomeBins bins, int[] binSizes, int pixelsPerChunk, int compressionLevel) throws IOException {
+		if(binSizes.length == 0) throw new IllegalArgumentException("Need at least one zoom level");
+		if(pixelsPerChunk < 1) throw new IllegalArgumentException("Pixels per chunk must be at least 1");
+		this.bins = bins;
+		this.pixelsPerChunk = pixelsPerChunk;
+		int[] sorted = binSizes.clone();
+		Arrays.sort(sorted);
+		levels = new Level[sorted.length];
+		for(int i = 0; i < sorted.length; i++) {
+			if(sorted[i] % bins.getBinSize() != 0) {
+				throw new IllegalArgumentException("Zoom bin size " + sorted[i] + " is not a multiple of bin size " + bins.getBinSize());
+			}
+			if(i > 0 && sorted[i] == sorted[i - 1]) throw new IllegalArgumentException("Duplicate zoom bin size " + sorted[i]);
+			levels[i] = new Level(bins.withBinSize(sorted[i]));
+		}
+		deflater = new Deflater(compressionLevel, true);
+		compressed = new byte[1 << 16];
+		lastKey = -1;
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(bins.getNumReferences());
+		for(int i = 0; i < bins.getNumReferences(); i++) {
+			byte[] name = bins.getReferenceName(i).getBytes(StandardCharsets.UTF_8);
+			out.writeInt(name.length);
+			out.write(name);
+			out.writeInt(bins.getReferenceLength(i));
+		}
+		position = out.size();
+	}
+
+	/**
+	 * @param finestBinSize Bin size of the finest level
+	 * @return The finest bin size and the default zoom bin sizes that are larger multiples of it
+	 */
+	public static int[] defaultBinSizes(int finestBinSize) {
+		int[] rtrn = new int[DEFAULT_ZOOM_BIN_SIZES.length + 1];
+		int n = 0;
+		rtrn[n++] = finestBinSize;
+		for(int binSize : DEFAULT_ZOOM_BIN_SIZES) {
+			if(binSize > finestBinSize && binSize % finestBinSize == 0) rtrn[n++] = binSize;
+		}
+		return Arrays.copyOf(rtrn, n);
+	}
+
+	/**
+	 * Write a sparse matrix with the default zoom levels
+	 * @param file Output file
+	 * @param matrix Pixels sorted by row then column
+	 * @param bins Genome bins of the matrix
+	 * @throws IOException
+	 */
+	public static void write(File file, CooMatrix matrix, GenomeBins bins) throws IOException {
+		MatrixFileWriter writer = new MatrixFileWriter(file, bins, defaultBinSizes(bins.getBinSize()), DEFAULT_PIXELS_PER_CHUNK, Deflater.DEFAULT_COMPRESSION);
+		matrix.forEach(writer);
+		writer.close();
+	}
+
+	/**
+	 * Write all pixels of a matrix with the default zoom levels
+	 * @param file Output file
+	 * @param pixels The matrix
+	 * @throws IOException
+	 */
+	public static void write(File file, ContactPixels pixels) throws IOException {
+		MatrixFileWriter writer = new MatrixFileWriter(file, pixels.getBins(), defaultBinSizes(pixels.getBins().getBinSize()), DEFAULT_PIXELS_PER_CHUNK, Deflater.DEFAULT_COMPRESSION);
+		pixels.forEach(writer);
+		writer.close();
+	}
+
+	@Override
+	public void accept(int bin1, int bin2, double value) {
+		add(bin1, bin2, FixedPoint.fromDouble(value));
+	}
+
+	/**
+	 * Add a pixel of the finest level
+	 * @param bin1 Row bin
+	 * @param bin2 Column bin, not less than the row bin
+	 * @param value Fixed-point value
+	 */
+	public void add(int bin1, int bin2, long value) {
+		if(bin1 < 0 || bin2 < bin1 || bin2 >= bins.getNumBins()) {
+			throw new IllegalArgumentException("Pixel not on or above the diagonal of the matrix: " + bin1 + ", " + bin2);
+		}
+		long key = PixelHashMap.key(bin1, bin2);
+		if(key <= lastKey) throw new IllegalArgumentException("Pixels must be added in order of row then column: " + bin1 + ", " + bin2);
+		lastKey = key;
+		try {
+			for(Level level : levels) level.add(bin1, bin2, value);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Write the remaining pixels and the index, and close the file
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		for(Level level : levels) level.finish();
+		long footer = position;
+		out.writeInt(levels.length);
+		for(Level level : levels) {
+			out.writeInt(level.bins.getBinSize());
+			out.writeLong(level.numPixels);
+			out.writeInt(level.chunks.size());
+			for(long[] chunk : level.chunks) {
+				for(long field : chunk) out.writeLong(field);
+			}
+		}
+		out.writeLong(footer);
+		out.writeInt(MAGIC);
+		out.close();
+		deflater.end();
+		for(Level level : levels) {
+			logger.info("Wrote " + level.numPixels + " pixels at bin size " + level.bins.getBinSize() + " in " + level.chunks.size() + " chunks.");
+		}
+	}
+
+	/**
+	 * Deflate a chunk and write it to the file
+	 * @param data Encoded pixels
+	 * @param length Number of bytes
+	 * @return File offset and compressed length of the chunk
+	 * @throws IOException
+	 */
+	private long[] writeChunk(byte[] data, int length) throws IOException {
+		deflater.reset();
+		deflater.setInput(data, 0, length);
+		deflater.finish();
+		int n = 0;
+		while(!deflater.finished()) {
+			if(n == compressed.length) compressed = Arrays.copyOf(compressed, 2 * compressed.length);
+			n += deflater.deflate(compressed, n, compressed.length - n);
+		}
+		out.write(compressed, 0, n);
+		long offset = position;
+		position += n;
+		return new long[] {offset, n};
+	}
+
+	/**
+	 * One zoom level: maps fine bins to its bins, sums the current row and writes finished rows as chunks
+	 */
+	private final class Level {
+
+		private GenomeBins bins;
+		private int[] binOfFineBin; // Null if the level is the finest
+		private long[] rowValues; // Values of the current row by column, for coarser levels
+		private boolean[] inRow; // Whether each column has a pixel in the current row
+		private int[] rowColumns; // Columns of the current row with values
+		private int numRowColumns;
+		private int row;
+		private long numPixels;
+		private List<long[]> chunks; // First key, last key, file offset, compressed length, number of pixels
+		private byte[] chunkData;
+		private int chunkLength;
+		private int chunkPixels;
+		private long chunkFirstKey;
+		private int lastRow;
+		private int lastColumn;
+
+		private Level(GenomeBins levelBins) {
+			bins = levelBins;
+			GenomeBins fine = MatrixFileWriter.this.bins;
+			if(levelBins.getBinSize() != fine.getBinSize()) {
+				binOfFineBin = new int[fine.getNumBins()];
+				for(int b = 0; b < binOfFineBin.length; b++) {
+					binOfFineBin[b] = levelBins.getBin(fine.getReferenceIndexOfBin(b), fine.getBinStart(b));
+				}
+				rowValues = new long[levelBins.getNumBins()];
+				inRow = new boolean[levelBins.getNumBins()];
+				rowColumns = new int[16];
+			}
+			row = -1;
+			chunks = new ArrayList<long[]>();
+			chunkData = new byte[1 << 16];
+		}
+
+		private void add(int bin1, int bin2, long value) throws IOException {
+			if(binOfFineBin == null) {
+				writePixel(bin1, bin2, value);
+				return;
+			}
+			int r = binOfFineBin[bin1];
+			int c = binOfFineBin[bin2];
+			if(r != row) {
+				flushRow();
+				row = r;
+			}
+			if(!inRow[c]) {
+				inRow[c] = true;
+				if(numRowColumns == rowColumns.length) rowColumns = Arrays.copyOf(rowColumns, 2 * numRowColumns);
+				rowColumns[numRowColumns++] = c;
+			}
+			rowValues[c] += value;
+		}
+
+		/**
+		 * Write the pixels of the current coarse row, which get no more contributions once the fine rows move past it
+		 */
+		private void flushRow() throws IOException {
+			Arrays.sort(rowColumns, 0, numRowColumns);
+			for(int i = 0; i < numRowColumns; i++) {
+				int c = rowColumns[i];
+				writePixel(row, c, rowValues[c]);
+				rowValues[c] = 0;
+				inRow[c] = false;
+			}
+			numRowColumns = 0;
+		}
+
+		private void writePixel(int bin1, int bin2, long value) throws IOException {
+			if(chunkPixels == 0) {
+				chunkFirstKey = PixelHashMap.key(bin1, bin2);
+				lastRow = bin1;
+				lastColumn = bin1;
+			}
+			if(chunkData.length - chunkLength < 30) chunkData = Arrays.copyOf(chunkData, 2 * chunkData.length);
+			int rowDelta = bin1 - lastRow;
+			writeVarLong(rowDelta);
+			writeVarLong(rowDelta == 0 ? bin2 - lastColumn : bin2 - bin1);
+			writeVarLong(value);
+			lastRow = bin1;
+			lastColumn = bin2;
+			chunkPixels++;
+			numPixels++;
+			if(chunkPixels == pixelsPerChunk) flushChunk();
+		}
+
+		private void writeVarLong(long value) {
+			while((value & ~0x7fL) != 0) {
+				chunkData[chunkLength++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			chunkData[chunkLength++] = (byte) value;
+		}
+
+		private void flushChunk() throws IOException {
+			if(chunkPixels == 0) return;
+			long[] written = writeChunk(chunkData, chunkLength);
+			chunks.add(new long[] {chunkFirstKey, PixelHashMap.key(lastRow, lastColumn), written[0], written[1], chunkPixels});
+			chunkLength = 0;
+			chunkPixels = 0;
+		}
+
+		private void finish() throws IOException {
+			if(binOfFineBin != null) flushRow();
+			flushChunk();
+		}
+
+	}
+
+}
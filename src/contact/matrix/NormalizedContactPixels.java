@@ -0,0 +1,65 @@
+package contact.matrix;
+
+/**
+ * View of a contact matrix with balancing weights applied as the pixels are read
+ * Pixels of masked bins are left out
+ * @author prussell
+ *
+ */
+public final class NormalizedContactPixels implements ContactPixels {
+
+	private ContactPixels raw;
+	private BalancingWeights weights;
+
+	/**
+	 * @param raw Raw pixels
+	 * @param weights Balancing weights of the raw pixels
+	 */
+	public NormalizedContactPixels(ContactPixels raw, BalancingWeights weights) {
+		if(weights.getNumBins() != raw.getBins().getNumBins()) {
+			throw new IllegalArgumentException("Weights are for " + weights.getNumBins() + " bins but the matrix has " + raw.getBins().getNumBins());
+		}
+		this.raw = raw;
+		this.weights = weights;
+	}
+
+	@Override
+	public GenomeBins getBins() {
+		return raw.getBins();
+	}
+
+	/**
+	 * @return Number of stored raw pixels, including those of masked bins
+	 */
+	@Override
+	public long getNumPixels() {
+		return raw.getNumPixels();
+	}
+
+	/**
+	 * @return Balanced value, or 0 if either bin is masked
+	 */
+	@Override
+	public double get(int bin1, int bin2) {
+		if(weights.isMasked(bin1) || weights.isMasked(bin2)) return 0;
+		return weights.apply(bin1, bin2, raw.get(bin1, bin2));
+	}
+
+	@Override
+	public void forEachInRows(int firstRow, int endRow, PixelConsumer consumer) {
+		raw.forEachInRows(firstRow, endRow, normalize(consumer));
+	}
+
+	@Override
+	public void forEachInColumns(int firstColumn, int endColumn, PixelConsumer consumer) {
+		raw.forEachInColumns(firstColumn, endColumn, normalize(consumer));
+	}
+
+	private PixelConsumer normalize(PixelConsumer consumer) {
+		return (bin1, bin2, value) -> {
+			double balanced = weights.apply(bin1, bin2, value);
+			if(!Double.isNaN(balanced)) consumer.accept(bin1, bin2, balanced);
+		};
+	}
+
+}
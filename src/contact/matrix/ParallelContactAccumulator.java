@@ -0,0 +1,357 @@
+package contact.matrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.apache.log4j.Logger;
+
+import contact.FlatFragmentCluster;
+
+/**
+ * Accumulates contacts on several threads into one sparse matrix
+ * Each thread adds its contacts to its own partial matrix, so there is no locking on the hot path.
+ * When a partial matrix reaches the per-thread memory cap it is flushed as a run of pixels sorted by key and cleared.
+ * At the end, all runs are merged by a parallel reduction: the key space is split into ranges from a sample of the run keys,
+ * and each range is merged on its own thread.
+ * Values are fixed-point, so the sums do not depend on how contacts were spread over threads and the result is exactly
+ * the same as accumulating on one thread.
+ * With a spill directory, flushed runs are written to disk instead, and merged into a {@link DiskContactStore},
+ * so the heap only holds the partial matrices.
+ * Get a sink for the calling thread with {@link #sink()}, or process a stream of clusters with
+ * {@link #accumulate(Stream, ClusterContactEmitter)}, then call {@link #finish()} or {@link #finish(File)} once
+ * @author prussell
+ *
+ */
+public final class ParallelContactAccumulator {
+
+	private static Logger logger = Logger.getLogger(ParallelContactAccumulator.class.getName());
+
+	/**
+	 * Bytes of hash map per pixel at the lowest load, so a partial matrix at its pixel limit stays under the memory cap
+	 */
+	private static final int BYTES_PER_PIXEL = 64;
+
+	/**
+	 * Number of keys sampled from each run to choose the merge ranges
+	 */
+	private static final int SAMPLES_PER_RUN = 1024;
+
+	private GenomeBins bins;
+	private int numThreads;
+	private int maxPixelsPerThread;
+	private ThreadLocal<Partial> partial;
+	private ConcurrentLinkedQueue<Partial> partials;
+	private ConcurrentLinkedQueue<Run> runs;
+	private File spillDirectory; // Null to keep runs in memory
+	private ConcurrentLinkedQueue<File> spillFiles;
+	private boolean finished;
+
+	/**
+	 * @param bins Genome bins
+	 * @param numThreads Number of threads for {@link #accumulate(Stream, ClusterContactEmitter)} and for the final merge
+	 * @param maxBytesPerThread Memory cap on the partial matrix of each thread; flushed runs are kept separately at 16 bytes per pixel
+	 */
+	public ParallelContactAccumulator(GenomeBins bins, int numThreads, long maxBytesPerThread) {
+		this(bins, numThreads, maxBytesPerThread, null);
+	}
+
+	/**
+	 * @param bins Genome bins
+	 * @param numThreads Number of threads for {@link #accumulate(Stream, ClusterContactEmitter)} and for the final merge
+	 * @param maxBytesPerThread Memory cap on the partial matrix of each thread
+	 * @param spillDirectory Directory to write flushed runs to, or null to keep them in memory
+	 */
+	public ParallelContactAccumulator(GenomeBins bins, int numThreads, long maxBytesPerThread, File spillDirectory) {
+		if(numThreads < 1) throw new IllegalArgumentException("Number of threads must be at least 1");
+		if(maxBytesPerThread < 16 * BYTES_PER_PIXEL) throw new IllegalArgumentException("Memory cap per thread is too small: " + maxBytesPerThread);
+		this.bins = bins;
+		this.numThreads = numThreads;
+		maxPixelsPerThread = (int) Math.min(maxBytesPerThread / BYTES_PER_PIXEL, 1 << 28);
+		partials = new ConcurrentLinkedQueue<Partial>();
+		runs = new ConcurrentLinkedQueue<Run>();
+		this.spillDirectory = spillDirectory;
+		spillFiles = new ConcurrentLinkedQueue<File>();
+		partial = ThreadLocal.withInitial(() -> {
+			Partial rtrn = new Partial();
+			partials.add(rtrn);
+			return rtrn;
+		});
+	}
+
+	/**
+	 * @return Genome bins
+	 */
+	public GenomeBins getBins() {
+		return bins;
+	}
+
+	/**
+	 * Get the sink of the calling thread
+	 * The sink must only be used by the calling thread, and not after {@link #finish()}
+	 * @return Sink that adds contacts to the calling thread's partial matrix
+	 */
+	public ContactSink sink() {
+		if(finished) throw new IllegalStateException("Already finished");
+		return partial.get();
+	}
+
+	/**
+	 * Emit the contacts of a stream of clusters on the accumulator's threads
+	 * Can be called several times before {@link #finish()}
+	 * @param clusters Clusters; processed in parallel
+	 * @param emitter Turns each cluster into contacts
+	 */
+	public void accumulate(Stream<FlatFragmentCluster> clusters, ClusterContactEmitter emitter) {
+		if(finished) throw new IllegalStateException("Already finished");
+		run(() -> clusters.parallel().forEach(cluster -> emitter.emit(cluster, partial.get())));
+	}
+
+	/**
+	 * Run a task on a pool of the accumulator's threads; parallel streams started by the task use the same pool
+	 * @param task The task
+	 */
+	private void run(Runnable task) {
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		try {
+			pool.submit(task).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Merge all partial matrices in memory
+	 * Call once, after all threads are done adding contacts
+	 * @return The accumulated pixels on or above the diagonal
+	 */
+	public CooMatrix finish() {
+		if(spillDirectory != null) throw new IllegalStateException("Runs are spilled to disk; merge them into a contact store");
+		flushAll();
+		List<Run> allRuns = new ArrayList<Run>(runs);
+		runs.clear();
+		long numRunPixels = 0;
+		for(Run r : allRuns) numRunPixels += r.keys.length;
+		logger.info("Merging " + allRuns.size() + " runs of " + numRunPixels + " pixels...");
+		long[] splits = splitKeys(allRuns, 4 * numThreads);
+		Run[] merged = new Run[splits.length + 1];
+		run(() -> IntStream.range(0, merged.length).parallel().forEach(i -> {
+			long lo = i == 0 ? Long.MIN_VALUE : splits[i - 1];
+			long hi = i == splits.length ? Long.MAX_VALUE : splits[i];
+			merged[i] = merge(allRuns, lo, hi);
+		}));
+		int total = 0;
+		for(Run r : merged) total += r.keys.length;
+		int[] rows = new int[total];
+		int[] columns = new int[total];
+		double[] values = new double[total];
+		int n = 0;
+		for(Run r : merged) {
+			for(int i = 0; i < r.keys.length; i++) {
+				rows[n] = PixelHashMap.bin1(r.keys[i]);
+				columns[n] = PixelHashMap.bin2(r.keys[i]);
+				values[n] = FixedPoint.toDouble(r.values[i]);
+				n++;
+			}
+		}
+		logger.info("Merged into " + total + " pixels.");
+		return new CooMatrix(bins.getNumBins(), rows, columns, values);
+	}
+
+	/**
+	 * Merge all partial matrices and spilled runs into a contact store on disk
+	 * Call once, after all threads are done adding contacts
+	 * @param storeFile Store file to write
+	 * @return The store, open for reading
+	 * @throws IOException
+	 */
+	public DiskContactStore finish(File storeFile) throws IOException {
+		flushAll();
+		List<SortedPixelRun> allRuns = new ArrayList<SortedPixelRun>();
+		for(Run r : runs) allRuns.add(SortedPixelRun.of(r.keys, r.values));
+		for(File f : spillFiles) allRuns.add(SortedPixelRun.open(f));
+		runs.clear();
+		spillFiles.clear();
+		// The partial matrices are released, so their memory goes to sorting the column copy
+		return DiskContactStore.build(storeFile, bins, allRuns, (long) numThreads * maxPixelsPerThread * BYTES_PER_PIXEL);
+	}
+
+	/**
+	 * Flush the partial matrices of all threads, which must be done adding contacts
+	 */
+	private void flushAll() {
+		if(finished) throw new IllegalStateException("Already finished");
+		finished = true;
+		for(Partial p : partials) {
+			p.flush();
+			p.map = null;
+		}
+		partials.clear();
+	}
+
+	/**
+	 * Choose keys that split the runs into ranges of about the same number of pixels
+	 * @param allRuns Sorted runs
+	 * @param numParts Target number of ranges
+	 * @return Distinct sorted split keys; range i is from split i-1 inclusive to split i exclusive
+	 */
+	private static long[] splitKeys(List<Run> allRuns, int numParts) {
+		int numSamples = 0;
+		for(Run r : allRuns) numSamples += Math.min(r.keys.length, SAMPLES_PER_RUN);
+		long[] sample = new long[numSamples];
+		int s = 0;
+		for(Run r : allRuns) {
+			int k = Math.min(r.keys.length, SAMPLES_PER_RUN);
+			for(int i = 0; i < k; i++) sample[s++] = r.keys[(int) ((long) i * r.keys.length / k)];
+		}
+		Arrays.sort(sample);
+		long[] rtrn = new long[Math.max(0, numParts - 1)];
+		int n = 0;
+		for(int p = 1; p < numParts && numSamples > 0; p++) {
+			long split = sample[(int) ((long) p * numSamples / numParts)];
+			if(n == 0 || split > rtrn[n - 1]) rtrn[n++] = split;
+		}
+		return Arrays.copyOf(rtrn, n);
+	}
+
+	/**
+	 * Merge the pixels of all runs in a key range, summing the values of equal keys
+	 * @param allRuns Sorted runs
+	 * @param lo First key of the range
+	 * @param hi End key of the range, exclusive
+	 * @return Merged run
+	 */
+	private static Run merge(List<Run> allRuns, long lo, long hi) {
+		int k = allRuns.size();
+		Run[] r = new Run[k];
+		int[] pos = new int[k];
+		int[] end = new int[k];
+		int[] heap = new int[k];
+		int heapSize = 0;
+		int maxSize = 0;
+		for(int i = 0; i < k; i++) {
+			r[i] = allRuns.get(i);
+			pos[i] = lowerBound(r[i].keys, lo);
+			end[i] = lowerBound(r[i].keys, hi);
+			maxSize += end[i] - pos[i];
+			if(pos[i] < end[i]) heap[heapSize++] = i;
+		}
+		for(int i = heapSize / 2 - 1; i >= 0; i--) siftDown(heap, heapSize, i, r, pos);
+		long[] keys = new long[maxSize];
+		long[] values = new long[maxSize];
+		int n = 0;
+		while(heapSize > 0) {
+			int top = heap[0];
+			long key = r[top].keys[pos[top]];
+			long value = r[top].values[pos[top]];
+			if(n > 0 && keys[n - 1] == key) {
+				values[n - 1] += value;
+			} else {
+				keys[n] = key;
+				values[n] = value;
+				n++;
+			}
+			if(++pos[top] == end[top]) heap[0] = heap[--heapSize];
+			siftDown(heap, heapSize, 0, r, pos);
+		}
+		return new Run(Arrays.copyOf(keys, n), Arrays.copyOf(values, n));
+	}
+
+	private static void siftDown(int[] heap, int heapSize, int i, Run[] r, int[] pos) {
+		while(true) {
+			int smallest = i;
+			int left = 2 * i + 1;
+			int right = left + 1;
+			if(left < heapSize && r[heap[left]].keys[pos[heap[left]]] < r[heap[smallest]].keys[pos[heap[smallest]]]) smallest = left;
+			if(right < heapSize && r[heap[right]].keys[pos[heap[right]]] < r[heap[smallest]].keys[pos[heap[smallest]]]) smallest = right;
+			if(smallest == i) return;
+			int tmp = heap[i];
+			heap[i] = heap[smallest];
+			heap[smallest] = tmp;
+			i = smallest;
+		}
+	}
+
+	/**
+	 * @param sorted Sorted keys
+	 * @param key Key
+	 * @return Index of the first element not less than the key
+	 */
+	private static int lowerBound(long[] sorted, long key) {
+		int lo = 0;
+		int hi = sorted.length;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if(sorted[mid] < key) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Pixels sorted by key
+	 */
+	private static final class Run {
+
+		private long[] keys;
+		private long[] values;
+
+		private Run(long[] keys, long[] values) {
+			this.keys = keys;
+			this.values = values;
+		}
+
+	}
+
+	/**
+	 * Partial matrix of one thread
+	 */
+	private final class Partial implements ContactSink {
+
+		private PixelHashMap map = new PixelHashMap(Math.min(maxPixelsPerThread, 1 << 16));
+
+		@Override
+		public void addContact(int bin1, int bin2, long value) {
+			if(bin1 < 0 || bin2 < 0) return;
+			map.add(bin1 <= bin2 ? PixelHashMap.key(bin1, bin2) : PixelHashMap.key(bin2, bin1), value);
+			if(map.size() >= maxPixelsPerThread) flush();
+		}
+
+		/**
+		 * Move the pixels to a sorted run in memory or on disk and clear the map
+		 */
+		private void flush() {
+			int n = map.size();
+			if(n == 0) return;
+			long[] keys = new long[n];
+			long[] values = new long[n];
+			map.toSortedArrays(keys, values);
+			if(spillDirectory == null || finished) {
+				runs.add(new Run(keys, values));
+			} else {
+				try {
+					spillFiles.add(SortedPixelRun.spill(keys, values, n, spillDirectory));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			map.clear();
+		}
+
+	}
+
+}
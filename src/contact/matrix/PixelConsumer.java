@@ -0,0 +1,18 @@
+package contact.matrix;
+
+/**
+ * Receives the pixels of a contact matrix one at a time
+ * @author prussell
+ *
+ */
+@FunctionalInterface
+public interface PixelConsumer {
+
+	/**
+	 * @param bin1 Row bin
+	 * @param bin2 Column bin
+	 * @param value Contact value
+	 */
+	public void accept(int bin1, int bin2, double value);
+
+}
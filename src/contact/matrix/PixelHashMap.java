@@ -0,0 +1,156 @@
+package contact.matrix;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from bin pairs to fixed-point contact values, stored in primitive arrays
+ * The two bins are packed into one long key, so there is no boxing and no per-entry object
+ * Instances are not thread safe
+ * @author prussell
+ *
+ */
+final class PixelHashMap {
+
+	private static final long EMPTY = -1; // Not a valid key, since bins are non-negative
+	private static final double MAX_LOAD = 0.6;
+
+	private long[] keys;
+	private long[] values;
+	private int mask;
+	private int size;
+
+	/**
+	 * @param expectedSize Expected number of pixels
+	 */
+	PixelHashMap(int expectedSize) {
+		long needed = (long) (expectedSize / MAX_LOAD) + 1;
+		int capacity = 16;
+		while(capacity < needed && capacity < 1 << 30) capacity <<= 1;
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		values = new long[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * @param bin1 Row bin
+	 * @param bin2 Column bin
+	 * @return The two bins packed in a key that sorts by row then column
+	 */
+	static long key(int bin1, int bin2) {
+		return ((long) bin1 << 32) | (bin2 & 0xffffffffL);
+	}
+
+	/**
+	 * @param key Packed key
+	 * @return Row bin
+	 */
+	static int bin1(long key) {
+		return (int) (key >>> 32);
+	}
+
+	/**
+	 * @param key Packed key
+	 * @return Column bin
+	 */
+	static int bin2(long key) {
+		return (int) key;
+	}
+
+	private static int slot(long key, int mask) {
+		long h = key * 0x9e3779b97f4a7c15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	/**
+	 * Add to the value of a pixel
+	 * @param key Packed key
+	 * @param value Fixed-point value to add
+	 */
+	void add(long key, long value) {
+		int i = slot(key, mask);
+		while(true) {
+			long k = keys[i];
+			if(k == key) {
+				values[i] += value;
+				return;
+			}
+			if(k == EMPTY) {
+				keys[i] = key;
+				values[i] = value;
+				if(++size > MAX_LOAD * keys.length) grow();
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	/**
+	 * @param key Packed key
+	 * @return Fixed-point value of the pixel, or 0 if not present
+	 */
+	long get(long key) {
+		int i = slot(key, mask);
+		while(true) {
+			long k = keys[i];
+			if(k == key) return values[i];
+			if(k == EMPTY) return 0;
+			i = (i + 1) & mask;
+		}
+	}
+
+	/**
+	 * @return Number of pixels
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return Approximate number of bytes used by the arrays
+	 */
+	long getNumBytes() {
+		return 16L * keys.length;
+	}
+
+	/**
+	 * Remove all pixels, keeping the allocated arrays
+	 */
+	void clear() {
+		Arrays.fill(keys, EMPTY);
+		size = 0;
+	}
+
+	private void grow() {
+		if(keys.length == 1 << 30) throw new IllegalStateException("Pixel hash map is full");
+		long[] oldKeys = keys;
+		long[] oldValues = values;
+		allocate(2 * oldKeys.length);
+		for(int j = 0; j < oldKeys.length; j++) {
+			if(oldKeys[j] == EMPTY) continue;
+			int i = slot(oldKeys[j], mask);
+			while(keys[i] != EMPTY) i = (i + 1) & mask;
+			keys[i] = oldKeys[j];
+			values[i] = oldValues[j];
+		}
+	}
+
+	/**
+	 * Copy the pixels into arrays sorted by key
+	 * @param sortedKeys Array to receive the keys, at least {@link #size()} long
+	 * @param sortedValues Array to receive the values, at least {@link #size()} long
+	 */
+	void toSortedArrays(long[] sortedKeys, long[] sortedValues) {
+		int n = 0;
+		for(int j = 0; j < keys.length; j++) {
+			if(keys[j] != EMPTY) sortedKeys[n++] = keys[j];
+		}
+		Arrays.sort(sortedKeys, 0, n);
+		for(int i = 0; i < n; i++) sortedValues[i] = get(sortedKeys[i]);
+	}
+
+}
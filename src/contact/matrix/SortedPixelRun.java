@@ -0,0 +1,134 @@
+package contact.matrix;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Cursor over a run of fixed-point pixels sorted by packed key, held in memory or in a spill file
+ * Spill files hold the key and value of each pixel as two longs, and are only opened when the first pixel is read,
+ * so a merge can hold many runs and open a limited number at a time
+ * @author prussell
+ *
+ */
+abstract class SortedPixelRun implements Closeable {
+
+	private long key;
+	private long value;
+
+	/**
+	 * Move to the next pixel
+	 * @return False if there are no more pixels
+	 * @throws IOException
+	 */
+	abstract boolean next() throws IOException;
+
+	/**
+	 * @return Number of pixels in the run
+	 */
+	abstract long getNumPixels();
+
+	/**
+	 * @return Packed key of the current pixel
+	 */
+	final long getKey() {
+		return key;
+	}
+
+	/**
+	 * @return Fixed-point value of the current pixel
+	 */
+	final long getValue() {
+		return value;
+	}
+
+	final void set(long newKey, long newValue) {
+		key = newKey;
+		value = newValue;
+	}
+
+	/**
+	 * @param keys Sorted keys
+	 * @param values Values
+	 * @return Run over the arrays
+	 */
+	static SortedPixelRun of(long[] keys, long[] values) {
+		return new SortedPixelRun() {
+			private int i = -1;
+			@Override
+			boolean next() {
+				if(++i >= keys.length) return false;
+				set(keys[i], values[i]);
+				return true;
+			}
+			@Override
+			long getNumPixels() {
+				return keys.length;
+			}
+			@Override
+			public void close() {}
+		};
+	}
+
+	/**
+	 * Write a run to a spill file
+	 * @param keys Sorted keys
+	 * @param values Values
+	 * @param n Number of pixels
+	 * @param directory Directory for the spill file
+	 * @return The spill file, deleted when the run read from it is closed
+	 * @throws IOException
+	 */
+	static File spill(long[] keys, long[] values, int n, File directory) throws IOException {
+		File rtrn = File.createTempFile("contacts", ".run", directory);
+		rtrn.deleteOnExit();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(rtrn), 1 << 20));
+		for(int i = 0; i < n; i++) {
+			out.writeLong(keys[i]);
+			out.writeLong(values[i]);
+		}
+		out.close();
+		return rtrn;
+	}
+
+	/**
+	 * @param spillFile Spill file written by {@link #spill(long[], long[], int, File)}
+	 * @return Run over the file, which is opened by the first call to {@link #next()}; the file is deleted when the run is closed
+	 */
+	static SortedPixelRun open(File spillFile) {
+		long numPixels = spillFile.length() / 16;
+		return new SortedPixelRun() {
+			private DataInputStream in;
+			private long i;
+			@Override
+			boolean next() throws IOException {
+				if(i == numPixels) return false;
+				if(in == null) in = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile), 1 << 16));
+				try {
+					set(in.readLong(), in.readLong());
+				} catch (EOFException e) {
+					throw new IOException("Truncated spill file " + spillFile, e);
+				}
+				i++;
+				return true;
+			}
+			@Override
+			long getNumPixels() {
+				return numPixels;
+			}
+			@Override
+			public void close() throws IOException {
+				if(in != null) in.close();
+				spillFile.delete();
+			}
+		};
+	}
+
+}
@@ -0,0 +1,249 @@
+package contact.matrix;
+
+import guttmanlab.core.annotation.Annotation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import org.apache.log4j.Logger;
+
+import Jama.Matrix;
+import contact.FragmentCluster;
+
+/**
+ * Contact matrix over fixed-size genomic bins that stores only the non-zero pixels, in a primitive hash map keyed by the packed bin pair
+ * Locations are summarized by their bin number in {@link GenomeBins}; only pixels on or above the diagonal are stored
+ * Values are fixed-point (see {@link FixedPoint}), so fractional weights add up exactly in any order
+ * Sorted coordinate and compressed sparse row forms are built on demand, and dense matrices only for windows up to {@link #MAX_DENSE_DIMENSION} bins
+ * Instances are mutable and not thread safe
+ * @author prussell
+ *
+ * @param <T> Annotation type for fragment clusters
+ * @param <S> Collection type for fragment clusters
+ */
+public class SparseContactMatrix<T extends Annotation, S extends Collection<T>> extends ContactMatrix<T, S, Integer> implements ContactSink {
+
+	private static Logger logger = Logger.getLogger(SparseContactMatrix.class.getName());
+
+	/**
+	 * Maximum number of rows or columns of a dense matrix returned by getMatrix
+	 */
+	public static final int MAX_DENSE_DIMENSION = 10000;
+
+	private GenomeBins bins;
+	private PixelHashMap pixels;
+
+	/**
+	 * @param bins Genome bins
+	 */
+	public SparseContactMatrix(GenomeBins bins) {
+		this(bins, 1 << 16);
+	}
+
+	/**
+	 * @param bins Genome bins
+	 * @param expectedNumPixels Expected number of non-zero pixels, to size the hash map
+	 */
+	public SparseContactMatrix(GenomeBins bins, int expectedNumPixels) {
+		this.bins = bins;
+		pixels = new PixelHashMap(expectedNumPixels);
+	}
+
+	/**
+	 * @return Genome bins
+	 */
+	public GenomeBins getBins() {
+		return bins;
+	}
+
+	/**
+	 * @return Function summarizing a location by the bin of its start position, or -1 if it is outside the genome
+	 */
+	public Function<T, Integer> binFunction() {
+		return location -> Integer.valueOf(bins.getBin(location.getReferenceName(), location.getReferenceStartPosition()));
+	}
+
+	/**
+	 * Add all contacts represented by a fragment cluster, summarizing each location by its bin
+	 * @param fragmentCluster A collection of mapped fragments whose locations are assumed to contact each other
+	 */
+	public void addContacts(FragmentCluster<T, S> fragmentCluster) {
+		addContacts(fragmentCluster, binFunction());
+	}
+
+	@Override
+	public void addContact(Integer location1summary, Integer location2summary) {
+		addContact(location1summary.intValue(), location2summary.intValue(), FixedPoint.ONE);
+	}
+
+	/**
+	 * Add a weighted contact between two bins; contacts with a bin outside the genome (-1) are ignored
+	 * @param bin1 One bin
+	 * @param bin2 Other bin
+	 * @param value Fixed-point weight
+	 */
+	@Override
+	public void addContact(int bin1, int bin2, long value) {
+		if(bin1 < 0 || bin2 < 0) return;
+		if(bin1 > bin2) {
+			int tmp = bin1;
+			bin1 = bin2;
+			bin2 = tmp;
+		}
+		pixels.add(PixelHashMap.key(bin1, bin2), value);
+	}
+
+	/**
+	 * @param bin1 One bin
+	 * @param bin2 Other bin
+	 * @return Contact value between the bins
+	 */
+	public double getContact(int bin1, int bin2) {
+		return FixedPoint.toDouble(pixels.get(PixelHashMap.key(Math.min(bin1, bin2), Math.max(bin1, bin2))));
+	}
+
+	/**
+	 * @return Number of non-zero pixels on or above the diagonal
+	 */
+	public int getNumPixels() {
+		return pixels.size();
+	}
+
+	/**
+	 * @return The pixels on or above the diagonal in coordinate format, sorted by row then column
+	 */
+	public CooMatrix toCOO() {
+		int n = pixels.size();
+		long[] keys = new long[n];
+		long[] values = new long[n];
+		pixels.toSortedArrays(keys, values);
+		int[] rows = new int[n];
+		int[] columns = new int[n];
+		double[] doubleValues = new double[n];
+		for(int i = 0; i < n; i++) {
+			rows[i] = PixelHashMap.bin1(keys[i]);
+			columns[i] = PixelHashMap.bin2(keys[i]);
+			doubleValues[i] = FixedPoint.toDouble(values[i]);
+		}
+		return new CooMatrix(bins.getNumBins(), rows, columns, doubleValues);
+	}
+
+	/**
+	 * @return The pixels on or above the diagonal in compressed sparse row format
+	 */
+	public CsrMatrix toCSR() {
+		return toCOO().toCSR();
+	}
+
+	/**
+	 * Get a dense symmetric matrix after mapping each bin to a matrix index, e.g. to combine bins
+	 * @param binSizeAndLocationToBin Function accepting the bin size and a bin, and returning the matrix index, or a negative number to leave it out
+	 * @return Matrix where each cell contains the sum of contacts between the bins mapped to it
+	 * @throws IllegalStateException If the matrix would have more than {@link #MAX_DENSE_DIMENSION} rows; use {@link #getMatrix(int, int, int, int)}
+	 */
+	@Override
+	public Matrix getMatrix(BiFunction<Integer, Integer, Integer> binSizeAndLocationToBin) {
+		Integer binSize = Integer.valueOf(bins.getBinSize());
+		int[] index = new int[bins.getNumBins()];
+		int dimension = 0;
+		for(int b = 0; b < index.length; b++) {
+			index[b] = binSizeAndLocationToBin.apply(binSize, Integer.valueOf(b)).intValue();
+			dimension = Math.max(dimension, index[b] + 1);
+		}
+		checkDimension(dimension, dimension);
+		Matrix rtrn = new Matrix(dimension, dimension);
+		double[][] a = rtrn.getArray();
+		CooMatrix coo = toCOO();
+		for(int i = 0; i < coo.getNumPixels(); i++) {
+			int r = index[coo.getRow(i)];
+			int c = index[coo.getColumn(i)];
+			if(r < 0 || c < 0) continue;
+			a[r][c] += coo.getValue(i);
+			if(r != c) a[c][r] += coo.getValue(i);
+		}
+		return rtrn;
+	}
+
+	/**
+	 * Get a dense matrix of a window of bins
+	 * @param firstRow First row bin
+	 * @param endRow Row bin after the last row
+	 * @param firstColumn First column bin
+	 * @param endColumn Column bin after the last column
+	 * @return Matrix of contact values, with element [i][j] for bins firstRow + i and firstColumn + j
+	 */
+	public Matrix getMatrix(int firstRow, int endRow, int firstColumn, int endColumn) {
+		if(firstRow < 0 || firstColumn < 0 || endRow > bins.getNumBins() || endColumn > bins.getNumBins() || firstRow > endRow || firstColumn > endColumn) {
+			throw new IllegalArgumentException("Invalid window " + firstRow + "-" + endRow + " x " + firstColumn + "-" + endColumn);
+		}
+		checkDimension(endRow - firstRow, endColumn - firstColumn);
+		Matrix rtrn = new Matrix(endRow - firstRow, endColumn - firstColumn);
+		double[][] a = rtrn.getArray();
+		long window = (long) (endRow - firstRow) * (endColumn - firstColumn);
+		if(window < pixels.size()) {
+			// Small window: look up each cell
+			for(int r = firstRow; r < endRow; r++) {
+				for(int c = firstColumn; c < endColumn; c++) {
+					a[r - firstRow][c - firstColumn] = getContact(r, c);
+				}
+			}
+			return rtrn;
+		}
+		CooMatrix coo = toCOO();
+		for(int i = 0; i < coo.getNumPixels(); i++) {
+			int r = coo.getRow(i);
+			int c = coo.getColumn(i);
+			if(r >= firstRow && r < endRow && c >= firstColumn && c < endColumn) a[r - firstRow][c - firstColumn] = coo.getValue(i);
+			if(r != c && c >= firstRow && c < endRow && r >= firstColumn && r < endColumn) a[c - firstRow][r - firstColumn] = coo.getValue(i);
+		}
+		return rtrn;
+	}
+
+	private static void checkDimension(int numRows, int numColumns) {
+		if(numRows > MAX_DENSE_DIMENSION || numColumns > MAX_DENSE_DIMENSION) {
+			throw new IllegalStateException("Dense matrix of " + numRows + " x " + numColumns + " bins is too large; request a smaller window");
+		}
+	}
+
+	/**
+	 * Write the non-zero pixels as a binary contact matrix file with the default zoom levels
+	 * Read it back with {@link MatrixFileReader}
+	 */
+	@Override
+	public void writeMatrix(File outFile) {
+		logger.info("Writing " + pixels.size() + " pixels to " + outFile + "...");
+		try {
+			MatrixFileWriter.write(outFile, toCOO(), bins);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Write the non-zero pixels on or above the diagonal as tab delimited text sorted by bin:
+	 * reference1 start1 reference2 start2 value
+	 * @param outFile Output file
+	 */
+	public void writeText(File outFile) {
+		logger.info("Writing " + pixels.size() + " pixels to " + outFile + "...");
+		toCOO().writeText(outFile, bins);
+	}
+
+	/**
+	 * Write a heatmap of the whole matrix as a PNG; see {@link HeatmapRenderer#writeOverview(ContactPixels, File)}
+	 * @param outFile Output file
+	 */
+	@Override
+	public void writeImage(File outFile) {
+		try {
+			HeatmapRenderer.writeOverview(new InMemoryContactPixels(bins, toCOO()), outFile);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+}
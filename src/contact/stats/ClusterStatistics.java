@@ -0,0 +1,269 @@
+package contact.stats;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import guttmanlab.core.annotation.Annotation;
+import util.CountMinSketch;
+import util.HyperLogLog;
+import contact.FlatFragmentCluster;
+import contact.FragmentCluster;
+
+/**
+ * Statistics on clusters collected in one pass as the clusters stream past, for QC and for choosing parameters
+ * Collects exact histograms of cluster size and of clusters and reads by number of barcodes, the fraction of inter-chromosomal clusters,
+ * a HyperLogLog estimate of the number of distinct barcode sequences, and Count-Min estimates of the reads per barcode sequence
+ * with the largest barcode sequences
+ * Sketches count a barcode sequence across all its clusters, so the estimates are also correct for input that is not grouped by barcode
+ * Attach to a cluster iterator with collectStatistics(), or call add() directly; write the report with {@link #writeReport(File)}
+ * Instances are not thread safe
+ * @author prussell
+ *
+ */
+public final class ClusterStatistics {
+
+	private static Logger logger = Logger.getLogger(ClusterStatistics.class.getName());
+
+	/**
+	 * Clusters with at least this many locations share the last bin of the size histogram
+	 */
+	public static final int MAX_TRACKED_SIZE = 1000;
+
+	/**
+	 * Clusters with at least this many barcodes share the last bin of the barcode histograms
+	 */
+	public static final int MAX_TRACKED_BARCODES = 32;
+
+	/**
+	 * Number of largest barcode sequences reported
+	 */
+	public static final int NUM_LARGEST = 20;
+
+	private long numClusters;
+	private long numLocations;
+	private long[] clustersBySize;
+	private long[] clustersByNumBarcodes;
+	private long[] readsByNumBarcodes;
+	private long numMultiLocation;
+	private long numInterChromosomal;
+	private HyperLogLog distinctBarcodes;
+	private CountMinSketch readsPerBarcode;
+	private String[] largest; // Largest barcode sequences by estimated reads, unordered
+	private long[] largestReads;
+	private int numLargest;
+	private int smallestOfLargest; // Index in largest of the entry with fewest reads, when full
+	private long startTime;
+
+	public ClusterStatistics() {
+		clustersBySize = new long[MAX_TRACKED_SIZE + 1];
+		clustersByNumBarcodes = new long[MAX_TRACKED_BARCODES + 1];
+		readsByNumBarcodes = new long[MAX_TRACKED_BARCODES + 1];
+		distinctBarcodes = new HyperLogLog(14);
+		readsPerBarcode = new CountMinSketch(4, 16);
+		largest = new String[NUM_LARGEST];
+		largestReads = new long[NUM_LARGEST];
+		startTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Add a cluster
+	 * @param cluster The cluster
+	 */
+	public <T extends Annotation, S extends Collection<T>> void add(FragmentCluster<T, S> cluster) {
+		boolean interChromosomal = false;
+		Iterator<T> iter = cluster.getLocations().iterator();
+		if(iter.hasNext()) {
+			String firstRef = iter.next().getReferenceName();
+			while(!interChromosomal && iter.hasNext()) {
+				interChromosomal = !firstRef.equals(iter.next().getReferenceName());
+			}
+		}
+		add(cluster.getBarcodes().toSamAttributeString(), cluster.getNumBarcodes(), cluster.getNumLocations(), interChromosomal);
+	}
+
+	/**
+	 * Add a cluster
+	 * @param cluster The cluster
+	 */
+	public void add(FlatFragmentCluster cluster) {
+		int n = cluster.getNumLocations();
+		boolean interChromosomal = false;
+		for(int i = 1; i < n && !interChromosomal; i++) {
+			interChromosomal = cluster.getReferenceIndex(i) != cluster.getReferenceIndex(0);
+		}
+		add(cluster.getSamAttributeString(), cluster.getNumBarcodes(), n, interChromosomal);
+	}
+
+	/**
+	 * Add a cluster
+	 * @param barcodeSamAttributeString SAM attribute string of the barcode sequence
+	 * @param numBarcodes Number of barcodes
+	 * @param size Number of locations
+	 * @param interChromosomal Whether the locations are on more than one reference
+	 */
+	public void add(String barcodeSamAttributeString, int numBarcodes, int size, boolean interChromosomal) {
+		numClusters++;
+		numLocations += size;
+		clustersBySize[Math.min(size, MAX_TRACKED_SIZE)]++;
+		int b = Math.min(numBarcodes, MAX_TRACKED_BARCODES);
+		clustersByNumBarcodes[b]++;
+		readsByNumBarcodes[b] += size;
+		if(size > 1) {
+			numMultiLocation++;
+			if(interChromosomal) numInterChromosomal++;
+		}
+		long hash = HyperLogLog.hash(barcodeSamAttributeString);
+		distinctBarcodes.add(hash);
+		long reads = readsPerBarcode.add(hash, size);
+		updateLargest(barcodeSamAttributeString, reads);
+	}
+
+	/**
+	 * Keep a barcode sequence among the largest if its estimated reads are large enough
+	 * @param barcodes SAM attribute string of the barcode sequence
+	 * @param reads Estimated reads
+	 */
+	private void updateLargest(String barcodes, long reads) {
+		if(numLargest == NUM_LARGEST && reads <= largestReads[smallestOfLargest]) {
+			return;
+		}
+		for(int i = 0; i < numLargest; i++) {
+			if(largest[i].equals(barcodes)) {
+				largestReads[i] = reads;
+				if(i == smallestOfLargest) findSmallestOfLargest();
+				return;
+			}
+		}
+		if(numLargest < NUM_LARGEST) {
+			largest[numLargest] = barcodes;
+			largestReads[numLargest] = reads;
+			numLargest++;
+		} else {
+			largest[smallestOfLargest] = barcodes;
+			largestReads[smallestOfLargest] = reads;
+		}
+		findSmallestOfLargest();
+	}
+
+	private void findSmallestOfLargest() {
+		smallestOfLargest = 0;
+		for(int i = 1; i < numLargest; i++) {
+			if(largestReads[i] < largestReads[smallestOfLargest]) smallestOfLargest = i;
+		}
+	}
+
+	/**
+	 * @return Number of clusters added
+	 */
+	public long getNumClusters() {
+		return numClusters;
+	}
+
+	/**
+	 * @return Number of locations in all clusters added
+	 */
+	public long getNumLocations() {
+		return numLocations;
+	}
+
+	/**
+	 * @return Fraction of clusters with more than one location whose locations are on more than one reference
+	 */
+	public double getInterChromosomalFraction() {
+		return numMultiLocation == 0 ? 0 : (double) numInterChromosomal / numMultiLocation;
+	}
+
+	/**
+	 * @return Estimated number of distinct barcode sequences
+	 */
+	public long getNumDistinctBarcodeSequencesEstimate() {
+		return distinctBarcodes.estimate();
+	}
+
+	/**
+	 * @param barcodeSamAttributeString SAM attribute string of a barcode sequence
+	 * @return Estimated number of reads with the barcode sequence; never less than the true number
+	 */
+	public long getReadsEstimate(String barcodeSamAttributeString) {
+		return readsPerBarcode.estimate(HyperLogLog.hash(barcodeSamAttributeString));
+	}
+
+	/**
+	 * @return The report as a JSON object
+	 */
+	public JSONObject toJson() {
+		try {
+			JSONObject rtrn = new JSONObject();
+			rtrn.put("clusters", numClusters);
+			rtrn.put("locations", numLocations);
+			rtrn.put("meanLocationsPerCluster", numClusters == 0 ? 0 : (double) numLocations / numClusters);
+			rtrn.put("clustersWithMultipleLocations", numMultiLocation);
+			rtrn.put("interChromosomalClusters", numInterChromosomal);
+			rtrn.put("interChromosomalFraction", getInterChromosomalFraction());
+			rtrn.put("distinctBarcodeSequencesEstimate", getNumDistinctBarcodeSequencesEstimate());
+			JSONArray sizes = new JSONArray();
+			for(int i = 0; i < clustersBySize.length; i++) {
+				if(clustersBySize[i] == 0) continue;
+				JSONObject bin = new JSONObject();
+				bin.put("size", i == MAX_TRACKED_SIZE ? i + "+" : Integer.toString(i));
+				bin.put("clusters", clustersBySize[i]);
+				sizes.put(bin);
+			}
+			rtrn.put("clusterSizeHistogram", sizes);
+			JSONArray barcodes = new JSONArray();
+			for(int i = 0; i < clustersByNumBarcodes.length; i++) {
+				if(clustersByNumBarcodes[i] == 0) continue;
+				JSONObject bin = new JSONObject();
+				bin.put("numBarcodes", i == MAX_TRACKED_BARCODES ? i + "+" : Integer.toString(i));
+				bin.put("clusters", clustersByNumBarcodes[i]);
+				bin.put("reads", readsByNumBarcodes[i]);
+				barcodes.put(bin);
+			}
+			rtrn.put("byNumBarcodes", barcodes);
+			Integer[] order = new Integer[numLargest];
+			for(int i = 0; i < numLargest; i++) order[i] = Integer.valueOf(i);
+			Arrays.sort(order, (i, j) -> Long.compare(largestReads[j.intValue()], largestReads[i.intValue()]));
+			JSONArray top = new JSONArray();
+			for(Integer i : order) {
+				JSONObject entry = new JSONObject();
+				entry.put("barcodes", largest[i.intValue()]);
+				entry.put("estimatedReads", largestReads[i.intValue()]);
+				top.put(entry);
+			}
+			rtrn.put("largestBarcodeSequences", top);
+			rtrn.put("elapsedSeconds", (System.currentTimeMillis() - startTime) / 1000.0);
+			return rtrn;
+		} catch (JSONException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Write the report as JSON
+	 * @param file Output file
+	 */
+	public void writeReport(File file) {
+		logger.info("Writing statistics on " + numClusters + " clusters to " + file + "...");
+		try {
+			FileWriter writer = new FileWriter(file);
+			writer.write(toJson().toString(2));
+			writer.write("\n");
+			writer.close();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} catch (JSONException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -0,0 +1,349 @@
+package contact.stats;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+import org.apache.log4j.Logger;
+
+import contact.FlatFragmentCluster;
+import contact.matrix.ClusterContactEmitter.Weighting;
+import contact.matrix.FixedPoint;
+import guttmanlab.core.util.CommandLineParser;
+
+/**
+ * Contact probability against genomic distance, P(s), computed straight from clusters without building a matrix
+ * Every pair of distinct positions of a cluster on the same reference is counted in a log-spaced distance bin, with weight 1 or 2/n
+ * for a cluster of n locations, like {@link contact.matrix.ClusterContactEmitter}. Within a reference the positions are sorted,
+ * so small clusters walk their pairs with a bin pointer that only moves forward, and large clusters count the pairs closer than
+ * each bin edge with a sliding window, in time linear in the cluster size per bin edge instead of quadratic.
+ * Each thread adds to its own counters, which are merged by {@link #finish()}. Counts are fixed-point, so the result does not
+ * depend on the number of threads. Memory does not depend on the number of clusters.
+ * @author prussell
+ *
+ */
+public final class DistanceDecay {
+
+	private static Logger logger = Logger.getLogger(DistanceDecay.class.getName());
+
+	/**
+	 * Default number of distance bins per factor of 10
+	 */
+	public static final int DEFAULT_BINS_PER_DECADE = 10;
+
+	private Weighting weighting;
+	private int maxClusterSize;
+	private int numThreads;
+	private long[] edges;
+	private ThreadLocal<Partial> partial;
+	private ConcurrentLinkedQueue<Partial> partials;
+	private Partial total; // Null until finished
+
+	/**
+	 * @param weighting Weight of each pair of positions
+	 * @param maxClusterSize Clusters with more locations than this are skipped
+	 * @param minDistance Start of the first distance bin, at least 1; closer pairs are only counted in total
+	 * @param maxDistance End of the last distance bin; farther pairs are only counted in total
+	 * @param binsPerDecade Number of distance bins per factor of 10
+	 * @param numThreads Number of threads for {@link #accumulate(Stream)}
+	 */
+	public DistanceDecay(Weighting weighting, int maxClusterSize, int minDistance, int maxDistance, int binsPerDecade, int numThreads) {
+		if(maxClusterSize < 2) throw new IllegalArgumentException("Max cluster size must be at least 2");
+		if(minDistance < 1 || maxDistance <= minDistance) throw new IllegalArgumentException("Invalid distance range " + minDistance + "-" + maxDistance);
+		if(binsPerDecade < 1) throw new IllegalArgumentException("Bins per decade must be at least 1");
+		if(numThreads < 1) throw new IllegalArgumentException("Number of threads must be at least 1");
+		this.weighting = weighting;
+		this.maxClusterSize = maxClusterSize;
+		this.numThreads = numThreads;
+		edges = logEdges(minDistance, maxDistance, binsPerDecade);
+		partials = new ConcurrentLinkedQueue<Partial>();
+		partial = ThreadLocal.withInitial(() -> {
+			Partial rtrn = new Partial();
+			partials.add(rtrn);
+			return rtrn;
+		});
+	}
+
+	/**
+	 * Add the options to a command line parser
+	 * @param p Command line parser
+	 */
+	public static void addCommandLineOptions(CommandLineParser p) {
+		p.addStringArg("-weighting", "Weight of each pair of positions: UNIT or TWO_OVER_N", false, Weighting.UNIT.toString());
+		p.addIntArg("-maxContactClusterSize", "Clusters with more locations than this are skipped", false, 1000);
+		p.addIntArg("-minSeparation", "Start of the first distance bin", false, 1000);
+		p.addIntArg("-maxSeparation", "End of the last distance bin", false, 1000000000);
+		p.addIntArg("-binsPerDecade", "Number of distance bins per factor of 10", false, DEFAULT_BINS_PER_DECADE);
+	}
+
+	/**
+	 * Get the curve from a command line parser that has already parsed the arguments
+	 * @param p Command line parser with options added by {@link #addCommandLineOptions(CommandLineParser)}
+	 * @param numThreads Number of threads
+	 * @return The curve, ready to add clusters to
+	 */
+	public static DistanceDecay fromCommandLine(CommandLineParser p, int numThreads) {
+		return new DistanceDecay(Weighting.valueOf(p.getStringArg("-weighting")), p.getIntArg("-maxContactClusterSize"),
+				p.getIntArg("-minSeparation"), p.getIntArg("-maxSeparation"), p.getIntArg("-binsPerDecade"), numThreads);
+	}
+
+	/**
+	 * @return Distinct rounded bin edges from the minimum to at least the maximum, evenly spaced on a log scale
+	 */
+	private static long[] logEdges(int minDistance, int maxDistance, int binsPerDecade) {
+		long[] rtrn = new long[16];
+		int n = 0;
+		rtrn[n++] = minDistance;
+		for(int k = 1; rtrn[n - 1] < maxDistance; k++) {
+			long edge = Math.min(maxDistance, Math.round(minDistance * Math.pow(10, (double) k / binsPerDecade)));
+			if(edge <= rtrn[n - 1]) continue;
+			if(n == rtrn.length) rtrn = Arrays.copyOf(rtrn, 2 * n);
+			rtrn[n++] = edge;
+		}
+		return Arrays.copyOf(rtrn, n);
+	}
+
+	/**
+	 * Add the pairs of a cluster on the calling thread
+	 * @param cluster The cluster; its locations are sorted by position first if they are not already
+	 */
+	public void add(FlatFragmentCluster cluster) {
+		if(total != null) throw new IllegalStateException("Already finished");
+		partial.get().add(cluster);
+	}
+
+	/**
+	 * Add the pairs of a stream of clusters on the curve's threads
+	 * Can be called several times before {@link #finish()}
+	 * @param clusters Clusters; processed in parallel
+	 */
+	public void accumulate(Stream<FlatFragmentCluster> clusters) {
+		if(total != null) throw new IllegalStateException("Already finished");
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		try {
+			pool.submit(() -> clusters.parallel().forEach(cluster -> partial.get().add(cluster))).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Merge the counters of all threads
+	 * Call once, after all threads are done adding clusters
+	 */
+	public void finish() {
+		if(total != null) throw new IllegalStateException("Already finished");
+		total = new Partial();
+		for(Partial p : partials) total.merge(p);
+		partials.clear();
+		logger.info("Counted pairs of " + total.numClusters + " clusters; skipped " + total.numSkipped + " with more than " + maxClusterSize + " locations");
+	}
+
+	private Partial total() {
+		if(total == null) throw new IllegalStateException("Not finished");
+		return total;
+	}
+
+	/**
+	 * @return Number of distance bins
+	 */
+	public int getNumBins() {
+		return edges.length - 1;
+	}
+
+	/**
+	 * @param bin Distance bin
+	 * @return Smallest distance in the bin
+	 */
+	public long getBinStart(int bin) {
+		return edges[bin];
+	}
+
+	/**
+	 * @param bin Distance bin
+	 * @return Distance after the largest distance in the bin
+	 */
+	public long getBinEnd(int bin) {
+		return edges[bin + 1];
+	}
+
+	/**
+	 * @param bin Distance bin
+	 * @return Weighted number of pairs in the bin
+	 */
+	public double getContacts(int bin) {
+		return FixedPoint.toDouble(total().counts[bin + 1]);
+	}
+
+	/**
+	 * @return Weighted number of pairs on the same reference at any distance, including those outside the bins
+	 */
+	public double getIntraChromosomalContacts() {
+		long rtrn = 0;
+		for(long count : total().counts) rtrn += count;
+		return FixedPoint.toDouble(rtrn);
+	}
+
+	/**
+	 * @return Weighted number of pairs on the same reference closer than the first bin
+	 */
+	public double getContactsBelowRange() {
+		return FixedPoint.toDouble(total().counts[0]);
+	}
+
+	/**
+	 * @return Weighted number of pairs on the same reference at least as far as the end of the last bin
+	 */
+	public double getContactsAboveRange() {
+		return FixedPoint.toDouble(total().counts[edges.length]);
+	}
+
+	/**
+	 * @return Weighted number of pairs on different references
+	 */
+	public double getInterChromosomalContacts() {
+		return FixedPoint.toDouble(total().interChromosomal);
+	}
+
+	/**
+	 * @param bin Distance bin
+	 * @return Contact probability density in the bin: its share of all intra-chromosomal pairs per base pair of distance
+	 */
+	public double getProbability(int bin) {
+		double intra = getIntraChromosomalContacts();
+		if(intra == 0) return 0;
+		return getContacts(bin) / intra / (getBinEnd(bin) - getBinStart(bin));
+	}
+
+	/**
+	 * Write the curve as tab delimited text: bin start, bin end, weighted pairs, probability density
+	 * @param file Output file
+	 */
+	public void write(File file) {
+		logger.info("Writing distance decay curve to " + file + "...");
+		try {
+			BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+			writer.write("#start\tend\tcontacts\tprobability\n");
+			for(int bin = 0; bin < getNumBins(); bin++) {
+				writer.write(getBinStart(bin) + "\t" + getBinEnd(bin) + "\t" + getContacts(bin) + "\t" + getProbability(bin) + "\n");
+			}
+			writer.close();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Counters of one thread
+	 */
+	private final class Partial {
+
+		// Element 0 is below the first edge, element k is [edges[k - 1], edges[k]), the last element is at least the last edge
+		private long[] counts = new long[edges.length + 1];
+		private long interChromosomal;
+		private long numClusters;
+		private long numSkipped;
+		private int[] positions = new int[64];
+
+		private void add(FlatFragmentCluster cluster) {
+			numClusters++;
+			int n = cluster.getNumLocations();
+			if(n > maxClusterSize) {
+				numSkipped++;
+				return;
+			}
+			if(n < 2) return;
+			for(int i = 1; i < n; i++) {
+				int c = Integer.compare(cluster.getReferenceIndex(i - 1), cluster.getReferenceIndex(i));
+				if(c > 0 || (c == 0 && cluster.getStart(i - 1) > cluster.getStart(i))) {
+					cluster.sortByPosition();
+					break;
+				}
+			}
+			if(positions.length < n) positions = new int[Math.max(n, 2 * positions.length)];
+			long weight = weighting == Weighting.UNIT ? FixedPoint.ONE : FixedPoint.fromDouble(2.0 / n);
+			long numDistinct = 0;
+			long intraPairs = 0;
+			for(int i = 0; i < n;) {
+				int ref = cluster.getReferenceIndex(i);
+				int m = 0;
+				for(; i < n && cluster.getReferenceIndex(i) == ref; i++) {
+					int start = cluster.getStart(i);
+					if(m == 0 || start != positions[m - 1]) positions[m++] = start;
+				}
+				addReference(positions, m, weight);
+				numDistinct += m;
+				intraPairs += (long) m * (m - 1) / 2;
+			}
+			interChromosomal += (numDistinct * (numDistinct - 1) / 2 - intraPairs) * weight;
+		}
+
+		/**
+		 * Count the pairs of sorted distinct positions on one reference
+		 * @param p Positions
+		 * @param m Number of positions
+		 * @param weight Fixed-point weight of each pair
+		 */
+		private void addReference(int[] p, int m, long weight) {
+			if(m < 2) return;
+			long numPairs = (long) m * (m - 1) / 2;
+			if(numPairs <= (long) m * edges.length) {
+				// Distances from each position grow along the array, so the bin only moves forward
+				for(int i = 0; i < m - 1; i++) {
+					int k = 0;
+					for(int j = i + 1; j < m; j++) {
+						long d = (long) p[j] - p[i];
+						while(k < edges.length && edges[k] <= d) k++;
+						counts[k] += weight;
+					}
+				}
+				return;
+			}
+			long closer = 0;
+			for(int k = 0; k < edges.length; k++) {
+				long c = numPairsCloserThan(p, m, edges[k]);
+				counts[k] += (c - closer) * weight;
+				closer = c;
+			}
+			counts[edges.length] += (numPairs - closer) * weight;
+		}
+
+		private void merge(Partial other) {
+			for(int k = 0; k < counts.length; k++) counts[k] += other.counts[k];
+			interChromosomal += other.interChromosomal;
+			numClusters += other.numClusters;
+			numSkipped += other.numSkipped;
+		}
+
+	}
+
+	/**
+	 * @param p Sorted positions
+	 * @param m Number of positions
+	 * @param distance A distance
+	 * @return Number of pairs of positions closer than the distance, counted with a sliding window
+	 */
+	private static long numPairsCloserThan(int[] p, int m, long distance) {
+		long rtrn = 0;
+		int lo = 0;
+		for(int j = 0; j < m; j++) {
+			while((long) p[j] - p[lo] >= distance) lo++;
+			rtrn += j - lo;
+		}
+		return rtrn;
+	}
+
+}
@@ -6,10 +6,10 @@ import java.util.stream.Collectors;
 
 import org.apache.log4j.Logger;
 
+import util.BamCompression;
 import util.CustomSamTag;
+import util.ParallelBamWriter;
 import net.sf.samtools.SAMFileReader;
-import net.sf.samtools.SAMFileWriter;
-import net.sf.samtools.SAMFileWriterFactory;
 import net.sf.samtools.SAMRecord;
 import net.sf.samtools.SAMRecordIterator;
 import guttmanlab.core.annotation.Annotation;
@@ -82,11 +82,13 @@ public class BamTranscriptOverlapTag {
 	 * Add the tag to every record in a BAM file
 	 * @param inputBam Input BAM file
 	 * @param outputBam Output BAM file including the tag
+	 * @param compression Compression settings for the output BAM file
+	 * @throws IOException 
 	 */
-	private void addTag(File inputBam, File outputBam) {
+	private void addTag(File inputBam, File outputBam, BamCompression compression) throws IOException {
 		int numDone = 0;
 		SAMFileReader reader = new SAMFileReader(inputBam);
-		SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(reader.getFileHeader(), true, outputBam);
+		ParallelBamWriter<SAMRecord> writer = ParallelBamWriter.create(reader.getFileHeader(), outputBam, compression);
 		SAMRecordIterator iter = reader.iterator();
 		while(iter.hasNext()) {
 			numDone++;
@@ -99,7 +101,7 @@ public class BamTranscriptOverlapTag {
 		writer.close();
 	}
 	
-	public static void main(String[] args) {
+	public static void main(String[] args) throws IOException {
 		
 		CommandLineParser p = new CommandLineParser();
 		p.addStringArg("-i", "Input bam file", true);
@@ -107,6 +109,7 @@ public class BamTranscriptOverlapTag {
 		p.addStringArg("-f", "Feature bed file", true);
 		p.addStringArg("-g", "Genome name e.g. mm10. Provide either this or coordinate space file.", false);
 		p.addStringArg("-cs", "Coordinate space file. Provide either this or genome name.", false);
+		BamCompression.addCommandLineOptions(p);
 		p.parse(args);
 		String genome = p.getStringArg("-g");
 		String chrFile = p.getStringArg("-cs");
@@ -120,7 +123,7 @@ public class BamTranscriptOverlapTag {
 			throw new IllegalArgumentException("Provide genome name or coordinate space file");
 		}
 		BamTranscriptOverlapTag b = new BamTranscriptOverlapTag(p.getStringArg("-f"), cs);
-		b.addTag(new File(p.getStringArg("-i")), new File(p.getStringArg("-o")));
+		b.addTag(new File(p.getStringArg("-i")), new File(p.getStringArg("-o")), BamCompression.fromCommandLine(p));
 		
 	}
 	
@@ -0,0 +1,47 @@
+package programs.bam;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+import contact.ClusterIndex;
+import guttmanlab.core.util.CommandLineParser;
+
+/**
+ * Write the cluster index of a bam file that is grouped by barcode, for files not written by {@link SortBamByBarcode}
+ * @author prussell
+ *
+ */
+public final class IndexBarcodeSortedBam {
+
+	private static Logger logger = Logger.getLogger(IndexBarcodeSortedBam.class.getName());
+
+	private IndexBarcodeSortedBam() {}
+
+	public static void main(String[] args) throws IOException {
+
+		CommandLineParser p = new CommandLineParser();
+		p.addStringArg("-ib", "Input bam file grouped by barcode", true);
+		p.parse(args);
+		String bam = p.getStringArg("-ib");
+
+		ClusterIndex index = ClusterIndex.scan(bam);
+		File indexFile = ClusterIndex.indexFile(bam);
+		index.write(indexFile);
+
+		logger.info("");
+		logger.info("Cluster size histogram:");
+		long[] histogram = index.getSizeHistogram();
+		for(int i = 0; i < histogram.length; i++) {
+			if(histogram[i] > 0) {
+				logger.info((1L << i) + "-" + ((1L << (i + 1)) - 1) + "\t" + histogram[i]);
+			}
+		}
+
+		logger.info("");
+		logger.info("All done.");
+
+	}
+
+}
@@ -0,0 +1,467 @@
+package programs.bam;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import contact.ClusterIdDictionary;
+import contact.ClusterIndex;
+import guttmanlab.core.util.CommandLineParser;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileHeader.GroupOrder;
+import htsjdk.samtools.SAMFileHeader.SortOrder;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import programs.barcode.BarcodedBamWriter;
+import util.BamCompression;
+import util.CustomSamTag;
+import util.ParallelBamWriter;
+
+/**
+ * Sort a barcoded bam file by barcode, then reference and position, without the forked htsjdk tag sort
+ * Records are read in chunks that fit in the memory budget; each chunk is encoded, sorted and written to a run file on a worker thread.
+ * The runs are then merged into the output bam file, which is compressed on the BGZF compression threads.
+ * Files with a cluster ID dictionary are sorted by the integer cluster ID tag, which gives the same order as the barcode string,
+ * and the dictionary is copied next to the output.
+ * The output header has SO:unknown GO:query and a comment naming the tag, which the cluster iterators accept in place of the forked tag sort order.
+ * Records without a barcode are written at the end.
+ * Barcodes are kept in the run files as the UTF-8 bytes of the attribute string and merged by comparing bytes, so merging does not decode a string per record.
+ * A fixed-width packed key would not do: barcode strings have no length bound and the output must follow their sort order.
+ * A cluster index is written next to the output for random access and splitting at cluster boundaries; see {@link ClusterIndex}.
+ * @author prussell
+ *
+ */
+public final class SortBamByBarcode {
+
+	private static Logger logger = Logger.getLogger(SortBamByBarcode.class.getName());
+
+	/**
+	 * Maximum number of run files merged at once; more runs are merged in several passes
+	 */
+	private static final int MAX_MERGE_FAN_IN = 256;
+
+	/**
+	 * Approximate heap bytes of a decoded record beyond its bases
+	 */
+	private static final int RECORD_OVERHEAD_BYTES = 400;
+
+	private File tmpDir;
+	private long bytesPerChunk;
+	private int numThreads;
+	private BamCompression compression;
+	private boolean byClusterId;
+
+	/**
+	 * @param tmpDir Directory for run files
+	 * @param memoryBudget Approximate number of bytes of heap to use for records being sorted
+	 * @param numThreads Number of sorting threads
+	 * @param compression Compression settings for output
+	 */
+	private SortBamByBarcode(File tmpDir, long memoryBudget, int numThreads, BamCompression compression) {
+		if(numThreads < 1) throw new IllegalArgumentException("Number of threads must be at least 1");
+		this.tmpDir = tmpDir;
+		this.numThreads = numThreads;
+		this.compression = compression;
+		// One chunk being read and one being sorted by each thread; a sorted chunk is held twice, as records and encoded
+		bytesPerChunk = Math.max(1 << 20, memoryBudget / (2 * (numThreads + 1)));
+	}
+
+	/**
+	 * A record in a run file: sort key and encoded bam record
+	 */
+	private static final class RunRecord {
+
+		private long clusterId; // Cluster ID, or rank of the barcode within a chunk while sorting a chunk
+		private byte[] barcode; // UTF-8 bytes of the barcode attribute; null if sorting by cluster ID or the record has no barcode
+		private long position; // Reference index and position packed, unmapped last
+		private byte[] encoded;
+
+	}
+
+	/**
+	 * Sort key comparison; records without a barcode go last
+	 */
+	private int compare(RunRecord r1, RunRecord r2) {
+		int c;
+		if(byClusterId) {
+			c = Long.compare(r1.clusterId, r2.clusterId);
+		} else if(r1.barcode == null || r2.barcode == null) {
+			c = r1.barcode == null ? (r2.barcode == null ? 0 : 1) : -1;
+		} else {
+			c = compareBarcodes(r1.barcode, r2.barcode);
+		}
+		return c != 0 ? c : Long.compare(r1.position, r2.position);
+	}
+
+	/**
+	 * Compare barcodes as unsigned bytes, which for UTF-8 is the order of the code points, and for the ASCII attribute strings the order of the strings
+	 * @param b1 Bytes of a barcode
+	 * @param b2 Bytes of another barcode
+	 * @return Comparison
+	 */
+	private static int compareBarcodes(byte[] b1, byte[] b2) {
+		int n = Math.min(b1.length, b2.length);
+		for(int i = 0; i < n; i++) {
+			if(b1[i] != b2[i]) return (b1[i] & 0xff) - (b2[i] & 0xff);
+		}
+		return b1.length - b2.length;
+	}
+
+	/**
+	 * @param record Record
+	 * @return Reference index and zero-based position packed in a long, with unmapped records after all mapped records
+	 */
+	private static long packedPosition(SAMRecord record) {
+		int refIndex = record.getReferenceIndex().intValue();
+		if(refIndex < 0) return Long.MAX_VALUE;
+		return ((long) refIndex << 32) | (record.getAlignmentStart() & 0xffffffffL);
+	}
+
+	/**
+	 * Sort the bam file
+	 * @param inputBam Input bam file in any order
+	 * @param outputBam Output bam file
+	 * @throws IOException
+	 */
+	private void sort(String inputBam, String outputBam) throws IOException {
+
+		logger.info("");
+		logger.info("Sorting " + inputBam + " by barcode with " + numThreads + " threads and chunks of " + bytesPerChunk + " bytes...");
+
+		File dictionary = ClusterIdDictionary.sidecarFile(inputBam);
+		byClusterId = dictionary.exists();
+		if(byClusterId) {
+			logger.info("Sorting by cluster ID tag " + CustomSamTag.CLUSTER_ID + ".");
+			Files.copy(dictionary.toPath(), ClusterIdDictionary.sidecarFile(outputBam).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		SamReader reader = SamReaderFactory.makeDefault().open(new File(inputBam));
+		SAMFileHeader header = reader.getFileHeader().clone();
+		header.setSortOrder(SortOrder.unknown);
+		header.setGroupOrder(GroupOrder.query);
+		header.addComment(CustomSamTag.GROUPED_BY_TAG_COMMENT + (byClusterId ? CustomSamTag.CLUSTER_ID : CustomSamTag.BARCODE_SEQUENCE));
+		ParallelBamWriter<SAMRecord> writer = ParallelBamWriter.create(header, new File(outputBam), compression);
+
+		// Read chunks and sort them into run files on the worker threads
+		ExecutorService sorters = Executors.newFixedThreadPool(numThreads);
+		boolean succeeded = false;
+		try {
+			ThreadLocal<ParallelBamWriter.Encoder<SAMRecord>> encoders = ThreadLocal.withInitial(writer::newEncoder);
+			ArrayDeque<Future<File>> pending = new ArrayDeque<Future<File>>();
+			List<File> runs = new ArrayList<File>();
+			SAMRecordIterator iter = reader.iterator();
+			List<SAMRecord> chunk = new ArrayList<SAMRecord>();
+			long chunkBytes = 0;
+			long numDone = 0;
+			while(iter.hasNext()) {
+				SAMRecord record = iter.next();
+				chunk.add(record);
+				chunkBytes += RECORD_OVERHEAD_BYTES + 2 * record.getReadBases().length;
+				numDone++;
+				if(numDone % 10000000 == 0) {
+					logger.info("Read " + numDone + " records.");
+				}
+				if(chunkBytes >= bytesPerChunk) {
+					List<SAMRecord> toSort = chunk;
+					pending.add(sorters.submit(() -> sortChunk(toSort, encoders.get())));
+					chunk = new ArrayList<SAMRecord>();
+					chunkBytes = 0;
+					while(pending.size() >= numThreads) runs.add(waitFor(pending.remove()));
+				}
+			}
+			if(!chunk.isEmpty()) {
+				List<SAMRecord> toSort = chunk;
+				pending.add(sorters.submit(() -> sortChunk(toSort, encoders.get())));
+			}
+			chunk = null;
+			while(!pending.isEmpty()) runs.add(waitFor(pending.remove()));
+			iter.close();
+			reader.close();
+			logger.info("Read " + numDone + " records into " + runs.size() + " sorted runs.");
+
+			// Merge in passes until the runs can be merged at once
+			while(runs.size() > MAX_MERGE_FAN_IN) {
+				logger.info("Merging " + runs.size() + " runs in groups of " + MAX_MERGE_FAN_IN + "...");
+				List<Future<File>> merged = new ArrayList<Future<File>>();
+				for(int i = 0; i < runs.size(); i += MAX_MERGE_FAN_IN) {
+					List<File> group = runs.subList(i, Math.min(runs.size(), i + MAX_MERGE_FAN_IN));
+					merged.add(sorters.submit(() -> mergeToRun(group)));
+				}
+				List<File> next = new ArrayList<File>();
+				for(Future<File> future : merged) next.add(waitFor(future));
+				runs = next;
+			}
+			sorters.shutdown();
+
+			logger.info("Merging " + runs.size() + " runs into " + outputBam + "...");
+			IndexingConsumer output = new IndexingConsumer(writer);
+			merge(runs, output);
+			writer.close();
+			output.buildIndex().write(ClusterIndex.indexFile(outputBam));
+			succeeded = true;
+		} finally {
+			// The pool threads are not daemons, so a failed run must stop them or the JVM never exits
+			if(!succeeded) {
+				sorters.shutdownNow();
+				reader.close();
+				writer.close();
+			}
+		}
+		logger.info("Done sorting.");
+
+	}
+
+	/**
+	 * Wait for a run file to be written
+	 * @param future The run
+	 * @return The run file
+	 * @throws IOException
+	 */
+	private static File waitFor(Future<File> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while sorting", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to sort chunk", e.getCause());
+		}
+	}
+
+	/**
+	 * Encode and sort a chunk of records and write them to a run file
+	 * Barcode strings are ranked once per chunk, so the sort compares primitives
+	 * @param chunk The records
+	 * @param encoder Encoder for the calling thread
+	 * @return The run file
+	 * @throws IOException
+	 */
+	private File sortChunk(List<SAMRecord> chunk, ParallelBamWriter.Encoder<SAMRecord> encoder) throws IOException {
+		RunRecord[] records = new RunRecord[chunk.size()];
+		for(int i = 0; i < records.length; i++) {
+			SAMRecord record = chunk.get(i);
+			RunRecord r = new RunRecord();
+			if(byClusterId) {
+				long id = ClusterIdDictionary.clusterId(record.getAttribute(CustomSamTag.CLUSTER_ID));
+				r.clusterId = id < 0 ? Long.MAX_VALUE : id;
+			} else {
+				String barcode = record.getStringAttribute(BarcodedBamWriter.BARCODES_SAM_TAG);
+				if(barcode != null) r.barcode = barcode.getBytes(StandardCharsets.UTF_8);
+			}
+			r.position = packedPosition(record);
+			encoder.reset();
+			encoder.encode(record);
+			r.encoded = encoder.toByteArray();
+			records[i] = r;
+			chunk.set(i, null);
+		}
+		if(!byClusterId) {
+			// Rank the distinct barcodes and sort on the ranks
+			byte[][] barcodes = new byte[records.length][];
+			int numBarcodes = 0;
+			for(RunRecord r : records) if(r.barcode != null) barcodes[numBarcodes++] = r.barcode;
+			Arrays.sort(barcodes, 0, numBarcodes, SortBamByBarcode::compareBarcodes);
+			for(RunRecord r : records) {
+				r.clusterId = r.barcode == null ? Long.MAX_VALUE : Arrays.binarySearch(barcodes, 0, numBarcodes, r.barcode, SortBamByBarcode::compareBarcodes);
+			}
+		}
+		Arrays.sort(records, (r1, r2) -> {
+			int c = Long.compare(r1.clusterId, r2.clusterId);
+			return c != 0 ? c : Long.compare(r1.position, r2.position);
+		});
+		File rtrn = File.createTempFile("sort_run_", ".bin", tmpDir);
+		rtrn.deleteOnExit();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(rtrn), 1 << 16));
+		for(RunRecord r : records) writeRunRecord(r, out);
+		out.close();
+		return rtrn;
+	}
+
+	/**
+	 * Write a record to a run file
+	 * Format: cluster ID (long) or barcode (length as int, -1 for none, then UTF-8 bytes), packed position (long), length of encoded record (int), encoded record
+	 */
+	private void writeRunRecord(RunRecord r, DataOutputStream out) throws IOException {
+		if(byClusterId) {
+			out.writeLong(r.clusterId);
+		} else {
+			if(r.barcode == null) {
+				out.writeInt(-1);
+			} else {
+				out.writeInt(r.barcode.length);
+				out.write(r.barcode);
+			}
+		}
+		out.writeLong(r.position);
+		out.writeInt(r.encoded.length);
+		out.write(r.encoded);
+	}
+
+	/**
+	 * Reads the records of one run file in order
+	 */
+	private final class RunReader {
+
+		private DataInputStream in;
+		private File file;
+		private RunRecord head;
+
+		RunReader(File file) throws IOException {
+			this.file = file;
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+			advance();
+		}
+
+		/**
+		 * Read the next record into the head, or set the head to null at the end of the file
+		 */
+		void advance() throws IOException {
+			RunRecord r = new RunRecord();
+			try {
+				if(byClusterId) {
+					r.clusterId = in.readLong();
+				} else {
+					int length = in.readInt();
+					if(length >= 0) {
+						r.barcode = new byte[length];
+						in.readFully(r.barcode);
+					}
+				}
+			} catch(EOFException e) {
+				head = null;
+				in.close();
+				file.delete();
+				return;
+			}
+			r.position = in.readLong();
+			r.encoded = new byte[in.readInt()];
+			in.readFully(r.encoded);
+			head = r;
+		}
+
+	}
+
+	/**
+	 * Consumer of merged records that can throw IOException
+	 */
+	@FunctionalInterface
+	private interface RunRecordConsumer {
+		void accept(RunRecord record) throws IOException;
+	}
+
+	/**
+	 * Writes merged records to the output bam file and records the position of each cluster for the cluster index
+	 */
+	private final class IndexingConsumer implements RunRecordConsumer {
+
+		private ParallelBamWriter<SAMRecord> writer;
+		private ClusterIndex.Builder index;
+		private RunRecord prev; // Last record with a barcode
+		private long endPosition;
+
+		IndexingConsumer(ParallelBamWriter<SAMRecord> writer) {
+			this.writer = writer;
+			index = new ClusterIndex.Builder(byClusterId);
+		}
+
+		@Override
+		public void accept(RunRecord record) throws IOException {
+			boolean hasBarcode = byClusterId ? record.clusterId != Long.MAX_VALUE : record.barcode != null;
+			if(hasBarcode) {
+				if(prev == null || (byClusterId ? record.clusterId != prev.clusterId : !Arrays.equals(record.barcode, prev.barcode))) {
+					index.startCluster(record.clusterId, writer.getPosition());
+				}
+				index.addRecord();
+				prev = record;
+			}
+			writer.addEncodedRecords(record.encoded, 0, record.encoded.length);
+			if(hasBarcode) endPosition = writer.getPosition();
+		}
+
+		/**
+		 * @return The cluster index; call after the writer is closed
+		 */
+		ClusterIndex buildIndex() {
+			return index.build(endPosition, writer::getVirtualOffset);
+		}
+
+	}
+
+	/**
+	 * Merge sorted run files; the run files are deleted
+	 * @param runs Run files
+	 * @param consumer Receives the records in order
+	 * @throws IOException
+	 */
+	private void merge(List<File> runs, RunRecordConsumer consumer) throws IOException {
+		PriorityQueue<RunReader> heads = new PriorityQueue<RunReader>(Math.max(1, runs.size()), (a, b) -> compare(a.head, b.head));
+		for(File run : runs) {
+			RunReader reader = new RunReader(run);
+			if(reader.head != null) heads.add(reader);
+		}
+		while(!heads.isEmpty()) {
+			RunReader reader = heads.poll();
+			consumer.accept(reader.head);
+			reader.advance();
+			if(reader.head != null) heads.add(reader);
+		}
+	}
+
+	/**
+	 * Merge sorted run files into a new run file
+	 * @param runs Run files; deleted
+	 * @return The merged run file
+	 * @throws IOException
+	 */
+	private File mergeToRun(List<File> runs) throws IOException {
+		File rtrn = File.createTempFile("sort_run_", ".bin", tmpDir);
+		rtrn.deleteOnExit();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(rtrn), 1 << 16));
+		merge(runs, record -> writeRunRecord(record, out));
+		out.close();
+		return rtrn;
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		CommandLineParser p = new CommandLineParser();
+		p.addStringArg("-ib", "Input barcoded bam file in any order", true);
+		p.addStringArg("-ob", "Output bam file sorted by barcode", true);
+		p.addStringArg("-tmp", "Directory for temporary run files", false, System.getProperty("java.io.tmpdir"));
+		p.addIntArg("-mem", "Memory budget for records being sorted, in megabytes", false, 2048);
+		p.addIntArg("-t", "Number of sorting threads", false, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+		BamCompression.addCommandLineOptions(p);
+		p.parse(args);
+
+		SortBamByBarcode sorter = new SortBamByBarcode(new File(p.getStringArg("-tmp")), (long) p.getIntArg("-mem") << 20,
+				p.getIntArg("-t"), BamCompression.fromCommandLine(p));
+		sorter.sort(p.getStringArg("-ib"), p.getStringArg("-ob"));
+
+		logger.info("");
+		logger.info("All done.");
+
+	}
+
+}
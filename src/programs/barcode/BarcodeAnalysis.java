@@ -6,6 +6,9 @@ import guttmanlab.core.pipeline.util.FastqParser;
 import guttmanlab.core.pipeline.util.FastqSequence;
 import guttmanlab.core.util.CommandLineParser;
 import guttmanlab.core.util.StringParser;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileHeader.SortOrder;
+import htsjdk.samtools.SAMRecord;
 
 import java.io.BufferedWriter;
 import java.io.File;
@@ -32,7 +35,10 @@ import readelement.Switch;
 import readlayout.BarcodedReadLayout;
 import readlayout.ReadLayout;
 import readlayout.ReadLayoutSequenceHash;
+import util.BamCompression;
 import util.BarcodeAnalysisConfigFile;
+import util.CustomSamTag;
+import util.ParallelBamWriter;
 import contact.BarcodeSequence;
 
 /**
@@ -59,10 +65,11 @@ public final class BarcodeAnalysis {
 	 * @param suffixFastq Also write new fastq file(s) of the reads with all layout elements, or null if not using
 	 * and positions before/between them removed. In other words, keep the part of the read after the last matched element.
 	 * Obeys the switch scenario, so if using switches, this will also write multiple fastq files, one for each switch
+	 * @param barcodesInFastqHeader Write the barcode sequence in the header line of suffix fastq records as a SAM-style comment
 	 * @throws IOException
 	 */
 	private static void findBarcodes(String fastq, BarcodedReadLayout layout, String outFile, boolean verbose, boolean splitOutputBySwitchesInLayout, 
-			String suffixFastq) throws IOException {
+			String suffixFastq, boolean barcodesInFastqHeader) throws IOException {
 		logger.info("");
 		logger.info("Identifying barcodes in " + fastq + " and writing to table(s) "+ outFile +"...");
 		if(splitOutputBySwitchesInLayout) {
@@ -114,11 +121,11 @@ public final class BarcodeAnalysis {
 						if(!switchFastqWriters.containsKey(suffixFastqName)) {
 							switchFastqWriters.put(suffixFastqName, new BufferedWriter(new FileWriter(suffixFastqName)));
 						}
-						trimmedRecord.write(switchFastqWriters.get(suffixFastqName));
+						writeSuffixFastqRecord(trimmedRecord, barcodesInFastqHeader ? barcodes.toString() : null, switchFastqWriters.get(suffixFastqName));
 					}
 				} else {
 					tableWriter.write(line + "\n");
-					if(suffixFastq != null) trimmedRecord.write(singleFastqWriter);
+					if(suffixFastq != null) writeSuffixFastqRecord(trimmedRecord, barcodesInFastqHeader ? barcodes.toString() : null, singleFastqWriter);
 				}
 				f = null;
 				seq = null;
@@ -157,10 +164,11 @@ public final class BarcodeAnalysis {
 	 * Or null if not using.
 	 * @param suffixFastq2
 	 * @param verbose
+	 * @param barcodesInFastqHeader Write the barcode sequence of the fragment in the header line of suffix fastq records of both reads as a SAM-style comment
 	 * @throws IOException
 	 */
 	private static void findBarcodes(String fastq1, String fastq2, BarcodedReadLayout layout1, BarcodedReadLayout layout2,
-			String outFile, String suffixFastq1, String suffixFastq2, boolean verbose) throws IOException {
+			String outFile, String suffixFastq1, String suffixFastq2, boolean verbose, boolean barcodesInFastqHeader) throws IOException {
 		logger.info("");
 		logger.info("Identifying barcodes and writing to table(s) "+ outFile +"...");
 		if(suffixFastq1 != null) {
@@ -205,22 +213,31 @@ public final class BarcodeAnalysis {
 			List<List<ReadSequenceElement>> matchedElements1 = matcher1.getMatchedElements();
 			List<List<ReadSequenceElement>> matchedElements2 = matcher2.getMatchedElements();
 			if(matchedElements1 != null || matchedElements2 != null) {
+				String barcodes1 = null;
+				String barcodes2 = null;
 				if(matchedElements1 != null) {
 					BasicBarcodedFragment f = new BasicBarcodedFragment(name1, seq1, null, layout1, null);
-					BarcodeSequence barcodes = f.getBarcodes(matchedElements1, null);
-					line += barcodes.toString();
-					FastqSequence trimmedRecord = suffixFastq1 != null ? record1.trimFirstNBPs(matcher1.matchedElementsLengthInRead()) : null;
-					if(suffixFastq1 != null) trimmedRecord.write(singleFastqWriter1);
+					barcodes1 = f.getBarcodes(matchedElements1, null).toString();
+					line += barcodes1;
 				}
 				if(matchedElements2 != null) {
 					BasicBarcodedFragment f = new BasicBarcodedFragment(name2, seq2, null, layout2, null);
-					BarcodeSequence barcodes = f.getBarcodes(null, matchedElements2);
-					line += barcodes.toString() + "\t";
-					FastqSequence trimmedRecord = suffixFastq2 != null ? record2.trimFirstNBPs(matcher2.matchedElementsLengthInRead()) : null;
-					if(suffixFastq2 != null) trimmedRecord.write(singleFastqWriter2);
+					barcodes2 = f.getBarcodes(null, matchedElements2).toString();
+					line += barcodes2 + "\t";
 				} else {
 					line += "\t";
 				}
+				// Barcodes of the whole fragment, as they appear in the table
+				String fragmentBarcodes = null;
+				if(barcodesInFastqHeader && (barcodes1 != null || barcodes2 != null)) {
+					fragmentBarcodes = (barcodes1 != null ? barcodes1 : "") + (barcodes2 != null ? barcodes2 : "");
+				}
+				if(matchedElements1 != null && suffixFastq1 != null) {
+					writeSuffixFastqRecord(record1.trimFirstNBPs(matcher1.matchedElementsLengthInRead()), fragmentBarcodes, singleFastqWriter1);
+				}
+				if(matchedElements2 != null && suffixFastq2 != null) {
+					writeSuffixFastqRecord(record2.trimFirstNBPs(matcher2.matchedElementsLengthInRead()), fragmentBarcodes, singleFastqWriter2);
+				}
 				if(verbose) line += seq1 + "\t" + seq2 + "\t";
 				tableWriter.write(line + "\n");
 				continue;
@@ -235,6 +252,205 @@ public final class BarcodeAnalysis {
 		}
 	}
 	
+	/**
+	 * Write a record to a suffix fastq file, optionally with the barcode sequence as a comment in the header line
+	 * The comment has the form XB:Z:[id1]barcode1[id2]barcode2..., so aligners that copy fastq comments to SAM output
+	 * (e.g. bwa mem -C) write it as the barcode tag
+	 * @param record The trimmed record
+	 * @param barcodes SAM attribute string of the barcode sequence, or null to write the record unchanged
+	 * @param writer Fastq writer
+	 * @throws IOException
+	 */
+	private static void writeSuffixFastqRecord(FastqSequence record, String barcodes, BufferedWriter writer) throws IOException {
+		if(barcodes == null) {
+			record.write(writer);
+			return;
+		}
+		String name = StringParser.firstField(record.getName());
+		if(name.startsWith("@")) name = name.substring(1);
+		writer.write("@" + name + "\t" + CustomSamTag.BARCODE_SEQUENCE + ":Z:" + barcodes + "\n");
+		writer.write(record.getSequence() + "\n+\n");
+		writer.write(record.getQuality() + "\n");
+	}
+	
+	/**
+	 * Identify barcodes in reads and write the trimmed reads to an unaligned bam file instead of a table and suffix fastq file
+	 * Reads get the barcode tag, the tag indicating whether all barcodes were found, and the switch value tag if the layout contains switches
+	 * Reads where the layout is not matched are left out, as in the table
+	 * @param fastq Fastq file
+	 * @param layout Barcoded read layout
+	 * @param outBam Output unaligned bam file
+	 * @param compression Compression settings for output
+	 * @throws IOException
+	 */
+	private static void findBarcodesToUnalignedBam(String fastq, BarcodedReadLayout layout, String outBam, BamCompression compression) throws IOException {
+		logger.info("");
+		logger.info("Identifying barcodes in " + fastq + " and writing trimmed reads to unaligned bam file "+ outBam +"...");
+		ReadLayoutSequenceHash hash = new ReadLayoutSequenceHash(layout);
+		SAMFileHeader header = unalignedBamHeader();
+		ParallelBamWriter<SAMRecord> writer = ParallelBamWriter.create(header, new File(outBam), compression);
+		FastqParser iter = new FastqParser(); // Reader for input fastq file
+		iter.start(new File(fastq));
+		int numDone = 0;
+		while(iter.hasNext()) {
+			numDone++;
+			if(numDone % 10000 == 0) {
+				logger.info("Finished " + numDone + " reads.");
+			}
+			FastqSequence record = iter.next();
+			if(record == null) {
+				continue;
+			}
+			String seq = record.getSequence();
+			HashMatcher matcher = new HashMatcher(layout, seq, hash);
+			List<List<ReadSequenceElement>> matchedElements = matcher.getMatchedElements();
+			if(matchedElements != null) {
+				BasicBarcodedFragment f = new BasicBarcodedFragment(record.getName(), seq, null, layout, null);
+				String barcodes = f.getBarcodes(matchedElements, null).toString();
+				SAMRecord samRecord = unalignedRecord(header, record.trimFirstNBPs(matcher.matchedElementsLengthInRead()), barcodes, true, 
+						switchValuesAttributeString(layout, matchedElements));
+				writer.addAlignment(samRecord);
+			}
+		}
+		writer.close();
+	}
+	
+	/**
+	 * Identify barcodes in both reads and write the trimmed read pairs to an unaligned bam file instead of a table and suffix fastq files
+	 * Both mates are written if the layout of either read is matched; a mate whose layout is not matched is written untrimmed
+	 * Both mates get the barcode tag of the whole fragment, and the tag indicating whether all barcodes were found is true
+	 * if the layouts of both reads were matched
+	 * @param fastq1 Read 1 fastq
+	 * @param fastq2 Read 2 fastq
+	 * @param layout1 Read 1 layout
+	 * @param layout2 Read 2 layout
+	 * @param outBam Output unaligned bam file
+	 * @param compression Compression settings for output
+	 * @throws IOException
+	 */
+	private static void findBarcodesToUnalignedBam(String fastq1, String fastq2, BarcodedReadLayout layout1, BarcodedReadLayout layout2,
+			String outBam, BamCompression compression) throws IOException {
+		logger.info("");
+		logger.info("Identifying barcodes and writing trimmed read pairs to unaligned bam file "+ outBam +"...");
+		ReadLayoutSequenceHash hash1 = new ReadLayoutSequenceHash(layout1);
+		ReadLayoutSequenceHash hash2 = new ReadLayoutSequenceHash(layout2);
+		SAMFileHeader header = unalignedBamHeader();
+		ParallelBamWriter<SAMRecord> writer = ParallelBamWriter.create(header, new File(outBam), compression);
+		FastqParser iter1 = new FastqParser(); // Reader for input fastq file
+		FastqParser iter2 = new FastqParser(); // Reader for input fastq file
+		iter1.start(new File(fastq1));
+		iter2.start(new File(fastq2));
+		int numDone = 0;
+		while(iter1.hasNext() && iter2.hasNext()) {
+			numDone++;
+			if(numDone % 10000 == 0) {
+				logger.info("Finished " + numDone + " reads.");
+			}
+			FastqSequence record1 = iter1.next();
+			FastqSequence record2 = iter2.next();
+			if(record1 == null || record2 == null) {
+				continue;
+			}
+			String seq1 = record1.getSequence();
+			String name1 = StringParser.firstField(record1.getName());
+			String seq2 = record2.getSequence();
+			String name2 = StringParser.firstField(record2.getName());
+			if(!name1.equals(name2)) {
+				writer.close();
+				throw new IllegalStateException("Paired fastq records out of order: " + name1 + " " + name2);
+			}
+			HashMatcher matcher1 = new HashMatcher(layout1, seq1, hash1);
+			HashMatcher matcher2 = new HashMatcher(layout2, seq2, hash2);
+			List<List<ReadSequenceElement>> matchedElements1 = matcher1.getMatchedElements();
+			List<List<ReadSequenceElement>> matchedElements2 = matcher2.getMatchedElements();
+			if(matchedElements1 == null && matchedElements2 == null) {
+				continue;
+			}
+			// Barcodes of the whole fragment, as they appear in the table
+			String barcodes = "";
+			FastqSequence trimmed1 = record1;
+			FastqSequence trimmed2 = record2;
+			if(matchedElements1 != null) {
+				BasicBarcodedFragment f = new BasicBarcodedFragment(name1, seq1, null, layout1, null);
+				barcodes += f.getBarcodes(matchedElements1, null).toString();
+				trimmed1 = record1.trimFirstNBPs(matcher1.matchedElementsLengthInRead());
+			}
+			if(matchedElements2 != null) {
+				BasicBarcodedFragment f = new BasicBarcodedFragment(name2, seq2, null, layout2, null);
+				barcodes += f.getBarcodes(null, matchedElements2).toString();
+				trimmed2 = record2.trimFirstNBPs(matcher2.matchedElementsLengthInRead());
+			}
+			boolean hasAllBarcodes = matchedElements1 != null && matchedElements2 != null;
+			SAMRecord samRecord1 = unalignedRecord(header, trimmed1, barcodes, hasAllBarcodes, 
+					matchedElements1 != null ? switchValuesAttributeString(layout1, matchedElements1) : null);
+			SAMRecord samRecord2 = unalignedRecord(header, trimmed2, barcodes, hasAllBarcodes, 
+					matchedElements2 != null ? switchValuesAttributeString(layout2, matchedElements2) : null);
+			samRecord1.setReadPairedFlag(true);
+			samRecord1.setMateUnmappedFlag(true);
+			samRecord1.setFirstOfPairFlag(true);
+			samRecord2.setReadPairedFlag(true);
+			samRecord2.setMateUnmappedFlag(true);
+			samRecord2.setSecondOfPairFlag(true);
+			writer.addAlignment(samRecord1);
+			writer.addAlignment(samRecord2);
+		}
+		writer.close();
+	}
+	
+	/**
+	 * @return Header for an unaligned bam file of reads in fastq order
+	 */
+	private static SAMFileHeader unalignedBamHeader() {
+		SAMFileHeader rtrn = new SAMFileHeader();
+		rtrn.setSortOrder(SortOrder.unsorted);
+		return rtrn;
+	}
+	
+	/**
+	 * Make an unaligned record from a fastq record
+	 * @param header Bam file header
+	 * @param record Fastq record
+	 * @param barcodes SAM attribute string of the barcode sequence, or empty string if no barcodes
+	 * @param hasAllBarcodes Whether all barcodes in the layout(s) were found
+	 * @param switchValues Value of the switch value tag, or null if not setting
+	 * @return The unaligned record
+	 */
+	private static SAMRecord unalignedRecord(SAMFileHeader header, FastqSequence record, String barcodes, boolean hasAllBarcodes, String switchValues) {
+		String name = StringParser.firstField(record.getName());
+		if(name.startsWith("@")) name = name.substring(1);
+		SAMRecord rtrn = new SAMRecord(header);
+		rtrn.setReadName(name);
+		rtrn.setReadString(record.getSequence());
+		rtrn.setBaseQualityString(record.getQuality());
+		rtrn.setReadUnmappedFlag(true);
+		if(!barcodes.isEmpty()) rtrn.setAttribute(CustomSamTag.BARCODE_SEQUENCE, barcodes);
+		rtrn.setAttribute(CustomSamTag.HAS_ALL_BARCODES, hasAllBarcodes ? "T" : "F");
+		if(switchValues != null) rtrn.setAttribute(CustomSamTag.SWITCH_VALUES, switchValues);
+		return rtrn;
+	}
+	
+	/**
+	 * Get the values of the switches in a read, from elements already matched to the read
+	 * @param layout Read layout
+	 * @param matchedElements Matched elements, one list per layout element
+	 * @return Switch values in the form [switchId1]valueId1[switchId2]valueId2..., or null if the layout contains no switches
+	 */
+	private static String switchValuesAttributeString(ReadLayout layout, List<List<ReadSequenceElement>> matchedElements) {
+		StringBuilder rtrn = null;
+		List<ReadSequenceElement> elements = layout.getElements();
+		for(int i = 0; i < matchedElements.size(); i++) {
+			ReadSequenceElement parentElement = elements.get(i);
+			if(!parentElement.getClass().equals(Switch.class)) {
+				continue;
+			}
+			if(rtrn == null) rtrn = new StringBuilder();
+			for(ReadSequenceElement elt : matchedElements.get(i)) {
+				rtrn.append("[" + parentElement.getId() + "]" + elt.getId());
+			}
+		}
+		return rtrn == null ? null : rtrn.toString();
+	}
+	
 	/**
 	 * Make name of output table based on prefix and switch values
 	 * @param outFilePrefix File prefix
@@ -285,6 +501,16 @@ public final class BarcodeAnalysis {
 		VERBOSE_OUTPUT("-v", "Use verbose output in barcode identification table", "Must specify whether to provide verbose output") {
 			void addToCommandLineParser(CommandLineParser p) {p.addBooleanArg(getFlag(), getDescription(), false, false);}
 			public void validateCommandLine(CommandLineParser p) {}
+		},
+		UNALIGNED_BAM("-ub", "Write trimmed reads with barcode, all barcodes found and switch value tags to this unaligned bam file "
+				+ "instead of writing the barcode table and suffix fastq files", null) {
+			void addToCommandLineParser(CommandLineParser p) {p.addStringArg(getFlag(), getDescription(), false, null);}
+			public void validateCommandLine(CommandLineParser p) {}
+		},
+		BARCODES_IN_FASTQ_HEADER("-bh", "Write the barcode sequence in the header line of suffix fastq records as a SAM-style XB:Z: comment "
+				+ "that aligners can pass through, so the barcode tag can be added with BarcodeCommentTagger instead of a table join", null) {
+			void addToCommandLineParser(CommandLineParser p) {p.addBooleanArg(getFlag(), getDescription(), false, false);}
+			public void validateCommandLine(CommandLineParser p) {}
 		}
 		;
 		
@@ -307,6 +533,7 @@ public final class BarcodeAnalysis {
 			for(CommandLineOption option : values()) {
 				option.addToCommandLineParser(rtrn);
 			}
+			BamCompression.addCommandLineOptions(rtrn);
 			return rtrn;
 		}
 		
@@ -345,15 +572,25 @@ public final class BarcodeAnalysis {
 		
 		BarcodeAnalysisConfigFile configFile = new BarcodeAnalysisConfigFile(p.getStringArg(CommandLineOption.CONFIG_FILE.getFlag()));
 		boolean verbose = p.getBooleanArg(CommandLineOption.VERBOSE_OUTPUT.getFlag());
+		boolean barcodesInFastqHeader = p.getBooleanArg(CommandLineOption.BARCODES_IN_FASTQ_HEADER.getFlag());
+		String unalignedBam = p.getStringArg(CommandLineOption.UNALIGNED_BAM.getFlag());
 		
-		if(configFile.isPaired()) {
+		if(unalignedBam != null) {
+			BamCompression compression = BamCompression.fromCommandLine(p);
+			if(configFile.isPaired()) {
+				findBarcodesToUnalignedBam(configFile.getPairedFastq1(), configFile.getPairedFastq2(), 
+						configFile.getRead1Layout(), configFile.getRead2Layout(), unalignedBam, compression);
+			} else {
+				findBarcodesToUnalignedBam(configFile.getSingleFastq(), configFile.getUnpairedReadLayout(), unalignedBam, compression);
+			}
+		} else if(configFile.isPaired()) {
 			findBarcodes(configFile.getPairedFastq1(), configFile.getPairedFastq2(), 
 					configFile.getRead1Layout(), configFile.getRead2Layout(), 
 					configFile.getOutputPrefix(), configFile.getOutputSuffixFastq1(), 
-					configFile.getOutputSuffixFastq2(), verbose);
+					configFile.getOutputSuffixFastq2(), verbose, barcodesInFastqHeader);
 		} else {
 			findBarcodes(configFile.getSingleFastq(), configFile.getUnpairedReadLayout(), configFile.getOutputPrefix(), 
-					verbose, false, configFile.getOutputSuffixFastqUnpaired());
+					verbose, false, configFile.getOutputSuffixFastqUnpaired(), barcodesInFastqHeader);
 		}
 		
 		logger.info("");
@@ -0,0 +1,124 @@
+package programs.barcode;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+import guttmanlab.core.util.CommandLineParser;
+import htsjdk.samtools.SAMFormatException;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import util.BamCompression;
+import util.CustomSamTag;
+import util.ParallelBamWriter;
+
+/**
+ * Add the barcode tag to a bam file aligned from suffix fastq files written by {@link BarcodeAnalysis} with barcodes in the header line
+ * Replaces the table join done by {@link BarcodedBamWriter}: each record is handled on its own, in constant memory, in any sort order
+ * Depending on the aligner, the XB:Z: comment from the fastq header arrives either as a tag already (e.g. bwa mem -C)
+ * or appended to the read name; in the second case the name is restored and the tag is set
+ * @author prussell
+ *
+ */
+public final class BarcodeCommentTagger {
+
+	private static Logger logger = Logger.getLogger(BarcodeCommentTagger.class.getName());
+
+	private static final String COMMENT_PREFIX = CustomSamTag.BARCODE_SEQUENCE + ":Z:";
+
+	private BarcodeCommentTagger() {
+		// Prevent instantiation
+	}
+
+	/**
+	 * Move a barcode comment from the read name to the barcode tag, if the record does not already have the tag
+	 * @param record The record
+	 * @return True if the record has the barcode tag after the call
+	 */
+	static boolean setBarcodeTagFromComment(SAMRecord record) {
+		if(record.getAttribute(CustomSamTag.BARCODE_SEQUENCE) != null) {
+			return true;
+		}
+		String name = record.getReadName();
+		int commentPos = name.indexOf(COMMENT_PREFIX);
+		if(commentPos < 0) {
+			return false;
+		}
+		int valueStart = commentPos + COMMENT_PREFIX.length();
+		int valueEnd = valueStart;
+		while(valueEnd < name.length() && !Character.isWhitespace(name.charAt(valueEnd))) valueEnd++;
+		int nameEnd = commentPos;
+		while(nameEnd > 0 && (Character.isWhitespace(name.charAt(nameEnd - 1)) || name.charAt(nameEnd - 1) == '_')) nameEnd--;
+		record.setAttribute(CustomSamTag.BARCODE_SEQUENCE, name.substring(valueStart, valueEnd));
+		record.setReadName(name.substring(0, nameEnd));
+		return true;
+	}
+
+	/**
+	 * Write a copy of a bam file with the barcode tag set from the fastq comment
+	 * Unmapped reads and reads without a barcode comment are left out, as in {@link BarcodedBamWriter}
+	 * @param inputBam Aligned bam file
+	 * @param outputBam Output bam file
+	 * @param compression Compression settings for output
+	 * @throws IOException
+	 */
+	private static void tag(File inputBam, File outputBam, BamCompression compression) throws IOException {
+
+		logger.info("");
+		logger.info("Writing barcoded version of " + inputBam + " to " + outputBam + "...");
+
+		SamReader reader = SamReaderFactory.makeDefault().open(inputBam);
+		ParallelBamWriter<SAMRecord> writer = ParallelBamWriter.create(reader.getFileHeader(), outputBam, compression);
+		SAMRecordIterator iter = reader.iterator();
+		long numDone = 0;
+		long unmapped = 0;
+		long noBarcode = 0;
+		while(iter.hasNext()) {
+			numDone++;
+			if(numDone % 1000000 == 0) {
+				logger.info("Finished " + numDone + " reads. Skipped " + unmapped + " unmapped reads and " + noBarcode + " reads without barcodes.");
+			}
+			try {
+				SAMRecord record = iter.next();
+				if(record.getReadUnmappedFlag()) {
+					unmapped++;
+					continue;
+				}
+				if(!setBarcodeTagFromComment(record)) {
+					logger.debug("NO_BARCODE_COMMENT\t" + record.getReadName());
+					noBarcode++;
+					continue;
+				}
+				writer.addAlignment(record);
+			} catch(SAMFormatException e) {
+				logger.info("Caught SAM format exception. Skipping read.");
+				continue;
+			}
+		}
+
+		reader.close();
+		writer.close();
+
+		logger.info("Done writing file. Skipped " + unmapped + " unmapped reads and " + noBarcode + " reads without barcodes.");
+
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		CommandLineParser p = new CommandLineParser();
+		p.addStringArg("-ib", "Input bam file aligned from suffix fastq with barcodes in the header line", true);
+		p.addStringArg("-ob", "Output bam file", true);
+		BamCompression.addCommandLineOptions(p);
+		p.parse(args);
+
+		tag(new File(p.getStringArg("-ib")), new File(p.getStringArg("-ob")), BamCompression.fromCommandLine(p));
+
+		logger.info("");
+		logger.info("All done.");
+
+	}
+
+}
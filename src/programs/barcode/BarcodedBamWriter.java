@@ -9,10 +9,20 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -20,6 +30,10 @@ import org.ggf.drmaa.DrmaaException;
 import org.ggf.drmaa.Session;
 
 import contact.BarcodeSequence;
+import contact.ClusterIdDictionary;
+import util.BamCompression;
+import util.CustomSamTag;
+import util.ParallelBamWriter;
 import guttmanlab.core.pipeline.Job;
 import guttmanlab.core.pipeline.JobUtils;
 import guttmanlab.core.pipeline.OGSJob;
@@ -27,8 +41,6 @@ import guttmanlab.core.pipeline.OGSUtils;
 import guttmanlab.core.pipeline.Scheduler;
 import guttmanlab.core.pipeline.util.BamUtils;
 import htsjdk.samtools.SAMFileHeader;
-import htsjdk.samtools.SAMFileWriter;
-import htsjdk.samtools.SAMFileWriterFactory;
 import htsjdk.samtools.SAMFormatException;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
@@ -63,15 +75,63 @@ public final class BarcodedBamWriter {
 	 */
 	private static int BARCODE_COL_NUM = 1;
 	
+	/**
+	 * Compression settings for bam output
+	 */
+	private static BamCompression compression = BamCompression.DEFAULT;
+	
+	/**
+	 * Write the integer cluster ID tag and a sidecar dictionary instead of the barcode string tag
+	 */
+	private static boolean writeClusterIds = false;
+	
 	private static Logger logger = Logger.getLogger(BarcodedBamWriter.class.getName());
 	
 	/**
 	 * Set the barcode attribute of a SAM record
 	 * @param record SAM record
-	 * @param barcodes Barcodes to set
+	 * @param barcodes SAM attribute string representing the barcodes to set
 	 */
-	private static void setBarcodes(SAMRecord record, BarcodeSequence barcodes) {
-		record.setAttribute(BARCODES_SAM_TAG, barcodes.toSamAttributeString());
+	private static void setBarcodes(SAMRecord record, String barcodes) {
+		record.setAttribute(BARCODES_SAM_TAG, barcodes);
+	}
+	
+	/**
+	 * Set the integer cluster ID attribute of a SAM record
+	 * @param record SAM record
+	 * @param clusterId Cluster ID
+	 */
+	private static void setClusterId(SAMRecord record, long clusterId) {
+		record.setAttribute(CustomSamTag.CLUSTER_ID, ClusterIdDictionary.tagValue(clusterId));
+	}
+	
+	/**
+	 * Sets the barcode tags of a record
+	 * Implementations must be safe to call from multiple threads
+	 */
+	@FunctionalInterface
+	private interface BarcodeTagger {
+		
+		/**
+		 * Set the barcode tags of a record
+		 * @param record The record
+		 * @return False if the read has no barcodes, in which case the record is unchanged
+		 */
+		boolean setTags(SAMRecord record);
+		
+	}
+	
+	/**
+	 * @param barcodesByReadId Function returning the SAM attribute string of the barcode sequence for a read name, or null if the read has no barcodes
+	 * @return Tagger that sets the barcode string tag
+	 */
+	private static BarcodeTagger barcodeStringTagger(Function<String, String> barcodesByReadId) {
+		return record -> {
+			String barcodes = barcodesByReadId.apply(record.getReadName());
+			if(barcodes == null) return false;
+			setBarcodes(record, barcodes);
+			return true;
+		};
 	}
 	
 	
@@ -86,16 +146,83 @@ public final class BarcodedBamWriter {
 	private static String getBarcodedBamFileName(String inputBam) {
 		return inputBam.replaceAll(".bam", "") + BARCODED_BAM_SUFFIX;
 	}
+	
+	/**
+	 * @param inputBam Regular bam file
+	 * @param overrideOutputName Name for output bam file other than default, or null to use default
+	 * @return Name of output bam file
+	 */
+	private static String getOutputBamFileName(String inputBam, String overrideOutputName) {
+		return overrideOutputName == null ? getBarcodedBamFileName(inputBam) : overrideOutputName;
+	}
 		
 	/**
 	 * Add barcode attribute to bam file entries using a barcode mapping
 	 * @param inputBam Regular bam file
 	 * @param barcodeTable Table of read name and barcode sequence
 	 * @param overrideOutputName Name for output bam file other than default. Warning: file will not be recognized by other code.
+	 * @param numThreads Number of threads for tagging; if more than 1, tag in parallel in this process
 	 * @throws IOException
 	 */
-	private static void writeBarcodedBam(String inputBam, String barcodeTable, String overrideOutputName) throws IOException {
-		writeBarcodedBam(inputBam, readBarcodesFromTable(barcodeTable), overrideOutputName);
+	private static void writeBarcodedBam(String inputBam, String barcodeTable, String overrideOutputName, int numThreads) throws IOException {
+		Map<String, BarcodeSequence> barcodesByReadId = readBarcodesFromTable(barcodeTable);
+		Function<String, String> barcodes = readName -> {
+			BarcodeSequence b = barcodesByReadId.get(readName);
+			return b == null ? null : b.toSamAttributeString();
+		};
+		BarcodeTagger tagger = barcodeStringTagger(barcodes);
+		if(writeClusterIds) {
+			// Many reads share a barcode sequence, so dedupe the sequences before building their strings
+			Set<String> attributeStrings = new TreeSet<String>();
+			for(BarcodeSequence b : new HashSet<BarcodeSequence>(barcodesByReadId.values())) attributeStrings.add(b.toSamAttributeString());
+			ClusterIdDictionary dictionary = ClusterIdDictionary.fromAttributeStrings(attributeStrings);
+			dictionary.write(ClusterIdDictionary.sidecarFile(getOutputBamFileName(inputBam, overrideOutputName)));
+			tagger = record -> {
+				String b = barcodes.apply(record.getReadName());
+				if(b == null) return false;
+				setClusterId(record, dictionary.getClusterId(b));
+				return true;
+			};
+		}
+		if(numThreads > 1) parallelWriteBarcodedBam(inputBam, tagger, overrideOutputName, numThreads);
+		else writeBarcodedBam(inputBam, tagger, overrideOutputName);
+	}
+	
+	/**
+	 * Add barcode attribute to bam file entries using an off-heap index of barcodes by read name
+	 * The bam file can be in any order, and heap usage does not grow with the number of reads
+	 * @param inputBam Regular bam file
+	 * @param barcodeTable Table of read name and barcode sequence
+	 * @param indexPrefix Prefix of index files; the index is built from the table if the files do not exist
+	 * @param overrideOutputName Name for output bam file other than default. Warning: file will not be recognized by other code.
+	 * @param numThreads Number of threads for tagging; if more than 1, tag in parallel in this process
+	 * @throws IOException
+	 */
+	private static void writeBarcodedBamWithIndex(String inputBam, String barcodeTable, String indexPrefix, String overrideOutputName, int numThreads) throws IOException {
+		ReadNameBarcodeIndex index = ReadNameBarcodeIndex.openOrBuild(barcodeTable, BARCODE_COL_NUM, indexPrefix);
+		try {
+			BarcodeTagger tagger = barcodeStringTagger(index::getSamAttributeString);
+			if(writeClusterIds) {
+				// Cluster ID of each index barcode ID, so tagging is an array lookup
+				List<String> attributeStrings = new ArrayList<String>(index.getNumBarcodes());
+				for(int i = 0; i < index.getNumBarcodes(); i++) attributeStrings.add(index.getSamAttributeString(i));
+				ClusterIdDictionary dictionary = ClusterIdDictionary.fromAttributeStrings(attributeStrings);
+				dictionary.write(ClusterIdDictionary.sidecarFile(getOutputBamFileName(inputBam, overrideOutputName)));
+				long[] clusterIds = new long[attributeStrings.size()];
+				for(int i = 0; i < clusterIds.length; i++) clusterIds[i] = dictionary.getClusterId(attributeStrings.get(i));
+				attributeStrings = null;
+				tagger = record -> {
+					int barcodeId = index.getBarcodeId(record.getReadName());
+					if(barcodeId < 0) return false;
+					setClusterId(record, clusterIds[barcodeId]);
+					return true;
+				};
+			}
+			if(numThreads > 1) parallelWriteBarcodedBam(inputBam, tagger, overrideOutputName, numThreads);
+			else writeBarcodedBam(inputBam, tagger, overrideOutputName);
+		} finally {
+			index.close();
+		}
 	}
 	
 	/**
@@ -128,7 +255,8 @@ public final class BarcodedBamWriter {
 		for(int jobNum = 0; jobNum < numSplitBarcodeTables; jobNum++) {
 			String outBam = getBarcodedBamFileName(inputBam) + "." + jobNum;
 			outBams.add(outBam);
-			String cmmd = "java -jar -Xmx27g -Xms25g -Xmn20g " + barcodedBamWriterJar + " -b false -ib " + inputBam + " -bc " + BARCODE_COL_NUM + " -bt " + barcodeTable + "." + jobNum + " -on " + outBam;
+			String cmmd = "java -jar -Xmx27g -Xms25g -Xmn20g " + barcodedBamWriterJar + " -b false -ib " + inputBam + " -bc " + BARCODE_COL_NUM + " -bt " + barcodeTable + "." + jobNum + " -on " + outBam
+					+ " " + BamCompression.COMPRESSION_THREADS_FLAG + " " + compression.getNumThreads() + " " + BamCompression.COMPRESSION_LEVEL_FLAG + " " + compression.getLevel();
 			logger.info("Submitting OGS job: " + cmmd);
 			OGSJob job = new OGSJob(drmaaSession, cmmd);
 			job.submit();
@@ -158,13 +286,13 @@ public final class BarcodedBamWriter {
 	/**
 	 * Add barcode attribute to bam file entries using a barcode mapping
 	 * @param inputBam Regular bam file
-	 * @param barcodesByReadId Map of read name to barcode sequence
+	 * @param tagger Sets the barcode tags of a record
 	 * @param overrideOutputName Name for output bam file other than default. Warning: file will not be recognized by other code. Pass null to use default.
 	 * @throws IOException
 	 */
-	private static void writeBarcodedBam(String inputBam, Map<String, BarcodeSequence> barcodesByReadId, String overrideOutputName) throws IOException {
+	private static void writeBarcodedBam(String inputBam, BarcodeTagger tagger, String overrideOutputName) throws IOException {
 		
-		String outputBam = overrideOutputName == null ? getBarcodedBamFileName(inputBam) : overrideOutputName;
+		String outputBam = getOutputBamFileName(inputBam, overrideOutputName);
 		//String outputNames = getNameMappingFileName(outputBam);
 		
 		logger.info("");
@@ -175,7 +303,7 @@ public final class BarcodedBamWriter {
 		SamReader r = SamReaderFactory.makeDefault().open(new File(inputBam));
  
 		SAMFileHeader header = r.getFileHeader();
-		SAMFileWriter w = new SAMFileWriterFactory().makeBAMWriter(header, false, new File(outputBam));
+		ParallelBamWriter<SAMRecord> w = ParallelBamWriter.create(header, new File(outputBam), compression);
 		//FileWriter nw = new FileWriter(outputNames);
 		
 		
@@ -201,13 +329,11 @@ public final class BarcodedBamWriter {
 					unmapped++;
 					continue;
 				}
-				if(!barcodesByReadId.containsKey(oldName)) {
+				if(!tagger.setTags(record)) {
 					logger.debug("READ_NOT_FOUND\t" + oldName);
 					skipped++;
 					continue;
 				}
-				BarcodeSequence barcodes = barcodesByReadId.get(oldName);
-				setBarcodes(record, barcodes);
 				w.addAlignment(record);
 			} catch(SAMFormatException e) {
 				logger.info("Caught SAM format exception. Skipping read.");
@@ -223,6 +349,148 @@ public final class BarcodedBamWriter {
 				
 	}
 	
+	/**
+	 * Number of records in each batch handed to a tagging thread
+	 */
+	private static final int RECORDS_PER_BATCH = 10000;
+	
+	/**
+	 * A batch of records that have been tagged and encoded, with counts of records left out
+	 */
+	private static final class TaggedBatch {
+		private byte[] encodedRecords;
+		private int numUnmapped;
+		private int numSkipped;
+		private int numFormatErrors;
+	}
+	
+	/**
+	 * Tag and encode a batch of records
+	 * Records whose lazily decoded fields turn out to be malformed are skipped, as in the serial path
+	 * @param batch The records in order
+	 * @param tagger Sets the barcode tags of a record
+	 * @param encoder Encoder for the calling thread
+	 * @return The encoded batch, containing only mapped records with barcodes
+	 */
+	private static TaggedBatch tagBatch(List<SAMRecord> batch, BarcodeTagger tagger, ParallelBamWriter.Encoder<SAMRecord> encoder) {
+		TaggedBatch rtrn = new TaggedBatch();
+		encoder.reset();
+		for(SAMRecord record : batch) {
+			int size = encoder.size();
+			try {
+				if(record.getReadUnmappedFlag()) {
+					rtrn.numUnmapped++;
+					continue;
+				}
+				if(!tagger.setTags(record)) {
+					logger.debug("READ_NOT_FOUND\t" + record.getReadName());
+					rtrn.numSkipped++;
+					continue;
+				}
+				encoder.encode(record);
+			} catch(SAMFormatException e) {
+				logger.info("Caught SAM format exception. Skipping read.");
+				encoder.truncate(size);
+				rtrn.numFormatErrors++;
+			}
+		}
+		rtrn.encodedRecords = encoder.toByteArray();
+		return rtrn;
+	}
+	
+	/**
+	 * Add barcode attribute to bam file entries using a barcode mapping, in a single pass over the bam file
+	 * Records are tagged and encoded in batches on a thread pool, then written in the original order
+	 * with BGZF compression on a separate thread pool configured by the compression settings
+	 * @param inputBam Regular bam file
+	 * @param tagger Sets the barcode tags of a record
+	 * @param overrideOutputName Name for output bam file other than default. Warning: file will not be recognized by other code. Pass null to use default.
+	 * @param numThreads Number of tagging threads
+	 * @throws IOException
+	 */
+	private static void parallelWriteBarcodedBam(String inputBam, BarcodeTagger tagger, String overrideOutputName, int numThreads) throws IOException {
+		
+		String outputBam = getOutputBamFileName(inputBam, overrideOutputName);
+		
+		logger.info("");
+		logger.info("Writing barcoded version of " + inputBam + " to " + outputBam + " with " + numThreads + " tagging threads...");
+		
+		SamReader r = SamReaderFactory.makeDefault().open(new File(inputBam));
+		ParallelBamWriter<SAMRecord> w = null;
+		ExecutorService taggers = null;
+		boolean succeeded = false;
+		long[] skipped = new long[3]; // Unmapped, not in map, malformed
+		try {
+			w = ParallelBamWriter.create(r.getFileHeader(), new File(outputBam), compression);
+			taggers = Executors.newFixedThreadPool(numThreads);
+			ThreadLocal<ParallelBamWriter.Encoder<SAMRecord>> encoders = ThreadLocal.withInitial(w::newEncoder);
+			ArrayDeque<Future<TaggedBatch>> pending = new ArrayDeque<Future<TaggedBatch>>();
+			
+			long numDone = 0;
+			SAMRecordIterator iter = r.iterator();
+			List<SAMRecord> batch = new ArrayList<SAMRecord>(RECORDS_PER_BATCH);
+			while(iter.hasNext()) {
+				try {
+					batch.add(iter.next());
+				} catch(SAMFormatException e) {
+					logger.info("Caught SAM format exception. Skipping read.");
+					skipped[2]++;
+					continue;
+				}
+				numDone++;
+				if(numDone % 1000000 == 0) {
+					logger.info("Read " + numDone + " records. Skipped " + skipped[0] + " unmapped reads, " + skipped[1] + " reads not in map and " + skipped[2] + " malformed reads.");
+				}
+				if(batch.size() == RECORDS_PER_BATCH) {
+					List<SAMRecord> toTag = batch;
+					pending.add(taggers.submit(() -> tagBatch(toTag, tagger, encoders.get())));
+					batch = new ArrayList<SAMRecord>(RECORDS_PER_BATCH);
+					while(pending.size() > 2 * numThreads) writeTaggedBatch(pending.remove(), w, skipped);
+				}
+			}
+			if(!batch.isEmpty()) {
+				List<SAMRecord> toTag = batch;
+				pending.add(taggers.submit(() -> tagBatch(toTag, tagger, encoders.get())));
+			}
+			while(!pending.isEmpty()) writeTaggedBatch(pending.remove(), w, skipped);
+			succeeded = true;
+		} finally {
+			// The pool threads are not daemons, so a failed run must stop them or the JVM never exits
+			if(taggers != null) {
+				if(succeeded) taggers.shutdown();
+				else taggers.shutdownNow();
+			}
+			r.close();
+			if(w != null) w.close();
+		}
+		
+		logger.info("Done writing file. Skipped " + skipped[0] + " unmapped reads, " + skipped[1] + " reads not in map and " + skipped[2] + " malformed reads.");
+		
+	}
+	
+	/**
+	 * Wait for a batch to be tagged and write it
+	 * @param future The batch
+	 * @param writer Bam writer
+	 * @param skipped Running counts of unmapped reads, reads not in map and malformed reads, to update
+	 * @throws IOException
+	 */
+	private static void writeTaggedBatch(Future<TaggedBatch> future, ParallelBamWriter<SAMRecord> writer, long[] skipped) throws IOException {
+		TaggedBatch batch;
+		try {
+			batch = future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while tagging records", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to tag records", e.getCause());
+		}
+		writer.addEncodedRecords(batch.encodedRecords, 0, batch.encodedRecords.length);
+		skipped[0] += batch.numUnmapped;
+		skipped[1] += batch.numSkipped;
+		skipped[2] += batch.numFormatErrors;
+	}
+	
 	/**
 	 * Read a specified number of barcodes from an existing buffered reader
 	 * @param tableReader Buffered reader for barcode table file with line format: read_ID   barcode_sequence_as_SAM_attribute
@@ -371,9 +639,16 @@ public final class BarcodedBamWriter {
 		p.addStringArg("-pj", "Picard jar director (needed for batching)", false, null);
 		p.addBooleanArg("-b", "Batch out to cluster", false, false);
 		p.addIntArg("-bc", "Column in barcode tables that contains the barcode", true);
+		p.addIntArg("-t", "Number of tagging threads. If more than 1, read the bam file once and tag records in parallel in this process instead of batching out to the cluster.", false, 1);
+		BamCompression.addCommandLineOptions(p);
+		p.addStringArg("-ix", "Prefix of off-heap read name index files. Use the index instead of loading the table into memory; build it from the table if the files do not exist.", false, null);
+		p.addBooleanArg("-ci", "Write a dense integer cluster ID tag (" + CustomSamTag.CLUSTER_ID + ") instead of the barcode string tag, "
+				+ "with the dictionary of cluster IDs to barcodes in a sidecar file named after the output bam", false, false);
 		p.parse(args);
 		
 		BARCODE_COL_NUM = p.getIntArg("-bc");
+		compression = BamCompression.fromCommandLine(p);
+		writeClusterIds = p.getBooleanArg("-ci");
 		
 		if(p.getBooleanArg("-d")) {
 			logger.setLevel(Level.DEBUG);
@@ -385,6 +660,16 @@ public final class BarcodedBamWriter {
 		int readsPerJob = p.getIntArg("-rj");
 		String barcodedBamWriterJar = p.getStringArg("-bbj");
 		String picardJarDir = p.getStringArg("-pj");
+		String indexPrefix = p.getStringArg("-ix");
+		int numThreads = p.getIntArg("-t");
+		
+		if(p.getBooleanArg("-b") && numThreads > 1) {
+			throw new IllegalArgumentException("Choose either batching out to the cluster with -b or local parallel tagging with -t");
+		}
+		
+		if(p.getBooleanArg("-b") && writeClusterIds) {
+			throw new IllegalArgumentException("Cluster ID tag with -ci needs one dictionary for the whole file and is not supported when batching out with -b");
+		}
 		
 		if(p.getBooleanArg("-b")) {
 			drmaaSession = OGSUtils.getDrmaaSession();
@@ -398,8 +683,10 @@ public final class BarcodedBamWriter {
 				throw new IllegalArgumentException("Must provide Picard jar directory with -pj option");
 			}
 			batchWriteBarcodedBam(inputBam, barcodeTable, drmaaSession, readsPerJob, barcodedBamWriterJar, picardJarDir);
+		} else if(indexPrefix != null) {
+			writeBarcodedBamWithIndex(inputBam, barcodeTable, indexPrefix, overrideName, numThreads);
 		} else {
-			writeBarcodedBam(inputBam, barcodeTable, overrideName);
+			writeBarcodedBam(inputBam, barcodeTable, overrideName, numThreads);
 		}
 		
 		logger.info("");
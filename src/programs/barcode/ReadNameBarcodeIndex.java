@@ -0,0 +1,411 @@
+package programs.barcode;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.log4j.Logger;
+
+import contact.BarcodeSequence;
+import util.LargeMappedFile;
+
+/**
+ * Off-heap index of barcode sequence by read name, for tagging bam files that are not sorted by read name
+ * Read names are stored as a 64-bit hash in a memory-mapped open-addressing table, together with a 32-bit
+ * secondary hash that is checked on lookup to resolve collisions of the primary hash.
+ * Each slot points to a compact barcode sequence ID; distinct barcode sequences are stored once in a side dictionary file.
+ * Heap usage is proportional to the number of distinct barcode sequences, not the number of reads.
+ * Lookups are thread safe once the index is built.
+ * @author prussell
+ *
+ */
+public final class ReadNameBarcodeIndex implements Closeable {
+
+	private static Logger logger = Logger.getLogger(ReadNameBarcodeIndex.class.getName());
+
+	private static final String SLOTS_SUFFIX = ".slots";
+	private static final String DICTIONARY_SUFFIX = ".dict";
+	private static final long MAGIC = 0x524e42434958L; // "RNBCIX"
+	private static final int HEADER_BYTES = 64;
+	private static final int SLOT_BYTES = 16;
+	private static final double MAX_LOAD = 0.6;
+
+	private LargeMappedFile slots;
+	private LargeMappedFile dictionary;
+	private long slotMask;
+	private long numReads;
+	private long[] barcodeOffsets; // Position of each barcode sequence in the dictionary file
+	private int numBarcodes;
+
+	private ReadNameBarcodeIndex() {}
+
+	/**
+	 * @param indexPrefix Prefix of index files
+	 * @return True if the index files exist
+	 */
+	public static boolean exists(String indexPrefix) {
+		return new File(indexPrefix + SLOTS_SUFFIX).exists() && new File(indexPrefix + DICTIONARY_SUFFIX).exists();
+	}
+
+	/**
+	 * Open an existing index
+	 * @param indexPrefix Prefix of index files
+	 * @return The index
+	 * @throws IOException
+	 */
+	public static ReadNameBarcodeIndex open(String indexPrefix) throws IOException {
+		logger.info("Opening read name index " + indexPrefix + "...");
+		ReadNameBarcodeIndex rtrn = new ReadNameBarcodeIndex();
+		rtrn.slots = new LargeMappedFile(new File(indexPrefix + SLOTS_SUFFIX), -1, true);
+		if(rtrn.slots.getLong(0) != MAGIC) {
+			rtrn.slots.close();
+			throw new IllegalArgumentException("Not a read name index: " + indexPrefix + SLOTS_SUFFIX);
+		}
+		rtrn.slotMask = rtrn.slots.getLong(8) - 1;
+		rtrn.numReads = rtrn.slots.getLong(16);
+		rtrn.numBarcodes = (int) rtrn.slots.getLong(24);
+		rtrn.dictionary = new LargeMappedFile(new File(indexPrefix + DICTIONARY_SUFFIX), -1, true);
+		rtrn.barcodeOffsets = new long[rtrn.numBarcodes];
+		long pos = 0;
+		for(int i = 0; i < rtrn.numBarcodes; i++) {
+			rtrn.barcodeOffsets[i] = pos;
+			pos += 4 + rtrn.entryLength(pos);
+		}
+		logger.info("Index contains " + rtrn.numReads + " reads and " + rtrn.numBarcodes + " distinct barcode sequences.");
+		return rtrn;
+	}
+
+	/**
+	 * Build an index from a barcode table
+	 * @param barcodeTable Table file with line format: read_ID   ...   barcode_sequence_as_SAM_attribute
+	 * @param barcodeColumn Column of the table containing the barcode sequence
+	 * @param indexPrefix Prefix of index files to write
+	 * @return The index
+	 * @throws IOException
+	 */
+	public static ReadNameBarcodeIndex build(String barcodeTable, int barcodeColumn, String indexPrefix) throws IOException {
+
+		logger.info("");
+		logger.info("Building read name index " + indexPrefix + " from barcode table " + barcodeTable + "...");
+
+		long numLines = countLines(barcodeTable);
+		long numSlots = Long.highestOneBit(Math.max(2, (long) (numLines / MAX_LOAD))) << 1;
+		logger.info("Table has " + numLines + " lines. Allocating " + numSlots + " slots.");
+
+		ReadNameBarcodeIndex rtrn = new ReadNameBarcodeIndex();
+		rtrn.slots = new LargeMappedFile(new File(indexPrefix + SLOTS_SUFFIX), HEADER_BYTES + numSlots * SLOT_BYTES);
+		rtrn.slotMask = numSlots - 1;
+
+		DataOutputStream dictionaryWriter = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexPrefix + DICTIONARY_SUFFIX), 1 << 20));
+		BarcodeDeduplicator dedup = new BarcodeDeduplicator();
+		long dictionarySize = 0;
+
+		BufferedReader reader = new BufferedReader(new FileReader(barcodeTable), 1 << 20);
+		String line;
+		long numDone = 0;
+		while((line = reader.readLine()) != null) {
+			numDone++;
+			if(numDone % 10000000 == 0) {
+				logger.info("Finished " + numDone + " reads. " + dedup.size + " distinct barcode sequences.");
+			}
+			String name = field(line, 0);
+			String barcodes = field(line, barcodeColumn);
+			if(name == null || barcodes == null) continue;
+			int barcodeId = dedup.find(barcodes);
+			if(barcodeId < 0) {
+				barcodeId = dedup.add(barcodes, dictionarySize);
+				byte[] bytes = barcodes.getBytes(StandardCharsets.US_ASCII);
+				dictionaryWriter.writeInt(bytes.length);
+				dictionaryWriter.write(bytes);
+				dictionarySize += 4 + bytes.length;
+			}
+			if(rtrn.put(name, barcodeId)) rtrn.numReads++;
+		}
+		reader.close();
+		dictionaryWriter.close();
+
+		rtrn.numBarcodes = dedup.size;
+		rtrn.barcodeOffsets = dedup.offsets;
+		rtrn.slots.putLong(0, MAGIC);
+		rtrn.slots.putLong(8, numSlots);
+		rtrn.slots.putLong(16, rtrn.numReads);
+		rtrn.slots.putLong(24, rtrn.numBarcodes);
+		rtrn.slots.force();
+		rtrn.dictionary = new LargeMappedFile(new File(indexPrefix + DICTIONARY_SUFFIX), -1, true);
+
+		logger.info("Done building index: " + rtrn.numReads + " reads and " + rtrn.numBarcodes + " distinct barcode sequences.");
+		return rtrn;
+
+	}
+
+	/**
+	 * Open the index if it exists, otherwise build it
+	 * @param barcodeTable Table file with line format: read_ID   ...   barcode_sequence_as_SAM_attribute
+	 * @param barcodeColumn Column of the table containing the barcode sequence
+	 * @param indexPrefix Prefix of index files
+	 * @return The index
+	 * @throws IOException
+	 */
+	public static ReadNameBarcodeIndex openOrBuild(String barcodeTable, int barcodeColumn, String indexPrefix) throws IOException {
+		if(exists(indexPrefix)) return open(indexPrefix);
+		return build(barcodeTable, barcodeColumn, indexPrefix);
+	}
+
+	/**
+	 * Insert or replace the barcode ID for a read
+	 * @param readName Read name
+	 * @param barcodeId Barcode sequence ID
+	 * @return True if the read was not already in the index
+	 */
+	private boolean put(String readName, int barcodeId) {
+		long hash = primaryHash(readName);
+		int check = secondaryHash(readName);
+		long slot = hash & slotMask;
+		while(true) {
+			long pos = HEADER_BYTES + slot * SLOT_BYTES;
+			long existing = slots.getLong(pos);
+			if(existing == 0) {
+				slots.putLong(pos, hash);
+				slots.putInt(pos + 8, check);
+				slots.putInt(pos + 12, barcodeId);
+				return true;
+			}
+			if(existing == hash && slots.getInt(pos + 8) == check) {
+				slots.putInt(pos + 12, barcodeId);
+				return false;
+			}
+			slot = (slot + 1) & slotMask;
+		}
+	}
+
+	/**
+	 * Get the ID of the barcode sequence for a read
+	 * @param readName Read name
+	 * @return The barcode sequence ID, or -1 if the read is not in the index
+	 */
+	public int getBarcodeId(String readName) {
+		long hash = primaryHash(readName);
+		int check = secondaryHash(readName);
+		long slot = hash & slotMask;
+		while(true) {
+			long pos = HEADER_BYTES + slot * SLOT_BYTES;
+			long existing = slots.getLong(pos);
+			if(existing == 0) return -1;
+			if(existing == hash && slots.getInt(pos + 8) == check) return slots.getInt(pos + 12);
+			slot = (slot + 1) & slotMask;
+		}
+	}
+
+	/**
+	 * Get a barcode sequence from the dictionary
+	 * @param barcodeId Barcode sequence ID
+	 * @return The SAM attribute string representing the barcode sequence
+	 */
+	public String getSamAttributeString(int barcodeId) {
+		long pos = barcodeOffsets[barcodeId];
+		byte[] bytes = new byte[entryLength(pos)];
+		dictionary.get(pos + 4, bytes, 0, bytes.length);
+		return new String(bytes, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Read the length of a dictionary entry
+	 * Entries are packed, so the length is usually not aligned and can span two segments of the mapped file; read it as bytes
+	 * @param pos Position of the entry
+	 * @return Number of bytes of the barcode sequence
+	 */
+	private int entryLength(long pos) {
+		byte[] b = new byte[4];
+		dictionary.get(pos, b, 0, 4);
+		return ((b[0] & 0xff) << 24) | ((b[1] & 0xff) << 16) | ((b[2] & 0xff) << 8) | (b[3] & 0xff);
+	}
+
+	/**
+	 * Get the barcode sequence for a read
+	 * @param readName Read name
+	 * @return The SAM attribute string representing the barcode sequence, or null if the read is not in the index
+	 */
+	public String getSamAttributeString(String readName) {
+		int id = getBarcodeId(readName);
+		return id < 0 ? null : getSamAttributeString(id);
+	}
+
+	/**
+	 * Get the barcode sequence for a read
+	 * @param readName Read name
+	 * @return The barcode sequence, or null if the read is not in the index
+	 */
+	public BarcodeSequence get(String readName) {
+		String attribute = getSamAttributeString(readName);
+		return attribute == null ? null : BarcodeSequence.fromSamAttributeString(attribute);
+	}
+
+	/**
+	 * @return Number of reads in the index
+	 */
+	public long getNumReads() {
+		return numReads;
+	}
+
+	/**
+	 * @return Number of distinct barcode sequences in the dictionary
+	 */
+	public int getNumBarcodes() {
+		return numBarcodes;
+	}
+
+	@Override
+	public void close() throws IOException {
+		slots.close();
+		dictionary.close();
+	}
+
+	/**
+	 * 64-bit FNV-1a hash of the characters, finished with the MurmurHash3 mixing step
+	 * Never returns 0, which marks an empty slot
+	 * @param s String to hash
+	 * @return The hash
+	 */
+	static long primaryHash(CharSequence s) {
+		long h = 0xcbf29ce484222325L;
+		for(int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h == 0 ? 1 : h;
+	}
+
+	/**
+	 * 32-bit hash independent of the primary hash, used to confirm matches
+	 * @param s String to hash
+	 * @return The hash
+	 */
+	static int secondaryHash(CharSequence s) {
+		int h = 0x9747b28c;
+		for(int i = 0; i < s.length(); i++) {
+			h = 31 * Integer.rotateLeft(h, 5) + s.charAt(i);
+		}
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h;
+	}
+
+	/**
+	 * Get a whitespace delimited field of a line without splitting the whole line
+	 * @param line The line
+	 * @param col Zero-based field number
+	 * @return The field or null if the line has fewer fields
+	 */
+	private static String field(String line, int col) {
+		int len = line.length();
+		int i = 0;
+		int field = 0;
+		while(i < len) {
+			while(i < len && Character.isWhitespace(line.charAt(i))) i++;
+			if(i == len) return null;
+			int start = i;
+			while(i < len && !Character.isWhitespace(line.charAt(i))) i++;
+			if(field == col) return line.substring(start, i);
+			field++;
+		}
+		return null;
+	}
+
+	/**
+	 * @param file A file
+	 * @return Number of lines in the file
+	 * @throws IOException
+	 */
+	private static long countLines(String file) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(file), 1 << 20);
+		long rtrn = 0;
+		while(reader.readLine() != null) rtrn++;
+		reader.close();
+		return rtrn;
+	}
+
+	/**
+	 * On-heap open-addressing set of distinct barcode sequences seen while building the index
+	 * Barcode strings are identified by the primary and secondary hash, so the strings themselves are not kept
+	 * @author prussell
+	 *
+	 */
+	private static final class BarcodeDeduplicator {
+
+		private long[] hashes = new long[1 << 16];
+		private int[] checks = new int[1 << 16];
+		private int[] ids = new int[1 << 16];
+		private long[] offsets = new long[1 << 10];
+		private int size = 0;
+
+		/**
+		 * @param barcodes Barcode sequence attribute string
+		 * @return ID of the barcode sequence or -1 if not seen
+		 */
+		int find(String barcodes) {
+			long hash = primaryHash(barcodes);
+			int check = secondaryHash(barcodes);
+			int mask = hashes.length - 1;
+			int slot = (int) (hash & mask);
+			while(hashes[slot] != 0) {
+				if(hashes[slot] == hash && checks[slot] == check) return ids[slot];
+				slot = (slot + 1) & mask;
+			}
+			return -1;
+		}
+
+		/**
+		 * Add a barcode sequence that is not already present
+		 * @param barcodes Barcode sequence attribute string
+		 * @param dictionaryOffset Position of the barcode sequence in the dictionary file
+		 * @return The new ID
+		 */
+		int add(String barcodes, long dictionaryOffset) {
+			if(size >= hashes.length / 2) grow();
+			if(size == offsets.length) {
+				long[] newOffsets = new long[offsets.length * 2];
+				System.arraycopy(offsets, 0, newOffsets, 0, size);
+				offsets = newOffsets;
+			}
+			int id = size++;
+			offsets[id] = dictionaryOffset;
+			insert(primaryHash(barcodes), secondaryHash(barcodes), id);
+			return id;
+		}
+
+		private void insert(long hash, int check, int id) {
+			int mask = hashes.length - 1;
+			int slot = (int) (hash & mask);
+			while(hashes[slot] != 0) slot = (slot + 1) & mask;
+			hashes[slot] = hash;
+			checks[slot] = check;
+			ids[slot] = id;
+		}
+
+		private void grow() {
+			long[] oldHashes = hashes;
+			int[] oldChecks = checks;
+			int[] oldIds = ids;
+			hashes = new long[oldHashes.length * 2];
+			checks = new int[oldHashes.length * 2];
+			ids = new int[oldHashes.length * 2];
+			for(int i = 0; i < oldHashes.length; i++) {
+				if(oldHashes[i] != 0) insert(oldHashes[i], oldChecks[i], oldIds[i]);
+			}
+		}
+
+	}
+
+}
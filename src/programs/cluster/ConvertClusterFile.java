@@ -0,0 +1,160 @@
+package programs.cluster;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+import org.apache.log4j.Logger;
+
+import contact.FlatFragmentCluster;
+import contact.function.ClusterTransform;
+import contact.io.ClusterFileReader;
+import contact.io.ClusterFileWriter;
+import contact.iterator.FlatFragmentClusterIterator;
+import contact.iterator.HashPartitionedClusterGrouper;
+import guttmanlab.core.util.CommandLineParser;
+import net.sf.samtools.util.CloseableIterator;
+import util.BamCompression;
+
+/**
+ * Write the clusters of a barcode-sorted bam file, an unsorted bam file or a binary cluster file as a binary cluster file or as tab delimited text
+ * The text form is the same as {@link contact.function.FragmentClusterFunction#tabDelimitedString()}, one cluster per line
+ * Clusters can be filtered on the way with the options of {@link ClusterTransform}, and statistics on the input clusters written as JSON
+ * @author prussell
+ *
+ */
+public final class ConvertClusterFile {
+
+	private static Logger logger = Logger.getLogger(ConvertClusterFile.class.getName());
+
+	private ConvertClusterFile() {}
+
+	/**
+	 * Write clusters to a binary cluster file
+	 * @param clusters Clusters; closed when done
+	 * @param transform Filters to apply to each cluster
+	 * @param referenceNames Reference names by reference index
+	 * @param output Output file
+	 * @param compression Compression settings
+	 * @throws IOException
+	 */
+	private static void writeBinary(CloseableIterator<FlatFragmentCluster> clusters, ClusterTransform transform, String[] referenceNames, File output, BamCompression compression) throws IOException {
+		logger.info("Writing binary cluster file " + output + "...");
+		ClusterFileWriter writer = new ClusterFileWriter(output, referenceNames, compression);
+		while(clusters.hasNext()) {
+			FlatFragmentCluster cluster = clusters.next();
+			if(transform.apply(cluster)) writer.write(cluster);
+		}
+		clusters.close();
+		writer.close();
+		logger.info("Wrote " + writer.getNumClusters() + " clusters.");
+	}
+
+	/**
+	 * Write clusters as tab delimited text
+	 * @param clusters Clusters; closed when done
+	 * @param transform Filters to apply to each cluster
+	 * @param output Output file
+	 * @throws IOException
+	 */
+	private static void writeText(CloseableIterator<FlatFragmentCluster> clusters, ClusterTransform transform, File output) throws IOException {
+		logger.info("Writing text cluster file " + output + "...");
+		BufferedWriter writer = new BufferedWriter(new FileWriter(output), 1 << 20);
+		long numClusters = 0;
+		while(clusters.hasNext()) {
+			FlatFragmentCluster cluster = clusters.next();
+			if(!transform.apply(cluster)) continue;
+			writer.write(cluster.toTabDelimitedString());
+			writer.write("\n");
+			numClusters++;
+		}
+		clusters.close();
+		writer.close();
+		logger.info("Wrote " + numClusters + " clusters.");
+	}
+
+	/**
+	 * @param stream Stream of clusters
+	 * @return Iterator over the stream that closes the stream when closed
+	 */
+	private static CloseableIterator<FlatFragmentCluster> closeableIterator(Stream<FlatFragmentCluster> stream) {
+		Iterator<FlatFragmentCluster> iter = stream.iterator();
+		return new CloseableIterator<FlatFragmentCluster>() {
+			@Override
+			public boolean hasNext() {
+				return iter.hasNext();
+			}
+			@Override
+			public FlatFragmentCluster next() {
+				return iter.next();
+			}
+			@Override
+			public void close() {
+				stream.close();
+			}
+		};
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		CommandLineParser p = new CommandLineParser();
+		p.addStringArg("-ib", "Input bam file sorted by barcode, or in any order with -unsorted (provide this or -ic)", false, null);
+		p.addStringArg("-ic", "Input binary cluster file (provide this or -ib)", false, null);
+		p.addStringArg("-o", "Output file", true);
+		p.addBooleanArg("-text", "Write tab delimited text instead of a binary cluster file", false, false);
+		p.addStringArg("-stats", "JSON file to write statistics on the input clusters to", false, null);
+		p.addStringArg("-tmp", "Directory for partition files with -unsorted", false, System.getProperty("java.io.tmpdir"));
+		HashPartitionedClusterGrouper.addCommandLineOptions(p);
+		BamCompression.addCommandLineOptions(p);
+		ClusterTransform.addCommandLineOptions(p);
+		p.parse(args);
+		String inputBam = p.getStringArg("-ib");
+		String inputClusters = p.getStringArg("-ic");
+		File output = new File(p.getStringArg("-o"));
+		boolean text = p.getBooleanArg("-text");
+		String stats = p.getStringArg("-stats");
+		File tmpDir = new File(p.getStringArg("-tmp"));
+		boolean unsorted = p.getBooleanArg("-unsorted");
+
+		if((inputBam == null) == (inputClusters == null)) {
+			throw new IllegalArgumentException("Provide exactly one of -ib and -ic");
+		}
+		if(unsorted && inputBam == null) {
+			throw new IllegalArgumentException("-unsorted only applies to -ib");
+		}
+
+		CloseableIterator<FlatFragmentCluster> clusters;
+		String[] referenceNames;
+		if(inputBam != null && unsorted) {
+			HashPartitionedClusterGrouper grouper = HashPartitionedClusterGrouper.fromCommandLine(p, inputBam, tmpDir, 1);
+			if(stats != null) grouper.collectStatistics(new File(stats));
+			clusters = closeableIterator(grouper.clusters());
+			referenceNames = grouper.getReferenceNames();
+		} else if(inputBam != null) {
+			FlatFragmentClusterIterator iter = new FlatFragmentClusterIterator(inputBam);
+			if(stats != null) iter.collectStatistics(new File(stats));
+			clusters = iter;
+			referenceNames = iter.getReferenceNames();
+		} else {
+			ClusterFileReader reader = new ClusterFileReader(new File(inputClusters));
+			if(stats != null) reader.collectStatistics(new File(stats));
+			clusters = reader;
+			referenceNames = reader.getReferenceNames();
+		}
+
+		ClusterTransform transform = ClusterTransform.fromCommandLine(p, referenceNames);
+		if(text) {
+			writeText(clusters, transform, output);
+		} else {
+			writeBinary(clusters, transform, referenceNames, output, BamCompression.fromCommandLine(p));
+		}
+
+		logger.info("");
+		logger.info("All done.");
+
+	}
+
+}
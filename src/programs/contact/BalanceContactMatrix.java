@@ -0,0 +1,72 @@
+package programs.contact;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+import contact.matrix.BalancingWeights;
+import contact.matrix.ContactPixels;
+import contact.matrix.DiskContactStore;
+import contact.matrix.InMemoryContactPixels;
+import contact.matrix.MatrixBalancer;
+import contact.matrix.MatrixFileReader;
+import guttmanlab.core.util.CommandLineParser;
+
+/**
+ * Balance a contact matrix and write the bin weights next to it
+ * The matrix is a disk contact store, or one zoom level of a binary contact matrix file read into memory
+ * @author prussell
+ *
+ */
+public final class BalanceContactMatrix {
+
+	private static Logger logger = Logger.getLogger(BalanceContactMatrix.class.getName());
+
+	private BalanceContactMatrix() {}
+
+	public static void main(String[] args) throws IOException {
+
+		CommandLineParser p = new CommandLineParser();
+		p.addStringArg("-store", "Disk contact store (provide this or -im)", false, null);
+		p.addStringArg("-im", "Binary contact matrix file (provide this or -store)", false, null);
+		p.addIntArg("-bin", "Bin size of the zoom level to balance, with -im", false, -1);
+		p.addIntArg("-t", "Number of threads", false, Runtime.getRuntime().availableProcessors());
+		MatrixBalancer.addCommandLineOptions(p);
+		p.parse(args);
+		String store = p.getStringArg("-store");
+		String matrixFile = p.getStringArg("-im");
+		int binSize = p.getIntArg("-bin");
+		MatrixBalancer balancer = MatrixBalancer.fromCommandLine(p, p.getIntArg("-t"));
+
+		if((store == null) == (matrixFile == null)) {
+			throw new IllegalArgumentException("Provide exactly one of -store and -im");
+		}
+
+		File input;
+		ContactPixels pixels;
+		DiskContactStore diskStore = null;
+		if(store != null) {
+			input = new File(store);
+			diskStore = DiskContactStore.open(input);
+			pixels = diskStore;
+		} else {
+			if(binSize < 1) throw new IllegalArgumentException("Provide the bin size of the zoom level to balance with -bin");
+			input = new File(matrixFile);
+			MatrixFileReader reader = new MatrixFileReader(input);
+			pixels = InMemoryContactPixels.fromMatrixFile(reader, binSize);
+			reader.close();
+		}
+
+		BalancingWeights weights = balancer.balance(pixels);
+		File output = BalancingWeights.fileFor(input, pixels.getBins().getBinSize());
+		logger.info("Writing weights to " + output + "...");
+		weights.write(output);
+		if(diskStore != null) diskStore.close();
+
+		logger.info("");
+		logger.info("All done.");
+
+	}
+
+}
@@ -0,0 +1,173 @@
+package programs.contact;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+
+import org.apache.log4j.Logger;
+
+import contact.FlatFragmentCluster;
+import contact.function.ClusterTransform;
+import contact.io.ClusterFileReader;
+import contact.iterator.FlatFragmentClusterIterator;
+import contact.iterator.HashPartitionedClusterGrouper;
+import contact.matrix.BandedContactMatrix;
+import contact.matrix.ClusterContactEmitter;
+import contact.matrix.CooMatrix;
+import contact.matrix.DiskContactStore;
+import contact.matrix.GenomeBins;
+import contact.matrix.MatrixFileWriter;
+import contact.matrix.ParallelContactAccumulator;
+import contact.matrix.PixelConsumer;
+import guttmanlab.core.coordinatespace.CoordinateSpace;
+import guttmanlab.core.util.CommandLineParser;
+
+/**
+ * Build a binned contact matrix from the clusters of a barcode-sorted bam file, an unsorted bam file or a binary cluster file
+ * Clusters are filtered with the options of {@link ClusterTransform} and turned into contacts with the options of
+ * {@link ClusterContactEmitter}, on several threads that each fill a partial matrix
+ * The matrix is written as a binary file with zoom levels, to read with {@link contact.matrix.MatrixFileReader}
+ * Statistics on the input clusters, before filtering, can be written as JSON
+ * The pixels near the diagonal can also be written as a separate matrix file through a {@link BandedContactMatrix} filled from the merged pixels
+ * @author prussell
+ *
+ */
+public final class BuildContactMatrix {
+
+	private static Logger logger = Logger.getLogger(BuildContactMatrix.class.getName());
+
+	private BuildContactMatrix() {}
+
+	/**
+	 * Fill a banded matrix from the merged pixels and write it as a binary contact matrix file; pixels outside the band are left out
+	 * @param bins Genome bins
+	 * @param pixels Passes each merged pixel to a consumer
+	 * @param maxDistance Maximum distance in base pairs between the starts of two bins in the band
+	 * @param output Output file
+	 */
+	private static void writeBand(GenomeBins bins, Consumer<PixelConsumer> pixels, int maxDistance, File output) {
+		BandedContactMatrix<?, ?> band = BandedContactMatrix.forMaxDistance(bins, maxDistance, false);
+		pixels.accept(band);
+		logger.info("Band of " + band.getBandWidth() + " diagonals holds " + band.getNumPixels() + " pixels; left out " + band.getNumDiscarded() + " contacts outside it");
+		band.writeMatrix(output);
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		CommandLineParser p = new CommandLineParser();
+		p.addStringArg("-ib", "Input bam file sorted by barcode, or in any order with -unsorted (provide this or -ic)", false, null);
+		p.addStringArg("-ic", "Input binary cluster file (provide this or -ib)", false, null);
+		p.addStringArg("-c", "Chromosome size file", true);
+		p.addIntArg("-bin", "Bin size", true);
+		p.addStringArg("-o", "Output binary contact matrix file", true);
+		p.addStringArg("-stats", "JSON file to write statistics on the input clusters to", false, null);
+		p.addBooleanArg("-text", "Write the finest level as tab delimited text instead of a binary contact matrix file", false, false);
+		p.addStringArg("-zoom", "Comma separated bin sizes of coarser zoom levels, multiples of the bin size (default 1 Mb, 250 kb, 50 kb and 10 kb where they apply)", false, null);
+		p.addStringArg("-store", "Also keep the finest level as a memory-mapped contact store at this path, spilling partial matrices to disk instead of merging them in memory", false, null);
+		p.addStringArg("-tmp", "Directory for spill files with -store (default: the directory of the store) and partition files with -unsorted (default: the system temporary directory)", false, null);
+		p.addIntArg("-band", "Also write the pixels within this distance in base pairs of the diagonal to the file given by -bando (default: no band)", false, -1);
+		p.addStringArg("-bando", "Output binary contact matrix file of the band near the diagonal, with -band", false, null);
+		p.addIntArg("-t", "Number of threads", false, Runtime.getRuntime().availableProcessors());
+		p.addIntArg("-mem", "Memory cap in MB on the partial matrix of each thread; with -store, the threads' total also sizes the column sort of the store", false, 512);
+		HashPartitionedClusterGrouper.addCommandLineOptions(p);
+		ClusterTransform.addCommandLineOptions(p);
+		ClusterContactEmitter.addCommandLineOptions(p);
+		p.parse(args);
+		String inputBam = p.getStringArg("-ib");
+		String inputClusters = p.getStringArg("-ic");
+		String stats = p.getStringArg("-stats");
+		CoordinateSpace coordSpace = new CoordinateSpace(p.getStringArg("-c"));
+		int binSize = p.getIntArg("-bin");
+		File output = new File(p.getStringArg("-o"));
+		boolean text = p.getBooleanArg("-text");
+		String zoom = p.getStringArg("-zoom");
+		String store = p.getStringArg("-store");
+		String tmp = p.getStringArg("-tmp");
+		int bandDistance = p.getIntArg("-band");
+		String bandOutput = p.getStringArg("-bando");
+		int numThreads = p.getIntArg("-t");
+		long maxBytesPerThread = (long) p.getIntArg("-mem") << 20;
+		boolean unsorted = p.getBooleanArg("-unsorted");
+
+		if((inputBam == null) == (inputClusters == null)) {
+			throw new IllegalArgumentException("Provide exactly one of -ib and -ic");
+		}
+		if(unsorted && inputBam == null) {
+			throw new IllegalArgumentException("-unsorted only applies to -ib");
+		}
+		if((bandDistance >= 0) != (bandOutput != null)) {
+			throw new IllegalArgumentException("Provide -band and -bando together");
+		}
+		if(store != null && text) {
+			throw new IllegalArgumentException("Text output is only available without -store");
+		}
+
+		Stream<FlatFragmentCluster> clusters;
+		String[] referenceNames;
+		if(inputBam != null && unsorted) {
+			HashPartitionedClusterGrouper grouper = HashPartitionedClusterGrouper.fromCommandLine(p, inputBam, new File(tmp != null ? tmp : System.getProperty("java.io.tmpdir")), numThreads);
+			if(stats != null) grouper.collectStatistics(new File(stats));
+			referenceNames = grouper.getReferenceNames();
+			clusters = grouper.clusters();
+		} else if(inputBam != null) {
+			FlatFragmentClusterIterator iter = new FlatFragmentClusterIterator(inputBam);
+			if(stats != null) iter.collectStatistics(new File(stats));
+			referenceNames = iter.getReferenceNames();
+			clusters = iter.clusters();
+		} else {
+			ClusterFileReader reader = new ClusterFileReader(new File(inputClusters));
+			if(stats != null) reader.collectStatistics(new File(stats));
+			referenceNames = reader.getReferenceNames();
+			clusters = reader.clusters();
+		}
+
+		GenomeBins bins = GenomeBins.forReferences(referenceNames, coordSpace, binSize);
+		logger.info("Accumulating contacts in " + bins.getNumBins() + " bins of size " + binSize + " on " + numThreads + " threads...");
+		ClusterTransform transform = ClusterTransform.fromCommandLine(p, referenceNames);
+		ClusterContactEmitter emitter = ClusterContactEmitter.fromCommandLine(p, bins);
+		File spillDirectory = null;
+		if(store != null) {
+			spillDirectory = tmp != null ? new File(tmp) : new File(store).getAbsoluteFile().getParentFile();
+		}
+		ParallelContactAccumulator accumulator = new ParallelContactAccumulator(bins, numThreads, maxBytesPerThread, spillDirectory);
+		accumulator.accumulate(clusters.filter(transform::apply), emitter);
+		clusters.close();
+		emitter.logCounts();
+
+		int[] binSizes = MatrixFileWriter.defaultBinSizes(binSize);
+		if(zoom != null) {
+			String[] tokens = zoom.split(",");
+			binSizes = new int[tokens.length + 1];
+			binSizes[0] = binSize;
+			for(int i = 0; i < tokens.length; i++) binSizes[i + 1] = Integer.parseInt(tokens[i].trim());
+		}
+
+		if(store != null) {
+			DiskContactStore pixels = accumulator.finish(new File(store));
+			logger.info("Writing " + pixels.getNumPixels() + " pixels to " + output + "...");
+			MatrixFileWriter writer = new MatrixFileWriter(output, bins, binSizes, MatrixFileWriter.DEFAULT_PIXELS_PER_CHUNK, Deflater.DEFAULT_COMPRESSION);
+			pixels.forEach(writer);
+			writer.close();
+			if(bandDistance >= 0) writeBand(bins, pixels::forEach, bandDistance, new File(bandOutput));
+			pixels.close();
+		} else {
+			CooMatrix matrix = accumulator.finish();
+			logger.info("Writing " + matrix.getNumPixels() + " pixels to " + output + "...");
+			if(text) {
+				matrix.writeText(output, bins);
+			} else {
+				MatrixFileWriter writer = new MatrixFileWriter(output, bins, binSizes, MatrixFileWriter.DEFAULT_PIXELS_PER_CHUNK, Deflater.DEFAULT_COMPRESSION);
+				matrix.forEach(writer);
+				writer.close();
+			}
+			if(bandDistance >= 0) writeBand(bins, matrix::forEach, bandDistance, new File(bandOutput));
+		}
+
+		logger.info("");
+		logger.info("All done.");
+
+	}
+
+}
@@ -0,0 +1,105 @@
+package programs.contact;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import contact.matrix.BalancingWeights;
+import contact.matrix.CompartmentAnalysis;
+import contact.matrix.CompartmentAnalysis.Eigenvectors;
+import contact.matrix.ContactPixels;
+import contact.matrix.DiskContactStore;
+import contact.matrix.InMemoryContactPixels;
+import contact.matrix.MatrixFileReader;
+import contact.matrix.NormalizedContactPixels;
+import guttmanlab.core.util.CommandLineParser;
+
+/**
+ * Compute A/B compartment eigenvectors of each reference from a contact matrix and write them as bedGraph files
+ * The matrix is a disk contact store, or one zoom level of a binary contact matrix file read into memory
+ * @author prussell
+ *
+ */
+public final class ComputeCompartments {
+
+	private static Logger logger = Logger.getLogger(ComputeCompartments.class.getName());
+
+	private ComputeCompartments() {}
+
+	public static void main(String[] args) throws IOException {
+
+		CommandLineParser p = new CommandLineParser();
+		p.addStringArg("-store", "Disk contact store (provide this or -im)", false, null);
+		p.addStringArg("-im", "Binary contact matrix file (provide this or -store)", false, null);
+		p.addIntArg("-bin", "Bin size of the zoom level to use, with -im", false, -1);
+		p.addBooleanArg("-balanced", "Apply the balancing weights written next to the matrix by BalanceContactMatrix", false, false);
+		p.addStringArg("-phase", "BedGraph track to orient the eigenvectors by, e.g. GC content; positive values go with high track values", false, null);
+		p.addStringArg("-region", "Reference to analyze; default all references", false, null);
+		p.addStringArg("-o", "Output prefix; eigenvector k is written to <prefix>.E<k>.bedGraph", true);
+		p.addIntArg("-t", "Number of threads", false, Runtime.getRuntime().availableProcessors());
+		CompartmentAnalysis.addCommandLineOptions(p);
+		p.parse(args);
+		String store = p.getStringArg("-store");
+		String matrixFile = p.getStringArg("-im");
+		int binSize = p.getIntArg("-bin");
+		boolean balanced = p.getBooleanArg("-balanced");
+		String phase = p.getStringArg("-phase");
+		String region = p.getStringArg("-region");
+		String outPrefix = p.getStringArg("-o");
+		CompartmentAnalysis analysis = CompartmentAnalysis.fromCommandLine(p, p.getIntArg("-t"));
+
+		if((store == null) == (matrixFile == null)) {
+			throw new IllegalArgumentException("Provide exactly one of -store and -im");
+		}
+
+		File input;
+		ContactPixels pixels;
+		DiskContactStore diskStore = null;
+		if(store != null) {
+			input = new File(store);
+			diskStore = DiskContactStore.open(input);
+			pixels = diskStore;
+		} else {
+			if(binSize < 1) throw new IllegalArgumentException("Provide the bin size of the zoom level to use with -bin");
+			input = new File(matrixFile);
+			MatrixFileReader reader = new MatrixFileReader(input);
+			pixels = InMemoryContactPixels.fromMatrixFile(reader, binSize);
+			reader.close();
+		}
+		if(balanced) {
+			File weightFile = BalancingWeights.fileFor(input, pixels.getBins().getBinSize());
+			logger.info("Applying weights from " + weightFile + "...");
+			pixels = new NormalizedContactPixels(pixels, BalancingWeights.read(weightFile));
+		}
+
+		List<Eigenvectors> eigenvectors;
+		if(region != null) {
+			int refIndex = pixels.getBins().getReferenceIndex(region);
+			if(refIndex < 0) throw new IllegalArgumentException("Reference " + region + " is not in the matrix");
+			eigenvectors = new ArrayList<Eigenvectors>();
+			eigenvectors.add(analysis.compute(pixels, refIndex));
+		} else {
+			eigenvectors = analysis.compute(pixels);
+		}
+
+		if(phase != null) {
+			double[] track = CompartmentAnalysis.readTrack(new File(phase), pixels.getBins());
+			for(Eigenvectors e : eigenvectors) e.orient(track);
+		}
+
+		int numWritten = 0;
+		for(Eigenvectors e : eigenvectors) numWritten = Math.max(numWritten, e.getNumEigenvectors());
+		for(int k = 0; k < numWritten; k++) {
+			CompartmentAnalysis.writeBedGraph(new File(outPrefix + ".E" + (k + 1) + ".bedGraph"), pixels.getBins(), eigenvectors, k);
+		}
+		if(diskStore != null) diskStore.close();
+
+		logger.info("");
+		logger.info("All done.");
+
+	}
+
+}
@@ -0,0 +1,91 @@
+package programs.contact;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.stream.Stream;
+
+import org.apache.log4j.Logger;
+
+import contact.FlatFragmentCluster;
+import contact.function.ClusterTransform;
+import contact.io.ClusterFileReader;
+import contact.iterator.FlatFragmentClusterIterator;
+import contact.iterator.HashPartitionedClusterGrouper;
+import contact.stats.DistanceDecay;
+import guttmanlab.core.util.CommandLineParser;
+
+/**
+ * Compute contact probability against genomic distance, P(s), in one pass over the clusters of a barcode-sorted bam file,
+ * an unsorted bam file or a binary cluster file, without building a contact matrix
+ * Statistics on the input clusters, before filtering, can be written as JSON
+ * @author prussell
+ *
+ */
+public final class ComputeDistanceDecay {
+
+	private static Logger logger = Logger.getLogger(ComputeDistanceDecay.class.getName());
+
+	private ComputeDistanceDecay() {}
+
+	public static void main(String[] args) throws IOException {
+
+		CommandLineParser p = new CommandLineParser();
+		p.addStringArg("-ib", "Input bam file sorted by barcode, or in any order with -unsorted (provide this or -ic)", false, null);
+		p.addStringArg("-ic", "Input binary cluster file (provide this or -ib)", false, null);
+		p.addStringArg("-o", "Output table of distance bins", true);
+		p.addStringArg("-stats", "JSON file to write statistics on the input clusters to", false, null);
+		p.addStringArg("-tmp", "Directory for partition files with -unsorted", false, System.getProperty("java.io.tmpdir"));
+		p.addIntArg("-t", "Number of threads", false, Runtime.getRuntime().availableProcessors());
+		HashPartitionedClusterGrouper.addCommandLineOptions(p);
+		ClusterTransform.addCommandLineOptions(p);
+		DistanceDecay.addCommandLineOptions(p);
+		p.parse(args);
+		String inputBam = p.getStringArg("-ib");
+		String inputClusters = p.getStringArg("-ic");
+		String stats = p.getStringArg("-stats");
+		File output = new File(p.getStringArg("-o"));
+		File tmpDir = new File(p.getStringArg("-tmp"));
+		int numThreads = p.getIntArg("-t");
+		boolean unsorted = p.getBooleanArg("-unsorted");
+
+		if((inputBam == null) == (inputClusters == null)) {
+			throw new IllegalArgumentException("Provide exactly one of -ib and -ic");
+		}
+		if(unsorted && inputBam == null) {
+			throw new IllegalArgumentException("-unsorted only applies to -ib");
+		}
+
+		Stream<FlatFragmentCluster> clusters;
+		String[] referenceNames;
+		if(inputBam != null && unsorted) {
+			HashPartitionedClusterGrouper grouper = HashPartitionedClusterGrouper.fromCommandLine(p, inputBam, tmpDir, numThreads);
+			if(stats != null) grouper.collectStatistics(new File(stats));
+			referenceNames = grouper.getReferenceNames();
+			clusters = grouper.clusters();
+		} else if(inputBam != null) {
+			FlatFragmentClusterIterator iter = new FlatFragmentClusterIterator(inputBam);
+			if(stats != null) iter.collectStatistics(new File(stats));
+			referenceNames = iter.getReferenceNames();
+			clusters = iter.clusters();
+		} else {
+			ClusterFileReader reader = new ClusterFileReader(new File(inputClusters));
+			if(stats != null) reader.collectStatistics(new File(stats));
+			referenceNames = reader.getReferenceNames();
+			clusters = reader.clusters();
+		}
+
+		ClusterTransform transform = ClusterTransform.fromCommandLine(p, referenceNames);
+		DistanceDecay decay = DistanceDecay.fromCommandLine(p, numThreads);
+		logger.info("Counting pairs by distance on " + numThreads + " threads...");
+		decay.accumulate(clusters.filter(transform::apply));
+		clusters.close();
+		decay.finish();
+		logger.info("Intra-chromosomal contacts: " + decay.getIntraChromosomalContacts() + "; inter-chromosomal: " + decay.getInterChromosomalContacts());
+		decay.write(output);
+
+		logger.info("");
+		logger.info("All done.");
+
+	}
+
+}
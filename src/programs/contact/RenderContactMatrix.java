@@ -0,0 +1,110 @@
+package programs.contact;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+import contact.matrix.BalancingWeights;
+import contact.matrix.ColorScale;
+import contact.matrix.ContactPixels;
+import contact.matrix.DiskContactStore;
+import contact.matrix.GenomeBins;
+import contact.matrix.HeatmapRenderer;
+import contact.matrix.MatrixFileContactPixels;
+import contact.matrix.MatrixFileReader;
+import contact.matrix.NormalizedContactPixels;
+import guttmanlab.core.util.CommandLineParser;
+
+/**
+ * Render a contact matrix as a heatmap: one large PNG, or a pyramid of PNG tiles
+ * The matrix is a disk contact store, or one zoom level of a binary contact matrix file read on demand, so it does not have to fit in memory
+ * @author prussell
+ *
+ */
+public final class RenderContactMatrix {
+
+	private static Logger logger = Logger.getLogger(RenderContactMatrix.class.getName());
+
+	private RenderContactMatrix() {}
+
+	public static void main(String[] args) throws IOException {
+
+		CommandLineParser p = new CommandLineParser();
+		p.addStringArg("-store", "Disk contact store (provide this or -im)", false, null);
+		p.addStringArg("-im", "Binary contact matrix file (provide this or -store)", false, null);
+		p.addIntArg("-bin", "Bin size of the zoom level to render, with -im", false, -1);
+		p.addBooleanArg("-balanced", "Apply the balancing weights written next to the matrix by BalanceContactMatrix", false, false);
+		p.addStringArg("-o", "Output PNG file (provide this or -tiles)", false, null);
+		p.addStringArg("-tiles", "Output directory for a tile pyramid (provide this or -o)", false, null);
+		p.addIntArg("-tileSize", "Tile size in pixels", false, HeatmapRenderer.DEFAULT_TILE_SIZE);
+		p.addIntArg("-binsPerPixel", "Bins per pixel of the PNG file; 0 to fit it within " + HeatmapRenderer.DEFAULT_MAX_IMAGE_SIZE + " pixels", false, 0);
+		p.addStringArg("-region", "Reference to render against itself; default whole genome", false, null);
+		p.addIntArg("-t", "Number of threads", false, Runtime.getRuntime().availableProcessors());
+		ColorScale.addCommandLineOptions(p);
+		p.parse(args);
+		String store = p.getStringArg("-store");
+		String matrixFile = p.getStringArg("-im");
+		int binSize = p.getIntArg("-bin");
+		boolean balanced = p.getBooleanArg("-balanced");
+		String output = p.getStringArg("-o");
+		String tiles = p.getStringArg("-tiles");
+		int tileSize = p.getIntArg("-tileSize");
+		int binsPerPixel = p.getIntArg("-binsPerPixel");
+		String region = p.getStringArg("-region");
+		int numThreads = p.getIntArg("-t");
+
+		if((store == null) == (matrixFile == null)) {
+			throw new IllegalArgumentException("Provide exactly one of -store and -im");
+		}
+		if((output == null) == (tiles == null)) {
+			throw new IllegalArgumentException("Provide exactly one of -o and -tiles");
+		}
+
+		if(store == null && binSize < 1) throw new IllegalArgumentException("Provide the bin size of the zoom level to render with -bin");
+		File input = new File(store != null ? store : matrixFile);
+		DiskContactStore diskStore = null;
+		MatrixFileReader reader = null;
+		GenomeBins bins;
+		if(store != null) {
+			diskStore = DiskContactStore.open(input);
+			bins = diskStore.getBins();
+		} else {
+			reader = new MatrixFileReader(input);
+			bins = reader.getBins(binSize);
+		}
+
+		int firstBin = 0;
+		int endBin = bins.getNumBins();
+		if(region != null) {
+			int refIndex = bins.getReferenceIndex(region);
+			if(refIndex < 0) throw new IllegalArgumentException("Reference " + region + " is not in the matrix");
+			firstBin = bins.getFirstBin(refIndex);
+			endBin = bins.getEndBin(refIndex);
+		}
+
+		// A matrix file view is restricted to the region, since its column queries scan the rows of the view
+		ContactPixels pixels = diskStore != null ? diskStore : new MatrixFileContactPixels(reader, binSize, firstBin, endBin);
+		if(balanced) {
+			File weightFile = BalancingWeights.fileFor(input, bins.getBinSize());
+			logger.info("Applying weights from " + weightFile + "...");
+			pixels = new NormalizedContactPixels(pixels, BalancingWeights.read(weightFile));
+		}
+
+		HeatmapRenderer renderer = new HeatmapRenderer(ColorScale.fromCommandLine(p, pixels), tileSize, numThreads);
+		if(output != null) {
+			if(binsPerPixel < 1) binsPerPixel = HeatmapRenderer.defaultBinsPerPixel(endBin - firstBin);
+			renderer.writePng(pixels, firstBin, endBin, binsPerPixel, new File(output));
+		} else {
+			int maxZoom = renderer.writeTiles(pixels, firstBin, endBin, new File(tiles));
+			logger.info("Wrote zoom levels 0 to " + maxZoom);
+		}
+		if(diskStore != null) diskStore.close();
+		if(reader != null) reader.close();
+
+		logger.info("");
+		logger.info("All done.");
+
+	}
+
+}
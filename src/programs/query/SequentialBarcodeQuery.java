@@ -18,14 +18,19 @@ import java.util.stream.Stream;
 
 import org.apache.log4j.Logger;
 
+import util.BamCompression;
 import util.BinCounts;
 import util.CustomSamTag;
 import util.Filters;
+import util.ParallelBamWriter;
+import net.sf.samtools.BAMRecordCodec;
 import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMFileReader;
 import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordCoordinateComparator;
 import net.sf.samtools.SAMRecordIterator;
 import net.sf.samtools.util.CloseableIterator;
+import net.sf.samtools.util.SortingCollection;
 import guttmanlab.core.annotation.BEDFileRecord;
 import guttmanlab.core.annotation.BlockedAnnotation;
 import guttmanlab.core.annotation.io.BEDFileIO;
@@ -52,9 +57,15 @@ public class SequentialBarcodeQuery {
 	private Map<String, BlockedAnnotation> featuresByName;
 	private Collection<Predicate<AvroSamRecord>> avroFilters; // Filters for records in the avro database
 	private Collection<Predicate<SAMRecord>> samFilters; // Filters for records in the bam file
+	private BamCompression bamCompression = BamCompression.DEFAULT; // Compression settings for bam output
 	
 	private static final Logger logger = Logger.getLogger(SequentialBarcodeQuery.class.getName());
 	
+	/**
+	 * Maximum number of records held in memory while sorting the query output; more are spilled to sorted temporary files
+	 */
+	private static final int MAX_RECORDS_IN_RAM = 500000;
+	
 	/**
 	 * Builder for objects of this class
 	 * Must set all fields
@@ -111,6 +122,12 @@ public class SequentialBarcodeQuery {
 		 */
 		public void setSamFilters(Collection<Predicate<SAMRecord>> samFilters) {query.samFilters = samFilters;}
 		
+		/**
+		 * Optional; defaults to {@link BamCompression#DEFAULT}
+		 * @param bamCompression Compression settings for bam output
+		 */
+		public void setBamCompression(BamCompression bamCompression) {query.bamCompression = bamCompression;}
+		
 		/**
 		 * Get the constructed query environment object
 		 * @return The query environment
@@ -344,6 +361,7 @@ public class SequentialBarcodeQuery {
 		p.addStringArg("-f", "Query region (feature ID or interval in UCSC format)", true);
 		p.addStringArg("-op", "Output prefix", true);
 		p.addIntArg("-bs", "Bin size for count table", false, 1000000);
+		BamCompression.addCommandLineOptions(p);
 		p.parse(args);
 		return p;
 	}
@@ -362,9 +380,39 @@ public class SequentialBarcodeQuery {
 		header.setSortOrder(SAMFileHeader.SortOrder.unsorted);
 		AvroSamRecord.writeToSAM(records.filter(record -> Filters.passesAll(record, addlFilters)), header, new File(sam));
 		System.out.println("");
-		BamUtils.samToBam(new File(sam), new File(bam));
-		System.out.println("");
-		BamUtils.sortBam(new File(bam), new File(sortedBam));
+		try {
+			// Write the unsorted BAM while feeding the records to a sort that spills to disk beyond a fixed number in memory
+			SAMFileReader reader = new SAMFileReader(new File(sam));
+			SAMFileHeader samHeader = reader.getFileHeader();
+			File tmpDir = new File(sortedBam).getAbsoluteFile().getParentFile();
+			SortingCollection<SAMRecord> sorter = SortingCollection.newInstance(SAMRecord.class, new BAMRecordCodec(samHeader),
+					new SAMRecordCoordinateComparator(), MAX_RECORDS_IN_RAM, tmpDir);
+			ParallelBamWriter<SAMRecord> bamWriter = ParallelBamWriter.create(samHeader, new File(bam), bamCompression);
+			long numRecords = 0;
+			SAMRecordIterator iter = reader.iterator();
+			while(iter.hasNext()) {
+				SAMRecord record = iter.next();
+				bamWriter.addAlignment(record);
+				sorter.add(record);
+				numRecords++;
+			}
+			iter.close();
+			bamWriter.close();
+			reader.close();
+			sorter.doneAdding();
+			logger.info("Wrote " + numRecords + " records to " + bam);
+			samHeader.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+			ParallelBamWriter<SAMRecord> sortedWriter = ParallelBamWriter.create(samHeader, new File(sortedBam), bamCompression);
+			CloseableIterator<SAMRecord> sorted = sorter.iterator();
+			while(sorted.hasNext()) sortedWriter.addAlignment(sorted.next());
+			sorted.close();
+			sorter.cleanup();
+			sortedWriter.close();
+			logger.info("Wrote sorted records to " + sortedBam);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
 		System.out.println("");
 		BamUtils.indexBam(new File(sortedBam));
 	}
@@ -400,6 +448,7 @@ public class SequentialBarcodeQuery {
 		builder.setAvroIndex(avroFile, schemaFile);
 		builder.setFeatures(featureBed, genome);
 		builder.setSamReader(barcodedBam);
+		builder.setBamCompression(BamCompression.fromCommandLine(p));
 		SequentialBarcodeQuery query = builder.get();
 
 		// Write names of interacting features
@@ -2,7 +2,9 @@ package testing;
 
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Collections;
+import java.util.stream.Stream;
 
 import org.apache.log4j.Logger;
 
@@ -29,13 +31,19 @@ public class TestSAMFragmentClusterIterator {
 		String out = p.getStringArg("-o");
 		SAMFragmentClusterIterator iter = new SAMFragmentClusterIterator(bam, new CoordinateSpace(chr));
 		FileWriter writer = new FileWriter(out);
-		while(iter.hasNext()) {
-			SAMFragmentCluster cluster = iter.next();
-			if(cluster.getNumBarcodes() < 4) continue;
-			writer.write(cluster.toString(FragmentClusterFunction.tabDelimitedString()) + "\n");
+		try(Stream<SAMFragmentCluster> clusters = iter.clusters()) {
+			clusters.parallel()
+				.filter(cluster -> cluster.getNumBarcodes() >= 4)
+				.map(cluster -> cluster.toString(FragmentClusterFunction.tabDelimitedString()))
+				.forEachOrdered(line -> {
+					try {
+						writer.write(line + "\n");
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
 		}
 		writer.close();
-		iter.close();
 		
 		logger.info("");
 		logger.info("All done");
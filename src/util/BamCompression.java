@@ -0,0 +1,84 @@
+package util;
+
+import guttmanlab.core.util.CommandLineParser;
+
+/**
+ * Settings for BGZF compression of bam output, shared by all programs that write bam files
+ * Instances are immutable
+ * @author prussell
+ *
+ */
+public final class BamCompression {
+
+	/**
+	 * Command line flag for number of compression threads
+	 */
+	public static final String COMPRESSION_THREADS_FLAG = "-compressionThreads";
+
+	/**
+	 * Command line flag for compression level
+	 */
+	public static final String COMPRESSION_LEVEL_FLAG = "-compressionLevel";
+
+	/**
+	 * Default number of compression threads
+	 */
+	public static final int DEFAULT_NUM_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+	/**
+	 * Default settings
+	 */
+	public static final BamCompression DEFAULT = new BamCompression(DEFAULT_NUM_THREADS, ParallelBgzfOutputStream.DEFAULT_COMPRESSION_LEVEL);
+
+	private int numThreads;
+	private int level;
+
+	/**
+	 * @param numThreads Number of threads for BGZF compression
+	 * @param level Deflate compression level 0-9
+	 */
+	public BamCompression(int numThreads, int level) {
+		if(numThreads < 1) throw new IllegalArgumentException("Number of compression threads must be at least 1");
+		if(level < 0 || level > 9) throw new IllegalArgumentException("Compression level must be between 0 and 9");
+		this.numThreads = numThreads;
+		this.level = level;
+	}
+
+	/**
+	 * Add the compression options to a command line parser
+	 * @param p Command line parser
+	 */
+	public static void addCommandLineOptions(CommandLineParser p) {
+		p.addIntArg(COMPRESSION_THREADS_FLAG, "Number of threads for BGZF compression of bam output", false, DEFAULT_NUM_THREADS);
+		p.addIntArg(COMPRESSION_LEVEL_FLAG, "Compression level 0-9 for bam output", false, ParallelBgzfOutputStream.DEFAULT_COMPRESSION_LEVEL);
+	}
+
+	/**
+	 * Get the compression settings from a command line parser that has already parsed the arguments
+	 * @param p Command line parser with options added by {@link #addCommandLineOptions(CommandLineParser)}
+	 * @return The compression settings
+	 */
+	public static BamCompression fromCommandLine(CommandLineParser p) {
+		return new BamCompression(p.getIntArg(COMPRESSION_THREADS_FLAG), p.getIntArg(COMPRESSION_LEVEL_FLAG));
+	}
+
+	/**
+	 * @return Number of threads for BGZF compression
+	 */
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * @return Deflate compression level
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	@Override
+	public String toString() {
+		return "threads=" + numThreads + ",level=" + level;
+	}
+
+}
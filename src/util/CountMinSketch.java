@@ -0,0 +1,87 @@
+package util;
+
+/**
+ * Count-Min sketch estimating the total count of each item in a stream, in fixed memory
+ * Estimates are never below the true count, and exceed it by at most e / width of the total count with probability 1 - exp(-depth)
+ * Items are added as 64-bit hashes, e.g. from {@link HyperLogLog#hash(CharSequence)}
+ * Instances are not thread safe; sketches filled on different threads can be combined with {@link #merge(CountMinSketch)}
+ * @author prussell
+ *
+ */
+public final class CountMinSketch {
+
+	private int depth;
+	private int widthMask;
+	private long[] counts; // Row after row
+	private long totalCount;
+
+	/**
+	 * @param depth Number of hash functions
+	 * @param logWidth Log base 2 of the number of counters per hash function
+	 */
+	public CountMinSketch(int depth, int logWidth) {
+		if(depth < 1) throw new IllegalArgumentException("Depth must be at least 1");
+		if(logWidth < 1 || logWidth > 24) throw new IllegalArgumentException("Log width must be between 1 and 24");
+		this.depth = depth;
+		widthMask = (1 << logWidth) - 1;
+		counts = new long[depth << logWidth];
+	}
+
+	/**
+	 * @param hash 64-bit hash of the item
+	 * @param row Hash function number
+	 * @return Index of the item's counter in the row
+	 */
+	private int index(long hash, int row) {
+		// Double hashing from the two halves of the hash
+		int h = (int) hash + row * (int) (hash >>> 32);
+		return (row * (widthMask + 1)) + (h & widthMask);
+	}
+
+	/**
+	 * Add to the count of an item
+	 * @param hash 64-bit hash of the item
+	 * @param count Amount to add
+	 * @return New estimated count of the item
+	 */
+	public long add(long hash, long count) {
+		long rtrn = Long.MAX_VALUE;
+		for(int row = 0; row < depth; row++) {
+			int i = index(hash, row);
+			counts[i] += count;
+			rtrn = Math.min(rtrn, counts[i]);
+		}
+		totalCount += count;
+		return rtrn;
+	}
+
+	/**
+	 * @param hash 64-bit hash of the item
+	 * @return Estimated count of the item
+	 */
+	public long estimate(long hash) {
+		long rtrn = Long.MAX_VALUE;
+		for(int row = 0; row < depth; row++) {
+			rtrn = Math.min(rtrn, counts[index(hash, row)]);
+		}
+		return rtrn;
+	}
+
+	/**
+	 * @return Total count of all items added
+	 */
+	public long getTotalCount() {
+		return totalCount;
+	}
+
+	/**
+	 * Add the counts of another sketch with the same dimensions
+	 * @param other Other sketch
+	 */
+	public void merge(CountMinSketch other) {
+		if(other.depth != depth || other.widthMask != widthMask) throw new IllegalArgumentException("Cannot merge sketches with different dimensions");
+		for(int i = 0; i < counts.length; i++) counts[i] += other.counts[i];
+		totalCount += other.totalCount;
+	}
+
+}
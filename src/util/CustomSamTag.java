@@ -15,6 +15,40 @@ public class CustomSamTag {
 	public static final String RRNA_ALIGNED = "XR";
 	public static final String CONTAINED_IN_ANNOTATION = "XF";
 	
+	/**
+	 * Tag listing the values of switches in the read layout, in the form [switchId1]valueId1[switchId2]valueId2...
+	 */
+	public static final String SWITCH_VALUES = "XV";
+	
+	/**
+	 * Integer tag with a dense ID for the barcode sequence, looked up in a dictionary stored next to the bam file
+	 */
+	public static final String CLUSTER_ID = "XI";
+	
+	/**
+	 * Prefix of a header comment naming the tag a bam file is grouped by, followed by the tag, e.g. for files with SO:unknown GO:query
+	 * sorted by barcode
+	 */
+	public static final String GROUPED_BY_TAG_COMMENT = "GROUPED_BY_TAG:";
+	
+	/**
+	 * Check whether a header has a comment saying the file is grouped by a tag
+	 * @param comments Header comment lines
+	 * @param tag The tag
+	 * @return True if one of the comments says the file is grouped by the tag
+	 */
+	public static boolean isGroupedByTag(Collection<String> comments, String tag) {
+		if(comments == null) {
+			return false;
+		}
+		for(String comment : comments) {
+			if(comment.endsWith(GROUPED_BY_TAG_COMMENT + tag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
 	/**
 	 * Tag indicating whether the read originated from RNA or DNA
 	 */
@@ -0,0 +1,83 @@
+package util;
+
+/**
+ * HyperLogLog sketch estimating the number of distinct items in a stream, in fixed memory
+ * Items are added as 64-bit hashes, e.g. from {@link #hash(CharSequence)}
+ * Instances are not thread safe; sketches filled on different threads can be combined with {@link #merge(HyperLogLog)}
+ * @author prussell
+ *
+ */
+public final class HyperLogLog {
+
+	private int precision;
+	private byte[] registers;
+
+	/**
+	 * @param precision Number of hash bits used to choose a register, 4-18; relative error is about 1.04 / sqrt(2^precision)
+	 */
+	public HyperLogLog(int precision) {
+		if(precision < 4 || precision > 18) throw new IllegalArgumentException("Precision must be between 4 and 18");
+		this.precision = precision;
+		registers = new byte[1 << precision];
+	}
+
+	/**
+	 * @param s A string
+	 * @return 64-bit hash of the string with well mixed bits, for use with sketches
+	 */
+	public static long hash(CharSequence s) {
+		long h = 0x9e3779b97f4a7c15L ^ s.length();
+		for(int i = 0; i < s.length(); i++) {
+			h = (h ^ s.charAt(i)) * 0x100000001b3L;
+		}
+		// Final mix from MurmurHash3
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Add an item
+	 * @param hash 64-bit hash of the item
+	 */
+	public void add(long hash) {
+		int register = (int) (hash >>> (64 - precision));
+		int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+		if(rank > registers[register]) registers[register] = (byte) rank;
+	}
+
+	/**
+	 * Add the items of another sketch with the same precision
+	 * @param other Other sketch
+	 */
+	public void merge(HyperLogLog other) {
+		if(other.precision != precision) throw new IllegalArgumentException("Cannot merge sketches with different precision");
+		for(int i = 0; i < registers.length; i++) {
+			if(other.registers[i] > registers[i]) registers[i] = other.registers[i];
+		}
+	}
+
+	/**
+	 * @return Estimated number of distinct items added
+	 */
+	public long estimate() {
+		int m = registers.length;
+		double sum = 0;
+		int numZero = 0;
+		for(byte r : registers) {
+			sum += 1.0 / (1L << r);
+			if(r == 0) numZero++;
+		}
+		double alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709 : 0.7213 / (1 + 1.079 / m);
+		double rtrn = alpha * m * m / sum;
+		if(rtrn <= 2.5 * m && numZero > 0) {
+			// Linear counting for small cardinalities
+			rtrn = m * Math.log((double) m / numZero);
+		}
+		return Math.round(rtrn);
+	}
+
+}
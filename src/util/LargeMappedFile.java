@@ -0,0 +1,149 @@
+package util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * A file of arbitrary size mapped into memory in fixed size segments
+ * Java can only map 2GB per buffer, so positions are split into a segment number and an offset within the segment
+ * Primitive values that are aligned to their own size never span two segments
+ * @author prussell
+ *
+ */
+public final class LargeMappedFile implements Closeable {
+
+	private static final int SEGMENT_BITS = 30;
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+	private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+	private RandomAccessFile file;
+	private MappedByteBuffer[] segments;
+	private long size;
+
+	/**
+	 * Map a file for reading and writing, creating or resizing it as necessary
+	 * @param path The file
+	 * @param size Size of the file in bytes
+	 * @throws IOException
+	 */
+	public LargeMappedFile(File path, long size) throws IOException {
+		this(path, size, false);
+	}
+
+	/**
+	 * @param path The file
+	 * @param size Size of the file in bytes, or -1 to map the existing file at its current size
+	 * @param readOnly Map the file read only. The file must exist.
+	 * @throws IOException
+	 */
+	public LargeMappedFile(File path, long size, boolean readOnly) throws IOException {
+		file = new RandomAccessFile(path, readOnly ? "r" : "rw");
+		if(size < 0) size = file.length();
+		else if(!readOnly) file.setLength(size);
+		this.size = size;
+		FileChannel channel = file.getChannel();
+		int numSegments = (int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_BITS);
+		segments = new MappedByteBuffer[numSegments];
+		for(int i = 0; i < numSegments; i++) {
+			long start = (long) i << SEGMENT_BITS;
+			long length = Math.min(SEGMENT_SIZE, size - start);
+			segments[i] = channel.map(readOnly ? MapMode.READ_ONLY : MapMode.READ_WRITE, start, length);
+		}
+	}
+
+	/**
+	 * @return Size of the mapped file in bytes
+	 */
+	public long size() {
+		return size;
+	}
+
+	public long getLong(long pos) {
+		return segments[(int) (pos >>> SEGMENT_BITS)].getLong((int) (pos & SEGMENT_MASK));
+	}
+
+	public void putLong(long pos, long value) {
+		segments[(int) (pos >>> SEGMENT_BITS)].putLong((int) (pos & SEGMENT_MASK), value);
+	}
+
+	public int getInt(long pos) {
+		return segments[(int) (pos >>> SEGMENT_BITS)].getInt((int) (pos & SEGMENT_MASK));
+	}
+
+	public void putInt(long pos, int value) {
+		segments[(int) (pos >>> SEGMENT_BITS)].putInt((int) (pos & SEGMENT_MASK), value);
+	}
+
+	public double getDouble(long pos) {
+		return segments[(int) (pos >>> SEGMENT_BITS)].getDouble((int) (pos & SEGMENT_MASK));
+	}
+
+	public void putDouble(long pos, double value) {
+		segments[(int) (pos >>> SEGMENT_BITS)].putDouble((int) (pos & SEGMENT_MASK), value);
+	}
+
+	public byte get(long pos) {
+		return segments[(int) (pos >>> SEGMENT_BITS)].get((int) (pos & SEGMENT_MASK));
+	}
+
+	public void put(long pos, byte value) {
+		segments[(int) (pos >>> SEGMENT_BITS)].put((int) (pos & SEGMENT_MASK), value);
+	}
+
+	/**
+	 * Copy bytes out of the file; the range may span segments
+	 * @param pos Position in the file
+	 * @param dst Destination array
+	 * @param offset Offset in destination array
+	 * @param length Number of bytes to copy
+	 */
+	public void get(long pos, byte[] dst, int offset, int length) {
+		while(length > 0) {
+			MappedByteBuffer segment = segments[(int) (pos >>> SEGMENT_BITS)];
+			int segmentPos = (int) (pos & SEGMENT_MASK);
+			int n = Math.min(length, segment.capacity() - segmentPos);
+			for(int i = 0; i < n; i++) dst[offset + i] = segment.get(segmentPos + i);
+			pos += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Copy bytes into the file; the range may span segments
+	 * @param pos Position in the file
+	 * @param src Source array
+	 * @param offset Offset in source array
+	 * @param length Number of bytes to copy
+	 */
+	public void put(long pos, byte[] src, int offset, int length) {
+		while(length > 0) {
+			MappedByteBuffer segment = segments[(int) (pos >>> SEGMENT_BITS)];
+			int segmentPos = (int) (pos & SEGMENT_MASK);
+			int n = Math.min(length, segment.capacity() - segmentPos);
+			for(int i = 0; i < n; i++) segment.put(segmentPos + i, src[offset + i]);
+			pos += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Flush changes to disk
+	 */
+	public void force() {
+		for(MappedByteBuffer segment : segments) segment.force();
+	}
+
+	@Override
+	public void close() throws IOException {
+		segments = null;
+		file.close();
+	}
+
+}
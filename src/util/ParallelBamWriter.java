@@ -0,0 +1,268 @@
+package util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Bam file writer that compresses BGZF blocks on a pool of worker threads
+ * This is the one bam writer used by all programs in the project, for records from either htsjdk or net.sf.samtools
+ * Records can be added one at a time, or encoded in bulk on other threads with {@link #newEncoder()}
+ * and added as encoded bytes, as long as the bytes are added in the desired output order
+ * @author prussell
+ *
+ * @param <R> SAM record type
+ */
+public final class ParallelBamWriter<R> implements Closeable {
+
+	private ParallelBgzfOutputStream out;
+	private Function<OutputStream, Consumer<R>> codecFactory;
+	private Consumer<R> codec;
+
+	/**
+	 * @param headerText Text of the header
+	 * @param sequenceNames Reference sequence names in header order
+	 * @param sequenceLengths Reference sequence lengths in header order
+	 * @param codecFactory Function that makes a record encoder writing to a stream
+	 * @param output Output bam file
+	 * @param compression Compression settings
+	 * @throws IOException
+	 */
+	private ParallelBamWriter(String headerText, List<String> sequenceNames, List<Integer> sequenceLengths,
+			Function<OutputStream, Consumer<R>> codecFactory, File output, BamCompression compression) throws IOException {
+		this.codecFactory = codecFactory;
+		out = new ParallelBgzfOutputStream(new BufferedOutputStream(new FileOutputStream(output), 1 << 20), compression.getNumThreads(), compression.getLevel());
+		writeHeader(headerText, sequenceNames, sequenceLengths);
+		codec = codecFactory.apply(out);
+	}
+
+	/**
+	 * Create a writer for htsjdk records
+	 * @param header Header to write
+	 * @param output Output bam file
+	 * @param compression Compression settings
+	 * @return The writer
+	 * @throws IOException
+	 */
+	public static ParallelBamWriter<htsjdk.samtools.SAMRecord> create(htsjdk.samtools.SAMFileHeader header, File output, BamCompression compression) throws IOException {
+		StringWriter text = new StringWriter();
+		new htsjdk.samtools.SAMTextHeaderCodec().encode(text, header);
+		List<String> names = new ArrayList<String>();
+		List<Integer> lengths = new ArrayList<Integer>();
+		for(htsjdk.samtools.SAMSequenceRecord sequence : header.getSequenceDictionary().getSequences()) {
+			names.add(sequence.getSequenceName());
+			lengths.add(Integer.valueOf(sequence.getSequenceLength()));
+		}
+		return new ParallelBamWriter<htsjdk.samtools.SAMRecord>(text.toString(), names, lengths, os -> {
+			htsjdk.samtools.BAMRecordCodec codec = new htsjdk.samtools.BAMRecordCodec(header);
+			codec.setOutputStream(os);
+			return codec::encode;
+		}, output, compression);
+	}
+
+	/**
+	 * Create a writer for net.sf.samtools records
+	 * @param header Header to write
+	 * @param output Output bam file
+	 * @param compression Compression settings
+	 * @return The writer
+	 * @throws IOException
+	 */
+	public static ParallelBamWriter<net.sf.samtools.SAMRecord> create(net.sf.samtools.SAMFileHeader header, File output, BamCompression compression) throws IOException {
+		StringWriter text = new StringWriter();
+		new net.sf.samtools.SAMTextHeaderCodec().encode(text, header);
+		List<String> names = new ArrayList<String>();
+		List<Integer> lengths = new ArrayList<Integer>();
+		for(net.sf.samtools.SAMSequenceRecord sequence : header.getSequenceDictionary().getSequences()) {
+			names.add(sequence.getSequenceName());
+			lengths.add(Integer.valueOf(sequence.getSequenceLength()));
+		}
+		return new ParallelBamWriter<net.sf.samtools.SAMRecord>(text.toString(), names, lengths, os -> {
+			net.sf.samtools.BAMRecordCodec codec = new net.sf.samtools.BAMRecordCodec(header);
+			codec.setOutputStream(os);
+			return codec::encode;
+		}, output, compression);
+	}
+
+	/**
+	 * Write the binary bam header in its own BGZF block
+	 * @throws IOException
+	 */
+	private void writeHeader(String headerText, List<String> sequenceNames, List<Integer> sequenceLengths) throws IOException {
+		byte[] textBytes = headerText.getBytes(StandardCharsets.UTF_8);
+		out.write(new byte[] {'B', 'A', 'M', 1});
+		writeInt(textBytes.length);
+		out.write(textBytes);
+		writeInt(sequenceNames.size());
+		for(int i = 0; i < sequenceNames.size(); i++) {
+			byte[] name = sequenceNames.get(i).getBytes(StandardCharsets.US_ASCII);
+			writeInt(name.length + 1);
+			out.write(name);
+			out.write(0);
+			writeInt(sequenceLengths.get(i).intValue());
+		}
+		out.flush();
+	}
+
+	private void writeInt(int value) throws IOException {
+		out.write(value);
+		out.write(value >>> 8);
+		out.write(value >>> 16);
+		out.write(value >>> 24);
+	}
+
+	/**
+	 * Encode and write a record
+	 * @param record The record
+	 */
+	public void addAlignment(R record) {
+		codec.accept(record);
+	}
+
+	/**
+	 * Write records that were already encoded, e.g. by an {@link Encoder} on another thread
+	 * @param encodedRecords Bytes of one or more complete encoded records
+	 * @param offset Offset in the array
+	 * @param length Number of bytes
+	 */
+	public void addEncodedRecords(byte[] encodedRecords, int offset, int length) {
+		try {
+			out.write(encodedRecords, offset, length);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Get the position of the next record to be written; convert it to a BGZF virtual file offset with
+	 * {@link #getVirtualOffset(long)} after the writer is closed
+	 * @return Position of the next record
+	 */
+	public long getPosition() {
+		try {
+			return out.getPosition();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @param position Position from {@link #getPosition()}
+	 * @return BGZF virtual file offset of the position, for random access with a bam reader
+	 * @throws IllegalStateException If the position has not been written to the file yet
+	 */
+	public long getVirtualOffset(long position) {
+		return out.getVirtualOffset(position);
+	}
+
+	/**
+	 * @return A new encoder for this file's header, to encode records on a thread other than the writing thread
+	 */
+	public Encoder<R> newEncoder() {
+		return new Encoder<R>(codecFactory);
+	}
+
+	@Override
+	public void close() {
+		try {
+			out.close();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Encodes records into a reusable in-memory buffer
+	 * Not thread safe; use one per thread
+	 * @author prussell
+	 *
+	 * @param <R> SAM record type
+	 */
+	public static final class Encoder<R> {
+
+		private ExposedByteArrayOutputStream buffer;
+		private Consumer<R> codec;
+
+		private Encoder(Function<OutputStream, Consumer<R>> codecFactory) {
+			buffer = new ExposedByteArrayOutputStream();
+			codec = codecFactory.apply(buffer);
+		}
+
+		/**
+		 * Append the encoded record to the buffer
+		 * @param record The record
+		 */
+		public void encode(R record) {
+			codec.accept(record);
+		}
+
+		/**
+		 * @return The buffer contents; valid until the next call to {@link #reset()} or {@link #encode(Object)}
+		 */
+		public byte[] getBuffer() {
+			return buffer.getBuffer();
+		}
+
+		/**
+		 * @return Number of bytes in the buffer
+		 */
+		public int size() {
+			return buffer.size();
+		}
+
+		/**
+		 * @return Copy of the buffer contents
+		 */
+		public byte[] toByteArray() {
+			return buffer.toByteArray();
+		}
+
+		/**
+		 * Empty the buffer
+		 */
+		public void reset() {
+			buffer.reset();
+		}
+
+		/**
+		 * Drop everything encoded after the buffer had the given size, e.g. a record that failed partway through encoding
+		 * @param size Earlier value of {@link #size()}
+		 */
+		public void truncate(int size) {
+			buffer.truncate(size);
+		}
+
+	}
+
+	/**
+	 * Byte array output stream giving access to its buffer without copying
+	 */
+	private static final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+		ExposedByteArrayOutputStream() {
+			super(1 << 16);
+		}
+
+		byte[] getBuffer() {
+			return buf;
+		}
+
+		void truncate(int size) {
+			if(size < 0 || size > count) throw new IllegalArgumentException("Size " + size + " is not between 0 and " + count);
+			count = size;
+		}
+
+	}
+
+}
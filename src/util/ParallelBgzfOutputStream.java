@@ -0,0 +1,265 @@
+package util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Output stream that writes BGZF (blocked gzip) data, compressing blocks on a pool of worker threads
+ * Blocks are written to the underlying stream in the order their data was written to this stream
+ * The caller only copies data and writes finished blocks, so the producing thread is not held up by compression
+ * Instances are not thread safe; write from one thread.
+ * @author prussell
+ *
+ */
+public final class ParallelBgzfOutputStream extends OutputStream {
+
+	/**
+	 * Maximum uncompressed bytes per block, small enough that an uncompressible block still fits in a BGZF block
+	 */
+	public static final int MAX_UNCOMPRESSED_BLOCK_SIZE = 0xff00;
+
+	/**
+	 * Default deflate compression level
+	 */
+	public static final int DEFAULT_COMPRESSION_LEVEL = 5;
+
+	private static final int BLOCK_HEADER_LENGTH = 18;
+	private static final int BLOCK_FOOTER_LENGTH = 8;
+	private static final int MAX_COMPRESSED_BLOCK_SIZE = 0x10000;
+
+	/**
+	 * The empty block that marks the end of a BGZF file
+	 */
+	private static final byte[] EOF_BLOCK = {
+			0x1f, (byte) 0x8b, 0x08, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) 0xff, 0x06, 0x00, 0x42, 0x43, 0x02, 0x00,
+			0x1b, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00 };
+
+	private OutputStream out;
+	private ExecutorService compressors;
+	private int compressionLevel;
+	private int maxPendingBlocks;
+	private ArrayDeque<Future<byte[]>> pending;
+	private byte[] buffer;
+	private int bufferPos;
+	private long numBlocksStarted; // Blocks handed off for compression
+	private long numBlocksWritten;
+	private long compressedBytesWritten;
+	private long[] blockOffsets; // Compressed offset of each written block
+	private boolean closed;
+
+	/**
+	 * @param out Stream to write compressed blocks to
+	 * @param numThreads Number of compression threads
+	 * @param compressionLevel Deflate compression level 0-9
+	 */
+	public ParallelBgzfOutputStream(OutputStream out, int numThreads, int compressionLevel) {
+		if(numThreads < 1) throw new IllegalArgumentException("Number of compression threads must be at least 1");
+		if(compressionLevel < 0 || compressionLevel > 9) throw new IllegalArgumentException("Compression level must be between 0 and 9");
+		this.out = out;
+		this.compressionLevel = compressionLevel;
+		compressors = Executors.newFixedThreadPool(numThreads, r -> {
+			Thread t = new Thread(r, "bgzf-compressor");
+			t.setDaemon(true);
+			return t;
+		});
+		maxPendingBlocks = 4 * numThreads;
+		pending = new ArrayDeque<Future<byte[]>>();
+		buffer = new byte[MAX_UNCOMPRESSED_BLOCK_SIZE];
+		bufferPos = 0;
+		blockOffsets = new long[1024];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if(bufferPos == buffer.length) endBlock();
+		buffer[bufferPos++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while(len > 0) {
+			if(bufferPos == buffer.length) endBlock();
+			int n = Math.min(len, buffer.length - bufferPos);
+			System.arraycopy(b, off, buffer, bufferPos, n);
+			bufferPos += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * End the current block even if it is not full, and write all pending blocks
+	 */
+	@Override
+	public void flush() throws IOException {
+		if(bufferPos > 0) endBlock();
+		while(!pending.isEmpty()) writeNextBlock();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(closed) return;
+		flush();
+		out.write(EOF_BLOCK);
+		out.close();
+		compressors.shutdown();
+		closed = true;
+	}
+
+	/**
+	 * @return Number of blocks written to the underlying stream so far
+	 */
+	public long getNumBlocksWritten() {
+		return numBlocksWritten;
+	}
+
+	/**
+	 * @return Number of compressed bytes written to the underlying stream so far
+	 */
+	public long getCompressedBytesWritten() {
+		return compressedBytesWritten;
+	}
+
+	/**
+	 * Get the position of the next byte to be written, as the block number shifted left 16 bits plus the offset within the block
+	 * Convert the position to a BGZF virtual file offset with {@link #getVirtualOffset(long)} once its block has been written
+	 * @return Position of the next byte
+	 * @throws IOException
+	 */
+	public long getPosition() throws IOException {
+		if(bufferPos == buffer.length) endBlock();
+		return (numBlocksStarted << 16) | bufferPos;
+	}
+
+	/**
+	 * Get the BGZF virtual file offset of a position, i.e. the compressed offset of its block shifted left 16 bits plus the offset within the block
+	 * @param position Position from {@link #getPosition()}
+	 * @return Virtual file offset
+	 * @throws IllegalStateException If the block of the position has not been written yet; call {@link #flush()} or {@link #close()} first
+	 */
+	public long getVirtualOffset(long position) {
+		long block = position >>> 16;
+		int offset = (int) (position & 0xffff);
+		if(block < numBlocksWritten) {
+			return (blockOffsets[(int) block] << 16) | offset;
+		}
+		if(block == numBlocksWritten && offset == 0) {
+			// Start of the next block, or the end of the data
+			return compressedBytesWritten << 16;
+		}
+		throw new IllegalStateException("Block " + block + " has not been written yet");
+	}
+
+	/**
+	 * Hand off the current buffer for compression and start a new one
+	 * @throws IOException
+	 */
+	private void endBlock() throws IOException {
+		byte[] block = buffer;
+		int length = bufferPos;
+		int level = compressionLevel;
+		pending.add(compressors.submit(() -> compressBlock(block, length, level)));
+		numBlocksStarted++;
+		buffer = new byte[MAX_UNCOMPRESSED_BLOCK_SIZE];
+		bufferPos = 0;
+		while(pending.size() > maxPendingBlocks) writeNextBlock();
+	}
+
+	/**
+	 * Wait for the oldest pending block and write it to the underlying stream
+	 * @throws IOException
+	 */
+	private void writeNextBlock() throws IOException {
+		byte[] block;
+		try {
+			block = pending.remove().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compressing BGZF block", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to compress BGZF block", e.getCause());
+		}
+		out.write(block);
+		if(numBlocksWritten == blockOffsets.length) blockOffsets = Arrays.copyOf(blockOffsets, 2 * blockOffsets.length);
+		blockOffsets[(int) numBlocksWritten] = compressedBytesWritten;
+		numBlocksWritten++;
+		compressedBytesWritten += block.length;
+	}
+
+	private static final ThreadLocal<Deflater[]> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater[10]);
+
+	/**
+	 * @param level Compression level
+	 * @return A reusable deflater for the calling thread
+	 */
+	private static Deflater deflater(int level) {
+		Deflater[] deflaters = DEFLATERS.get();
+		if(deflaters[level] == null) deflaters[level] = new Deflater(level, true);
+		Deflater rtrn = deflaters[level];
+		rtrn.reset();
+		return rtrn;
+	}
+
+	/**
+	 * Compress data into a complete BGZF block
+	 * @param data Uncompressed data
+	 * @param length Number of bytes of data
+	 * @param level Compression level
+	 * @return The block including header and footer
+	 */
+	static byte[] compressBlock(byte[] data, int length, int level) {
+		byte[] compressed = new byte[MAX_COMPRESSED_BLOCK_SIZE];
+		int maxDataLength = MAX_COMPRESSED_BLOCK_SIZE - BLOCK_HEADER_LENGTH - BLOCK_FOOTER_LENGTH;
+		Deflater deflater = deflater(level);
+		deflater.setInput(data, 0, length);
+		deflater.finish();
+		int compressedLength = deflater.deflate(compressed, BLOCK_HEADER_LENGTH, maxDataLength);
+		if(!deflater.finished()) {
+			// Data does not compress; store it instead
+			deflater = deflater(Deflater.NO_COMPRESSION);
+			deflater.setInput(data, 0, length);
+			deflater.finish();
+			compressedLength = deflater.deflate(compressed, BLOCK_HEADER_LENGTH, maxDataLength);
+			if(!deflater.finished()) throw new IllegalStateException("Block does not fit in BGZF block when stored without compression");
+		}
+		int blockLength = BLOCK_HEADER_LENGTH + compressedLength + BLOCK_FOOTER_LENGTH;
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		compressed[0] = 0x1f;
+		compressed[1] = (byte) 0x8b;
+		compressed[2] = 0x08; // Deflate
+		compressed[3] = 0x04; // Extra field present
+		compressed[9] = (byte) 0xff; // Unknown OS
+		compressed[10] = 0x06; // Extra field length
+		compressed[12] = 0x42; // 'B'
+		compressed[13] = 0x43; // 'C'
+		compressed[14] = 0x02; // Subfield length
+		putShort(compressed, 16, blockLength - 1);
+		putInt(compressed, blockLength - 8, (int) crc.getValue());
+		putInt(compressed, blockLength - 4, length);
+		byte[] rtrn = Arrays.copyOf(compressed, blockLength);
+		return rtrn;
+	}
+
+	private static void putShort(byte[] b, int pos, int value) {
+		b[pos] = (byte) value;
+		b[pos + 1] = (byte) (value >>> 8);
+	}
+
+	private static void putInt(byte[] b, int pos, int value) {
+		b[pos] = (byte) value;
+		b[pos + 1] = (byte) (value >>> 8);
+		b[pos + 2] = (byte) (value >>> 16);
+		b[pos + 3] = (byte) (value >>> 24);
+	}
+
+}
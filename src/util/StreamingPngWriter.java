@@ -0,0 +1,153 @@
+package util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes an 8-bit RGB PNG image one row at a time, so images of any size can be written without holding them in memory
+ * Rows are compressed into IDAT chunks as they are written
+ * Instances are not thread safe
+ * @author prussell
+ *
+ */
+public final class StreamingPngWriter {
+
+	private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+	private static final int MAX_CHUNK_LENGTH = 1 << 20;
+
+	private DataOutputStream out;
+	private DeflaterOutputStream imageData;
+	private Deflater deflater;
+	private int width;
+	private int height;
+	private int numRowsWritten;
+
+	/**
+	 * @param file Output file
+	 * @param width Image width in pixels
+	 * @param height Image height in pixels
+	 * @param compressionLevel Deflate compression level
+	 * @throws IOException
+	 */
+	public StreamingPngWriter(File file, int width, int height, int compressionLevel) throws IOException {
+		if(width < 1 || height < 1) throw new IllegalArgumentException("Image must be at least 1 x 1: " + width + " x " + height);
+		if((long) width * 3 + 1 > Integer.MAX_VALUE) throw new IllegalArgumentException("Image is too wide: " + width);
+		this.width = width;
+		this.height = height;
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		out.write(SIGNATURE);
+		byte[] header = new byte[13];
+		putInt(header, 0, width);
+		putInt(header, 4, height);
+		header[8] = 8; // Bit depth
+		header[9] = 2; // Color type RGB
+		writeChunk("IHDR", header, 0, header.length);
+		deflater = new Deflater(compressionLevel);
+		imageData = new DeflaterOutputStream(new ChunkOutputStream(), deflater, 1 << 16);
+	}
+
+	/**
+	 * @return Image width in pixels
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return Image height in pixels
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Write the next row of the image
+	 * @param rgb Red, green and blue bytes of each pixel
+	 * @param offset Offset of the row in the array
+	 * @throws IOException
+	 */
+	public void writeRow(byte[] rgb, int offset) throws IOException {
+		if(numRowsWritten == height) throw new IllegalStateException("All " + height + " rows are already written");
+		imageData.write(0); // No filter
+		imageData.write(rgb, offset, 3 * width);
+		numRowsWritten++;
+	}
+
+	/**
+	 * Finish the image and close the file
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if(numRowsWritten != height) throw new IllegalStateException("Wrote " + numRowsWritten + " of " + height + " rows");
+		imageData.close();
+		deflater.end();
+		writeChunk("IEND", new byte[0], 0, 0);
+		out.close();
+	}
+
+	private void writeChunk(String type, byte[] data, int offset, int length) throws IOException {
+		byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data, offset, length);
+		out.writeInt(length);
+		out.write(typeBytes);
+		out.write(data, offset, length);
+		out.writeInt((int) crc.getValue());
+	}
+
+	private static void putInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) (value >>> 24);
+		bytes[offset + 1] = (byte) (value >>> 16);
+		bytes[offset + 2] = (byte) (value >>> 8);
+		bytes[offset + 3] = (byte) value;
+	}
+
+	/**
+	 * Collects compressed image data into IDAT chunks
+	 */
+	private final class ChunkOutputStream extends OutputStream {
+
+		private byte[] buffer = new byte[MAX_CHUNK_LENGTH];
+		private int length;
+
+		@Override
+		public void write(int b) throws IOException {
+			if(length == buffer.length) flushChunk();
+			buffer[length++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while(len > 0) {
+				if(length == buffer.length) flushChunk();
+				int n = Math.min(len, buffer.length - length);
+				System.arraycopy(b, off, buffer, length, n);
+				length += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		private void flushChunk() throws IOException {
+			if(length == 0) return;
+			writeChunk("IDAT", buffer, 0, length);
+			length = 0;
+		}
+
+		@Override
+		public void close() throws IOException {
+			flushChunk();
+		}
+
+	}
+
+}